@@ -27,11 +27,16 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.smartcampus.android.location;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -46,29 +51,48 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.smartcampus.android.location.wifi.AccessPointSelector;
 import com.smartcampus.android.location.wifi.AlgorithmNNSS;
 import com.smartcampus.android.location.wifi.EstimateResult;
 import com.smartcampus.android.location.wifi.IPositioningAlgorithm;
 import com.smartcampus.android.location.wifi.WifiPosEngine;
 import com.smartcampus.android.wifi.WifiMeasurementBuilder;
+import com.smartcampus.baselogic.LocalProjection;
 import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.BuildingIndex;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.RadioMapPrefetcher;
+import com.smartcampus.indoormodel.RadioMapRepository;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.tracking.TrackedPosition;
+import com.smartcampus.tracking.TrackingOutbox;
 import com.smartcampus.webclient.BatchUpdater;
+import com.smartcampus.webclient.CompactTrackingClient;
+import com.smartcampus.webclient.ConnectionInfo;
+import com.smartcampus.webclient.HttpTransport;
 import com.smartcampus.webclient.IWebClient;
 import com.smartcampus.webclient.JsonWebClient;
+import com.smartcampus.webclient.RadioMapRevalidator;
 import com.smartcampus.webclient.snifferbackend.IInfrastructurePositioningService;
+import com.smartcampus.webclient.snifferbackend.InfrastructurePositionChannel;
 import com.smartcampus.webclient.snifferbackend.InfrastructurePositionEstimate;
 import com.smartcampus.webclient.snifferbackend.JsonInfrastructurePositioningClient;
 import com.smartcampus.wifi.MacInfo;
+import com.smartcampus.wifi.ScanFilter;
 import com.smartcampus.wifi.WifiMeasurement;
 
 /**
@@ -132,27 +156,21 @@ public class LocationService extends Service implements SensorEventListener {
 	 */
 	private class DownloadGraphTask extends AsyncTask<Integer, Void, Building>
 	{
-		//private IWebClient mWebClient = new DomWebClient(); //this client downloads via http and constructs a DOM which is parsed
-		private IWebClient mWebClient = new JsonWebClient(); //this client downloads via http and
-		private int mGraphToDownloadId;
+		private Building mBuilding;
 		private String downloadMsg = "Ok";
 		//Download a building (radio map) in the background
 		@Override		
 		protected Building doInBackground(Integer ... arg0) {
-			mGraphToDownloadId = arg0[0];
-			Iterable<Building> availBuildings = LocationService.cAvailableShallowBuildings;
-			if (availBuildings != null)
-			{
-				for (Building b : availBuildings)
-					if (b.getBuildingID() == mGraphToDownloadId)
-					{
-						LocationService.CurrentBuilding = b;
-						break;
-					}
-			}			
+			int buildingId = arg0[0];
+			mBuilding = findAvailableBuilding(buildingId);
+			LocationService.CurrentBuilding = mBuilding;
 			try
 			{
-				return mWebClient.downloadRadioMap(mGraphToDownloadId);
+				//Joins the download if the building is being downloaded already (and is a no-op if it has been recently)
+				Building radioMap = mRadioMaps.get(buildingId);
+				//The snapshot is built here rather than on the UI thread
+				setCurrentRadioMap(mBuilding, radioMap);
+				return radioMap;
 			}
 			catch (Exception ex) //IOException will most likely be the cause
 			{
@@ -170,11 +188,6 @@ public class LocationService extends Service implements SensorEventListener {
 			}
 			else 
 			{
-				//NB: Only set the graph model - refactor to avoid confusion
-				if (LocationService.CurrentBuilding != null)
-					LocationService.CurrentBuilding.setGraphModel(arg.getGraphModel());
-				else
-					LocationService.CurrentBuilding = arg; //redundant to store both building and graph
 				setWifiStatus(STATUS_RADIOMAP_DOWNLOADED);						
 			}
 			LocationService.this.notifyWifiStatusChanged(downloadMsg);			
@@ -235,39 +248,6 @@ public class LocationService extends Service implements SensorEventListener {
 		    return diffInSeconds / 60;
 		}
 		
-		private boolean buildingRequiresUpdate(int buildingID) {
-						
-			//we haven't downloaded before
-			//joda version:
-			//DateTime lastUpdated = cLastGraphDownloads.get(buildingID);
-			//util date version:
-			Date lastUpdated = cLastGraphDownloads.get(buildingID);
-			
-			if (lastUpdated == null)
-				return true;
-			
-			//we haven't downloaded in the last 5 minutes
-			final int downloadInterval = 5;
-			
-			//joda version
-			/*
-			org.joda.time.DateTime now = new DateTime();
-			org.joda.time.Period period = new Period(lastUpdated, now);
-			int minutes = period.getMinutes();
-			if (minutes >= downloadInterval)
-			{
-				return true;				
-			}
-			*/
-			Date now = new Date();
-			long minutes = minutesBetween(lastUpdated, now);
-			if (minutes >= downloadInterval)
-				return true;
-			
-			//we have downloaded within the last 5 minutes
-			return false;
-		}
-
 		//Download a building (radio map) in the background
 		@Override		
 		protected Void doInBackground(Void... arg0) {
@@ -290,10 +270,9 @@ public class LocationService extends Service implements SensorEventListener {
 					return null;
 				}
 			}
-			//TODO: Change to find list of buildings. 
-			//If there is only one candidate we treat it as building found and download it. 
+			//TODO: If there is only one candidate we treat it as building found and download it. 
 			//In case of several we can say BUILDING_NOT_FOUND and give the user the choice between
-			//the candidates (sorted after how many ap's were matched)
+			//the candidates (sorted after how many ap's were matched, cf. getBuildingCandidates())
 			Building correctShallowBuilding = getCorrectShallowBuilding(cAvailableShallowBuildings);
 			
 			//Test no building found:
@@ -309,38 +288,33 @@ public class LocationService extends Service implements SensorEventListener {
 			else
 			{
 				CurrentBuilding = correctShallowBuilding;
-				if (!buildingRequiresUpdate(CurrentBuilding.getBuildingID()))
+				int buildingId = correctShallowBuilding.getBuildingID();
+				//A radio map that has been loaded within the last RADIOMAP_MAX_AGE_MINUTES is used as is (cf. RadioMapRepository)
+				boolean isLoaded = mRadioMaps.contains(buildingId);
+				Building radioMap = null;
+				try {
+					radioMap = mRadioMaps.get(buildingId);
+				}
+				catch (Exception ex2) {
+					Log.e(TAG, Log.getStackTraceString(ex2));
+					downloadMsg = ex2.getCause() != null ? ex2.getCause().getMessage() : ex2.getMessage();
+				}
+				if (radioMap != null)
 				{
-					setWifiStatus(STATUS_RADIOMAP_READY);
+					setCurrentRadioMap(correctShallowBuilding, radioMap);
+					//Otherwise the status was set by loadRadioMap()
+					if (isLoaded)
+						setWifiStatus(STATUS_RADIOMAP_READY);
 				}
 				else
 				{
-					sendBroadcast(new Intent(PROGRESS_STATUS_DOWNLOADING_RADIOMAP));
-					Building fullBuilding = null;
-					try {
-						//Hardcoded web client - consider dependency injection
-						IWebClient webClient = new JsonWebClient();
-						fullBuilding = webClient.downloadRadioMap(CurrentBuilding.getBuildingID());
-					}
-					catch (Exception ex2) {
-						Log.e(TAG, Log.getStackTraceString(ex2));
-						downloadMsg = ex2.getCause() != null ? ex2.getCause().getMessage() : ex2.getMessage();
-					}
-					if (fullBuilding != null)
-					{
-						CurrentBuilding.setGraphModel(fullBuilding.getGraphModel());
-						//joda version:
-						//cLastGraphDownloads.put(CurrentBuilding.getBuildingID(), new DateTime());
-						//java util version:
-						cLastGraphDownloads.put(CurrentBuilding.getBuildingID(), new Date());
-						setWifiStatus(STATUS_RADIOMAP_DOWNLOADED);
-					}
-					else
-					{
-						setWifiStatus(STATUS_CONNECTION_PROBLEM);
-					}	
-				}				
+					setWifiStatus(STATUS_CONNECTION_PROBLEM);
+				}	
 			}  
+			
+			//The nearby buildings are known now - prefetch their radio maps if it is cheap
+			if (isCharging())
+				requestRadioMapPrefetch();
 
 			return null;
 		}
@@ -476,15 +450,24 @@ public class LocationService extends Service implements SensorEventListener {
 		private Location currentEstimateAndroidLocation; 
 
 		public WiFiScanReceiver(int useNumScans) {
-			posEngine = new WifiPosEngine(CurrentBuilding, mCurrentWifiPositioningAlgorithm); 
+			posEngine = new WifiPosEngine(getCurrentRadioMap(), mCurrentWifiPositioningAlgorithm); 
 			lastMeasurement = new WifiMeasurement();
 			currentEstimateAndroidLocation = new Location(PROVIDER_NAME);
 		}
 
 		@Override
 		public void onReceive(Context c, Intent intent) {
+			//APs that are unknown to the current building are dropped up front - they would only be penalized as missing
+			RadioMapSnapshot currentRadioMap = getCurrentRadioMap();
+			ScanFilter scanFilter = currentRadioMap == null ? null : currentRadioMap.getScanFilter();
 			List<ScanResult> results = mWifiMan.getScanResults();
 			for (ScanResult result : results) {
+				mNumScanResults++;
+				if (scanFilter != null && !scanFilter.accept(result.BSSID))
+				{
+					mNumDroppedScanResults++;
+					continue;
+				}
 				//build measurement
 				lastMeasurement.addValue(result.BSSID, result.level, new MacInfo(result));
 			}
@@ -493,8 +476,11 @@ public class LocationService extends Service implements SensorEventListener {
 			if (scanNo >= getNumScansToCreateWiFiMeasurement())
 			{
 				//Make sure that we are always doing location estimation in the current building
-				posEngine.setCurrentBuilding(CurrentBuilding);
-				currentEstimate = posEngine.getEstimate(lastMeasurement);
+				//(The estimate is computed from this snapshot, even if another radio map is published meanwhile)
+				RadioMapSnapshot radioMap = getCurrentRadioMap();
+				posEngine.setRadioMap(radioMap);
+				//No AP of the building was seen - then every vertex would match equally well
+				currentEstimate = lastMeasurement.getMACs().isEmpty() ? null : posEngine.getEstimate(lastMeasurement);
 
 				if (currentEstimate != null && currentEstimate.getVertex() != null)
 				{
@@ -506,7 +492,7 @@ public class LocationService extends Service implements SensorEventListener {
 					currentEstimateAndroidLocation.setAccuracy((float)currentEstimate.getErrorEstimate());
 					currentEstimateAndroidLocation.setTime(System.currentTimeMillis());
 					Bundle extras = new Bundle();
-			    	extras.putInt(BUNDLE_BUILDING_ID, CurrentBuilding.getBuildingID());
+			    	extras.putInt(BUNDLE_BUILDING_ID, radioMap.getBuilding().getBuildingID());
 			    	extras.putInt(BUNDLE_VERTEX_ID, currentEstimate.getVertex().getId());
 			    	//extras.putIntArray(key, value)
 			    	extras.putIntArray(BUNDLE_ESTIMATE_VERTICES_IDS, currentEstimate.getBcsVerticesIDs());
@@ -534,17 +520,59 @@ public class LocationService extends Service implements SensorEventListener {
 
 	/**
 	 * The building that the user is currently estimated to be in (or null) 
+	 * (Volatile, as it is set by the download tasks)
 	 */
-	public static com.smartcampus.indoormodel.Building CurrentBuilding = null; 
+	public static volatile com.smartcampus.indoormodel.Building CurrentBuilding = null; 
+	
+	//The number of scan results received for positioning and how many of them were dropped by the scan filter of the radio map
+	private int mNumScanResults, mNumDroppedScanResults;
+	
+	//Replaced (never changed) whenever a radio map is loaded, cf. getCurrentRadioMap()
+	private static final AtomicReference<RadioMapSnapshot> cCurrentRadioMap = new AtomicReference<RadioMapSnapshot>();
 	
 	//joda versions:
-	//private static HashMap<Integer, org.joda.time.DateTime> cLastGraphDownloads = new HashMap<Integer, org.joda.time.DateTime>();
 	//private static org.joda.time.DateTime cLastAvailableBuildingDownload;
 	//java util versions:
-	private static HashMap<Integer, Date> cLastGraphDownloads = new HashMap<Integer, Date>();
 	private static Date cLastAvailableBuildingDownload;
 		
 	private static ArrayList<Building> cAvailableShallowBuildings;
+	//Identifies the building from a scan (cf. getNearestAPMatchBuilding()) - built from cBuildingIndexSource
+	private static BuildingIndex cBuildingIndex;
+	private static Iterable<Building> cBuildingIndexSource;
+	private static volatile List<BuildingIndex.Candidate> cBuildingCandidates = Collections.emptyList();
+	
+	//A loaded radio map is used as is for this long - then it is revalidated (cf. loadCachedRadioMap())
+	private static final int RADIOMAP_MAX_AGE_MINUTES = 5;
+	//The number of radio maps kept in memory, e.g., when moving between two buildings
+	private static final int MAX_LOADED_RADIOMAPS = 2;
+	
+	//Loads each radio map at most once at a time - both when a building is detected and when it is chosen manually
+	private final RadioMapRepository mRadioMaps = new RadioMapRepository(new RadioMapRepository.Loader() {
+		public Building load(int buildingId) throws IOException {
+			return loadRadioMap(buildingId);
+		}
+	}, RADIOMAP_MAX_AGE_MINUTES * 60 * 1000, MAX_LOADED_RADIOMAPS);
+	//One lock per building (cf. getRadioMapFileLock())
+	private final HashMap<Integer, Object> mRadioMapFileLocks = new HashMap<Integer, Object>();
+	
+	//Downloaded radio maps are cached on disk (cf. RadioMapFile), so a cold start does not require a download. 
+	//The cache is revalidated with the server - if that is not possible, a cached radio map older than this is downloaded anew. 
+	private static final int RADIOMAP_CACHE_MAX_AGE_MINUTES = 24 * 60;
+	//The fingerprints of a radio map are loaded per floor when needed - the loaded floors are kept within this (estimated) size in bytes. 
+	//Roughly the current floor and its neighbours of a large building within the heap of an older phone. 
+	private static final long RADIOMAP_FINGERPRINT_BUDGET = 4 * 1024 * 1024;
+	private final RadioMapRevalidator mRadioMapRevalidator = new RadioMapRevalidator(RADIOMAP_CACHE_MAX_AGE_MINUTES * 60 * 1000L, 
+			RADIOMAP_FINGERPRINT_BUDGET, new RadioMapRevalidator.Writer() {
+		public void write(int buildingId, String version, IGraph graph, File file) throws IOException {
+			writeRadioMap(buildingId, version, graph, file);
+		}
+	});
+	//The cached radio map may only keep the fingerprint entries of the most discriminative APs of each floor (cf. AccessPointSelector). 
+	//All APs are kept by default, cf. setRadioMapMaxAccessPointsPerFloor(). 
+	private static volatile int cRadioMapMaxApsPerFloor = Integer.MAX_VALUE;
+	//... and at most this many fingerprints per vertex (the fingerprints of a spot that has been calibrated more often are pooled, cf. FingerprintConsolidator). 
+	//All are kept by default, cf. setRadioMapMaxFingerprintsPerVertex(). 
+	private static volatile int cRadioMapMaxFingerprintsPerVertex = Integer.MAX_VALUE;
 
 	/**
 	 * The unique name of the Wi-Fi location provider
@@ -567,9 +595,10 @@ public class LocationService extends Service implements SensorEventListener {
 	
 	private static boolean cIsEnablingWifi;
 		
-	public static void addAvailableBuilding(Building b)
+	public static synchronized void addAvailableBuilding(Building b)
 	{
 		cAvailableShallowBuildings.add(b);
+		cBuildingIndex = null;
 	}
 		
 	public static Iterable<Building> getAvailableShallowBuildings()
@@ -717,6 +746,7 @@ public class LocationService extends Service implements SensorEventListener {
 	*/
 	
 	private boolean doInfrastructureWifiPositioning;
+	private InfrastructurePositionChannel mInfrastructurePositionChannel;
 	private static int mInfrastructureWifiPositioningUpdateInterval = 2000;
 	
 	private String mMacAddress;
@@ -756,16 +786,20 @@ public class LocationService extends Service implements SensorEventListener {
 		   String mac = getMacAddress();
 		   svc.startWifiPositioning(mac);
 		   
-		   //Repetedly call GetPosition(); transform the result to an Android location, and then notify listeners
-		   while (doInfrastructureWifiPositioning)
-	       {		    	   
-	    	   try { Thread.sleep(mInfrastructureWifiPositioningUpdateInterval); }
-	    	   catch (InterruptedException e) { } 
-	    	   
-	    	   InfrastructurePositionEstimate pos = svc.getPosition(mac);	
-	    	   //InfrastructurePositionEstimate pos = svc.testGetRandomPosition(clientMacAddress);
-	    	   
-	    	   if (pos != null)
+		   //Receive estimates as the backend produces them (cf. InfrastructurePositionChannel - 
+		   //the update interval is only used if the backend has to be polled); 
+		   //transform each to an Android location, and then notify listeners
+		   InfrastructurePositionChannel channel = new InfrastructurePositionChannel(
+				   ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI, mac, mInfrastructureWifiPositioningUpdateInterval);
+		   synchronized (LocationService.this)
+		   {
+			   if (!doInfrastructureWifiPositioning)
+				   return;
+			   mInfrastructurePositionChannel = channel;
+		   }
+		   channel.run(new InfrastructurePositionChannel.Listener() {
+	    	   @Override
+	    	   public void onPosition(InfrastructurePositionEstimate pos) 
 	    	   {
 	    		   //transform result
 		    	   Location androidPos = new Location(TRACKING_PROVIDER_WIFI_INFRASTRUCTURE);
@@ -784,7 +818,7 @@ public class LocationService extends Service implements SensorEventListener {
 		    	   //notify listeners
 		    	   notifyInfrastructureLocationChanged(androidPos);
 	    	   }
-	       } 
+	       });
 		}
 	};	
 	
@@ -815,6 +849,172 @@ public class LocationService extends Service implements SensorEventListener {
 		new DownloadGraphTask().execute(buildingId);		
 	}
 
+	/**
+	 * Returns the (shallow) building with the given id among the available buildings - or a new building with that id. 
+	 */
+	private static Building findAvailableBuilding(int buildingId)
+	{
+		Iterable<Building> availBuildings = LocationService.cAvailableShallowBuildings;
+		if (availBuildings != null)
+		{
+			for (Building b : availBuildings)
+				if (b.getBuildingID() == buildingId)
+					return b;
+		}
+		Building result = new Building();
+		result.setBuildingID(buildingId);
+		return result;
+	}
+	
+	/**
+	 * Makes a loaded radio map the current one: A new snapshot is built and swapped in (cf. getCurrentRadioMap()). 
+	 * The snapshot gets a building of its own (a copy of the shared shallow building), which becomes CurrentBuilding, 
+	 * so neither the shallow building nor the building of an older snapshot is modified. 
+	 * The graph has been projected into the building's frame when it was loaded (cf. projectRadioMap()), so publishing it does not touch the vertices. 
+	 * The download tasks publish one at a time, so the latest snapshot is the one that stays current. 
+	 */
+	private static synchronized void setCurrentRadioMap(Building building, Building radioMap)
+	{
+		Building current = new Building(building);
+		current.setGraphModel(radioMap.getGraphModel());
+		current.setRadioMapVersion(radioMap.getRadioMapVersion());
+		RadioMapSnapshot snapshot = new RadioMapSnapshot(current, radioMap.getGraphModel(), radioMap.getRadioMapVersion());
+		CurrentBuilding = current;
+		cCurrentRadioMap.set(snapshot);
+		Log.i(TAG, snapshot.toString());
+	}
+	
+	/**
+	 * The radio map of the current building (or null, if none has been loaded). 
+	 * The snapshot is immutable - a new radio map is published as a new snapshot, so positioning, routing and rendering 
+	 * should take the current snapshot once (per estimate, route, etc.) and use it throughout. 
+	 */
+	public static RadioMapSnapshot getCurrentRadioMap()
+	{
+		return cCurrentRadioMap.get();
+	}
+	
+	/**
+	 * Loads the radio map of a building (cf. mRadioMaps). 
+	 * On a cold start the radio map is restored from the disk cache (and only what has changed is downloaded). 
+	 * Otherwise the radio map is downloaded and cached. 
+	 */
+	private Building loadRadioMap(int buildingId) throws IOException
+	{
+		//The prefetcher may be writing the same cache file - we wait for it and then find the radio map in the cache
+		synchronized (getRadioMapFileLock(buildingId))
+		{
+			//Hardcoded web client - consider dependency injection
+			IWebClient webClient = new JsonWebClient();
+			Building radioMap = loadCachedRadioMap(buildingId, webClient);
+			if (radioMap != null)
+			{
+				//A no-op unless the radio map was cached in another frame (e.g., by the prefetcher before the building's location was known)
+				projectRadioMap(buildingId, radioMap.getGraphModel());
+				setWifiStatus(STATUS_RADIOMAP_READY);
+				return radioMap;
+			}
+		
+			sendBroadcast(new Intent(PROGRESS_STATUS_DOWNLOADING_RADIOMAP));
+			radioMap = webClient.downloadRadioMap(buildingId);
+			if (radioMap != null)
+			{
+				//The cache stores the projected coordinates, so the graph is projected into the building's frame first
+				projectRadioMap(buildingId, radioMap.getGraphModel());
+				//If the cache keeps every fingerprint (and AP), the downloaded fingerprints are dropped - they are loaded per floor from the cache when needed. 
+				//Otherwise the downloaded graph is kept, so positioning uses the original fingerprints until the radio map is next restored from the cache. 
+				boolean isLossless = cRadioMapMaxFingerprintsPerVertex == Integer.MAX_VALUE && cRadioMapMaxApsPerFloor == Integer.MAX_VALUE;
+				if (cacheRadioMap(buildingId, radioMap.getRadioMapVersion(), radioMap.getGraphModel()) && isLossless)
+				{
+					try
+					{
+						radioMap.setGraphModel(RadioMapFile.open(getRadioMapCacheFile(buildingId)).loadGraph(RADIOMAP_FINGERPRINT_BUDGET));
+					}
+					catch (IOException ex)
+					{
+						//We keep the downloaded graph
+						Log.e(TAG, Log.getStackTraceString(ex));
+					}
+				}
+				setWifiStatus(STATUS_RADIOMAP_DOWNLOADED);
+			}
+			return radioMap;
+		}
+	}
+	
+	/**
+	 * Projects the graph of a radio map into the frame of its building (cf. Building.getProjection()). 
+	 * This is done once, while the graph is private to the loader, i.e., before it is cached or published (cf. setCurrentRadioMap()). 
+	 */
+	private static void projectRadioMap(int buildingId, IGraph graph)
+	{
+		Building building = findAvailableBuilding(buildingId);
+		if (building.hasLocation())
+			graph.setProjection(new LocalProjection(building.getLatitude(), building.getLongitude()));
+	}
+	
+	//Serializes the loads and prefetches of a building's radio map, as they read and write the same cache file
+	private Object getRadioMapFileLock(int buildingId)
+	{
+		synchronized (mRadioMapFileLocks)
+		{
+			Object lock = mRadioMapFileLocks.get(buildingId);
+			if (lock == null)
+			{
+				lock = new Object();
+				mRadioMapFileLocks.put(buildingId, lock);
+			}
+			return lock;
+		}
+	}
+	
+	private File getRadioMapCacheFile(int buildingId)
+	{
+		return RadioMapPrefetcher.getCacheFile(getFilesDir(), buildingId);
+	}
+	
+	/**
+	 * Writes a radio map to the disk cache - keeping only the cRadioMapMaxApsPerFloor most discriminative APs of each floor 
+	 * and at most cRadioMapMaxFingerprintsPerVertex fingerprints per vertex 
+	 */
+	private static void writeRadioMap(int buildingId, String version, IGraph graph, File file) throws IOException
+	{
+		int maxApsPerFloor = cRadioMapMaxApsPerFloor;
+		Set<String> selectedMacs = maxApsPerFloor == Integer.MAX_VALUE ? null : AccessPointSelector.select(graph.getVertices(), maxApsPerFloor);
+		RadioMapFile.write(buildingId, version, graph, System.currentTimeMillis(), file, selectedMacs, cRadioMapMaxFingerprintsPerVertex);
+	}
+	
+	/**
+	 * Stores a (just downloaded) radio map in the disk cache
+	 * @return false if the radio map could not be stored
+	 */
+	private boolean cacheRadioMap(int buildingId, String version, IGraph graph)
+	{
+		try
+		{
+			writeRadioMap(buildingId, version, graph, getRadioMapCacheFile(buildingId));
+			return true;
+		}
+		catch (IOException ex)
+		{
+			//Not critical - we will just download the radio map again next time
+			Log.e(TAG, Log.getStackTraceString(ex));
+			return false;
+		}
+	}
+	
+	/**
+	 * Restores the radio map of a building from the disk cache and revalidates it with the server. 
+	 * If the radio map has changed since the cached version, only the changes are downloaded and applied (to the restored graph and the cache). 
+	 * If the changes are not available (the server cannot be reached or does not support delta sync), 
+	 * a cached radio map younger than RADIOMAP_CACHE_MAX_AGE_MINUTES is used as is (cf. RadioMapRevalidator). 
+	 * @return The restored radio map (graph and version) - or null if the full radio map must be downloaded
+	 */
+	private Building loadCachedRadioMap(int buildingId, IWebClient webClient)
+	{
+		return mRadioMapRevalidator.load(buildingId, getRadioMapCacheFile(buildingId), webClient);
+	}
+
 	private ArrayList<Building> downloadShallowBuildings() throws java.io.IOException
 	{
 		
@@ -888,35 +1088,35 @@ public class LocationService extends Service implements SensorEventListener {
 		if (buildings == null)
 			return null;
 
-		Building bestMatch = null;
 		//get a measurement to compare to the buildings' aps
 		WifiMeasurement meas = this.getWifiMeasurement2();
 		if (meas == null)
 			return null; //throw new Exception("No measurement");
 
-		//find best match by matching number of common APs
-		int maxCommonAPs = 0;		
-		for (Building curBuilding : buildings)
-		{			
-			int commonAPs = getNumberOfIdenticalMacs(meas.getMACs(), curBuilding.getPermissableAPs());
-			if (commonAPs > maxCommonAPs)
-			{
-				maxCommonAPs = commonAPs;
-				bestMatch = curBuilding;
-			}
-		}		
-		return bestMatch;
+		//rank the buildings by the number of common APs - the best match is the first candidate
+		List<BuildingIndex.Candidate> candidates = getBuildingIndex(buildings).getCandidates(meas.getMACs());
+		cBuildingCandidates = Collections.unmodifiableList(candidates);
+		return candidates.isEmpty() ? null : candidates.get(0).getBuilding();
 	}
-
-	private int getNumberOfIdenticalMacs(Set<String> measAPs, List<String> buildingAPs)
+	
+	//The index is built once per download of the available buildings (rather than on each identification)
+	private static synchronized BuildingIndex getBuildingIndex(Iterable<Building> buildings)
 	{
-		int numMatches = 0;
-		for (String curA : measAPs)
+		if (cBuildingIndex == null || cBuildingIndexSource != buildings)
 		{
-			if (buildingAPs.contains(curA))
-				numMatches++;
+			cBuildingIndex = new BuildingIndex(buildings);
+			cBuildingIndexSource = buildings;
 		}
-		return numMatches;
+		return cBuildingIndex;
+	}
+	
+	/**
+	 * The buildings that had APs in common with the scan of the last building identification - 
+	 * the most common APs first (an empty list if no identification has been made)
+	 */
+	public static List<BuildingIndex.Candidate> getBuildingCandidates()
+	{
+		return cBuildingCandidates;
 	}
 	
 	//@Override
@@ -1025,6 +1225,7 @@ public class LocationService extends Service implements SensorEventListener {
 	//Notify about a new Wifi (DEVICE-based) location estimate (using Android location)
 	private void notifyLocationChanged(Location newLocation)
 	{
+		mLastFix = newLocation;
 		if (locationListeners == null)
 			return;
 
@@ -1045,6 +1246,7 @@ public class LocationService extends Service implements SensorEventListener {
 	//Notify about a new Wifi (INFRASTRUCTURE-based) location estimate (using android location)
 	private void notifyInfrastructureLocationChanged(Location newLocation)
 	{
+		mLastFix = newLocation;
 		if (infrastructureLocationListeners == null)
 			return;
 	
@@ -1092,6 +1294,8 @@ public class LocationService extends Service implements SensorEventListener {
 		
 		//enableIndoorPositioning();
 		initializeAccelerometer();
+		startTrackingOutbox();
+		startRadioMapPrefetcher();
 	}	
 	
 	/**
@@ -1108,6 +1312,33 @@ public class LocationService extends Service implements SensorEventListener {
 		}	
 		
 		mSensorManager.unregisterListener(this);
+		
+		//Pending positions stay in the outbox until the service is started again
+		if (mTrackingOutbox != null)
+		{
+			Log.i(TAG, mTrackingOutbox.toString());
+			try
+			{
+				mTrackingOutbox.close();
+			}
+			catch (IOException ex)
+			{
+				Log.e(TAG, Log.getStackTraceString(ex));
+			}
+		}
+		
+		Log.i(TAG, mRadioMaps.toString());
+		Log.i(TAG, "Scan results: " + mNumScanResults + " received, " + mNumDroppedScanResults + " dropped (unknown APs)");
+		
+		if (mPrefetchReceiver != null)
+		{
+			unregisterReceiver(mPrefetchReceiver);
+			Log.i(TAG, mRadioMapPrefetcher.toString());
+		}
+		
+		//Per endpoint traffic of the web clients (cf. HttpTransport)
+		for (HttpTransport.EndpointStats stats : HttpTransport.getDefault().getAllStats())
+			Log.i(TAG, stats.toString());
 	}
 
 	/**
@@ -1170,6 +1401,30 @@ public class LocationService extends Service implements SensorEventListener {
 	}	
 	
 	
+	/**
+	 * This setter is used to trade positioning accuracy for the size of the cached radio maps: The fingerprints of a vertex beyond the given number 
+	 * are pooled into that many representative fingerprints when a radio map is cached (cf. FingerprintConsolidator). 
+	 * A radio map restored from the cache is then positioned against the pooled fingerprints, which blurs the signal strength distributions of the vertex. 
+	 * It applies to radio maps cached from now on (a cached radio map is rewritten when it changes or expires). 
+	 * @param maxFingerprintsPerVertex The maximum number of fingerprints per vertex. Integer.MAX_VALUE (the default) keeps all. 
+	 */
+	public static void setRadioMapMaxFingerprintsPerVertex(int maxFingerprintsPerVertex)
+	{
+		cRadioMapMaxFingerprintsPerVertex = Math.max(1, maxFingerprintsPerVertex);
+	}
+	
+	/**
+	 * This setter is used to trade positioning accuracy for speed: Only the fingerprint entries of the given number of most discriminative APs 
+	 * of each floor are kept when a radio map is cached (cf. AccessPointSelector), so fewer APs are compared per estimate. 
+	 * A radio map restored from the cache is then positioned without the dropped APs - measure the loss with AccessPointSelector.evaluate() first. 
+	 * It applies to radio maps cached from now on (a cached radio map is rewritten when it changes or expires). 
+	 * @param maxApsPerFloor The maximum number of APs per floor. Integer.MAX_VALUE (the default) keeps all. 
+	 */
+	public static void setRadioMapMaxAccessPointsPerFloor(int maxApsPerFloor)
+	{
+		cRadioMapMaxApsPerFloor = Math.max(1, maxApsPerFloor);
+	}
+	
 	public void setWifiStatus(int wifiStatus)
 	{
 		mStatus = wifiStatus;
@@ -1275,7 +1530,15 @@ public class LocationService extends Service implements SensorEventListener {
 	 */
 	public void stopInfrastructureWifiPositioning()
 	{
-		doInfrastructureWifiPositioning = false;
+		synchronized (this)
+		{
+			doInfrastructureWifiPositioning = false;
+			if (mInfrastructurePositionChannel != null)
+			{
+				mInfrastructurePositionChannel.close();
+				mInfrastructurePositionChannel = null;
+			}
+		}
 		
 		new Thread(
 			new Runnable() {
@@ -1330,64 +1593,189 @@ public class LocationService extends Service implements SensorEventListener {
 		return mClientId;
 	}	
 	
-	private ArrayList<TrackedPosition> bufferedTrackedPositions = new ArrayList<TrackedPosition>();
-    private static final int BUFFERED_POSITION_ESTIMATES_FLUSH_COUNT = 3;
-    //Used to lock the bufferedTrackedPositions as we may be writing concurrently
-    //(from wi-fi, gps, and we may be clearing the buffer)
-    private Object bufferedTrackedPositionsLock = new Object();
+	//Tracked positions are queued in a persistent outbox and uploaded in batches by its background thread
+	private TrackingOutbox mTrackingOutbox;
+	//A batch is uploaded when this many positions are pending..
+	private static final int TRACKING_BATCH_SIZE = 50;
+	//..or its oldest position is this old (in ms)
+	private static final long TRACKING_MAX_AGE = 60 * 1000;
+	
+	private void startTrackingOutbox()
+	{
+		try
+		{
+			//Use the compact binary format if the backend supports it
+			TrackingOutbox.Uploader uploader;
+			if (ConnectionInfo.SMARTCAMPUS_COMPACT_TRACKING_URI != null)
+			{
+				uploader = new CompactTrackingClient(ConnectionInfo.SMARTCAMPUS_COMPACT_TRACKING_URI);
+			}
+			else
+			{
+				uploader = new TrackingOutbox.Uploader() {
+					public void upload(TrackedPosition[] positions) throws IOException {
+						BatchUpdater.postTrackedPositions(positions);
+					}
+				};
+			}
+			mTrackingOutbox = new TrackingOutbox(new File(getFilesDir(), "tracking_outbox.bin"), uploader, TRACKING_BATCH_SIZE, TRACKING_MAX_AGE);
+			mTrackingOutbox.start();
+		}
+		catch (IOException ex)
+		{
+			//positions will not be tracked
+			Log.e(TAG, Log.getStackTraceString(ex));
+		}
+	}
 
+	//The radio maps of the nearest buildings are prefetched into the disk cache (cf. RadioMapPrefetcher), 
+	//so entering one of them only requires a revalidation rather than a full download
+	private RadioMapPrefetcher mRadioMapPrefetcher;
+	private BroadcastReceiver mPrefetchReceiver;
+	//The number of nearest buildings to prefetch
+	private static final int PREFETCH_NUM_BUILDINGS = 3;
+	//The maximum size of the cached radio maps (in bytes)
+	private static final long PREFETCH_STORAGE_BUDGET = 20 * 1024 * 1024;
+	//Prefetching runs at most once per interval
+	private static final int PREFETCH_INTERVAL_MINUTES = 60;
+	private long mLastPrefetch;
+	private boolean mIsPrefetching;
+	//The last Wi-Fi (device or infrastructure based) estimate
+	private volatile Location mLastFix;
+	
+	private void startRadioMapPrefetcher()
+	{
+		RadioMapPrefetcher.Fetcher fetcher = new RadioMapPrefetcher.Fetcher() {
+			public boolean fetch(int buildingId, File file) throws IOException {
+				synchronized (getRadioMapFileLock(buildingId))
+				{
+					//The building is being (or has just been) loaded for positioning
+					if (mRadioMaps.isLoading(buildingId) || mRadioMaps.contains(buildingId))
+						return false;
+					IWebClient webClient = new JsonWebClient();
+					//A stale cached radio map is revalidated (downloading only the changes)
+					if (loadCachedRadioMap(buildingId, webClient) != null)
+						return true;
+					Building radioMap = webClient.downloadRadioMap(buildingId);
+					if (radioMap == null)
+						throw new IOException("No radio map for building " + buildingId);
+					projectRadioMap(buildingId, radioMap.getGraphModel());
+					writeRadioMap(buildingId, radioMap.getRadioMapVersion(), radioMap.getGraphModel(), file);
+					return true;
+				}
+			}
+		};
+		mRadioMapPrefetcher = new RadioMapPrefetcher(getFilesDir(), fetcher, 
+				PREFETCH_NUM_BUILDINGS, PREFETCH_STORAGE_BUDGET, RADIOMAP_CACHE_MAX_AGE_MINUTES * 60 * 1000L);
+		
+		//API level 10 has no job scheduler - we prefetch when the device is plugged in or goes idle (screen off)
+		mPrefetchReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context c, Intent intent) {
+				requestRadioMapPrefetch();
+			}
+		};
+		IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		registerReceiver(mPrefetchReceiver, filter);
+	}
+	
+	/**
+	 * Prefetches the radio maps of the nearest buildings on a background thread - 
+	 * unless the available buildings are unknown, we are not on Wi-Fi or we have prefetched recently. 
+	 */
+	private synchronized void requestRadioMapPrefetch()
+	{
+		if (mRadioMapPrefetcher == null || mIsPrefetching || cAvailableShallowBuildings == null || !isOnWifi())
+			return;
+		long now = System.currentTimeMillis();
+		if (now - mLastPrefetch < PREFETCH_INTERVAL_MINUTES * 60 * 1000L)
+			return;
+		mLastPrefetch = now;
+		mIsPrefetching = true;
+		
+		final ArrayList<Building> buildings = new ArrayList<Building>(cAvailableShallowBuildings);
+		final Set<String> visibleMacs = getVisibleMacs();
+		Location fix = getLastFix();
+		final double latitude = fix != null ? fix.getLatitude() : Double.NaN;
+		final double longitude = fix != null ? fix.getLongitude() : Double.NaN;
+		Thread prefetchThread = new Thread(new Runnable() {
+			public void run() {
+				try
+				{
+					mRadioMapPrefetcher.prefetch(buildings, latitude, longitude, visibleMacs);
+					Log.i(TAG, mRadioMapPrefetcher.toString());
+				}
+				finally
+				{
+					synchronized (LocationService.this)
+					{
+						mIsPrefetching = false;
+					}
+				}
+			}
+		}, "RadioMapPrefetcher");
+		prefetchThread.setPriority(Thread.MIN_PRIORITY);
+		prefetchThread.start();
+	}
+	
+	//The last Wi-Fi estimate - or the last known GPS (or network) fix
+	private Location getLastFix()
+	{
+		if (mLastFix != null)
+			return mLastFix;
+		LocationManager locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+		if (locationManager == null)
+			return null;
+		Location fix = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+		return fix != null ? fix : locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+	}
+	
+	//The MACs of the last scan (no new scan is started)
+	private Set<String> getVisibleMacs()
+	{
+		Set<String> macs = new HashSet<String>();
+		List<ScanResult> results = mWifiMan != null ? mWifiMan.getScanResults() : null;
+		if (results != null)
+		{
+			for (ScanResult result : results)
+				macs.add(result.BSSID);
+		}
+		return macs;
+	}
+	
+	private boolean isCharging()
+	{
+		//ACTION_BATTERY_CHANGED is sticky, so the current battery state is returned right away
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+	
+	//Radio maps are several megabytes - they are not prefetched over a (metered) mobile connection
+	private boolean isOnWifi()
+	{
+		ConnectivityManager connectivity = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = connectivity != null ? connectivity.getActiveNetworkInfo() : null;
+		return network != null && network.isConnected() && network.getType() == ConnectivityManager.TYPE_WIFI;
+	}
+	
 	/**
-     * Add a position estimate to the buffer of tracked positions. 
-     * When the buffer is full, the data are flushed to the backend
+     * Add a position estimate to the tracking outbox. 
+     * The outbox uploads the positions to the backend in batches
      * @param pos
      */
     public void AddToTrackedPositions(TrackedPosition pos)
     {
-        // Wi-Fi and GPS can potentially be adding at the same time so we lock the buffer.
-        synchronized (bufferedTrackedPositionsLock)
-        {
-            bufferedTrackedPositions.add(pos);
-        }
-        if (IsTimeToSendTrackingData())
-        {
-            UploadTrackingDataAndFlushBuffer();
-        }    
-    }
-    
-    private boolean IsTimeToSendTrackingData()
-    {
-        return bufferedTrackedPositions.size() >= BUFFERED_POSITION_ESTIMATES_FLUSH_COUNT;
-    }
-	
-    private void UploadTrackingDataAndFlushBuffer()
-    {
-        if (bufferedTrackedPositions == null)
-            return;
-        if (bufferedTrackedPositions.size() == 0)
-            return;
-                    
-        //copy tracking data and clear buffer
-        final TrackedPosition[] tmp;
-        synchronized (bufferedTrackedPositionsLock)
-        {
-            int numPositions = bufferedTrackedPositions.size();
-            tmp = new TrackedPosition[numPositions];
-            for (int i = 0; i < numPositions; i++)
-            {
-            	tmp[i] = bufferedTrackedPositions.get(i);
-            }
-            bufferedTrackedPositions.clear();
-        }
-        
-        new Thread(
-    			new Runnable() {
-    				@Override
-    				public void run() {
-    				   //perform batch update of tracked positions
-    					BatchUpdater.updateTrackedPositions(tmp);
-    				}
-    			}).start();        
-        
+    	if (mTrackingOutbox == null)
+    		return;
+    	try
+    	{
+    		mTrackingOutbox.add(pos);
+    	}
+    	catch (IOException ex)
+    	{
+    		Log.e(TAG, Log.getStackTraceString(ex));
+    	}
     }
     
     /**
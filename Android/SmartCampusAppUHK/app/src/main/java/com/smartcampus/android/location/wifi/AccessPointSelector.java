@@ -0,0 +1,265 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.location.wifi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * Selects the APs that carry the most positional information, so the compiled radio map (cf. RadioMapFile.write()) 
+ * only keeps the fingerprint entries of those APs. Fewer APs per fingerprint means fewer operations per comparison 
+ * in AlgorithmNNSS - and far fewer AP pairs in the hyperbolic representation of AlgorithmHyperNNSS. 
+ * - An AP is scored by the variance of its signal strength across the fingerprints, where an AP that is not heard counts as MISSING_DBM. 
+ *   An AP that is heard alike everywhere - or almost nowhere - tells little about the position. 
+ * - The top N APs are selected per floor (so every floor keeps its own APs). 
+ * - evaluate() reports the accuracy and speed of a selection by leave-one-out estimation over the fingerprinted vertices. 
+ */
+public class AccessPointSelector {
+	
+	//The signal strength (in dBm) of an AP that is not heard
+	public static final int MISSING_DBM = -100;
+	
+	/**
+	 * The result of a leave-one-out evaluation (cf. evaluate())
+	 */
+	public static class Report
+	{
+		private final int mNumMacs;
+		private final int mNumEstimates;
+		private final double mMeanError;
+		private final double mMedianError;
+		private final long mNanosPerEstimate;
+		
+		Report(int numMacs, double[] errors, long nanosPerEstimate)
+		{
+			this.mNumMacs = numMacs;
+			this.mNumEstimates = errors.length;
+			double sum = 0;
+			for (double e : errors)
+				sum += e;
+			Arrays.sort(errors);
+			this.mMeanError = errors.length == 0 ? 0 : sum / errors.length;
+			this.mMedianError = errors.length == 0 ? 0 : errors[errors.length / 2];
+			this.mNanosPerEstimate = nanosPerEstimate;
+		}
+		
+		//The number of distinct MACs in the (reduced) fingerprints
+		public int getNumMacs()
+		{
+			return mNumMacs;
+		}
+		
+		public int getNumEstimates()
+		{
+			return mNumEstimates;
+		}
+		
+		//The mean distance (in meters) between the left out vertex and its estimate
+		public double getMeanError()
+		{
+			return mMeanError;
+		}
+		
+		public double getMedianError()
+		{
+			return mMedianError;
+		}
+		
+		public long getNanosPerEstimate()
+		{
+			return mNanosPerEstimate;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format("%d macs: mean error %.1f m, median error %.1f m, %d us per estimate (%d estimates)", 
+					mNumMacs, mMeanError, mMedianError, mNanosPerEstimate / 1000, mNumEstimates);
+		}
+	}
+	
+	/**
+	 * Ranks the APs of the fingerprints by the variance of their signal strength across the fingerprints
+	 * @return The MACs - the most discriminative first
+	 */
+	public static List<String> rank(Iterable<Vertex> vertices)
+	{
+		//Per MAC the sum and the sum of squares of its mean signal strength in the fingerprints that have it - and their number
+		final Map<String, double[]> stats = new HashMap<String, double[]>();
+		int numFingerprints = 0;
+		for (Vertex v : vertices)
+		{
+			for (WifiMeasurement fp : v.getFingerPrints())
+			{
+				numFingerprints++;
+				for (String mac : fp.getMACs())
+				{
+					double[] s = stats.get(mac);
+					if (s == null)
+					{
+						s = new double[3];
+						stats.put(mac, s);
+					}
+					double dbm = fp.getAvgDbM(mac);
+					s[0] += dbm;
+					s[1] += dbm * dbm;
+					s[2]++;
+				}
+			}
+		}
+		
+		//The fingerprints that do not have the MAC count as MISSING_DBM
+		final Map<String, Double> variances = new HashMap<String, Double>();
+		for (Map.Entry<String, double[]> entry : stats.entrySet())
+		{
+			double[] s = entry.getValue();
+			double numMissing = numFingerprints - s[2];
+			double mean = (s[0] + numMissing * MISSING_DBM) / numFingerprints;
+			double meanOfSquares = (s[1] + numMissing * MISSING_DBM * MISSING_DBM) / numFingerprints;
+			variances.put(entry.getKey(), meanOfSquares - mean * mean);
+		}
+		
+		List<String> result = new ArrayList<String>(variances.keySet());
+		Collections.sort(result, new Comparator<String>() {
+			public int compare(String a, String b) {
+				int c = variances.get(b).compareTo(variances.get(a));
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Selects the maxMacsPerFloor most discriminative APs (cf. rank()) of each floor
+	 * @return The selected MACs of all floors
+	 */
+	public static Set<String> select(Iterable<Vertex> vertices, int maxMacsPerFloor)
+	{
+		Map<Integer, List<Vertex>> floors = new TreeMap<Integer, List<Vertex>>();
+		for (Vertex v : vertices)
+		{
+			if (v.getNumFingerprints() == 0)
+				continue;
+			int floor = (int)v.getLocation().getAbsoluteLocation().getAltitude();
+			List<Vertex> floorVertices = floors.get(floor);
+			if (floorVertices == null)
+			{
+				floorVertices = new ArrayList<Vertex>();
+				floors.put(floor, floorVertices);
+			}
+			floorVertices.add(v);
+		}
+		
+		Set<String> result = new HashSet<String>();
+		for (List<Vertex> floorVertices : floors.values())
+		{
+			List<String> ranked = rank(floorVertices);
+			result.addAll(ranked.subList(0, Math.min(maxMacsPerFloor, ranked.size())));
+		}
+		return result;
+	}
+	
+	/**
+	 * Leave-one-out evaluation: Each fingerprinted vertex is estimated from its (first, complete) fingerprint 
+	 * against the other vertices, whose fingerprints are reduced to the selected MACs. 
+	 * @param selectedMacs The MACs to keep in the fingerprints (null keeps all)
+	 */
+	public static Report evaluate(Iterable<Vertex> vertices, IPositioningAlgorithm algorithm, Set<String> selectedMacs)
+	{
+		//Copies of the vertices with reduced fingerprints
+		List<Vertex> originals = new ArrayList<Vertex>();
+		List<Vertex> reduced = new ArrayList<Vertex>();
+		Map<Vertex, Vertex> originalsByCopy = new HashMap<Vertex, Vertex>();
+		Set<String> macs = new HashSet<String>();
+		for (Vertex v : vertices)
+		{
+			if (v.getNumFingerprints() == 0)
+				continue;
+			Vertex copy = new Vertex(v.getId(), v.getLocation().getAbsoluteLocation());
+			for (WifiMeasurement fp : v.getFingerPrints())
+			{
+				WifiMeasurement reducedFp = new WifiMeasurement();
+				for (Map.Entry<String, Hashtable<Integer, Integer>> hist : fp.getHistograms().entrySet())
+				{
+					if (selectedMacs != null && !selectedMacs.contains(hist.getKey()))
+						continue;
+					reducedFp.getHistograms().put(hist.getKey(), hist.getValue());
+					macs.add(hist.getKey());
+				}
+				copy.addFingerprint(reducedFp);
+			}
+			originals.add(v);
+			reduced.add(copy);
+			originalsByCopy.put(copy, v);
+		}
+		
+		double[] errors = new double[originals.size()];
+		long totalNanos = 0;
+		BCS previousBcs = WifiPosEngine.BestCandidateSet;
+		try
+		{
+			for (int i = 0; i < originals.size(); i++)
+			{
+				Vertex left = reduced.remove(i);
+				WifiPosEngine.BestCandidateSet = new BCS(10);
+				long start = System.nanoTime();
+				EstimateResult estimate = algorithm.compare(reduced, originals.get(i).getFingerPrints().get(0));
+				totalNanos += System.nanoTime() - start;
+				reduced.add(i, left);
+				
+				Vertex estimated = estimate == null ? null : estimate.getVertex();
+				errors[i] = estimated == null ? Double.NaN : originals.get(i).getDistance(originalsByCopy.get(estimated));
+			}
+		}
+		finally
+		{
+			WifiPosEngine.BestCandidateSet = previousBcs;
+		}
+		
+		//Vertices that could not be estimated are left out of the error statistics
+		double[] estimatedErrors = new double[errors.length];
+		int n = 0;
+		for (double e : errors)
+		{
+			if (!Double.isNaN(e))
+				estimatedErrors[n++] = e;
+		}
+		return new Report(macs.size(), Arrays.copyOf(estimatedErrors, n), errors.length == 0 ? 0 : totalNanos / errors.length);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.location.wifi;
+
+import java.util.List;
+
+import com.smartcampus.indoormodel.LshIndex;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * Narrows a large search space to the candidates of an LSH index (cf. LshIndex) before it is handed to another algorithm, 
+ * e.g., for campus-wide radio maps where scoring every fingerprint is too slow. 
+ * The estimate is approximate - the best vertex is missed if it is not a candidate (cf. LshIndex for the trade-off of the parameters). 
+ * - Only a radio map search space (cf. RadioMapSnapshot.SearchSpace) of at least MIN_INDEXED_VERTICES vertices is narrowed; 
+ *   other vertices (e.g., the primary search space) are handed on as they are. 
+ * - The index of the most recent search space is kept (and built when the search space changes). 
+ * - If the measurement has no candidates, the whole search space is searched. 
+ * NB: The candidates are handed on as a list of vertices, i.e., they are scored by their fingerprints rather than packed (cf. PackedFingerprints). 
+ * So this pays off for algorithms that score the fingerprints themselves (e.g., AlgorithmHyperNNSS) and for maps that are too large 
+ * even for a packed exhaustive search. 
+ */
+public class AlgorithmLsh implements IPositioningAlgorithm {
+	
+	//Smaller search spaces are searched exhaustively
+	public static final int MIN_INDEXED_VERTICES = 1000;
+	private static final long SEED = 42;
+	
+	private final IPositioningAlgorithm mAlgorithm;
+	private final int mNumTables, mNumBits, mNumProbes;
+	private List<Vertex> mIndexedVertices;
+	private LshIndex mIndex;
+	
+	//metrics
+	private int mNumLookups, mNumMisses;
+	private long mNumCandidates;
+	
+	/**
+	 * @param algorithm The algorithm that scores the candidates
+	 * @param numTables The number of hash tables of the index
+	 * @param numBits The number of bits per table
+	 * @param numProbes The number of additional buckets to probe per table
+	 */
+	public AlgorithmLsh(IPositioningAlgorithm algorithm, int numTables, int numBits, int numProbes)
+	{
+		this.mAlgorithm = algorithm;
+		this.mNumTables = numTables;
+		this.mNumBits = numBits;
+		this.mNumProbes = numProbes;
+	}
+	
+	@Override
+	public EstimateResult compare(Iterable<Vertex> vertices, WifiMeasurement measurement)
+	{
+		if (!(vertices instanceof RadioMapSnapshot.SearchSpace) || measurement == null)
+			return mAlgorithm.compare(vertices, measurement);
+		List<Vertex> searchSpace = ((RadioMapSnapshot.SearchSpace)vertices).getVertices();
+		if (searchSpace.size() < MIN_INDEXED_VERTICES)
+			return mAlgorithm.compare(vertices, measurement);
+		
+		List<Vertex> candidates = getIndex(searchSpace).getCandidates(measurement);
+		synchronized (this)
+		{
+			mNumLookups++;
+			mNumCandidates += candidates.size();
+			if (candidates.isEmpty())
+				mNumMisses++;
+		}
+		return mAlgorithm.compare(candidates.isEmpty() ? vertices : candidates, measurement);
+	}
+	
+	private synchronized LshIndex getIndex(List<Vertex> searchSpace)
+	{
+		if (searchSpace != mIndexedVertices)
+		{
+			mIndex = new LshIndex(searchSpace, mNumTables, mNumBits, mNumProbes, SEED);
+			mIndexedVertices = searchSpace;
+		}
+		return mIndex;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "AlgorithmLsh: " + mIndex + ", lookups=" + mNumLookups + ", candidates per lookup=" 
+				+ (mNumLookups == 0 ? 0 : mNumCandidates / mNumLookups) + ", misses=" + mNumMisses;
+	}
+}
@@ -27,7 +27,11 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.smartcampus.android.location.wifi;
 
+import java.util.List;
 import java.util.TreeMap;
+
+import com.smartcampus.indoormodel.PackedFingerprints;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
 import com.smartcampus.indoormodel.graph.Vertex;
 import com.smartcampus.wifi.WifiMeasurement;
 
@@ -50,6 +54,10 @@ public class AlgorithmNNSS implements IPositioningAlgorithm {
 			return null;
 		
 		bcs = WifiPosEngine.BestCandidateSet; //new BCS(5); //bcs.clear();
+		
+		//The fingerprints of a radio map search space are scored in their packed form
+		if (vertices instanceof RadioMapSnapshot.SearchSpace)
+			return compare(((RadioMapSnapshot.SearchSpace)vertices).getPackedFingerprints(), measurement);
         
         double curDist; //distance of current vertice in search space
         EstimateResult result = new EstimateResult(null, Double.MAX_VALUE);
@@ -80,6 +88,43 @@ public class AlgorithmNNSS implements IPositioningAlgorithm {
         return result;
     }
 		
+	/**
+	 * Scores the packed fingerprints (cf. PackedFingerprints) with integer arithmetic. 
+	 * The distances equal those of the fingerprints themselves (as the packed signal strengths are the integer means). 
+	 */
+	private EstimateResult compare(List<PackedFingerprints> blocks, WifiMeasurement measurement)
+	{
+		String[] macs = new String[measurement.getNumMACs()];
+		int[] dbms = new int[macs.length];
+		int n = 0;
+		for (String mac : measurement.getMACs())
+		{
+			macs[n] = mac;
+			dbms[n++] = measurement.getAvgDbM(mac);
+		}
+		
+		EstimateResult result = new EstimateResult(null, Double.MAX_VALUE);
+		int[] squaredDistances = new int[0];
+		for (PackedFingerprints block : blocks)
+		{
+			if (squaredDistances.length < block.getNumRows())
+				squaredDistances = new int[block.getNumRows()];
+			block.getSquaredDistances(macs, dbms, MISSING_MAC_PENALTY, squaredDistances);
+			for (int r = 0; r < block.getNumRows(); r++)
+			{
+				double curDist = Math.sqrt(squaredDistances[r]);
+				if (curDist < result.getDistance())
+				{
+					result.setDistance(curDist);
+					result.setVertex(block.getVertex(r));
+				}
+				bcs.add(block.getVertex(r), curDist);
+			}
+		}
+		result.setErrorEstimate(Math.ceil(bcs.getMaxDistance()));
+		return result;
+	}
+		
 	//Public visibility so we can test it (directly) via unit tests
 	public static WifiMeasurement getNStrongestAPMeasurement(WifiMeasurement measurement, int n)
 	{
@@ -32,8 +32,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
 
-import com.smartcampus.baselogic.DistanceMeasurements;
-import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.graph.Vertex;
 
 /**
@@ -211,18 +209,14 @@ public class BCS
 	    if (locations.size() > 1)
 	    {
 		    Vertex best = locations.get(locations.firstKey());
-		    AbsoluteLocation bestLoc, curLoc;
-		    bestLoc = best.getLocation().getAbsoluteLocation();
 		    
 		    for (Vertex v : locations.values())
 		    {
 			    if (best == v)
 				    continue;			    
 			    
-			    curLoc = v.getLocation().getAbsoluteLocation();
-			    avgDist += DistanceMeasurements.CalculateMoveddistanceInMeters(
-                    bestLoc.getLatitude(), bestLoc.getLongitude(),
-                    curLoc.getLatitude(), curLoc.getLongitude());
+			    //planar distance in the building's frame (cf. Vertex.getDistance())
+			    avgDist += best.getDistance(v);
 		    }
             avgDist /= (locations.size() - 1);
 	    }
@@ -240,7 +234,6 @@ public class BCS
 	    if (n > 1)
 	    {
 		    Vertex best = locations.get(locations.firstKey());
-		    AbsoluteLocation bestLoc, curLoc;
 		    int i = 1;
 		    
 		    //NOTE: Are values returned in sorted order?
@@ -252,11 +245,7 @@ public class BCS
 			    if (i++ == n)
 			    	break;
 			    
-			    bestLoc = best.getLocation().getAbsoluteLocation();
-			    curLoc = v.getLocation().getAbsoluteLocation();
-			    avgDist += DistanceMeasurements.CalculateMoveddistanceInMeters(
-                    bestLoc.getLatitude(), bestLoc.getLongitude(),
-                    curLoc.getLatitude(), curLoc.getLongitude());
+			    avgDist += best.getDistance(v);
 		    }
             avgDist /= n - 1;
 	    }
@@ -273,12 +262,7 @@ public class BCS
     	Vertex v = getNthHighest(n);
     	if (best != null && v != null)
     	{
-    		AbsoluteLocation bestLoc, nLoc;
-    		bestLoc = best.getLocation().getAbsoluteLocation();
-			nLoc = v.getLocation().getAbsoluteLocation();
-			return DistanceMeasurements.CalculateMoveddistanceInMeters(
-                 bestLoc.getLatitude(), bestLoc.getLongitude(),
-                 nLoc.getLatitude(), nLoc.getLongitude());
+			return best.getDistance(v);
     	}
     	
     	return defaultErrorDistance; //default
@@ -293,9 +277,8 @@ public class BCS
 	    	if (best == null)
 	    		return defaultErrorDistance;
 	    	
-	    	double maxDistance = 0, curDistance = 0;
-	    	AbsoluteLocation bestLoc, curLoc;
-	    	bestLoc = best.getLocation().getAbsoluteLocation();
+	    	//We compare squared distances and only take the square root of the worst one
+	    	double maxSquaredDistance = 0, curSquaredDistance = 0;
 			
 	    	for (Vertex v : locations.values())
 	    	{
@@ -304,19 +287,16 @@ public class BCS
 	    			continue;
 	    		
 	    		//Calculate the distance from the best location to the current location
-	    		curLoc = v.getLocation().getAbsoluteLocation();
-	    		curDistance = DistanceMeasurements.CalculateMoveddistanceInMeters(
-	    						bestLoc.getLatitude(), bestLoc.getLongitude(),
-	    						curLoc.getLatitude(), curLoc.getLongitude());
+	    		curSquaredDistance = best.getSquaredDistance(v);
 	    		
 	    		//Is this the worst distance yet?    		
-	    		if (curDistance > maxDistance)
+	    		if (curSquaredDistance > maxSquaredDistance)
 	    		{
-	    			maxDistance = curDistance;    			
+	    			maxSquaredDistance = curSquaredDistance;    			
 	    		}    		
 	    	}
 	    	    	
-	    	return maxDistance; //Return the worst distance
+	    	return Math.sqrt(maxSquaredDistance); //Return the worst distance
     	}
     	//HACK: CATCHING GENERIC EXCEPTION
     	//prompted by NoSuchElementException - but wasn't able to reproduce the error
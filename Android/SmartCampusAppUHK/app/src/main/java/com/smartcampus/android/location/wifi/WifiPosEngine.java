@@ -28,6 +28,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.smartcampus.android.location.wifi;
 
 import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
 import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
 import com.smartcampus.wifi.WifiMeasurement;
@@ -38,6 +39,8 @@ import android.util.Log;
  * based on the location fingerprinting technique. 
  * To that end it needs a building (graph) of vertices where each vertex has associated Wi-Fi measurements. 
  * This class makes use of the 'Weighted Graph' positioning technique
+ * The radio map is given as a snapshot (cf. RadioMapSnapshot), so a radio map that is published while an estimate 
+ * is computed only takes effect from the next estimate. 
  * @author rhansen
  *
  */
@@ -45,9 +48,15 @@ public class WifiPosEngine {
 
 	private static final String TAG = WifiPosEngine.class.getName();
 
-	private Building mCurrentBuilding;
+	private RadioMapSnapshot mRadioMap;
 	private IGraph mGraph;
 	private Iterable<Vertex> secondarySearchSpace;	
+	//The floor the secondary search space is restricted to (and its neighbours), cf. getEstimate()
+	private int mSearchFloor = NO_FLOOR;
+	private static final int NO_FLOOR = Integer.MIN_VALUE;
+	//When the search is restricted to a few floors, every n'th estimate still searches all floors (e.g., to recover from a wrong floor)
+	private static final int FULL_SEARCH_INTERVAL = 10;
+	private int mNumRestrictedSearches;
 	private Vertex prevBestEstimateVertex;
 	private int numSecondaryBest;
 	private IPositioningAlgorithm mPosAlgorithm;
@@ -68,6 +77,12 @@ public class WifiPosEngine {
 		setPositioningAlgorithm(posAlgorithm);
 	}
 	
+	public WifiPosEngine(RadioMapSnapshot radioMap, IPositioningAlgorithm posAlgorithm)
+	{
+		setRadioMap(radioMap);
+		setPositioningAlgorithm(posAlgorithm);
+	}
+	
 	void setPositioningAlgorithm(IPositioningAlgorithm posAlgorithm)
 	{
 		this.mPosAlgorithm = posAlgorithm;
@@ -75,7 +90,12 @@ public class WifiPosEngine {
 		
 	public Building getCurrentBuilding()
 	{
-		return mCurrentBuilding;
+		return mRadioMap == null ? null : mRadioMap.getBuilding();
+	}
+	
+	public RadioMapSnapshot getRadioMap()
+	{
+		return mRadioMap;
 	}
 	
 	
@@ -89,7 +109,20 @@ public class WifiPosEngine {
 		//Cf OfflineClientPocketPCUF
 		if (secondarySearchSpace == null)
 		{
-			secondarySearchSpace = mGraph.getVertices();
+			secondarySearchSpace = mRadioMap.getSearchSpace();
+		}
+		//If the fingerprints of all floors do not fit in memory at once, only the floor of the previous estimate and its neighbours 
+		//are searched (the primary search space still covers the elevators and stairs to other floors)
+		Iterable<Vertex> searchSpace = secondarySearchSpace;
+		if (mRadioMap.exceedsFingerprintBudget() && prevBestEstimateVertex != null)
+		{
+			int floor = (int)prevBestEstimateVertex.getLocation().getAbsoluteLocation().getAltitude();
+			if (floor != mSearchFloor)
+			{
+				mSearchFloor = floor;
+				secondarySearchSpace = mRadioMap.getSearchSpace(floor - 1, floor + 1);
+			}
+			searchSpace = ++mNumRestrictedSearches % FULL_SEARCH_INTERVAL == 0 ? mRadioMap.getSearchSpace() : secondarySearchSpace;
 		}
 		EstimateResult primaryEstimate = new EstimateResult(null, Double.MAX_VALUE);
 		EstimateResult secondaryEstimate = new EstimateResult(null, Double.MAX_VALUE);
@@ -102,7 +135,7 @@ public class WifiPosEngine {
 		{
 			primaryEstimate = mPosAlgorithm.compare(prevBestEstimateVertex.adjacentVertices(), currentMeasurement);
 		}
-		secondaryEstimate = mPosAlgorithm.compare(secondarySearchSpace, currentMeasurement);
+		secondaryEstimate = mPosAlgorithm.compare(searchSpace, currentMeasurement);
 				
 		//Changed to accomodate hyper, where we return null if online meas only has one mac
 		//Vertex best = null;
@@ -147,12 +180,28 @@ public class WifiPosEngine {
 	
 	public void setCurrentBuilding(Building currentBuilding)
 	{
-		this.mCurrentBuilding = currentBuilding;
-		if (this.mCurrentBuilding != null)
+		setRadioMap(currentBuilding == null || currentBuilding.getGraphModel() == null ? null : new RadioMapSnapshot(currentBuilding));
+	}
+	
+	/**
+	 * Sets the radio map that the following estimates are computed from. 
+	 * The state that refers to the vertices (the previous estimate) is kept as long as the graph is the same. 
+	 */
+	public void setRadioMap(RadioMapSnapshot radioMap)
+	{
+		if (radioMap == mRadioMap)
+			return;
+		IGraph graph = radioMap == null ? null : radioMap.getGraph();
+		if (graph != mGraph)
 		{
-			this.mGraph = mCurrentBuilding.getGraphModel();
-			secondarySearchSpace = this.mGraph.getVertices();
+			prevBestEstimateVertex = null;
+			numSecondaryBest = 0;
 		}
+		this.mRadioMap = radioMap;
+		this.mGraph = graph;
+		secondarySearchSpace = radioMap == null ? null : radioMap.getSearchSpace();
+		mSearchFloor = NO_FLOOR;
+		mNumRestrictedSearches = 0;
 	}
 	
 }
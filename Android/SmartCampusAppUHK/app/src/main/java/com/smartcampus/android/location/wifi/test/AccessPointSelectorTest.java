@@ -0,0 +1,196 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.location.wifi.test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.smartcampus.android.location.wifi.AccessPointSelector;
+import com.smartcampus.android.location.wifi.AlgorithmHyperNNSS;
+import com.smartcampus.android.location.wifi.AlgorithmNNSS;
+import com.smartcampus.android.location.wifi.IPositioningAlgorithm;
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AccessPointSelectorTest extends TestCase {
+	
+	private static final int GRID_SIZE = 8; //vertices per row and column (per floor)
+	private static final int NUM_FLOORS = 2;
+	private static final int NUM_PATHLOSS_APS = 6; //per floor
+	private static final int NUM_NOISE_APS = 30; //heard alike everywhere in the building
+	private static final double GRID_SPACING = 5E-5; //degrees - roughly 3-5 meters
+	
+	private IGraph mGraph;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mGraph = createGraph();
+	}
+	
+	public void testRank()
+	{
+		List<String> ranked = AccessPointSelector.rank(mGraph.getVertices());
+		Assert.assertEquals(NUM_FLOORS * NUM_PATHLOSS_APS + NUM_NOISE_APS, ranked.size());
+		for (int i = 0; i < NUM_FLOORS * NUM_PATHLOSS_APS; i++)
+			Assert.assertTrue(ranked.get(i), ranked.get(i).startsWith("ap"));
+	}
+	
+	public void testSelectPerFloor()
+	{
+		Set<String> selected = AccessPointSelector.select(mGraph.getVertices(), NUM_PATHLOSS_APS);
+		Assert.assertEquals(NUM_FLOORS * NUM_PATHLOSS_APS, selected.size());
+		for (int floor = 0; floor < NUM_FLOORS; floor++)
+			for (int ap = 0; ap < NUM_PATHLOSS_APS; ap++)
+				Assert.assertTrue(selected.contains(getMac(floor, ap)));
+	}
+	
+	public void testWriteSelected() throws Exception
+	{
+		Set<String> selected = AccessPointSelector.select(mGraph.getVertices(), NUM_PATHLOSS_APS);
+		File file = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(1, "v1", mGraph, 1000, file, selected);
+			IGraph restored = RadioMapFile.open(file).loadGraph();
+			Assert.assertEquals(mGraph.numVertices(), restored.numVertices());
+			for (Vertex v : mGraph.getVertices())
+			{
+				WifiMeasurement expected = v.getFingerPrints().get(0);
+				WifiMeasurement actual = restored.getVertexById(v.getId()).getFingerPrints().get(0);
+				Assert.assertTrue(selected.containsAll(actual.getMACs()));
+				for (String mac : actual.getMACs())
+					Assert.assertEquals(expected.GetHistogram(mac), actual.GetHistogram(mac));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	//The reduced fingerprints position (almost) as well as the full ones - and faster
+	public void testLeaveOneOut()
+	{
+		Set<String> selected = AccessPointSelector.select(mGraph.getVertices(), NUM_PATHLOSS_APS);
+		IPositioningAlgorithm[] algorithms = { new AlgorithmNNSS(), new AlgorithmHyperNNSS() };
+		for (IPositioningAlgorithm algorithm : algorithms)
+		{
+			AccessPointSelector.evaluate(mGraph.getVertices(), algorithm, null); //warm up
+			AccessPointSelector.Report full = AccessPointSelector.evaluate(mGraph.getVertices(), algorithm, null);
+			AccessPointSelector.Report reduced = AccessPointSelector.evaluate(mGraph.getVertices(), algorithm, selected);
+			System.out.println(algorithm.getClass().getSimpleName() + " full:    " + full);
+			System.out.println(algorithm.getClass().getSimpleName() + " reduced: " + reduced);
+			
+			Assert.assertEquals(mGraph.numVertices(), full.getNumEstimates());
+			Assert.assertEquals(selected.size(), reduced.getNumMacs());
+			Assert.assertTrue(reduced.getMeanError() <= full.getMeanError() + 2);
+		}
+	}
+	
+	//Compares the accuracy of the radio map restored from the cache with and without pruning (cf. LocationService.setRadioMapMaxAccessPointsPerFloor()) 
+	public void testCachedAccuracy() throws Exception
+	{
+		AccessPointSelector.Report full = evaluateCached(null);
+		AccessPointSelector.Report pruned = evaluateCached(AccessPointSelector.select(mGraph.getVertices(), NUM_PATHLOSS_APS));
+		System.out.println("cached full:   " + full);
+		System.out.println("cached pruned: " + pruned);
+		
+		//Without pruning the cache positions exactly like the downloaded radio map
+		AccessPointSelector.Report original = AccessPointSelector.evaluate(mGraph.getVertices(), new AlgorithmNNSS(), null);
+		Assert.assertEquals(original.getNumMacs(), full.getNumMacs());
+		Assert.assertEquals(original.getMeanError(), full.getMeanError(), 1E-9);
+		//Pruning costs some accuracy, even though only the noise APs are dropped
+		Assert.assertEquals(NUM_FLOORS * NUM_PATHLOSS_APS, pruned.getNumMacs());
+		Assert.assertTrue(pruned.getMeanError() >= full.getMeanError());
+		Assert.assertTrue(pruned.getMeanError() <= full.getMeanError() + 3);
+	}
+	
+	private AccessPointSelector.Report evaluateCached(Set<String> selected) throws Exception
+	{
+		File file = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(1, "v1", mGraph, 1000, file, selected);
+			IGraph restored = RadioMapFile.open(file).loadGraph();
+			return AccessPointSelector.evaluate(restored.getVertices(), new AlgorithmNNSS(), null);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	private static String getMac(int floor, int ap)
+	{
+		return "ap" + floor + ap;
+	}
+	
+	//A grid per floor. Each floor has a few APs whose signal falls off with the distance (and is not heard on the other floor), 
+	//while the noise APs are heard all over the building at about the same (fluctuating) strength. 
+	private static IGraph createGraph()
+	{
+		Random rnd = new Random(42);
+		GraphBuilder builder = new GraphBuilder();
+		int id = 0;
+		for (int floor = 0; floor < NUM_FLOORS; floor++)
+		{
+			for (int row = 0; row < GRID_SIZE; row++)
+			{
+				for (int col = 0; col < GRID_SIZE; col++)
+				{
+					Vertex v = new Vertex(id++, new AbsoluteLocation(57.0 + row * GRID_SPACING, 9.99 + col * GRID_SPACING, floor));
+					WifiMeasurement meas = new WifiMeasurement();
+					for (int ap = 0; ap < NUM_PATHLOSS_APS; ap++)
+					{
+						//The APs are spread along the diagonal of the grid
+						double apPos = (GRID_SIZE - 1) * ap / (double)(NUM_PATHLOSS_APS - 1);
+						double dist = Math.sqrt((row - apPos) * (row - apPos) + (col - (GRID_SIZE - 1 - apPos)) * (col - (GRID_SIZE - 1 - apPos)));
+						int dbm = (int)(-35 - 30 * Math.log10(1 + dist * 4));
+						for (int i = 0; i < 3; i++)
+							meas.addValue(getMac(floor, ap), dbm + rnd.nextInt(3) - 1);
+					}
+					for (int ap = 0; ap < NUM_NOISE_APS; ap++)
+						for (int i = 0; i < 3; i++)
+							meas.addValue("noise" + ap, -75 + rnd.nextInt(5) - 2);
+					v.addFingerprint(meas);
+					builder.addVertex(v);
+				}
+			}
+		}
+		return builder.build();
+	}
+}
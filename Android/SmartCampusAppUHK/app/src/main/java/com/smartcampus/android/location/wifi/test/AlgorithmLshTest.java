@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.location.wifi.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.smartcampus.android.location.wifi.AlgorithmLsh;
+import com.smartcampus.android.location.wifi.AlgorithmNNSS;
+import com.smartcampus.android.location.wifi.BCS;
+import com.smartcampus.android.location.wifi.EstimateResult;
+import com.smartcampus.android.location.wifi.WifiPosEngine;
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.LshIndex;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AlgorithmLshTest extends TestCase {
+	
+	//A campus of 1000 x 500 meters with an AP every 20 meters (heard within 45 meters) and 20000 calibrated spots
+	private static final int WIDTH = 1000, HEIGHT = 500, AP_SPACING = 20, AP_RANGE = 45;
+	private static final int NUM_VERTICES = 20000;
+	private static final int NUM_QUERIES = 200;
+	private static final int K = 10;
+	private static final int MISSING_MAC_PENALTY = -150; //cf. AlgorithmNNSS
+	
+	private static IGraph cGraph;
+	private static List<double[]> cPositions;
+	
+	private Random mRnd;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mRnd = new Random(7);
+		if (cGraph == null)
+		{
+			Random rnd = new Random(1);
+			cPositions = new ArrayList<double[]>();
+			GraphBuilder builder = new GraphBuilder();
+			for (int id = 0; id < NUM_VERTICES; id++)
+			{
+				double x = rnd.nextDouble() * WIDTH, y = rnd.nextDouble() * HEIGHT;
+				Vertex v = new Vertex(id, new AbsoluteLocation(57.0 + y * 9E-6, 9.99 + x * 1.6E-5, 0));
+				v.addFingerprint(scan(rnd, x, y));
+				builder.addVertex(v);
+				cPositions.add(new double[] { x, y });
+			}
+			cGraph = builder.build();
+		}
+	}
+	
+	//Recall@k of the candidates against brute force on held-out scans (taken at other spots than the calibrated ones)
+	public void testRecall()
+	{
+		List<Vertex> vertices = new ArrayList<Vertex>(cGraph.getVertices());
+		List<WifiMeasurement> queries = new ArrayList<WifiMeasurement>();
+		for (int i = 0; i < NUM_QUERIES; i++)
+			queries.add(AlgorithmNNSS.getNStrongestAPMeasurement(scan(mRnd, mRnd.nextDouble() * WIDTH, mRnd.nextDouble() * HEIGHT), 7));
+		
+		List<Set<Vertex>> exact = new ArrayList<Set<Vertex>>();
+		long bruteForceStart = System.nanoTime();
+		for (WifiMeasurement query : queries)
+			exact.add(getNearest(vertices, query, K));
+		long bruteForceNanos = (System.nanoTime() - bruteForceStart) / NUM_QUERIES;
+		
+		int[][] configs = { { 8, 12, 0 }, { 16, 12, 2 }, { 24, 12, 4 } }; //tables, bits, probes
+		double[] recalls = new double[configs.length];
+		long[] numCandidatesPerQuery = new long[configs.length];
+		for (int c = 0; c < configs.length; c++)
+		{
+			LshIndex index = new LshIndex(vertices, configs[c][0], configs[c][1], configs[c][2], 42);
+			int numFound = 0;
+			long numCandidates = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < NUM_QUERIES; i++)
+			{
+				List<Vertex> candidates = index.getCandidates(queries.get(i));
+				numCandidates += candidates.size();
+				for (Vertex v : getNearest(candidates, queries.get(i), K))
+					if (exact.get(i).contains(v))
+						numFound++;
+			}
+			long nanos = (System.nanoTime() - start) / NUM_QUERIES;
+			recalls[c] = numFound / (double)(NUM_QUERIES * K);
+			numCandidatesPerQuery[c] = numCandidates / NUM_QUERIES;
+			System.out.println(String.format("%s: recall@%d %.2f, %d candidates, %d us per query (brute force %d us)", 
+					index, K, recalls[c], numCandidatesPerQuery[c], nanos / 1000, bruteForceNanos / 1000));
+		}
+		//More tables and probes find more of the nearest fingerprints - at a fraction of the candidates
+		Assert.assertTrue(recalls[2] > recalls[0]);
+		Assert.assertTrue(recalls[2] > 0.9);
+		Assert.assertTrue(numCandidatesPerQuery[2] < NUM_VERTICES / 10);
+		//More tables and probes find more of the nearest fingerprints
+		
+	}
+	
+	public void testCompare()
+	{
+		RadioMapSnapshot snapshot = new RadioMapSnapshot(new Building(), cGraph, "v1");
+		AlgorithmNNSS nnss = new AlgorithmNNSS();
+		AlgorithmLsh lsh = new AlgorithmLsh(nnss, 24, 12, 4);
+		//Build the index (and pack the fingerprints) up front
+		WifiPosEngine.BestCandidateSet = new BCS(10);
+		lsh.compare(snapshot.getSearchSpace(), scan(mRnd, WIDTH / 2, HEIGHT / 2));
+		nnss.compare(snapshot.getSearchSpace(), scan(mRnd, WIDTH / 2, HEIGHT / 2));
+		
+		int numSame = 0;
+		double sumErrorDiff = 0;
+		long exactNanos = 0, boxedNanos = 0, lshNanos = 0;
+		for (int i = 0; i < NUM_QUERIES; i++)
+		{
+			WifiMeasurement query = scan(mRnd, mRnd.nextDouble() * WIDTH, mRnd.nextDouble() * HEIGHT);
+			WifiPosEngine.BestCandidateSet = new BCS(10);
+			long start = System.nanoTime();
+			EstimateResult exact = nnss.compare(snapshot.getSearchSpace(), query);
+			exactNanos += System.nanoTime() - start;
+			WifiPosEngine.BestCandidateSet = new BCS(10);
+			start = System.nanoTime();
+			nnss.compare(snapshot.getFingerprintedVertices(), query); //the fingerprints themselves (as, e.g., AlgorithmHyperNNSS scores them)
+			boxedNanos += System.nanoTime() - start;
+			WifiPosEngine.BestCandidateSet = new BCS(10);
+			start = System.nanoTime();
+			EstimateResult approximate = lsh.compare(snapshot.getSearchSpace(), query);
+			lshNanos += System.nanoTime() - start;
+			
+			Assert.assertTrue(approximate.getDistance() >= exact.getDistance() - 1E-9);
+			if (approximate.getVertex() == exact.getVertex())
+				numSame++;
+			sumErrorDiff += approximate.getVertex().getDistance(exact.getVertex());
+		}
+		System.out.println(String.format("%s: %d of %d estimates exact (mean %.1f m off), %d us per estimate (exact: packed %d us, unpacked %d us)", 
+				lsh, numSame, NUM_QUERIES, sumErrorDiff / NUM_QUERIES, lshNanos / NUM_QUERIES / 1000, exactNanos / NUM_QUERIES / 1000, 
+				boxedNanos / NUM_QUERIES / 1000));
+		Assert.assertTrue(numSame > NUM_QUERIES * 9 / 10);
+		
+		//Small search spaces are searched exhaustively
+		List<Vertex> few = new ArrayList<Vertex>(snapshot.getFingerprintedVertices().subList(0, 10));
+		WifiPosEngine.BestCandidateSet = new BCS(10);
+		WifiMeasurement query = few.get(3).getFingerPrints().get(0);
+		Assert.assertSame(few.get(3), lsh.compare(few, query).getVertex());
+	}
+	
+	//The k vertices nearest to the measurement in signal space (cf. AlgorithmNNSS)
+	private static Set<Vertex> getNearest(List<Vertex> vertices, WifiMeasurement meas, int k)
+	{
+		final double[] distances = new double[vertices.size()];
+		Integer[] order = new Integer[vertices.size()];
+		for (int i = 0; i < vertices.size(); i++)
+		{
+			WifiMeasurement fp = vertices.get(i).getFingerPrints().get(0);
+			for (String mac : meas.getMACs())
+			{
+				int d = meas.getAvgDbM(mac) - (fp.containsMac(mac) ? fp.getAvgDbM(mac) : MISSING_MAC_PENALTY);
+				distances[i] += d * d;
+			}
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(distances[a], distances[b]);
+			}
+		});
+		Set<Vertex> result = new HashSet<Vertex>();
+		for (int i = 0; i < Math.min(k, order.length); i++)
+			result.add(vertices.get(order[i]));
+		return result;
+	}
+	
+	//A scan at (x, y): The APs within range with a log-distance path loss and some noise
+	private static WifiMeasurement scan(Random rnd, double x, double y)
+	{
+		WifiMeasurement meas = new WifiMeasurement();
+		for (int ax = (int)Math.max(0, (x - AP_RANGE) / AP_SPACING); ax * AP_SPACING <= Math.min(WIDTH, x + AP_RANGE); ax++)
+		{
+			for (int ay = (int)Math.max(0, (y - AP_RANGE) / AP_SPACING); ay * AP_SPACING <= Math.min(HEIGHT, y + AP_RANGE); ay++)
+			{
+				double dist = Math.hypot(x - ax * AP_SPACING, y - ay * AP_SPACING);
+				if (dist > AP_RANGE)
+					continue;
+				int dbm = (int)(-30 - 25 * Math.log10(1 + dist));
+				for (int i = 0; i < 3; i++)
+					meas.addValue("ap" + ax + "_" + ay, dbm + rnd.nextInt(5) - 2);
+			}
+		}
+		return meas;
+	}
+}
@@ -227,6 +227,25 @@ public class AlgorithmNNSSTest extends TestCase {
 		Assert.assertTrue(dummyDistanceCheck && containsValid && notContainsInvalid);
 	}
 	
+	public void testBcsMaxDistance()
+	{
+		BCS bcs = new BCS(4);
+		Vertex[] vertices = new Vertex[6];
+		for (int i = 1; i <= 6; i++)
+		{
+			vertices[i - 1] = new Vertex(i, new AbsoluteLocation(57.0 + i * 0.0001, 9.0 - i * 0.0002, 0));
+			bcs.add(vertices[i - 1], i);
+		}
+		
+		//The worst candidate of the set (vertex 4)
+		Assert.assertEquals(vertices[0].getDistance(vertices[3]), bcs.getMaxDistance(), 0.01);
+		
+		//A new best candidate pushes out vertex 4
+		Vertex best = new Vertex(7, new AbsoluteLocation(57.0, 9.0, 0));
+		bcs.add(best, 0.5);
+		Assert.assertEquals(best.getDistance(vertices[2]), bcs.getMaxDistance(), 0.01);
+	}
+	
 	public void testGetStrongestApMeasurement()
 	{
 		WifiMeasurement meas = new WifiMeasurement();
@@ -36,7 +36,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
 
@@ -89,18 +88,9 @@ class DijkstraShortestPath {
 		}
 	}
 		
+	//The distance in decimeters (the vertices are projected into the building's frame, cf. Vertex.getDistance())
 	private int getDistance(Vertex origin, Vertex destination) {
-    	AbsoluteLocation absOriginLoc = origin.getLocation().getAbsoluteLocation();
-    	AbsoluteLocation absDestinationLoc = destination.getLocation().getAbsoluteLocation();
-    	
-    	int x1 = (int)(absOriginLoc.getLatitude() * 1E6),
-    		x2 = (int)(absDestinationLoc.getLatitude() * 1E6),
-    		y1 = (int)(absOriginLoc.getLongitude() * 1E6), 
-			y2 = (int)(absDestinationLoc.getLongitude() * 1E6);
-    	
-    	
-    	//Maybe casting to an integer may pose problems...
-    	return (int)Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    	return (int)(origin.getDistance(destination) * 10);
     }
 	
 	private Vertex getMinimum(Set<Vertex> vertexes) {
@@ -33,12 +33,17 @@ import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
 
-public class NavigationEngine {
+public class NavigationEngine implements IGraph.EditListener {
 			
 	 // Note that this implementation assumes that the graph
 	 // does not change while a specific instance of the
 	 // navigation engine is used. This may not comply
 	 // if user contributions to the graph are made...
+	 // (getIncrementalRoute() listens to the edits of its graph, cf. edgeChanged()/vertexRemoved())
+	
+	//The shortest path tree towards the destination of the latest incremental route
+	private RouteTree mRouteTree;
+	private IGraph mRouteGraph;
 			
 	private LinkedList<AbsoluteLocation> convertVerticesToAbsLoc(LinkedList<Vertex> path) {
 		LinkedList<AbsoluteLocation> pathAbsLoc = new LinkedList<AbsoluteLocation>();
@@ -68,18 +73,9 @@ public class NavigationEngine {
 		return (int)destinationVertex.getLocation().getAbsoluteLocation().getAltitude();		
 	}
 		
+	//The distance in decimeters (the vertices are projected into the building's frame, cf. Vertex.getDistance())
 	private int getDistance(Vertex origin, Vertex destination) {
-    	AbsoluteLocation absOriginLoc = origin.getLocation().getAbsoluteLocation();
-    	AbsoluteLocation absDestinationLoc = destination.getLocation().getAbsoluteLocation();
-    	
-    	int x1 = (int)(absOriginLoc.getLatitude() * 1E6),
-    		x2 = (int)(absDestinationLoc.getLatitude() * 1E6),
-    		y1 = (int)(absOriginLoc.getLongitude() * 1E6), 
-			y2 = (int)(absDestinationLoc.getLongitude() * 1E6);
-    	
-    	
-    	//Maybe casting to an integer may pose problems...
-    	return (int)Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    	return (int)(origin.getDistance(destination) * 10);
     }
 	
 	private LinkedList<Vertex> getLvlChangersToFloor(LinkedList<Vertex> lvlChangers, int currentFloor, int destinationFloor) {
@@ -217,5 +213,67 @@ public class NavigationEngine {
 		
 		return null;
 	}  
+	
+	/**
+	 * Like getRoute(), but a shortest path tree rooted at the destination is kept between calls. 
+	 * Hence, subsequent calls for the same destination (i.e., as the user walks) are answered by walking the tree
+	 * from the vertex closest to the user - no search is conducted. The engine listens to the edits of the graph 
+	 * (cf. IGraph.addEditListener()), which only repair the affected part of the tree. A new graph (e.g., a newly published radio map) 
+	 * gets a new tree. Call clearRoute() when the route is no longer needed. 
+	 * Note that the tree considers all floors at once (via the elevator and stair edges). 
+	 * @return The route (starting at userLoc), or null if userLoc is null
+	 */
+	public synchronized LinkedList<AbsoluteLocation> getIncrementalRoute(IGraph graph, AbsoluteLocation userLoc, Vertex destination) {
+		if (userLoc == null)
+			return null;
+		
+		if (mRouteTree == null || mRouteGraph != graph || mRouteTree.getDestination() != destination) {
+			if (mRouteGraph != graph) {
+				clearRoute();
+				graph.addEditListener(this);
+				mRouteGraph = graph;
+			}
+			mRouteTree = new RouteTree(destination);
+		}
+		
+		LinkedList<AbsoluteLocation> routeAbsLocList = new LinkedList<AbsoluteLocation>();
+		routeAbsLocList.add(userLoc);
+		
+		Vertex sourceVertex = graph.getClosestVertex(userLoc);
+		LinkedList<Vertex> path = sourceVertex == null ? null : mRouteTree.getPath(sourceVertex);
+		if (path == null) {
+			//no path exists (cf. DijkstraShortestPath.getShortestPath())
+			path = new LinkedList<Vertex>();
+			path.add(destination);
+		}
+		routeAbsLocList.addAll(convertVerticesToAbsLoc(path));
+		return routeAbsLocList;
+	}
+	
+	/**
+	 * Drops the tree of the incremental route and stops listening to the edits of its graph
+	 */
+	public synchronized void clearRoute() {
+		if (mRouteGraph != null)
+			mRouteGraph.removeEditListener(this);
+		mRouteGraph = null;
+		mRouteTree = null;
+	}
+	
+	/**
+	 * Called by the graph of the incremental route when the edge between v1 and v2 is added or removed. 
+	 * Must also be called when the edge changes length (e.g., because an endpoint was moved). 
+	 */
+	public synchronized void edgeChanged(Vertex v1, Vertex v2) {
+		if (mRouteTree != null)
+			mRouteTree.edgeChanged(v1, v2);
+	}
+	
+	/**
+	 * Called by the graph of the incremental route when a vertex is removed
+	 */
+	public synchronized void vertexRemoved(Vertex v) {
+		if (mRouteTree != null && !mRouteTree.vertexRemoved(v))
+			mRouteTree = null; //the destination was removed
+	}
 }
-
@@ -0,0 +1,240 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.navigation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.smartcampus.indoormodel.graph.Vertex;
+
+/**
+ * A shortest path tree rooted at a destination vertex. 
+ * Every reached vertex knows its distance to the destination and the next vertex on its shortest path, 
+ * so the route from a (new) position estimate is found by walking the tree - no search is needed. 
+ * When the graph is edited, only the part of the tree that is affected by the edit is repaired 
+ * (the subtree hanging off a changed edge or removed vertex, or the region that improves by a new edge). 
+ * 
+ * As in DijkstraShortestPath, the graph is traversed via Vertex.adjacentVertices(), i.e., edges are undirected. 
+ */
+class RouteTree {
+	
+	private final Vertex mDestination;
+	//distance (in decimeters) to the destination
+	private HashMap<Vertex, Integer> mDistance = new HashMap<Vertex, Integer>();
+	//the next vertex on the shortest path to the destination
+	private HashMap<Vertex, Vertex> mNext = new HashMap<Vertex, Vertex>();
+	//the inverse of mNext (used to find the subtree affected by an edit)
+	private HashMap<Vertex, Set<Vertex>> mChildren = new HashMap<Vertex, Set<Vertex>>();
+	//Removed vertices are never routed through. 
+	//(DictionaryGraph.removeVertex() leaves the edges of the neighbours in place, so they remain adjacent)
+	private Set<Vertex> mRemoved = new HashSet<Vertex>();
+	
+	public RouteTree(Vertex destination)
+	{
+		this.mDestination = destination;
+		mDistance.put(destination, 0);
+		PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>();
+		queue.add(new QueueEntry(destination, 0));
+		propagate(queue);
+	}
+	
+	public Vertex getDestination()
+	{
+		return mDestination;
+	}
+	
+	/**
+	 * @return The distance (in decimeters) from source to the destination, or Integer.MAX_VALUE if it is unreachable
+	 */
+	public int getDistance(Vertex source)
+	{
+		Integer d = mDistance.get(source);
+		return d == null ? Integer.MAX_VALUE : d;
+	}
+	
+	/**
+	 * @return The shortest path from source to the destination (both included), or null if the destination is unreachable
+	 */
+	public LinkedList<Vertex> getPath(Vertex source)
+	{
+		if (!mDistance.containsKey(source))
+			return null;
+		
+		LinkedList<Vertex> path = new LinkedList<Vertex>();
+		Vertex step = source;
+		path.add(step);
+		while (step != mDestination)
+		{
+			step = mNext.get(step);
+			path.add(step);
+		}
+		return path;
+	}
+	
+	/**
+	 * Repairs the tree after the edge between v1 and v2 has been added, removed or changed length 
+	 * (e.g., because one of its endpoints was moved). 
+	 */
+	public void edgeChanged(Vertex v1, Vertex v2)
+	{
+		if (mNext.get(v1) == v2)
+			repairSubtree(v1);
+		else if (mNext.get(v2) == v1)
+			repairSubtree(v2);
+		
+		//The edge may also provide a shortcut (e.g., if it is new)
+		if (v1.adjacentVertices().contains(v2))
+		{
+			PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>();
+			relax(v2, v1, queue);
+			relax(v1, v2, queue);
+			propagate(queue);
+		}
+	}
+	
+	/**
+	 * Repairs the tree after v has been removed from the graph. 
+	 * @return false if v was the destination (i.e., the tree is no longer valid)
+	 */
+	public boolean vertexRemoved(Vertex v)
+	{
+		if (v == mDestination)
+		{
+			mDistance.clear();
+			mNext.clear();
+			mChildren.clear();
+			return false;
+		}
+		mRemoved.add(v);
+		if (mDistance.containsKey(v))
+			repairSubtree(v);
+		return true;
+	}
+	
+	//Detaches the subtree rooted at root and reconnects its vertices via their neighbours outside the subtree
+	private void repairSubtree(Vertex root)
+	{
+		List<Vertex> subtree = new ArrayList<Vertex>();
+		subtree.add(root);
+		for (int i = 0; i < subtree.size(); i++)
+		{
+			Set<Vertex> children = mChildren.get(subtree.get(i));
+			if (children != null)
+				subtree.addAll(children);
+		}
+		
+		for (Vertex u : subtree)
+		{
+			setNext(u, null);
+			mDistance.remove(u);
+			mChildren.remove(u);
+		}
+		
+		//Seed each detached vertex with its best neighbour that still has a valid distance
+		PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>();
+		for (Vertex u : subtree)
+		{
+			for (Vertex w : u.adjacentVertices())
+				relax(w, u, queue);
+		}
+		propagate(queue);
+	}
+	
+	//Dijkstra's algorithm from the queued vertices (lazy deletion of outdated queue entries)
+	private void propagate(PriorityQueue<QueueEntry> queue)
+	{
+		while (!queue.isEmpty())
+		{
+			QueueEntry entry = queue.poll();
+			if (entry.distance != getDistance(entry.vertex))
+				continue;
+			for (Vertex w : entry.vertex.adjacentVertices())
+				relax(entry.vertex, w, queue);
+		}
+	}
+	
+	//Routes v via u if that is shorter than v's current route
+	private void relax(Vertex u, Vertex v, PriorityQueue<QueueEntry> queue)
+	{
+		Integer du = mDistance.get(u);
+		if (du == null || v == mDestination || mRemoved.contains(v))
+			return;
+		int dv = du + getLength(u, v);
+		if (dv < getDistance(v))
+		{
+			mDistance.put(v, dv);
+			setNext(v, u);
+			queue.add(new QueueEntry(v, dv));
+		}
+	}
+	
+	private void setNext(Vertex v, Vertex next)
+	{
+		Vertex prev = mNext.remove(v);
+		if (prev != null && mChildren.containsKey(prev))
+			mChildren.get(prev).remove(v);
+		if (next != null)
+		{
+			mNext.put(v, next);
+			Set<Vertex> children = mChildren.get(next);
+			if (children == null)
+			{
+				children = new HashSet<Vertex>();
+				mChildren.put(next, children);
+			}
+			children.add(v);
+		}
+	}
+	
+	//The length in decimeters (cf. NavigationEngine)
+	private static int getLength(Vertex origin, Vertex destination)
+	{
+		return (int)(origin.getDistance(destination) * 10);
+	}
+	
+	private static class QueueEntry implements Comparable<QueueEntry>
+	{
+		final Vertex vertex;
+		final int distance;
+		
+		QueueEntry(Vertex vertex, int distance)
+		{
+			this.vertex = vertex;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(QueueEntry other) {
+			return distance < other.distance ? -1 : (distance == other.distance ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.android.navigation.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.smartcampus.android.navigation.NavigationEngine;
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.graph.DictionaryGraph;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Tests the shortest path tree of NavigationEngine.getIncrementalRoute() (cf. RouteTree) against a fresh Dijkstra search 
+ * - after it has been built, as the user walks, and after the graph has been edited. 
+ */
+public class RouteTreeTest extends TestCase {
+	
+	private static final int GRID_SIZE = 6; //vertices per row and column (per floor)
+	private static final int NUM_FLOORS = 2;
+	private static final double GRID_SPACING = 5E-5; //degrees - roughly 3-5 meters
+	
+	private IGraph mGraph;
+	private Vertex mDestination;
+	private NavigationEngine mEngine;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mGraph = createGraph();
+		mDestination = getVertex(NUM_FLOORS - 1, GRID_SIZE - 1, 0);
+		mEngine = new NavigationEngine();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mEngine.clearRoute();
+	}
+	
+	public void testBuild()
+	{
+		assertShortestRoutes();
+	}
+	
+	//As the user walks along the route, the route from each step is the rest of the original route
+	public void testFollow()
+	{
+		List<Vertex> route = getRoute(getVertex(0, 0, 0));
+		Assert.assertTrue(route.size() > GRID_SIZE);
+		Assert.assertEquals(getReferenceDistances().get(route.get(0)).intValue(), getLength(route));
+		for (int i = 1; i < route.size(); i++)
+			Assert.assertEquals(route.subList(i, route.size()), getRoute(route.get(i)));
+	}
+	
+	public void testRemoveEdge()
+	{
+		List<Vertex> route = getRoute(getVertex(0, 0, 0));
+		//Removing an edge of the route (via the graph) repairs the tree
+		Vertex v1 = route.get(route.size() / 2), v2 = route.get(route.size() / 2 + 1);
+		Assert.assertTrue(mGraph.removeUndirectionalEdges(v1, v2));
+		assertShortestRoutes();
+		Assert.assertFalse(getRoute(getVertex(0, 0, 0)).equals(route));
+	}
+	
+	public void testRemoveVertex()
+	{
+		List<Vertex> route = getRoute(getVertex(0, 0, 0));
+		//IGraph.removeVertex() leaves the edges of the neighbours in place, but the vertex must no longer be routed through
+		Vertex removed = route.get(route.size() / 2);
+		mGraph.removeVertex(removed);
+		assertShortestRoutes();
+		Assert.assertFalse(getRoute(getVertex(0, 0, 0)).contains(removed));
+		
+		//... and as RadioMapDelta removes a vertex: its edges first
+		route = getRoute(getVertex(0, 0, 0));
+		removed = route.get(route.size() / 3);
+		for (Vertex neighbour : new ArrayList<Vertex>(removed.adjacentVertices()))
+			mGraph.removeUndirectionalEdges(removed, neighbour);
+		mGraph.removeVertex(removed);
+		assertShortestRoutes();
+	}
+	
+	public void testAddEdge()
+	{
+		getRoute(getVertex(0, 0, 0));
+		//A shortcut across the floor
+		mGraph.addUndirectionalEdges(getVertex(0, 0, 0), getVertex(0, GRID_SIZE - 1, GRID_SIZE - 1));
+		assertShortestRoutes();
+	}
+	
+	//Checks the route from every vertex against a fresh Dijkstra search from the destination
+	private void assertShortestRoutes()
+	{
+		Map<Vertex, Integer> reference = getReferenceDistances();
+		for (Vertex source : mGraph.getVertices())
+		{
+			List<Vertex> route = getRoute(source);
+			Integer expected = reference.get(source);
+			if (expected == null)
+			{
+				//no path exists
+				Assert.assertEquals(1, route.size());
+				continue;
+			}
+			Assert.assertSame(source, route.get(0));
+			Assert.assertSame(mDestination, route.get(route.size() - 1));
+			for (int i = 1; i < route.size(); i++)
+			{
+				Assert.assertSame(route.get(i), mGraph.getVertexById(route.get(i).getId()));
+				Assert.assertTrue(route.get(i - 1).adjacentVertices().contains(route.get(i)));
+			}
+			Assert.assertEquals("from " + source.getId(), expected.intValue(), getLength(route));
+		}
+	}
+	
+	//The vertices of the route from the source's location (the first entry of the route is the location itself)
+	private List<Vertex> getRoute(Vertex source)
+	{
+		Map<AbsoluteLocation, Vertex> vertices = new IdentityHashMap<AbsoluteLocation, Vertex>();
+		for (Vertex v : mGraph.getVertices())
+			vertices.put(v.getLocation().getAbsoluteLocation(), v);
+		
+		AbsoluteLocation userLoc = source.getLocation().getAbsoluteLocation();
+		LinkedList<AbsoluteLocation> route = mEngine.getIncrementalRoute(mGraph, userLoc, mDestination);
+		Assert.assertSame(userLoc, route.getFirst());
+		List<Vertex> result = new ArrayList<Vertex>();
+		for (AbsoluteLocation loc : route.subList(1, route.size()))
+			result.add(vertices.get(loc));
+		return result;
+	}
+	
+	//The length in decimeters (cf. NavigationEngine)
+	private static int getLength(Vertex v1, Vertex v2)
+	{
+		return (int)(v1.getDistance(v2) * 10);
+	}
+	
+	private static int getLength(List<Vertex> route)
+	{
+		int res = 0;
+		for (int i = 1; i < route.size(); i++)
+			res += getLength(route.get(i - 1), route.get(i));
+		return res;
+	}
+	
+	//The distances to the destination by a plain Dijkstra search (skipping removed vertices)
+	private Map<Vertex, Integer> getReferenceDistances()
+	{
+		Map<Vertex, Integer> distances = new HashMap<Vertex, Integer>();
+		List<Vertex> unsettled = new ArrayList<Vertex>();
+		distances.put(mDestination, 0);
+		unsettled.add(mDestination);
+		while (!unsettled.isEmpty())
+		{
+			Vertex u = unsettled.get(0);
+			for (Vertex v : unsettled)
+				if (distances.get(v) < distances.get(u))
+					u = v;
+			unsettled.remove(u);
+			for (Vertex w : u.adjacentVertices())
+			{
+				if (mGraph.getVertexById(w.getId()) != w)
+					continue;
+				int d = distances.get(u) + getLength(u, w);
+				Integer prev = distances.get(w);
+				if (prev == null || d < prev)
+				{
+					if (prev == null)
+						unsettled.add(w);
+					distances.put(w, d);
+				}
+			}
+		}
+		return distances;
+	}
+	
+	private Vertex getVertex(int floor, int row, int col)
+	{
+		return mGraph.getVertexById(getId(floor, row, col));
+	}
+	
+	private static int getId(int floor, int row, int col)
+	{
+		return (floor * GRID_SIZE + row) * GRID_SIZE + col;
+	}
+	
+	//A grid per floor where some of the edges are missing (so the shortest paths are not trivial). 
+	//The floors are connected by a staircase at the last row and column. 
+	private static IGraph createGraph()
+	{
+		Random rnd = new Random(7);
+		DictionaryGraph graph = new DictionaryGraph();
+		for (int floor = 0; floor < NUM_FLOORS; floor++)
+			for (int row = 0; row < GRID_SIZE; row++)
+				for (int col = 0; col < GRID_SIZE; col++)
+					graph.addVertex(new Vertex(getId(floor, row, col), new AbsoluteLocation(57.0 + row * GRID_SPACING, 9.99 + col * GRID_SPACING, floor)));
+		
+		for (int floor = 0; floor < NUM_FLOORS; floor++)
+		{
+			for (int row = 0; row < GRID_SIZE; row++)
+			{
+				for (int col = 0; col < GRID_SIZE; col++)
+				{
+					Vertex v = graph.getVertexById(getId(floor, row, col));
+					if (col + 1 < GRID_SIZE && rnd.nextInt(5) > 0)
+						graph.addUndirectionalEdges(v, graph.getVertexById(getId(floor, row, col + 1)));
+					if (row + 1 < GRID_SIZE && rnd.nextInt(5) > 0)
+						graph.addUndirectionalEdges(v, graph.getVertexById(getId(floor, row + 1, col)));
+					if (col + 1 < GRID_SIZE && row + 1 < GRID_SIZE && rnd.nextInt(4) == 0)
+						graph.addUndirectionalEdges(v, graph.getVertexById(getId(floor, row + 1, col + 1)));
+				}
+			}
+		}
+		for (int floor = 0; floor + 1 < NUM_FLOORS; floor++)
+			graph.addUndirectionalEdges(graph.getVertexById(getId(floor, GRID_SIZE - 1, GRID_SIZE - 1)), graph.getVertexById(getId(floor + 1, GRID_SIZE - 1, GRID_SIZE - 1)));
+		return graph;
+	}
+}
@@ -81,10 +81,10 @@ import com.smartcampus.baselogic.DistanceMeasurements;
 import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.AggregateLocation;
 import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
 import com.smartcampus.indoormodel.SymbolicLocation;
 import com.smartcampus.indoormodel.SymbolicLocation.InfoType;
 import com.smartcampus.indoormodel.graph.Edge;
-import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
 import com.smartcampus.javascript.JSInterface;
 
@@ -186,6 +186,10 @@ public class WebMap2DOnline extends WebMap2D {
 
     //Used to draw routes
     private RouteOverlay routeOverlay;
+    //The destination of the shown route. The route follows the user as new locations arrive (cf. updateNewLocation())
+    private Vertex mRouteDestination;
+    //Keeps the shortest path tree towards mRouteDestination, so following the route does not require a new search
+    private NavigationEngine mNavigationEngine = new NavigationEngine();
     
 	private static boolean displayRadiomapDownloadNotifications()
 	{
@@ -473,6 +477,8 @@ public class WebMap2DOnline extends WebMap2D {
     private void clearRoute() {
 		setRouteShown(false);
 		routeOverlay = null;
+		mRouteDestination = null;
+		mNavigationEngine.clearRoute();
 		JSInterface.showEdges(webView, null, getCurrentFloor());
     	//do check
 		//TODO: JAVASCRIPT - ClearRotue
@@ -786,20 +792,12 @@ public class WebMap2DOnline extends WebMap2D {
      */
     public List<Vertex> getVerticesFromSearch(String query)
 	{	
-		//Do we have a building?
-		Building b = LocationService.CurrentBuilding;
-		if (b == null)
+		//Do we have a radio map?
+		RadioMapSnapshot radioMap = LocationService.getCurrentRadioMap();
+		if (radioMap == null)
 			return null;
 		
-		//Does the building has a graph?
-		IGraph g = b.getGraphModel();
-		if (g == null)
-			return null;
-		
-		//Does the graph have any vertices?
-		Collection<Vertex> vertices = g.getVertices();
-		if (vertices == null)
-			return null;
+		Collection<Vertex> vertices = radioMap.getVertices();
 	
 		//We've got vertices - now find the appropriate ones
 		//i.e., the symbolicLocation's title or description matches the query
@@ -849,6 +847,14 @@ public class WebMap2DOnline extends WebMap2D {
 	 */
 	private void initializeBuilding()
     {       
+		//The building and graph are taken from the same snapshot, so they always match
+		RadioMapSnapshot radioMap = LocationService.getCurrentRadioMap();
+		if (radioMap != null)
+		{
+			mCurrentBuilding = radioMap.getBuilding();
+			mGraph = radioMap.getGraph();
+			return;
+		}
         mCurrentBuilding = LocationService.CurrentBuilding;
         if (mCurrentBuilding != null)
         	mGraph = mCurrentBuilding.getGraphModel();    
@@ -1008,6 +1014,7 @@ public class WebMap2DOnline extends WebMap2D {
     protected void onDestroy()
     {
     	super.onDestroy();
+    	mNavigationEngine.clearRoute();
     	disableGpsProvider();
     	disableWifiProvider();
     	unbindLocationService();
@@ -1386,6 +1393,10 @@ public class WebMap2DOnline extends WebMap2D {
 				JSInterface.updateNewLocation(webView, location);
 				setTitle(concatBuildingAndFloorName(mCurrentSelectedFloor) + ", location updated at " + strTime);
 				lastUpdatedLocation = new Location(location); //NB: Important to COPY as done here. 
+				
+				//Let a shown route follow the user (the route is repaired - not recomputed - by the navigation engine)
+				if (isRouteShown() && mRouteDestination != null)
+					visualiseDirections(mRouteDestination);
     		}    		
 		}
 	}
@@ -1397,7 +1408,8 @@ public class WebMap2DOnline extends WebMap2D {
 	    	if (sourceLoc != null && destinationVertex != null && mGraph != null)
 	    	{
 		    	AbsoluteLocation userLoc = sourceLoc.getAbsoluteLocation();
-		    	LinkedList<AbsoluteLocation> route = new NavigationEngine().getRoute(mGraph, userLoc, destinationVertex);
+		    	LinkedList<AbsoluteLocation> route = mNavigationEngine.getIncrementalRoute(mGraph, userLoc, destinationVertex);
+		    	mRouteDestination = destinationVertex;
 				routeOverlay = new RouteOverlay(route);
 				setRouteShown(true);
 				JSInterface.showEdges(webView, routeOverlay.getEdges(mCurrentSelectedFloor), getCurrentFloor());
@@ -32,6 +32,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.smartcampus.wifi.MacInfo;
+import com.smartcampus.wifi.ScanFilter;
 import com.smartcampus.wifi.WifiMeasurement;
 //import com.smartcampus.wifi.locationprovider.IWifiSniffer;
 
@@ -78,6 +79,10 @@ public class WifiMeasurementBuilder extends Service implements IWifiMeasurementB
 	//remember, a measurement is created by aggregating information from a number of scan operations. 
 	private int mScanNumber;
 	
+	//If set, scan results of other APs are dropped (cf. setScanFilter())
+	private volatile ScanFilter mScanFilter;
+	private int mNumDroppedScanResults;
+	
 	private Runnable mPeriodicMeasurementTask = new Runnable() {
 		   public void run() {
 			   //TODO: Consider broadcasting a 'no wifi' message instead of just turning on wifi
@@ -133,7 +138,13 @@ public class WifiMeasurementBuilder extends Service implements IWifiMeasurementB
 			List<ScanResult> results = mWifi.getScanResults();
 			//WiFiMeasurement measurement = new WiFiMeasurement();
 
+			ScanFilter scanFilter = mScanFilter;
 			for (ScanResult result : results) {
+				if (scanFilter != null && !scanFilter.accept(result.BSSID))
+				{
+					mNumDroppedScanResults++;
+					continue;
+				}
 				mLastMeasurement.addValue(result.BSSID, result.level, new MacInfo(result));
 			}
 			
@@ -163,6 +174,23 @@ public class WifiMeasurementBuilder extends Service implements IWifiMeasurementB
 		return mScanNumber;
 	}
 	
+	/**
+	 * Restricts the measurements to the APs accepted by the filter, e.g., the APs of the current radio map (cf. RadioMapSnapshot.getScanFilter()). 
+	 * By default (null) all APs are measured - as needed when fingerprinting, where a new AP must be recorded. 
+	 */
+	public void setScanFilter(ScanFilter scanFilter)
+	{
+		this.mScanFilter = scanFilter;
+	}
+	
+	/**
+	 * @return The number of scan results that were dropped by the scan filter
+	 */
+	public int getNumDroppedScanResults()
+	{
+		return mNumDroppedScanResults;
+	}
+	
 	public boolean isMeasuring()
 	{
 		return !isStopped;
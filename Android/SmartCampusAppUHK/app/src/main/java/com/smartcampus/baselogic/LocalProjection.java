@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.smartcampus.baselogic;
+
+/**
+ * Projects latitude/longitude coordinates onto a local plane (in meters) around a reference point. 
+ * Within a building (or campus) the projection error is negligible, so distances can be computed 
+ * with a few multiplications rather than the trigonometry of DistanceMeasurements. 
+ * x points east and y points north. 
+ */
+public class LocalProjection {
+	
+	private static final double METERS_PER_RADIAN = DistanceMeasurements.kEarthRadiusKms * 1000;
+	private static final double TO_RAD = Math.PI / 180;
+	
+	private final double mRefLatitude, mRefLongitude;
+	private final double mMetersPerDegreeLat, mMetersPerDegreeLon;
+	
+	public LocalProjection(double refLatitude, double refLongitude)
+	{
+		this.mRefLatitude = refLatitude;
+		this.mRefLongitude = refLongitude;
+		this.mMetersPerDegreeLat = METERS_PER_RADIAN * TO_RAD;
+		this.mMetersPerDegreeLon = mMetersPerDegreeLat * Math.cos(refLatitude * TO_RAD);
+	}
+	
+	public double getRefLatitude()
+	{
+		return mRefLatitude;
+	}
+	
+	public double getRefLongitude()
+	{
+		return mRefLongitude;
+	}
+	
+	//Frames are equal if they have the same reference point
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof LocalProjection))
+			return false;
+		LocalProjection other = (LocalProjection)o;
+		return mRefLatitude == other.mRefLatitude && mRefLongitude == other.mRefLongitude;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		long bits = Double.doubleToLongBits(mRefLatitude) * 31 + Double.doubleToLongBits(mRefLongitude);
+		return (int)(bits ^ (bits >>> 32));
+	}
+	
+	/**
+	 * @return The easting (in meters) of the longitude relative to the reference point
+	 */
+	public double getX(double longitude)
+	{
+		return (longitude - mRefLongitude) * mMetersPerDegreeLon;
+	}
+	
+	/**
+	 * @return The northing (in meters) of the latitude relative to the reference point
+	 */
+	public double getY(double latitude)
+	{
+		return (latitude - mRefLatitude) * mMetersPerDegreeLat;
+	}
+	
+	public double getLatitude(double y)
+	{
+		return mRefLatitude + y / mMetersPerDegreeLat;
+	}
+	
+	public double getLongitude(double x)
+	{
+		return mRefLongitude + x / mMetersPerDegreeLon;
+	}
+	
+	/**
+	 * @return The squared planar distance (in square meters) between two locations. 
+	 * Use this when comparing distances, as it avoids the square root. 
+	 */
+	public double getSquaredDistance(double lat1, double lon1, double lat2, double lon2)
+	{
+		double dx = (lon2 - lon1) * mMetersPerDegreeLon;
+		double dy = (lat2 - lat1) * mMetersPerDegreeLat;
+		return dx * dx + dy * dy;
+	}
+	
+	/**
+	 * @return The planar distance (in meters) between two locations
+	 */
+	public double getDistance(double lat1, double lon1, double lat2, double lon2)
+	{
+		return Math.sqrt(getSquaredDistance(lat1, lon1, lat2, lon2));
+	}
+}
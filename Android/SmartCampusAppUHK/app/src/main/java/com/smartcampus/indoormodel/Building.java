@@ -33,6 +33,7 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 
+import com.smartcampus.baselogic.LocalProjection;
 import com.smartcampus.indoormodel.graph.DictionaryGraph;
 import com.smartcampus.indoormodel.graph.IGraph;
 
@@ -70,6 +71,38 @@ public class Building
         
     private HashMap<Integer, Building_Floor> mFloors = new HashMap<Integer, Building_Floor>();
     private IGraph mGraphModel = new DictionaryGraph(); //vs Graph
+    //The building's local east-north-up frame, cf. getProjection()
+    private LocalProjection mProjection;
+    //The server's version (ETag) of the radio map, i.e., the graph model. Used for conditional requests and delta sync.
+    private String mRadioMapVersion;
+    
+    public Building()
+    {
+    	
+    }
+    
+    /**
+     * Copies the building's properties. The floors, map urls, APs and graph are shared with the original. 
+     */
+    public Building(Building other)
+    {
+    	this.mBuildingID = other.mBuildingID;
+    	this.mName = other.mName;
+    	this.mIfcUrl = other.mIfcUrl;
+    	this.mLatitude = other.mLatitude;
+    	this.mLongitude = other.mLongitude;
+    	this.mCountry = other.mCountry;
+    	this.mPostalCode = other.mPostalCode;
+    	this.mMaxAddress = other.mMaxAddress;
+    	this.mUrl = other.mUrl;
+    	this.mMapUrls = other.mMapUrls;
+    	this.mPermissableAPs = other.mPermissableAPs;
+    	this.mStories = other.mStories;
+    	this.mFloors = other.mFloors;
+    	this.mGraphModel = other.mGraphModel;
+    	this.mProjection = other.mProjection;
+    	this.mRadioMapVersion = other.mRadioMapVersion;
+    }
     
     private static Building instance;
     public static Building getActiveBuilding()
@@ -128,6 +161,38 @@ public class Building
         return mGraphModel;
     }
     
+    /**
+     * The building's local east-north-up frame (x = east, y = north in meters, up = floor number). 
+     * The vertices of the graph are projected into it once, so distances within the building 
+     * are cheap planar distances (cf. Vertex.getDistance()). 
+     * The frame is anchored at the building's location if known (cf. hasLocation()) - otherwise at the graph's own anchor. 
+     */
+    public LocalProjection getProjection()
+    {
+    	if (mProjection == null)
+    	{
+    		if (hasLocation())
+    			mProjection = new LocalProjection(mLatitude, mLongitude);
+    		else
+    			mProjection = mGraphModel.getProjection(); //null if the graph is empty
+    		
+    		if (mProjection != null)
+    			mGraphModel.setProjection(mProjection);
+    	}
+    	return mProjection;
+    }
+    
+    /**
+     * @return True if the building's latitude and longitude are known, i.e., within range and neither (0, 0) 
+     * nor (-1, -1), which the parsers use when the server omits them (cf. DomWebClient, AtomRadioMapParser)
+     */
+    public boolean hasLocation()
+    {
+    	if (!(mLatitude >= -90 && mLatitude <= 90 && mLongitude >= -180 && mLongitude <= 180)) //NaN fails as well
+    		return false;
+    	return !(mLatitude == 0 && mLongitude == 0) && !(mLatitude == -1 && mLongitude == -1);
+    }
+    
     public String getIfcUrl()
     {
         return mIfcUrl;
@@ -202,6 +267,11 @@ public class Building
 		return mPostalCode;
 	}
     
+    public String getRadioMapVersion()
+    {
+    	return mRadioMapVersion;
+    }
+    
     public int getStories()
     {
         return mStories;
@@ -248,6 +318,9 @@ public class Building
 	public void setGraphModel(IGraph value)
     {
         mGraphModel = value; 
+        mProjection = null;
+        if (value != null)
+        	getProjection();
     }
 
 	public void setIfcUrl(String value)
@@ -260,6 +333,7 @@ public class Building
 	 */
 	public void setLatitude(double mLatitude) {
 		this.mLatitude = mLatitude;
+		this.mProjection = null;
 	}
 
 	/**
@@ -267,6 +341,7 @@ public class Building
 	 */
 	public void setLongitude(double mLongitude) {
 		this.mLongitude = mLongitude;
+		this.mProjection = null;
 	}
 
 	public void setMapUrls(Hashtable<Integer, String> value)
@@ -303,6 +378,11 @@ public class Building
 		this.mPostalCode = mPostalCode;
 	}
 	
+	public void setRadioMapVersion(String value)
+	{
+		mRadioMapVersion = value;
+	}
+
 	public void setStories(int value)
     {
         mStories = value; 
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identifies the building a Wi-Fi scan was taken in by the number of APs the scan has in common with each building 
+ * (cf. Building.getPermissableAPs()). 
+ * The index maps each MAC to the (indexes of the) buildings that have it, so a scan is scored against all buildings 
+ * with one lookup per scanned MAC - rather than comparing the scan to the AP list of every building. 
+ * The index is immutable - build a new one when the buildings change. 
+ */
+public class BuildingIndex {
+	
+	/**
+	 * A building that has APs in common with a scan
+	 */
+	public static class Candidate
+	{
+		private final Building mBuilding;
+		private final int mNumCommonAPs;
+		
+		Candidate(Building building, int numCommonAPs)
+		{
+			this.mBuilding = building;
+			this.mNumCommonAPs = numCommonAPs;
+		}
+		
+		public Building getBuilding()
+		{
+			return mBuilding;
+		}
+		
+		public int getNumCommonAPs()
+		{
+			return mNumCommonAPs;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return mBuilding.getBuildingID() + ": " + mNumCommonAPs + " common APs";
+		}
+	}
+	
+	private static final int[] NO_BUILDINGS = new int[0];
+	
+	private final Building[] mBuildings;
+	//The (ascending) indexes of the buildings that have an AP with the MAC
+	private final Map<String, int[]> mBuildingsByMac;
+	
+	public BuildingIndex(Iterable<Building> buildings)
+	{
+		List<Building> list = new ArrayList<Building>();
+		Map<String, List<Integer>> buildingsByMac = new HashMap<String, List<Integer>>();
+		for (Building b : buildings)
+		{
+			int index = list.size();
+			list.add(b);
+			if (b.getPermissableAPs() == null)
+				continue;
+			for (String mac : b.getPermissableAPs())
+			{
+				List<Integer> indexes = buildingsByMac.get(mac);
+				if (indexes == null)
+				{
+					indexes = new ArrayList<Integer>(1);
+					buildingsByMac.put(mac, indexes);
+				}
+				//A building that lists an AP twice only counts it once
+				if (indexes.isEmpty() || indexes.get(indexes.size() - 1) != index)
+					indexes.add(index);
+			}
+		}
+		
+		this.mBuildings = list.toArray(new Building[list.size()]);
+		this.mBuildingsByMac = new HashMap<String, int[]>(buildingsByMac.size() * 4 / 3 + 1);
+		for (Map.Entry<String, List<Integer>> entry : buildingsByMac.entrySet())
+		{
+			List<Integer> indexes = entry.getValue();
+			int[] array = new int[indexes.size()];
+			for (int i = 0; i < array.length; i++)
+				array[i] = indexes.get(i);
+			mBuildingsByMac.put(entry.getKey(), array);
+		}
+	}
+	
+	/**
+	 * @return The buildings that have at least one AP in common with the scan - the most common APs first 
+	 * (buildings with the same number of common APs are in the order they were indexed)
+	 */
+	public List<Candidate> getCandidates(Collection<String> scannedMacs)
+	{
+		int[] numCommonAPs = count(scannedMacs);
+		
+		//Sort by count (descending) and then by index, packed into one long per candidate
+		int numCandidates = 0;
+		long[] keys = new long[mBuildings.length];
+		for (int i = 0; i < numCommonAPs.length; i++)
+		{
+			if (numCommonAPs[i] > 0)
+				keys[numCandidates++] = ((long)-numCommonAPs[i] << 32) | i;
+		}
+		Arrays.sort(keys, 0, numCandidates);
+		
+		List<Candidate> result = new ArrayList<Candidate>(numCandidates);
+		for (int i = 0; i < numCandidates; i++)
+		{
+			int index = (int)keys[i];
+			result.add(new Candidate(mBuildings[index], numCommonAPs[index]));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return The building that has the most APs in common with the scan (the first indexed one in case of a tie), 
+	 * or null if no building has any
+	 */
+	public Building getBestMatch(Collection<String> scannedMacs)
+	{
+		int[] numCommonAPs = count(scannedMacs);
+		int best = -1;
+		for (int i = 0; i < numCommonAPs.length; i++)
+		{
+			if (numCommonAPs[i] > 0 && (best < 0 || numCommonAPs[i] > numCommonAPs[best]))
+				best = i;
+		}
+		return best < 0 ? null : mBuildings[best];
+	}
+	
+	//The number of APs each building (by index) has in common with the scan
+	private int[] count(Collection<String> scannedMacs)
+	{
+		int[] numCommonAPs = new int[mBuildings.length];
+		for (String mac : scannedMacs)
+		{
+			int[] indexes = mBuildingsByMac.get(mac);
+			for (int index : indexes == null ? NO_BUILDINGS : indexes)
+				numCommonAPs[index]++;
+		}
+		return numCommonAPs;
+	}
+	
+	public int getNumBuildings()
+	{
+		return mBuildings.length;
+	}
+	
+	/**
+	 * @return The indexed buildings
+	 */
+	public List<Building> getBuildings()
+	{
+		return Collections.unmodifiableList(Arrays.asList(mBuildings));
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "BuildingIndex: " + mBuildings.length + " buildings, " + mBuildingsByMac.size() + " macs";
+	}
+}
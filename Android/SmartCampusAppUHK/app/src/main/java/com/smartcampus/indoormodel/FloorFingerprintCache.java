@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * Loads the fingerprints of a radio map file (cf. RadioMapFile.loadGraph(long)) one floor at a time when they are first needed, 
+ * so a large multi-storey radio map does not have to fit in the heap at once. 
+ * - The loaded floors are kept in LRU order. When their (estimated) size exceeds the budget, the least recently used floors are evicted 
+ *   (a floor that is evicted is simply loaded again from the file when it is needed). 
+ * - The floor that is being read is never evicted, even if it alone exceeds the budget. 
+ * The returned fingerprints must not be changed - they are shared by all readers of the floor. 
+ */
+public class FloorFingerprintCache implements Vertex.FingerprintSource {
+	
+	//The estimated heap size of a loaded fingerprint (a WifiMeasurement and its two tables) 
+	//and of each of its (mac, value, count) entries (a histogram entry and its share of the histogram table)
+	private static final int ESTIMATED_MEASUREMENT_SIZE = 160;
+	private static final int ESTIMATED_ENTRY_SIZE = 64;
+	
+	//The fingerprints of a loaded floor by vertex id
+	private static class Floor
+	{
+		final Map<Integer, List<WifiMeasurement>> fingerprints;
+		final long size;
+		
+		Floor(Map<Integer, List<WifiMeasurement>> fingerprints, long size)
+		{
+			this.fingerprints = fingerprints;
+			this.size = size;
+		}
+	}
+	
+	private final RadioMapFile mFile;
+	private final long mBudget;
+	private final String[] mMacs;
+	//The vertex records of each floor and the floor of each vertex (by id)
+	private final Map<Integer, List<Integer>> mFloorVertices = new HashMap<Integer, List<Integer>>();
+	private final Map<Integer, Integer> mVertexFloors = new HashMap<Integer, Integer>();
+	private final LinkedHashMap<Integer, Floor> mLoaded = new LinkedHashMap<Integer, Floor>(8, 0.75f, true);
+	private long mSize;
+	//The estimated size in bytes of all fingerprints (if they were loaded)
+	private long mTotalSize;
+	
+	//metrics
+	private int mNumHits, mNumLoads, mNumEvictions;
+	
+	/**
+	 * @param file The radio map file
+	 * @param budget The maximum (estimated) size in bytes of the loaded fingerprints
+	 */
+	public FloorFingerprintCache(RadioMapFile file, long budget) throws IOException
+	{
+		this.mFile = file;
+		this.mBudget = budget;
+		this.mMacs = file.readMacs();
+		for (int i = 0; i < file.getNumVertices(); i++)
+		{
+			if (file.getVertexNumFingerprints(i) == 0)
+				continue;
+			int floor = file.getVertexFloor(i);
+			List<Integer> vertices = mFloorVertices.get(floor);
+			if (vertices == null)
+			{
+				vertices = new ArrayList<Integer>();
+				mFloorVertices.put(floor, vertices);
+			}
+			vertices.add(i);
+			mVertexFloors.put(file.getVertexId(i), floor);
+			mTotalSize += estimateSize(i);
+		}
+	}
+	
+	public synchronized List<WifiMeasurement> getFingerprints(Vertex v)
+	{
+		Integer floor = mVertexFloors.get(v.getId());
+		if (floor == null)
+			return Collections.emptyList();
+		List<WifiMeasurement> result = getFloor(floor).fingerprints.get(v.getId());
+		return result == null ? Collections.<WifiMeasurement>emptyList() : result;
+	}
+	
+	/**
+	 * Loads the fingerprints of a floor (unless they are loaded), e.g., the floors next to the current floor
+	 */
+	public synchronized void loadFloor(int floor)
+	{
+		if (mFloorVertices.containsKey(floor))
+			getFloor(floor);
+	}
+	
+	public synchronized boolean isLoaded(int floor)
+	{
+		return mLoaded.containsKey(floor);
+	}
+	
+	/**
+	 * @return The floors that have fingerprints (in ascending order)
+	 */
+	public Set<Integer> getFloors()
+	{
+		return Collections.unmodifiableSet(new TreeSet<Integer>(mFloorVertices.keySet()));
+	}
+	
+	/**
+	 * @return The MACs that occur in the fingerprints (without loading them)
+	 */
+	public Set<String> getMacs()
+	{
+		Set<String> macs = new HashSet<String>();
+		Collections.addAll(macs, mMacs);
+		return macs;
+	}
+	
+	/**
+	 * @return True if the fingerprints of all floors fit in the budget, i.e., no floor is evicted once loaded
+	 */
+	public boolean fitsInBudget()
+	{
+		return mTotalSize <= mBudget;
+	}
+	
+	/**
+	 * @return The estimated size in bytes of the loaded fingerprints
+	 */
+	public synchronized long getSize()
+	{
+		return mSize;
+	}
+	
+	private Floor getFloor(int floor)
+	{
+		Floor result = mLoaded.get(floor);
+		if (result != null)
+		{
+			mNumHits++;
+			return result;
+		}
+		
+		Map<Integer, List<WifiMeasurement>> fingerprints = new HashMap<Integer, List<WifiMeasurement>>();
+		long size = 0;
+		for (int i : mFloorVertices.get(floor))
+		{
+			List<WifiMeasurement> vertexFingerprints = mFile.readFingerprints(i, mMacs);
+			fingerprints.put(mFile.getVertexId(i), Collections.unmodifiableList(vertexFingerprints));
+			size += estimateSize(i);
+		}
+		result = new Floor(fingerprints, size);
+		mNumLoads++;
+		
+		//Make room for the floor - the least recently used floors go first
+		Iterator<Floor> it = mLoaded.values().iterator();
+		while (mSize + size > mBudget && it.hasNext())
+		{
+			mSize -= it.next().size;
+			it.remove();
+			mNumEvictions++;
+		}
+		mLoaded.put(floor, result);
+		mSize += size;
+		return result;
+	}
+	
+	//The estimated heap size of the fingerprints of the i'th vertex of the file
+	private long estimateSize(int i)
+	{
+		return (long)mFile.getVertexNumFingerprints(i) * ESTIMATED_MEASUREMENT_SIZE + (long)mFile.getVertexNumFingerprintEntries(i) * ESTIMATED_ENTRY_SIZE;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "FloorFingerprintCache: loaded floors=" + mLoaded.keySet() + " of " + getFloors() + ", size=" + mSize + " of " + mBudget 
+				+ " bytes, hits=" + mNumHits + ", loads=" + mNumLoads + ", evictions=" + mNumEvictions;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * A locality-sensitive hashing (LSH) index over the fingerprints of a (large) set of vertices, 
+ * used to find candidate vertices for a measurement without scoring every fingerprint. 
+ * - A fingerprint is a vector with a dimension per AP: The mean signal strength above MISSING_DBM (0 if the AP is not heard), 
+ *   centered on the mean fingerprint. 
+ * - Each table hashes the vectors by the signs of their projections onto numBits random hyperplanes (random-projection LSH), 
+ *   so similar fingerprints tend to share a bucket. 
+ * - A measurement is looked up in its bucket of each table - and, with multi-probe, in the numProbes buckets that differ in the bits 
+ *   whose projections are nearest to zero (the buckets it most likely just missed). 
+ * More tables and probes yield more candidates, i.e., a higher recall at a higher cost. 
+ * The candidates are approximate: The nearest fingerprint may be missed, so the candidates must be scored by the positioning algorithm. 
+ * The index is immutable - build a new one when the fingerprints change. 
+ */
+public class LshIndex {
+	
+	//The signal strength (in dBm) of an AP that is not heard
+	public static final int MISSING_DBM = -100;
+	
+	private final int mNumTables, mNumBits, mNumProbes;
+	private final Vertex[] mVertices; //the distinct vertices
+	private final int[] mRowVertices; //the (index of the) vertex of each fingerprint (row)
+	private final Map<String, Integer> mMacIndexes = new HashMap<String, Integer>();
+	//The random hyperplanes: mHyperplanes[table * mNumBits + bit][mac index] - and their projections of the mean fingerprint
+	private final float[][] mHyperplanes;
+	private final double[] mOffsets;
+	//The rows in each bucket of each table
+	private final List<Map<Integer, int[]>> mTables = new ArrayList<Map<Integer, int[]>>();
+	
+	/**
+	 * @param vertices The vertices to index (by all their fingerprints)
+	 * @param numTables The number of hash tables
+	 * @param numBits The number of hyperplanes (bits) per table (at most 30)
+	 * @param numProbes The number of additional buckets to probe per table (at most numBits)
+	 * @param seed The seed of the random hyperplanes
+	 */
+	public LshIndex(List<Vertex> vertices, int numTables, int numBits, int numProbes, long seed)
+	{
+		if (numTables < 1 || numBits < 1 || numBits > 30 || numProbes < 0 || numProbes > numBits)
+			throw new IllegalArgumentException("Invalid LSH parameters: " + numTables + " tables, " + numBits + " bits, " + numProbes + " probes");
+		this.mNumTables = numTables;
+		this.mNumBits = numBits;
+		this.mNumProbes = numProbes;
+		
+		//The fingerprints as sparse vectors
+		List<Vertex> distinctVertices = new ArrayList<Vertex>();
+		List<Integer> rowVertices = new ArrayList<Integer>();
+		List<int[]> rowColumns = new ArrayList<int[]>();
+		List<float[]> rowValues = new ArrayList<float[]>();
+		List<Double> sums = new ArrayList<Double>();
+		for (Vertex v : vertices)
+		{
+			if (v.getNumFingerprints() > 0)
+				distinctVertices.add(v);
+			for (WifiMeasurement fp : v.getFingerPrints())
+			{
+				int[] columns = new int[fp.getNumMACs()];
+				float[] values = new float[columns.length];
+				int n = 0;
+				for (String mac : fp.getMACs())
+				{
+					Integer column = mMacIndexes.get(mac);
+					if (column == null)
+					{
+						column = mMacIndexes.size();
+						mMacIndexes.put(mac, column);
+						sums.add(0.0);
+					}
+					columns[n] = column;
+					values[n] = getValue(fp.getAvgDbM(mac));
+					sums.set(column, sums.get(column) + values[n]);
+					n++;
+				}
+				rowVertices.add(distinctVertices.size() - 1);
+				rowColumns.add(columns);
+				rowValues.add(values);
+			}
+		}
+		this.mVertices = distinctVertices.toArray(new Vertex[distinctVertices.size()]);
+		this.mRowVertices = new int[rowVertices.size()];
+		for (int r = 0; r < mRowVertices.length; r++)
+			mRowVertices[r] = rowVertices.get(r);
+		
+		Random rnd = new Random(seed);
+		int numMacs = mMacIndexes.size();
+		mHyperplanes = new float[numTables * numBits][numMacs];
+		mOffsets = new double[numTables * numBits];
+		for (int h = 0; h < mHyperplanes.length; h++)
+		{
+			for (int c = 0; c < numMacs; c++)
+			{
+				mHyperplanes[h][c] = (float)rnd.nextGaussian();
+				mOffsets[h] += mHyperplanes[h][c] * sums.get(c) / Math.max(1, mRowVertices.length);
+			}
+		}
+		
+		double[] projections = new double[mNumBits];
+		for (int t = 0; t < numTables; t++)
+		{
+			Map<Integer, List<Integer>> buckets = new HashMap<Integer, List<Integer>>();
+			for (int r = 0; r < mRowVertices.length; r++)
+			{
+				int key = getKey(t, rowColumns.get(r), rowValues.get(r), rowColumns.get(r).length, projections);
+				List<Integer> bucket = buckets.get(key);
+				if (bucket == null)
+				{
+					bucket = new ArrayList<Integer>();
+					buckets.put(key, bucket);
+				}
+				bucket.add(r);
+			}
+			Map<Integer, int[]> table = new HashMap<Integer, int[]>();
+			for (Map.Entry<Integer, List<Integer>> entry : buckets.entrySet())
+			{
+				int[] rows = new int[entry.getValue().size()];
+				for (int i = 0; i < rows.length; i++)
+					rows[i] = entry.getValue().get(i);
+				table.put(entry.getKey(), rows);
+			}
+			mTables.add(table);
+		}
+	}
+	
+	private static float getValue(int dbm)
+	{
+		return Math.max(0, dbm - MISSING_DBM);
+	}
+	
+	//The bucket of the vector in table t (and the projections onto the hyperplanes of the table)
+	private int getKey(int t, int[] columns, float[] values, int length, double[] projections)
+	{
+		int key = 0;
+		for (int b = 0; b < mNumBits; b++)
+		{
+			float[] hyperplane = mHyperplanes[t * mNumBits + b];
+			double p = -mOffsets[t * mNumBits + b];
+			for (int i = 0; i < length; i++)
+				p += hyperplane[columns[i]] * values[i];
+			projections[b] = p;
+			if (p >= 0)
+				key |= 1 << b;
+		}
+		return key;
+	}
+	
+	/**
+	 * @return The distinct vertices of the fingerprints in the buckets of the measurement (in the order they were found). 
+	 * APs of the measurement that are not in the index are ignored. 
+	 */
+	public List<Vertex> getCandidates(WifiMeasurement measurement)
+	{
+		int[] columns = new int[measurement.getNumMACs()];
+		float[] values = new float[columns.length];
+		int length = 0;
+		for (String mac : measurement.getMACs())
+		{
+			Integer column = mMacIndexes.get(mac);
+			if (column == null)
+				continue;
+			columns[length] = column;
+			values[length++] = getValue(measurement.getAvgDbM(mac));
+		}
+		
+		List<Vertex> result = new ArrayList<Vertex>();
+		boolean[] found = new boolean[mVertices.length];
+		double[] projections = new double[mNumBits];
+		int[] probeBits = new int[mNumProbes];
+		for (int t = 0; t < mNumTables; t++)
+		{
+			int key = getKey(t, columns, values, length, projections);
+			addCandidates(mTables.get(t).get(key), result, found);
+			
+			//The bits whose projections are nearest to zero (selection sort - there are few probes)
+			for (int p = 0; p < mNumProbes; p++)
+			{
+				int nearest = -1;
+				for (int b = 0; b < mNumBits; b++)
+				{
+					boolean probed = false;
+					for (int q = 0; q < p; q++)
+						probed |= probeBits[q] == b;
+					if (!probed && (nearest < 0 || Math.abs(projections[b]) < Math.abs(projections[nearest])))
+						nearest = b;
+				}
+				probeBits[p] = nearest;
+				addCandidates(mTables.get(t).get(key ^ (1 << nearest)), result, found);
+			}
+		}
+		return result;
+	}
+	
+	private void addCandidates(int[] rows, List<Vertex> result, boolean[] found)
+	{
+		if (rows == null)
+			return;
+		for (int r : rows)
+		{
+			int v = mRowVertices[r];
+			if (!found[v])
+			{
+				found[v] = true;
+				result.add(mVertices[v]);
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of indexed fingerprints
+	 */
+	public int getNumFingerprints()
+	{
+		return mRowVertices.length;
+	}
+	
+	@Override
+	public String toString()
+	{
+		int numBuckets = 0;
+		for (Map<Integer, int[]> table : mTables)
+			numBuckets += table.size();
+		return "LshIndex: " + mRowVertices.length + " fingerprints, " + mMacIndexes.size() + " macs, " + mNumTables + " tables x " 
+				+ mNumBits + " bits (" + numBuckets + " buckets), " + mNumProbes + " probes";
+	}
+}
@@ -0,0 +1,282 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * The fingerprints of a set of vertices (typically a floor) packed for scoring: Each fingerprint is a row that holds 
+ * the mean signal strength of each of its APs as a byte (1 dB precision, MISSING if the AP is not heard). 
+ * A packed fingerprint takes a few bytes per AP instead of a WifiMeasurement with boxed histograms (hundreds of bytes per AP), 
+ * and the rows are scored with integer arithmetic over contiguous arrays. 
+ * - Dense layout: A byte for every (fingerprint, AP) pair, stored AP by AP (column-major). The rows are scored in a batch: 
+ *   For each AP of the measurement, one tight loop over a contiguous column adds the squared differences of all rows 
+ *   (a loop the JIT can unroll and vectorize). 
+ *   Used when the APs of the block are heard in a large share of the fingerprints, e.g., the APs of a floor after AP selection. 
+ * - Sparse layout: A row holds (AP, signal strength) pairs sorted by AP, and the rows are scored one at a time. 
+ * The mean is the integer mean of WifiMeasurement.getAvgDbM(), so the distances equal those of AlgorithmNNSS. 
+ * Instances are immutable. 
+ */
+public final class PackedFingerprints {
+	
+	//The signal strength of an AP that is not heard in a fingerprint
+	public static final byte MISSING = Byte.MIN_VALUE;
+	//The range of the packed signal strengths (in dBm)
+	public static final int MIN_DBM = Byte.MIN_VALUE + 1;
+	public static final int MAX_DBM = 0;
+	//The dense layout is used if at least one in this many (fingerprint, AP) pairs is heard
+	private static final int DENSE_MIN_FILL = 4;
+	
+	public enum Layout { DENSE, SPARSE }
+	
+	private final Vertex[] mVertices; //the vertex of each row
+	private final String[] mMacs; //the APs (columns) of the block
+	private final Map<String, Integer> mMacIndexes;
+	private final int mNumRows;
+	private final int mNumEntries;
+	private final boolean mDense;
+	//dense: mMacs.length * mNumRows signal strengths (the column of AP c starts at c * mNumRows)
+	//sparse: the signal strengths and APs of the entries of row r are at mRowOffsets[r] until mRowOffsets[r + 1]
+	private final byte[] mDbms;
+	private final char[] mColumns;
+	private final int[] mRowOffsets;
+	
+	/**
+	 * Packs the fingerprints of the vertices (in the order of the vertices - and of their fingerprints) 
+	 * in the layout that suits the share of heard (fingerprint, AP) pairs
+	 */
+	public PackedFingerprints(List<Vertex> vertices)
+	{
+		this(vertices, null);
+	}
+	
+	/**
+	 * Packs the fingerprints of the vertices in the given layout (null chooses the layout), e.g., to compare the layouts
+	 */
+	public PackedFingerprints(List<Vertex> vertices, Layout layout)
+	{
+		//Assign the APs to columns and count the rows and entries
+		List<Vertex> rowVertices = new ArrayList<Vertex>();
+		List<WifiMeasurement> rows = new ArrayList<WifiMeasurement>();
+		Map<String, Integer> macIndexes = new HashMap<String, Integer>();
+		int numEntries = 0;
+		for (Vertex v : vertices)
+		{
+			for (WifiMeasurement fp : v.getFingerPrints())
+			{
+				rowVertices.add(v);
+				rows.add(fp);
+				for (String mac : fp.getMACs())
+				{
+					if (!macIndexes.containsKey(mac))
+						macIndexes.put(mac, macIndexes.size());
+					numEntries++;
+				}
+			}
+		}
+		if (macIndexes.size() > Character.MAX_VALUE + 1)
+			throw new IllegalArgumentException("Too many APs to pack: " + macIndexes.size());
+		
+		this.mVertices = rowVertices.toArray(new Vertex[rowVertices.size()]);
+		this.mMacs = macs(macIndexes);
+		this.mMacIndexes = macIndexes;
+		this.mNumRows = rows.size();
+		this.mNumEntries = numEntries;
+		this.mDense = layout != null ? layout == Layout.DENSE : (long)mNumRows * mMacs.length <= (long)numEntries * DENSE_MIN_FILL;
+		
+		if (mDense)
+		{
+			mDbms = new byte[mNumRows * mMacs.length];
+			Arrays.fill(mDbms, MISSING);
+			mColumns = null;
+			mRowOffsets = null;
+			for (int r = 0; r < mNumRows; r++)
+			{
+				WifiMeasurement fp = rows.get(r);
+				for (String mac : fp.getMACs())
+					mDbms[macIndexes.get(mac) * mNumRows + r] = quantize(fp.getAvgDbM(mac));
+			}
+		}
+		else
+		{
+			mDbms = new byte[numEntries];
+			mColumns = new char[numEntries];
+			mRowOffsets = new int[mNumRows + 1];
+			int pos = 0;
+			for (int r = 0; r < mNumRows; r++)
+			{
+				WifiMeasurement fp = rows.get(r);
+				mRowOffsets[r] = pos;
+				int[] columns = new int[fp.getNumMACs()];
+				int n = 0;
+				for (String mac : fp.getMACs())
+					columns[n++] = macIndexes.get(mac);
+				Arrays.sort(columns);
+				for (int column : columns)
+				{
+					mColumns[pos] = (char)column;
+					mDbms[pos] = quantize(fp.getAvgDbM(mMacs[column]));
+					pos++;
+				}
+			}
+			mRowOffsets[mNumRows] = pos;
+		}
+	}
+	
+	private static String[] macs(Map<String, Integer> macIndexes)
+	{
+		String[] result = new String[macIndexes.size()];
+		for (Map.Entry<String, Integer> entry : macIndexes.entrySet())
+			result[entry.getValue()] = entry.getKey();
+		return result;
+	}
+	
+	/**
+	 * @return The signal strength clamped to MIN_DBM..MAX_DBM
+	 */
+	public static byte quantize(int dbm)
+	{
+		return (byte)Math.max(MIN_DBM, Math.min(MAX_DBM, dbm));
+	}
+	
+	/**
+	 * Computes the squared (Euclidean) distance between a measurement and each fingerprint over the APs of the measurement 
+	 * (an AP that is not heard in a fingerprint counts as missingDbm). Integer arithmetic only. 
+	 * @param macs The APs of the measurement
+	 * @param dbms The signal strengths of the measurement (in dBm)
+	 * @param result The squared distance of each row (at least getNumRows() long)
+	 */
+	public void getSquaredDistances(String[] macs, int[] dbms, int missingDbm, int[] result)
+	{
+		//The APs of the measurement that are not in the block count as missing in every row
+		int[] columns = new int[macs.length];
+		int[] columnDbms = new int[macs.length];
+		int numColumns = 0;
+		int missingDistance = 0;
+		for (int i = 0; i < macs.length; i++)
+		{
+			Integer column = mMacIndexes.get(macs[i]);
+			if (column == null)
+			{
+				int d = dbms[i] - missingDbm;
+				missingDistance += d * d;
+				continue;
+			}
+			//insertion sort by column (a measurement has few APs)
+			int j = numColumns++;
+			for (; j > 0 && columns[j - 1] > column; j--)
+			{
+				columns[j] = columns[j - 1];
+				columnDbms[j] = columnDbms[j - 1];
+			}
+			columns[j] = column;
+			columnDbms[j] = dbms[i];
+		}
+		
+		if (mDense)
+		{
+			Arrays.fill(result, 0, mNumRows, missingDistance);
+			for (int j = 0; j < numColumns; j++)
+			{
+				int dbm = columnDbms[j];
+				for (int r = 0, pos = columns[j] * mNumRows; r < mNumRows; r++, pos++)
+				{
+					int v = mDbms[pos];
+					int d = dbm - (v == MISSING ? missingDbm : v);
+					result[r] += d * d;
+				}
+			}
+		}
+		else
+		{
+			for (int r = 0; r < mNumRows; r++)
+			{
+				int sum = missingDistance;
+				int pos = mRowOffsets[r], end = mRowOffsets[r + 1];
+				for (int j = 0; j < numColumns; j++)
+				{
+					while (pos < end && mColumns[pos] < columns[j])
+						pos++;
+					int d = columnDbms[j] - (pos < end && mColumns[pos] == columns[j] ? mDbms[pos] : missingDbm);
+					sum += d * d;
+				}
+				result[r] = sum;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of fingerprints
+	 */
+	public int getNumRows()
+	{
+		return mNumRows;
+	}
+	
+	/**
+	 * @return The vertex of the r'th fingerprint
+	 */
+	public Vertex getVertex(int r)
+	{
+		return mVertices[r];
+	}
+	
+	public int getNumMacs()
+	{
+		return mMacs.length;
+	}
+	
+	public boolean isDense()
+	{
+		return mDense;
+	}
+	
+	/**
+	 * @return The (approximate) heap size in bytes of the packed fingerprints (without the vertices and the MAC strings)
+	 */
+	public long getSize()
+	{
+		long size = mDbms.length + 4L * mVertices.length + 32L * mMacIndexes.size();
+		if (!mDense)
+			size += 2L * mColumns.length + 4L * mRowOffsets.length;
+		return size;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "PackedFingerprints: " + mNumRows + " rows, " + mMacs.length + " macs, " + mNumEntries + " entries, " 
+				+ (mDense ? "dense" : "sparse") + ", " + getSize() + " bytes";
+	}
+}
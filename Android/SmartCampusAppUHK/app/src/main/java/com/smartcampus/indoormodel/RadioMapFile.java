@@ -0,0 +1,630 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.smartcampus.baselogic.LocalProjection;
+import com.smartcampus.indoormodel.SymbolicLocation.InfoType;
+import com.smartcampus.indoormodel.graph.DictionaryGraph;
+import com.smartcampus.indoormodel.graph.Edge;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.FingerprintConsolidator;
+import com.smartcampus.wifi.Histogram;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * A versioned binary file holding a radio map, i.e., the graph of a building including its fingerprints. 
+ * The file is written after a radio map has been downloaded and is memory-mapped (FileChannel.map) when read, 
+ * so a radio map can be restored on a cold start without any network access or text parsing. 
+ * 
+ * Layout (big-endian): 
+ * - header: magic, format version, building id, timestamp, frame (reference latitude/longitude), section counts and offsets
+ * - the server's version (ETag) of the radio map (length-prefixed UTF-8)
+ * - macs: the distinct MAC addresses (length-prefixed UTF-8) - fingerprints refer to MACs by index
+ * - vertices: fixed-size records (id, lat, lon, alt, projected x/y, symbolic location index, fingerprint offset/count)
+ * - edges: fixed-size records (id, origin id, destination id, flags) - one per undirectional edge
+ * - symbolic locations: variable-size records
+ * - fingerprints: per measurement the number of entries followed by (mac index, value, count) triples
+ * Fixed-size records can be read in place, e.g., getVertexX(i). 
+ * The fingerprints of a floor are stored contiguously per vertex, so they can be loaded per floor on demand (cf. loadGraph(long)). 
+ */
+public class RadioMapFile {
+	
+	public static final int MAGIC = 0x5343524D; //"SCRM"
+	//Increment when the layout changes - files of other versions are rejected (and thus re-downloaded)
+	public static final int FORMAT_VERSION = 2;
+	
+	private static final int HEADER_SIZE = 80;
+	private static final int VERTEX_RECORD_SIZE = 48;
+	private static final int EDGE_RECORD_SIZE = 16;
+	private static final int FINGERPRINT_ENTRY_SIZE = 12;
+	
+	private static final int EDGE_DIRECTIONAL = 1;
+	private static final int EDGE_ELEVATOR = 2;
+	private static final int EDGE_STAIR = 4;
+	
+	private final ByteBuffer mBuffer;
+	private final int mBuildingId;
+	private final long mTimestamp;
+	private final String mVersion;
+	private final double mRefLatitude, mRefLongitude;
+	private final int mNumMacs, mNumVertices, mNumEdges, mNumSymbolicLocations;
+	private final int mMacsOffset, mVerticesOffset, mEdgesOffset, mSymbolicLocationsOffset, mFingerprintsOffset;
+	
+	private RadioMapFile(ByteBuffer buffer) throws IOException
+	{
+		this.mBuffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a radio map file");
+		if (buffer.getInt(4) != FORMAT_VERSION)
+			throw new IOException("Unsupported radio map format version " + buffer.getInt(4));
+		
+		mBuildingId = buffer.getInt(8);
+		mTimestamp = buffer.getLong(12);
+		mRefLatitude = buffer.getDouble(20);
+		mRefLongitude = buffer.getDouble(28);
+		mNumMacs = buffer.getInt(36);
+		mNumVertices = buffer.getInt(40);
+		mNumEdges = buffer.getInt(44);
+		mNumSymbolicLocations = buffer.getInt(48);
+		mMacsOffset = buffer.getInt(52);
+		mVerticesOffset = buffer.getInt(56);
+		mEdgesOffset = buffer.getInt(60);
+		mSymbolicLocationsOffset = buffer.getInt(64);
+		mFingerprintsOffset = buffer.getInt(68);
+		
+		if (mFingerprintsOffset > buffer.capacity() || mVerticesOffset + mNumVertices * VERTEX_RECORD_SIZE > buffer.capacity())
+			throw new IOException("Truncated radio map file");
+		
+		ByteBuffer buf = buffer.duplicate();
+		buf.position(HEADER_SIZE);
+		mVersion = readString(buf);
+	}
+	
+	/**
+	 * Memory-maps a radio map file
+	 * @throws IOException If the file cannot be read, or is not a radio map of the current format version
+	 */
+	public static RadioMapFile open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new RadioMapFile(buffer);
+		}
+		finally
+		{
+			//The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+	
+	public int getBuildingId()
+	{
+		return mBuildingId;
+	}
+	
+	//The time (in ms since the epoch) the radio map was downloaded or last revalidated
+	public long getTimestamp()
+	{
+		return mTimestamp;
+	}
+	
+	//The server's version of the radio map (null if the server did not provide one)
+	public String getVersion()
+	{
+		return mVersion;
+	}
+	
+	public int getNumVertices()
+	{
+		return mNumVertices;
+	}
+	
+	public int getNumEdges()
+	{
+		return mNumEdges;
+	}
+	
+	public int getVertexId(int i)
+	{
+		return mBuffer.getInt(mVerticesOffset + i * VERTEX_RECORD_SIZE);
+	}
+	
+	//The projected coordinates (in meters) of the i'th vertex in the frame of the file (cf. getProjection())
+	public float getVertexX(int i)
+	{
+		return mBuffer.getFloat(mVerticesOffset + i * VERTEX_RECORD_SIZE + 28);
+	}
+	
+	public float getVertexY(int i)
+	{
+		return mBuffer.getFloat(mVerticesOffset + i * VERTEX_RECORD_SIZE + 32);
+	}
+	
+	public LocalProjection getProjection()
+	{
+		return new LocalProjection(mRefLatitude, mRefLongitude);
+	}
+	
+	//The floor of the i'th vertex
+	int getVertexFloor(int i)
+	{
+		return (int)mBuffer.getDouble(mVerticesOffset + i * VERTEX_RECORD_SIZE + 20);
+	}
+	
+	int getVertexNumFingerprints(int i)
+	{
+		return mBuffer.getInt(mVerticesOffset + i * VERTEX_RECORD_SIZE + 44);
+	}
+	
+	//The number of (mac, value, count) entries of the fingerprints of the i'th vertex
+	int getVertexNumFingerprintEntries(int i)
+	{
+		int pos = mFingerprintsOffset + mBuffer.getInt(mVerticesOffset + i * VERTEX_RECORD_SIZE + 40);
+		int numEntries = 0;
+		for (int j = getVertexNumFingerprints(i); j > 0; j--)
+		{
+			int n = mBuffer.getInt(pos);
+			numEntries += n;
+			pos += 4 + n * FINGERPRINT_ENTRY_SIZE;
+		}
+		return numEntries;
+	}
+	
+	//Reads the fingerprints of the i'th vertex
+	List<WifiMeasurement> readFingerprints(int i, String[] macs)
+	{
+		ByteBuffer buf = mBuffer.duplicate();
+		buf.position(mFingerprintsOffset + mBuffer.getInt(mVerticesOffset + i * VERTEX_RECORD_SIZE + 40));
+		int numFingerprints = getVertexNumFingerprints(i);
+		List<WifiMeasurement> result = new ArrayList<WifiMeasurement>(numFingerprints);
+		for (int j = 0; j < numFingerprints; j++)
+			result.add(readWifiMeasurement(buf, macs));
+		return result;
+	}
+	
+	/**
+	 * @return The distinct MACs of the fingerprints
+	 */
+	public String[] readMacs() throws IOException
+	{
+		ByteBuffer buf = mBuffer.duplicate();
+		String[] macs = new String[mNumMacs];
+		buf.position(mMacsOffset);
+		for (int i = 0; i < mNumMacs; i++)
+			macs[i] = readString(buf);
+		return macs;
+	}
+	
+	/**
+	 * Restores the graph (including symbolic locations and fingerprints) 
+	 */
+	public IGraph loadGraph() throws IOException
+	{
+		return loadGraph(null);
+	}
+	
+	/**
+	 * Restores the graph (including symbolic locations), but leaves the fingerprints in the file. 
+	 * They are loaded per floor when they are first needed and kept within fingerprintBudget bytes (cf. FloorFingerprintCache). 
+	 */
+	public IGraph loadGraph(long fingerprintBudget) throws IOException
+	{
+		return loadGraph(new FloorFingerprintCache(this, fingerprintBudget));
+	}
+	
+	private IGraph loadGraph(FloorFingerprintCache fingerprints) throws IOException
+	{
+		ByteBuffer buf = mBuffer.duplicate();
+		
+		String[] macs = fingerprints == null ? readMacs() : null;
+		
+		SymbolicLocation[] symLocs = new SymbolicLocation[mNumSymbolicLocations];
+		buf.position(mSymbolicLocationsOffset);
+		for (int i = 0; i < mNumSymbolicLocations; i++)
+		{
+			SymbolicLocation symLoc = new SymbolicLocation();
+			symLoc.setId(buf.getInt());
+			symLoc.setTitle(readString(buf));
+			symLoc.setDescription(readString(buf));
+			symLoc.setUrl(readString(buf));
+			symLoc.setEntrance(buf.get() != 0);
+			symLoc.setType(InfoType.getValue(buf.getInt()));
+			symLocs[i] = symLoc;
+		}
+		
+		//The vertices are placed in the frame of the file using their stored coordinates, i.e., they are not projected again
+		LocalProjection projection = mRefLatitude != 0 || mRefLongitude != 0 ? getProjection() : null;
+		DictionaryGraph graph = new DictionaryGraph(mNumVertices, 2 * mNumEdges);
+		graph.setProjection(projection);
+		GraphBuilder g = new GraphBuilder(graph, mNumEdges);
+		for (int i = 0; i < mNumVertices; i++)
+		{
+			buf.position(mVerticesOffset + i * VERTEX_RECORD_SIZE);
+			int id = buf.getInt();
+			double lat = buf.getDouble();
+			double lon = buf.getDouble();
+			double alt = buf.getDouble();
+			float x = buf.getFloat();
+			float y = buf.getFloat();
+			int symLocIndex = buf.getInt();
+			int fingerprintOffset = buf.getInt();
+			int numFingerprints = buf.getInt();
+			
+			Vertex v = new Vertex(id, new AbsoluteLocation(lat, lon, alt));
+			if (projection != null)
+				v.project(projection, x, y);
+			if (symLocIndex >= 0)
+				v.getLocation().setSymbolicLocation(symLocs[symLocIndex]);
+			
+			if (fingerprints != null)
+			{
+				if (numFingerprints > 0)
+					v.setFingerprintSource(fingerprints, numFingerprints);
+			}
+			else
+			{
+				buf.position(mFingerprintsOffset + fingerprintOffset);
+				for (int j = 0; j < numFingerprints; j++)
+					v.addFingerprint(readWifiMeasurement(buf, macs));
+			}
+			g.addVertex(v);
+		}
+		
+		for (int i = 0; i < mNumEdges; i++)
+		{
+			int pos = mEdgesOffset + i * EDGE_RECORD_SIZE;
+			int flags = mBuffer.get(pos + 12);
+			g.addUndirectionalEdge(mBuffer.getInt(pos), mBuffer.getInt(pos + 4), mBuffer.getInt(pos + 8),
+					(flags & EDGE_DIRECTIONAL) != 0, (flags & EDGE_ELEVATOR) != 0, (flags & EDGE_STAIR) != 0);
+		}
+		
+		return g.build();
+	}
+	
+	private static WifiMeasurement readWifiMeasurement(ByteBuffer buf, String[] macs)
+	{
+		WifiMeasurement meas = new WifiMeasurement();
+		int numEntries = buf.getInt();
+		for (int k = 0; k < numEntries; k++)
+		{
+			String mac = macs[buf.getInt()];
+			int value = buf.getInt();
+			int count = buf.getInt();
+			Hashtable<Integer, Integer> hist = meas.GetHistogram(mac);
+			if (hist == null)
+				meas.setHistogram(new Histogram(-1, mac, value, count));
+			else
+				hist.put(value, count);
+		}
+		return meas;
+	}
+	
+	/**
+	 * Updates the timestamp of an existing file in place, e.g., when the server has confirmed that the radio map is still current
+	 */
+	public static void setTimestamp(File file, long timestamp) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC)
+				throw new IOException("Not a radio map file");
+			raf.seek(12);
+			raf.writeLong(timestamp);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Writes the radio map (graph) of a building. 
+	 * The file is written to a temporary file first and then renamed, so a reader never sees a partial file. 
+	 * @param version The server's version of the radio map (may be null)
+	 * @param timestamp The time (in ms since the epoch) the radio map was downloaded
+	 */
+	public static void write(int buildingId, String version, IGraph graph, long timestamp, File file) throws IOException
+	{
+		write(buildingId, version, graph, timestamp, file, null);
+	}
+	
+	/**
+	 * Writes the radio map (graph) of a building, but only the fingerprint entries of the given MACs, 
+	 * e.g., the most discriminative APs (cf. AccessPointSelector). 
+	 * @param selectedMacs The MACs to keep (null keeps all)
+	 */
+	public static void write(int buildingId, String version, IGraph graph, long timestamp, File file, Set<String> selectedMacs) throws IOException
+	{
+		write(buildingId, version, graph, timestamp, file, selectedMacs, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Writes the radio map (graph) of a building, but only the fingerprint entries of the given MACs - and at most maxFingerprintsPerVertex 
+	 * fingerprints per vertex: The fingerprints of a vertex with more fingerprints are consolidated (cf. FingerprintConsolidator). 
+	 * The graph itself is not changed. 
+	 * @param selectedMacs The MACs to keep (null keeps all)
+	 * @param maxFingerprintsPerVertex The maximum number of fingerprints per vertex (Integer.MAX_VALUE keeps all)
+	 */
+	public static void write(int buildingId, String version, IGraph graph, long timestamp, File file, 
+			Set<String> selectedMacs, int maxFingerprintsPerVertex) throws IOException
+	{
+		LocalProjection projection = graph.getProjection();
+		
+		//Assign indexes to the macs and symbolic locations - and lay out the fingerprints
+		Map<String, Integer> macIndexes = new HashMap<String, Integer>();
+		List<String> macs = new ArrayList<String>();
+		List<SymbolicLocation> symLocs = new ArrayList<SymbolicLocation>();
+		List<Vertex> vertices = new ArrayList<Vertex>(graph.getVertices());
+		//Floor by floor, so the fingerprints of a floor are contiguous (and a graph whose fingerprints are loaded per floor is written 
+		//without reloading floors)
+		Collections.sort(vertices, new Comparator<Vertex>() {
+			public int compare(Vertex a, Vertex b) {
+				int floorA = (int)a.getLocation().getAbsoluteLocation().getAltitude();
+				int floorB = (int)b.getLocation().getAbsoluteLocation().getAltitude();
+				return floorA < floorB ? -1 : (floorA == floorB ? 0 : 1);
+			}
+		});
+		int[] fingerprintOffsets = new int[vertices.size()];
+		//The consolidated fingerprints of the vertices that have more than maxFingerprintsPerVertex (null for the others)
+		List<List<WifiMeasurement>> consolidated = new ArrayList<List<WifiMeasurement>>();
+		int fingerprintsSize = 0;
+		for (int i = 0; i < vertices.size(); i++)
+		{
+			Vertex v = vertices.get(i);
+			fingerprintOffsets[i] = fingerprintsSize;
+			List<WifiMeasurement> fingerprints = null;
+			if (v.getNumFingerprints() > maxFingerprintsPerVertex)
+				fingerprints = FingerprintConsolidator.consolidate(v.getFingerPrints(), maxFingerprintsPerVertex);
+			consolidated.add(fingerprints);
+			for (WifiMeasurement meas : fingerprints != null ? fingerprints : v.getFingerPrints())
+			{
+				fingerprintsSize += 4;
+				for (Map.Entry<String, Hashtable<Integer, Integer>> hist : meas.getHistograms().entrySet())
+				{
+					if (selectedMacs != null && !selectedMacs.contains(hist.getKey()))
+						continue;
+					if (!macIndexes.containsKey(hist.getKey()))
+					{
+						macIndexes.put(hist.getKey(), macs.size());
+						macs.add(hist.getKey());
+					}
+					fingerprintsSize += hist.getValue().size() * FINGERPRINT_ENTRY_SIZE;
+				}
+			}
+		}
+		
+		//One record per undirectional edge
+		List<Edge> edges = new ArrayList<Edge>();
+		for (Edge e : graph.getEdges())
+		{
+			int originId = e.getOrigin().getId(), destinationId = e.getDestination().getId();
+			if (originId < destinationId || !graph.ContainsEdge(new Edge(e.getDestination(), e.getOrigin(), 0)))
+				edges.add(e);
+		}
+		
+		//A temp file of its own, so concurrent writers of the same file never write to the same temp file (the last rename wins)
+		File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		boolean isWritten = false;
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+			try
+			{
+				ByteArrayDataOutput versionSection = new ByteArrayDataOutput();
+				versionSection.writeString(version);
+			
+				ByteArrayDataOutput macSection = new ByteArrayDataOutput();
+				for (String mac : macs)
+					macSection.writeString(mac);
+			
+				ByteArrayDataOutput symLocSection = new ByteArrayDataOutput();
+				Map<SymbolicLocation, Integer> symLocIndexes = new HashMap<SymbolicLocation, Integer>();
+				for (Vertex v : vertices)
+				{
+					SymbolicLocation symLoc = v.getLocation().getSymbolicLocation();
+					if (symLoc == null || symLocIndexes.containsKey(symLoc))
+						continue;
+					symLocIndexes.put(symLoc, symLocs.size());
+					symLocs.add(symLoc);
+					symLocSection.out.writeInt(symLoc.getId());
+					symLocSection.writeString(symLoc.getTitle());
+					symLocSection.writeString(symLoc.getDescription());
+					symLocSection.writeString(symLoc.getUrl());
+					symLocSection.out.writeByte(symLoc.isEntrance() ? 1 : 0);
+					symLocSection.out.writeInt(symLoc.getType() == null ? 0 : symLoc.getType().ordinal());
+				}
+			
+				int macsOffset = HEADER_SIZE + versionSection.size();
+				int verticesOffset = macsOffset + macSection.size();
+				int edgesOffset = verticesOffset + vertices.size() * VERTEX_RECORD_SIZE;
+				int symLocsOffset = edgesOffset + edges.size() * EDGE_RECORD_SIZE;
+				int fingerprintsOffset = symLocsOffset + symLocSection.size();
+			
+				//header
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(buildingId);
+				out.writeLong(timestamp);
+				out.writeDouble(projection != null ? projection.getRefLatitude() : 0);
+				out.writeDouble(projection != null ? projection.getRefLongitude() : 0);
+				out.writeInt(macs.size());
+				out.writeInt(vertices.size());
+				out.writeInt(edges.size());
+				out.writeInt(symLocs.size());
+				out.writeInt(macsOffset);
+				out.writeInt(verticesOffset);
+				out.writeInt(edgesOffset);
+				out.writeInt(symLocsOffset);
+				out.writeInt(fingerprintsOffset);
+				for (int i = out.size(); i < HEADER_SIZE; i++)
+					out.writeByte(0);
+			
+				versionSection.writeTo(out);
+				macSection.writeTo(out);
+			
+				for (int i = 0; i < vertices.size(); i++)
+				{
+					Vertex v = vertices.get(i);
+					AbsoluteLocation loc = v.getLocation().getAbsoluteLocation();
+					SymbolicLocation symLoc = v.getLocation().getSymbolicLocation();
+					out.writeInt(v.getId());
+					out.writeDouble(loc.getLatitude());
+					out.writeDouble(loc.getLongitude());
+					out.writeDouble(loc.getAltitude());
+					out.writeFloat(projection != null ? (float)projection.getX(loc.getLongitude()) : 0);
+					out.writeFloat(projection != null ? (float)projection.getY(loc.getLatitude()) : 0);
+					out.writeInt(symLoc == null ? -1 : symLocIndexes.get(symLoc));
+					out.writeInt(fingerprintOffsets[i]);
+					out.writeInt(consolidated.get(i) != null ? consolidated.get(i).size() : v.getNumFingerprints());
+				}
+			
+				for (Edge e : edges)
+				{
+					out.writeInt(e.getId());
+					out.writeInt(e.getOrigin().getId());
+					out.writeInt(e.getDestination().getId());
+					int flags = (e.isDirectional() ? EDGE_DIRECTIONAL : 0) | (e.isElevator() ? EDGE_ELEVATOR : 0) | (e.isStair() ? EDGE_STAIR : 0);
+					out.writeByte(flags);
+					out.write(new byte[3]); //padding
+				}
+			
+				symLocSection.writeTo(out);
+			
+				for (int i = 0; i < vertices.size(); i++)
+				{
+					Vertex v = vertices.get(i);
+					for (WifiMeasurement meas : consolidated.get(i) != null ? consolidated.get(i) : v.getFingerPrints())
+					{
+						int numEntries = 0;
+						for (Map.Entry<String, Hashtable<Integer, Integer>> hist : meas.getHistograms().entrySet())
+						{
+							if (selectedMacs == null || selectedMacs.contains(hist.getKey()))
+								numEntries += hist.getValue().size();
+						}
+						out.writeInt(numEntries);
+						for (Map.Entry<String, Hashtable<Integer, Integer>> hist : meas.getHistograms().entrySet())
+						{
+							if (selectedMacs != null && !selectedMacs.contains(hist.getKey()))
+								continue;
+							int macIndex = macIndexes.get(hist.getKey());
+							for (Map.Entry<Integer, Integer> entry : hist.getValue().entrySet())
+							{
+								out.writeInt(macIndex);
+								out.writeInt(entry.getKey());
+								out.writeInt(entry.getValue());
+							}
+						}
+					}
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		
+			//The rename replaces the file atomically (on Android) - the delete is a fallback for file systems where it does not
+			if (!tmpFile.renameTo(file))
+			{
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Could not rename " + tmpFile);
+			}
+			isWritten = true;
+		}
+		finally
+		{
+			if (!isWritten)
+				tmpFile.delete();
+		}
+	}
+	
+	//Strings are stored as a length-prefixed UTF-8 byte sequence (a length of -1 denotes null)
+	private static String readString(ByteBuffer buf) throws IOException
+	{
+		int length = buf.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	//A section which is written to memory first, as its size is needed for the header
+	private static class ByteArrayDataOutput
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		
+		void writeString(String value) throws IOException
+		{
+			if (value == null)
+			{
+				out.writeInt(-1);
+				return;
+			}
+			byte[] utf8 = value.getBytes("UTF-8");
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+		
+		int size()
+		{
+			return out.size();
+		}
+		
+		void writeTo(DataOutputStream target) throws IOException
+		{
+			out.flush();
+			bytes.writeTo(target);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.smartcampus.baselogic.DistanceMeasurements;
+
+/**
+ * Fetches the radio maps of the buildings the user is most likely to enter next into the disk cache (cf. RadioMapFile), 
+ * so entering one of them does not wait for a (multi-megabyte) download. 
+ * - The buildings are ranked by the number of APs they share with the visible APs and then by their distance to the last fix. 
+ *   The first numBuildings buildings are prefetched. 
+ * - A cached radio map younger than maxAge is not fetched again. 
+ * - The cache is kept within storageBudget bytes: The radio maps of the lowest ranked buildings are evicted first 
+ *   (and those of unknown buildings before them). No more radio maps are fetched once the budget is used by higher ranked buildings. 
+ * The prefetcher does no scheduling of its own - the caller decides when prefetching is cheap (e.g., while charging). 
+ */
+public class RadioMapPrefetcher {
+	
+	/**
+	 * Fetches the radio map of a building and writes it to the cache file (cf. RadioMapFile.write()). 
+	 * @return false if the building was skipped, e.g., because it is being loaded already
+	 */
+	public interface Fetcher
+	{
+		boolean fetch(int buildingId, File file) throws IOException;
+	}
+	
+	private static final String CACHE_FILE_PREFIX = "radiomap_";
+	private static final String CACHE_FILE_SUFFIX = ".bin";
+	
+	private final File mCacheDir;
+	private final Fetcher mFetcher;
+	private final int mNumBuildings;
+	private final long mStorageBudget;
+	private final long mMaxAge;
+	
+	//metrics
+	private int mNumRuns, mNumFetched, mNumFresh, mNumSkipped, mNumFailed, mNumEvicted;
+	
+	/**
+	 * @param cacheDir The directory of the cached radio maps
+	 * @param fetcher Fetches a radio map into the cache
+	 * @param numBuildings The number of (nearest) buildings to prefetch
+	 * @param storageBudget The maximum size (in bytes) of the cached radio maps
+	 * @param maxAge A cached radio map older than this (in ms) is fetched again
+	 */
+	public RadioMapPrefetcher(File cacheDir, Fetcher fetcher, int numBuildings, long storageBudget, long maxAge)
+	{
+		if (numBuildings < 1)
+			throw new IllegalArgumentException("numBuildings must be positive");
+		this.mCacheDir = cacheDir;
+		this.mFetcher = fetcher;
+		this.mNumBuildings = numBuildings;
+		this.mStorageBudget = storageBudget;
+		this.mMaxAge = maxAge;
+	}
+	
+	/**
+	 * The file that caches the radio map of a building
+	 */
+	public static File getCacheFile(File cacheDir, int buildingId)
+	{
+		return new File(cacheDir, CACHE_FILE_PREFIX + buildingId + CACHE_FILE_SUFFIX);
+	}
+	
+	/**
+	 * Ranks the buildings by the number of APs they share with the visible APs (most first) and then by their distance to the fix (nearest first). 
+	 * @param buildings The (shallow) buildings
+	 * @param latitude The latitude of the last fix (or NaN if there is none)
+	 * @param longitude The longitude of the last fix (or NaN if there is none)
+	 * @param visibleMacs The MACs of the visible APs (may be null)
+	 */
+	public static List<Building> rank(Iterable<Building> buildings, double latitude, double longitude, Collection<String> visibleMacs)
+	{
+		final Map<Building, Integer> commonAPs = new HashMap<Building, Integer>();
+		final Map<Building, Double> distances = new HashMap<Building, Double>();
+		List<Building> result = new ArrayList<Building>();
+		for (Building b : buildings)
+		{
+			int numCommon = 0;
+			if (visibleMacs != null && b.getPermissableAPs() != null)
+			{
+				for (String mac : b.getPermissableAPs())
+				{
+					if (visibleMacs.contains(mac))
+						numCommon++;
+				}
+			}
+			double distance = Double.isNaN(latitude) || Double.isNaN(longitude) 
+				? Double.POSITIVE_INFINITY 
+				: DistanceMeasurements.CalculateMoveddistanceInMeters(latitude, longitude, b.getLatitude(), b.getLongitude());
+			commonAPs.put(b, numCommon);
+			distances.put(b, distance);
+			result.add(b);
+		}
+		Collections.sort(result, new Comparator<Building>() {
+			public int compare(Building a, Building b) {
+				int c = commonAPs.get(b).compareTo(commonAPs.get(a));
+				return c != 0 ? c : distances.get(a).compareTo(distances.get(b));
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Prefetches the radio maps of the highest ranked buildings (cf. rank()) and enforces the storage budget. 
+	 * Runs on the calling thread - one run at a time. 
+	 * @return The number of radio maps that were fetched
+	 */
+	public synchronized int prefetch(Iterable<Building> buildings, double latitude, double longitude, Collection<String> visibleMacs)
+	{
+		mNumRuns++;
+		List<Building> ranked = rank(buildings, latitude, longitude, visibleMacs);
+		evict(ranked);
+		
+		int numFetched = 0;
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < ranked.size() && i < mNumBuildings; i++)
+		{
+			//The budget is used by higher ranked buildings
+			if (getCacheSize(ranked, i) >= mStorageBudget)
+				break;
+			int buildingId = ranked.get(i).getBuildingID();
+			File file = getCacheFile(mCacheDir, buildingId);
+			if (isFresh(file, buildingId, now))
+			{
+				mNumFresh++;
+				continue;
+			}
+			try
+			{
+				if (mFetcher.fetch(buildingId, file))
+				{
+					mNumFetched++;
+					numFetched++;
+				}
+				else
+				{
+					mNumSkipped++;
+				}
+			}
+			catch (IOException ex)
+			{
+				//E.g., offline - the remaining buildings would most likely fail too
+				mNumFailed++;
+				break;
+			}
+			//A radio map may be larger than the budget left - then it is the one that is evicted
+			evict(ranked);
+			if (!file.exists())
+				break;
+		}
+		return numFetched;
+	}
+	
+	private boolean isFresh(File file, int buildingId, long now)
+	{
+		if (!file.exists())
+			return false;
+		try
+		{
+			RadioMapFile radioMap = RadioMapFile.open(file);
+			return radioMap.getBuildingId() == buildingId && now - radioMap.getTimestamp() < mMaxAge;
+		}
+		catch (IOException ex)
+		{
+			//E.g., a file of an older format version
+			return false;
+		}
+	}
+	
+	//Deletes the cached radio maps of the lowest ranked buildings until the cache is within the budget
+	private void evict(List<Building> ranked)
+	{
+		File[] files = getCacheFiles();
+		long size = 0;
+		for (File f : files)
+			size += f.length();
+		if (size <= mStorageBudget)
+			return;
+		
+		//Unknown buildings (e.g., no longer on the server) first, then the lowest ranked
+		final Map<String, Integer> ranks = new HashMap<String, Integer>();
+		for (int i = 0; i < ranked.size(); i++)
+			ranks.put(getCacheFile(mCacheDir, ranked.get(i).getBuildingID()).getName(), i);
+		List<File> victims = new ArrayList<File>();
+		Collections.addAll(victims, files);
+		Collections.sort(victims, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return getRank(b) - getRank(a);
+			}
+			private int getRank(File f) {
+				Integer rank = ranks.get(f.getName());
+				return rank == null ? Integer.MAX_VALUE : rank;
+			}
+		});
+		for (File f : victims)
+		{
+			if (size <= mStorageBudget)
+				break;
+			long length = f.length();
+			if (f.delete())
+			{
+				size -= length;
+				mNumEvicted++;
+			}
+		}
+	}
+	
+	private File[] getCacheFiles()
+	{
+		File[] files = mCacheDir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith(CACHE_FILE_PREFIX) && f.getName().endsWith(CACHE_FILE_SUFFIX);
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+	
+	//The size of the cached radio maps of the n highest ranked buildings
+	private long getCacheSize(List<Building> ranked, int n)
+	{
+		long size = 0;
+		for (int i = 0; i < n; i++)
+			size += getCacheFile(mCacheDir, ranked.get(i).getBuildingID()).length();
+		return size;
+	}
+	
+	/**
+	 * The total size (in bytes) of the cached radio maps
+	 */
+	public long getCacheSize()
+	{
+		long size = 0;
+		for (File f : getCacheFiles())
+			size += f.length();
+		return size;
+	}
+	
+	public synchronized int getNumFetched()
+	{
+		return mNumFetched;
+	}
+	
+	public synchronized int getNumEvicted()
+	{
+		return mNumEvicted;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "RadioMapPrefetcher: " + mNumRuns + " runs, " + mNumFetched + " fetched, " + mNumFresh + " fresh, " 
+			+ mNumSkipped + " skipped, " + mNumFailed + " failed, " + mNumEvicted + " evicted, " + getCacheSize() + " of " + mStorageBudget + " bytes";
+	}
+}
@@ -0,0 +1,275 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Holds the radio maps that have been loaded (downloaded or restored from the disk cache) and coordinates the loading: 
+ * - At most one load per building is in flight. A caller that asks for a building that is being loaded awaits the same 
+ *   load (future) rather than starting another (multi-megabyte) download. 
+ * - The load runs on the thread of the first caller. When it completes, the radio map is published 
+ *   atomically, i.e., a caller either joins the load or gets the finished radio map - never a partial one. 
+ * - A loaded radio map is served from memory until it is older than maxAge. Then it is loaded anew. 
+ * - At most maxRadioMaps radio maps are kept. The least recently used one is evicted when the limit is exceeded. 
+ * A failed load is not remembered: The next request starts a new load. 
+ */
+public class RadioMapRepository {
+	
+	/**
+	 * Loads the radio map of a building, e.g., from the disk cache or the server.  
+	 * The returned building holds the graph and its version. 
+	 */
+	public interface Loader
+	{
+		Building load(int buildingId) throws IOException;
+	}
+	
+	//A loaded radio map and when it was loaded
+	private static class Entry
+	{
+		final Building radioMap;
+		final long loadedAt;
+		
+		Entry(Building radioMap, long loadedAt)
+		{
+			this.radioMap = radioMap;
+			this.loadedAt = loadedAt;
+		}
+	}
+	
+	private final Loader mLoader;
+	private final long mMaxAge;
+	private final int mMaxRadioMaps;
+	//In access order - the eldest entry is the least recently used
+	private final LinkedHashMap<Integer, Entry> mLoaded = new LinkedHashMap<Integer, Entry>(4, 0.75f, true);
+	private final HashMap<Integer, FutureTask<Building>> mInFlight = new HashMap<Integer, FutureTask<Building>>();
+	
+	//metrics
+	private long mNumHits, mNumMisses, mNumCoalesced, mNumFailures;
+	
+	/**
+	 * @param loader Loads the radio maps
+	 * @param maxAge A loaded radio map is reloaded when it is older than this (in milliseconds)
+	 * @param maxRadioMaps The maximum number of radio maps that are kept in memory
+	 */
+	public RadioMapRepository(Loader loader, long maxAge, int maxRadioMaps)
+	{
+		if (maxRadioMaps < 1)
+			throw new IllegalArgumentException("maxRadioMaps must be positive");
+		this.mLoader = loader;
+		this.mMaxAge = maxAge;
+		this.mMaxRadioMaps = maxRadioMaps;
+	}
+	
+	/**
+	 * Returns the radio map of a building. If it has not been loaded (recently), it is loaded - 
+	 * or, if another thread is loading it already, we wait for that load to complete. 
+	 * @return The building holding the graph and its version
+	 * @throws IOException If the load fails (all callers awaiting that load get the exception)
+	 */
+	public Building get(final int buildingId) throws IOException
+	{
+		FutureTask<Building> task;
+		boolean isLoader = false;
+		synchronized (this)
+		{
+			Entry entry = getFreshEntry(buildingId);
+			if (entry != null)
+			{
+				mNumHits++;
+				return entry.radioMap;
+			}
+			task = mInFlight.get(buildingId);
+			if (task != null)
+			{
+				mNumCoalesced++;
+			}
+			else
+			{
+				mNumMisses++;
+				task = new FutureTask<Building>(new Callable<Building>() {
+					public Building call() throws IOException {
+						return load(buildingId);
+					}
+				});
+				mInFlight.put(buildingId, task);
+				isLoader = true;
+			}
+		}
+		
+		if (isLoader)
+			task.run();
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the radio map of building " + buildingId);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+	
+	private Building load(int buildingId) throws IOException
+	{
+		Building radioMap = null;
+		try
+		{
+			radioMap = mLoader.load(buildingId);
+			if (radioMap == null)
+				throw new IOException("The radio map of building " + buildingId + " could not be loaded");
+			return radioMap;
+		}
+		finally
+		{
+			//Publish (or forget) the load in one step, so a new request either joins it or finds the radio map
+			synchronized (this)
+			{
+				mInFlight.remove(buildingId);
+				if (radioMap != null)
+				{
+					mLoaded.put(buildingId, new Entry(radioMap, System.currentTimeMillis()));
+					Iterator<Entry> lru = mLoaded.values().iterator();
+					while (mLoaded.size() > mMaxRadioMaps)
+					{
+						lru.next();
+						lru.remove();
+					}
+				}
+				else
+				{
+					mNumFailures++;
+				}
+			}
+		}
+	}
+	
+	//Precondition: synchronized
+	private Entry getFreshEntry(int buildingId)
+	{
+		Entry entry = mLoaded.get(buildingId);
+		if (entry == null)
+			return null;
+		if (System.currentTimeMillis() - entry.loadedAt > mMaxAge)
+		{
+			mLoaded.remove(buildingId);
+			return null;
+		}
+		return entry;
+	}
+	
+	/**
+	 * @return true, if the radio map of the building has been loaded (and is not too old), i.e., get() will not load it
+	 */
+	public synchronized boolean contains(int buildingId)
+	{
+		return getFreshEntry(buildingId) != null;
+	}
+	
+	/**
+	 * @return true, if the radio map of the building is being loaded
+	 */
+	public synchronized boolean isLoading(int buildingId)
+	{
+		return mInFlight.containsKey(buildingId);
+	}
+	
+	/**
+	 * Forgets the loaded radio map of a building (e.g., after it has been edited), so the next get() loads it anew. 
+	 * A load in flight is not affected. 
+	 */
+	public synchronized void invalidate(int buildingId)
+	{
+		mLoaded.remove(buildingId);
+	}
+	
+	/**
+	 * @return The number of requests that were served from memory
+	 */
+	public synchronized long getNumHits()
+	{
+		return mNumHits;
+	}
+	
+	/**
+	 * @return The number of requests that started a load
+	 */
+	public synchronized long getNumMisses()
+	{
+		return mNumMisses;
+	}
+	
+	/**
+	 * @return The number of requests that awaited a load started by another request
+	 */
+	public synchronized long getNumCoalesced()
+	{
+		return mNumCoalesced;
+	}
+	
+	/**
+	 * @return The number of loads that failed
+	 */
+	public synchronized long getNumFailures()
+	{
+		return mNumFailures;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder("RadioMapRepository: loaded=[");
+		for (Map.Entry<Integer, Entry> entry : mLoaded.entrySet())
+		{
+			if (sb.charAt(sb.length() - 1) != '[')
+				sb.append(", ");
+			sb.append(entry.getKey());
+		}
+		return sb.append("], hits=").append(mNumHits).append(", misses=").append(mNumMisses)
+				.append(", coalesced=").append(mNumCoalesced).append(", failures=").append(mNumFailures).toString();
+	}
+}
@@ -0,0 +1,314 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.ScanFilter;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * An immutable view of a loaded radio map: The building, its graph and what is derived from the graph up front 
+ * (the vertices, the vertices that have fingerprints - i.e., the positioning search space - and the MACs of the fingerprints). 
+ * A new radio map is published as a new snapshot (cf. LocationService.getCurrentRadioMap()) rather than by changing 
+ * the graph of the current building. Readers (positioning, routing, rendering) take the current snapshot once per 
+ * operation, so a refresh never affects an estimate (or a route) in progress - and no locks are needed. 
+ * NB: The graph is not copied, so it must not be changed once a snapshot of it has been taken. 
+ * If the fingerprints are loaded on demand (cf. FloorFingerprintCache), taking a snapshot does not load them. 
+ * The fingerprints of a floor are packed for scoring (cf. PackedFingerprints) when they are first searched (cf. getSearchSpace()). 
+ */
+public final class RadioMapSnapshot {
+	
+	private static final AtomicLong cLastVersion = new AtomicLong();
+	
+	private final long mVersion;
+	private final Building mBuilding;
+	private final IGraph mGraph;
+	private final String mRadioMapVersion;
+	private final List<Vertex> mVertices;
+	private final List<Vertex> mFingerprintedVertices;
+	private final SortedMap<Integer, List<Vertex>> mFingerprintedVerticesByFloor;
+	private final boolean mHasFingerprintsOnDemand;
+	private final boolean mExceedsFingerprintBudget;
+	private final Set<String> mMacs;
+	private final ScanFilter mScanFilter;
+	//The packed fingerprints of each floor - packed on first use
+	private final Map<Integer, PackedFingerprints> mPackedFingerprints = new HashMap<Integer, PackedFingerprints>();
+	
+	/**
+	 * The fingerprinted vertices of a range of floors. It is iterated as the vertices, 
+	 * while an algorithm that scores the packed fingerprints (cf. AlgorithmNNSS) gets them from getPackedFingerprints(). 
+	 */
+	public static final class SearchSpace implements Iterable<Vertex>
+	{
+		private final RadioMapSnapshot mSnapshot;
+		private final List<Vertex> mVertices;
+		private final SortedMap<Integer, List<Vertex>> mFloors;
+		
+		SearchSpace(RadioMapSnapshot snapshot, List<Vertex> vertices, SortedMap<Integer, List<Vertex>> floors)
+		{
+			this.mSnapshot = snapshot;
+			this.mVertices = vertices;
+			this.mFloors = floors;
+		}
+		
+		public Iterator<Vertex> iterator()
+		{
+			return mVertices.iterator();
+		}
+		
+		public List<Vertex> getVertices()
+		{
+			return mVertices;
+		}
+		
+		/**
+		 * @return The packed fingerprints of each floor of the search space (packing the floors that have not been packed yet)
+		 */
+		public List<PackedFingerprints> getPackedFingerprints()
+		{
+			List<PackedFingerprints> result = new ArrayList<PackedFingerprints>(mFloors.size());
+			for (Map.Entry<Integer, List<Vertex>> entry : mFloors.entrySet())
+				result.add(mSnapshot.getPackedFingerprints(entry.getKey(), entry.getValue()));
+			return result;
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the building's current graph
+	 */
+	public RadioMapSnapshot(Building building)
+	{
+		this(building, building.getGraphModel(), building.getRadioMapVersion());
+	}
+	
+	/**
+	 * @param building The building (name, floors, etc.)
+	 * @param graph The graph (radio map) of the building
+	 * @param radioMapVersion The server's version of the radio map (may be null)
+	 */
+	public RadioMapSnapshot(Building building, IGraph graph, String radioMapVersion)
+	{
+		if (building == null || graph == null)
+			throw new IllegalArgumentException("A radio map snapshot requires a building and a graph");
+		this.mVersion = cLastVersion.incrementAndGet();
+		this.mBuilding = building;
+		this.mGraph = graph;
+		this.mRadioMapVersion = radioMapVersion;
+		
+		ArrayList<Vertex> vertices = new ArrayList<Vertex>(graph.getVertices());
+		ArrayList<Vertex> fingerprintedVertices = new ArrayList<Vertex>();
+		TreeMap<Integer, List<Vertex>> byFloor = new TreeMap<Integer, List<Vertex>>();
+		HashSet<String> macs = new HashSet<String>();
+		FloorFingerprintCache onDemand = null;
+		for (Vertex v : vertices)
+		{
+			if (v.getNumFingerprints() == 0)
+				continue;
+			fingerprintedVertices.add(v);
+			int floor = (int)v.getLocation().getAbsoluteLocation().getAltitude();
+			List<Vertex> floorVertices = byFloor.get(floor);
+			if (floorVertices == null)
+			{
+				floorVertices = new ArrayList<Vertex>();
+				byFloor.put(floor, floorVertices);
+			}
+			floorVertices.add(v);
+			
+			if (v.getFingerprintSource() instanceof FloorFingerprintCache)
+			{
+				onDemand = (FloorFingerprintCache)v.getFingerprintSource();
+				continue;
+			}
+			for (WifiMeasurement meas : v.getFingerPrints())
+				macs.addAll(meas.getMACs());
+		}
+		if (onDemand != null)
+		{
+			macs.addAll(onDemand.getMacs());
+			//Floor by floor, so a pass over the vertices loads each floor once
+			fingerprintedVertices.clear();
+			for (List<Vertex> floorVertices : byFloor.values())
+				fingerprintedVertices.addAll(floorVertices);
+		}
+		fingerprintedVertices.trimToSize();
+		for (Map.Entry<Integer, List<Vertex>> entry : byFloor.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		this.mVertices = Collections.unmodifiableList(vertices);
+		this.mFingerprintedVertices = Collections.unmodifiableList(fingerprintedVertices);
+		this.mFingerprintedVerticesByFloor = Collections.unmodifiableSortedMap(byFloor);
+		this.mHasFingerprintsOnDemand = onDemand != null;
+		this.mExceedsFingerprintBudget = onDemand != null && !onDemand.fitsInBudget();
+		this.mMacs = Collections.unmodifiableSet(macs);
+		
+		//The APs of the building that have no fingerprints yet are kept as well
+		HashSet<String> knownMacs = new HashSet<String>(macs);
+		if (building.getPermissableAPs() != null)
+			knownMacs.addAll(building.getPermissableAPs());
+		this.mScanFilter = new ScanFilter(knownMacs);
+	}
+	
+	/**
+	 * @return The (process-wide) version of the snapshot. A snapshot that is taken later has a higher version. 
+	 */
+	public long getVersion()
+	{
+		return mVersion;
+	}
+	
+	public Building getBuilding()
+	{
+		return mBuilding;
+	}
+	
+	public IGraph getGraph()
+	{
+		return mGraph;
+	}
+	
+	/**
+	 * @return The server's version (ETag) of the radio map, or null
+	 */
+	public String getRadioMapVersion()
+	{
+		return mRadioMapVersion;
+	}
+	
+	/**
+	 * @return All vertices of the graph
+	 */
+	public List<Vertex> getVertices()
+	{
+		return mVertices;
+	}
+	
+	/**
+	 * @return The vertices that have at least one fingerprint, i.e., the vertices that can be estimated
+	 */
+	public List<Vertex> getFingerprintedVertices()
+	{
+		return mFingerprintedVertices;
+	}
+	
+	/**
+	 * @return The vertices that have at least one fingerprint on the floors from minFloor to maxFloor (both inclusive)
+	 */
+	public List<Vertex> getFingerprintedVertices(int minFloor, int maxFloor)
+	{
+		List<Vertex> result = new ArrayList<Vertex>();
+		for (List<Vertex> floorVertices : mFingerprintedVerticesByFloor.subMap(minFloor, maxFloor + 1).values())
+			result.addAll(floorVertices);
+		return result;
+	}
+	
+	/**
+	 * @return All fingerprinted vertices as a search space
+	 */
+	public SearchSpace getSearchSpace()
+	{
+		return new SearchSpace(this, mFingerprintedVertices, mFingerprintedVerticesByFloor);
+	}
+	
+	/**
+	 * @return The fingerprinted vertices on the floors from minFloor to maxFloor (both inclusive) as a search space
+	 */
+	public SearchSpace getSearchSpace(int minFloor, int maxFloor)
+	{
+		return new SearchSpace(this, getFingerprintedVertices(minFloor, maxFloor), mFingerprintedVerticesByFloor.subMap(minFloor, maxFloor + 1));
+	}
+	
+	private PackedFingerprints getPackedFingerprints(int floor, List<Vertex> floorVertices)
+	{
+		synchronized (mPackedFingerprints)
+		{
+			PackedFingerprints result = mPackedFingerprints.get(floor);
+			if (result == null)
+			{
+				result = new PackedFingerprints(floorVertices);
+				mPackedFingerprints.put(floor, result);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * @return True if the fingerprints are loaded per floor when they are first needed (cf. FloorFingerprintCache)
+	 */
+	public boolean hasFingerprintsOnDemand()
+	{
+		return mHasFingerprintsOnDemand;
+	}
+	
+	/**
+	 * @return True if the fingerprints of all floors do not fit in the budget of the FloorFingerprintCache. 
+	 * Then searching all floors would load (and evict) floors on every estimate, so it pays to restrict the search to a few floors. 
+	 */
+	public boolean exceedsFingerprintBudget()
+	{
+		return mExceedsFingerprintBudget;
+	}
+	
+	/**
+	 * @return The MACs (access points) that occur in the fingerprints
+	 */
+	public Set<String> getMacs()
+	{
+		return mMacs;
+	}
+	
+	/**
+	 * @return Accepts the scan results of the APs of the building (the MACs of the fingerprints and the permissable APs)
+	 */
+	public ScanFilter getScanFilter()
+	{
+		return mScanFilter;
+	}
+	
+	public Vertex getVertexById(int vertexId)
+	{
+		return mGraph.getVertexById(vertexId);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "RadioMapSnapshot " + mVersion + ": building " + mBuilding.getBuildingID() + " (" + mRadioMapVersion + "), " 
+				+ mVertices.size() + " vertices, " + mFingerprintedVertices.size() + " fingerprinted, " + mMacs.size() + " macs";
+	}
+}
@@ -32,8 +32,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.smartcampus.baselogic.DistanceMeasurements;
+import com.smartcampus.baselogic.LocalProjection;
 import com.smartcampus.indoormodel.AbsoluteLocation;
 
 public class DictionaryGraph implements IGraph {
@@ -42,12 +43,38 @@ public class DictionaryGraph implements IGraph {
 	protected HashMap<Integer, Vertex> vertices = new HashMap<Integer, Vertex>();
     //data structure to get vertices by floor
 	protected HashMap<Integer, List<Vertex>> verticesByFloor = new HashMap<Integer, List<Vertex>>();
+	//spatial index of the vertices on each floor (for closest-vertex and radius queries)
+	protected HashMap<Integer, VertexGrid> gridsByFloor = new HashMap<Integer, VertexGrid>();
+	//the local planar frame the vertices are projected into (cf. Vertex.project()). 
+	//Anchored at the first vertex with a location, unless the building supplies one (cf. setProjection())
+	protected LocalProjection projection;
 	
 	protected List<Edge> edges = new ArrayList<Edge>();
+	//data structure to look up edges by their (originId, destinationId) key, cf. Edge.createKey()
+	protected HashMap<Long, Edge> edgesByKey = new HashMap<Long, Edge>();
     
     protected List<Vertex> starcaseVertices = new ArrayList<Vertex>();
     protected List<Vertex> elevatorVertices = new ArrayList<Vertex>();
+    
+    //notified of edge and vertex removals and edge additions (cf. IGraph.EditListener)
+    protected List<EditListener> editListeners = new CopyOnWriteArrayList<EditListener>();
 
+    public DictionaryGraph()
+    {
+    	
+    }
+    
+    /**
+     * Creates a graph whose lookup structures are pre-sized for the expected number of vertices and edges
+     * (e.g., when loading a radio map where the sizes are known in advance). 
+     */
+    public DictionaryGraph(int expectedNumVertices, int expectedNumEdges)
+    {
+    	vertices = new HashMap<Integer, Vertex>(expectedNumVertices * 4 / 3 + 1);
+    	edges = new ArrayList<Edge>(expectedNumEdges);
+    	edgesByKey = new HashMap<Long, Edge>(expectedNumEdges * 4 / 3 + 1);
+    }
+    
     @Override
 	public Edge addDirectionalEdge(Edge e) {
 		Vertex origin = e.getOrigin();
@@ -62,8 +89,8 @@ public class DictionaryGraph implements IGraph {
     	if (!vertices.containsKey(destination.getId()))
     		vertices.put(destination.getId(), destination);
     	
-    	if (!edges.contains(e))
-    		edges.add(e);
+    	addToEdges(e);
+    	fireEdgeChanged(origin, destination);
     	
     	return e;
 	}
@@ -75,6 +102,33 @@ public class DictionaryGraph implements IGraph {
     	return addDirectionalEdge(e);
     }
     
+    //Adds the edge to the edge structures, unless an equal edge is already present
+    protected boolean addToEdges(Edge e)
+    {
+    	Long key = e.getKey();
+    	if (edgesByKey.containsKey(key))
+    		return false;
+    	edgesByKey.put(key, e);
+    	return edges.add(e);
+    }
+    
+    public void addEditListener(EditListener listener)
+    {
+    	editListeners.add(listener);
+    }
+    
+    public void removeEditListener(EditListener listener)
+    {
+    	editListeners.remove(listener);
+    }
+    
+    //Notifies the listeners after an edge between v1 and v2 has been added or removed
+    protected void fireEdgeChanged(Vertex v1, Vertex v2)
+    {
+    	for (EditListener listener : editListeners)
+    		listener.edgeChanged(v1, v2);
+    }
+    
     public boolean addElevatorVertex(Vertex v)
     {
     	return elevatorVertices.add(v);
@@ -101,8 +155,8 @@ public class DictionaryGraph implements IGraph {
     	if (!vertices.containsKey(destination.getId()))
     		vertices.put(destination.getId(), destination);
     	
-    	if (!edges.contains(e))
-    		edges.add(e);
+    	addToEdges(e);
+    	fireEdgeChanged(origin, destination);
     	
     	return e;
 	}
@@ -133,6 +187,7 @@ public class DictionaryGraph implements IGraph {
     			verticesByFloor.put(floor, new ArrayList<Vertex>());
     		}
     		verticesByFloor.get(floor).add(v);
+    		getGrid(floor, v.getLocation().getAbsoluteLocation()).add(v);
     	}
     	return true;
     }
@@ -152,7 +207,7 @@ public class DictionaryGraph implements IGraph {
     
     public boolean ContainsEdge(Edge e)
     {
-    	return edges.contains(e);
+    	return edgesByKey.containsKey(e.getKey());
     }
     
     public boolean ContainsVertex(Vertex v)
@@ -182,33 +237,65 @@ public class DictionaryGraph implements IGraph {
     }
     
     public Vertex getClosestVertex(AbsoluteLocation userAbsLoc) {
-    	/*
-    	 * this may not be the best way of determining
-    	 * the vertex closest to the geopoint - a better solution
-    	 * could be to arrange the vertices in a different data structure
-    	 * (currently it is a list)
-    	 */
+    	//The vertices of each floor are arranged in a grid, so we only inspect the cells around the location
+    	VertexGrid grid = gridsByFloor.get((int)userAbsLoc.getAltitude());
+    	if (grid == null)
+    		return null;
+    	return grid.getClosest(userAbsLoc.getLatitude(), userAbsLoc.getLongitude());
+    }
+    
+    public List<Vertex> getClosestVertices(AbsoluteLocation userAbsLoc, int k) {
+    	VertexGrid grid = gridsByFloor.get((int)userAbsLoc.getAltitude());
+    	if (grid == null)
+    		return new ArrayList<Vertex>();
+    	return grid.getClosest(userAbsLoc.getLatitude(), userAbsLoc.getLongitude(), k);
+    }
+    
+    public List<Vertex> getVerticesWithinRadius(AbsoluteLocation center, double radiusInMeters) {
+    	VertexGrid grid = gridsByFloor.get((int)center.getAltitude());
+    	if (grid == null)
+    		return new ArrayList<Vertex>();
+    	return grid.getWithinRadius(center.getLatitude(), center.getLongitude(), radiusInMeters);
+    }
+    
+    public LocalProjection getProjection()
+    {
+    	return projection;
+    }
+    
+    /**
+     * Re-projects all vertices into the given frame (and rebuilds the spatial indexes accordingly). 
+     * Edge lengths are left as is, as they do not depend on the choice of frame within a building. 
+     * Nothing is changed if the vertices are projected into an equal frame already, i.e., a graph is only projected once. 
+     */
+    public void setProjection(LocalProjection value)
+    {
+    	if (value == null || value.equals(projection))
+    		return;
     	
-    	int floor = (int)userAbsLoc.getAltitude();
-    	double dist, bestDist = Double.MAX_VALUE;
-    	Vertex closestVertex = null;
-    	for(Vertex v : this.getVertices(floor)) {
-    		AbsoluteLocation loc = v.getLocation().getAbsoluteLocation();
-    		dist = getDistance(loc.getLatitude() * 1E6, 
-    						   userAbsLoc.getLatitude() * 1E6, 
-    						   loc.getLongitude() * 1E6, 
-    						   userAbsLoc.getLongitude() * 1E6);
-    		
-    		if(dist < bestDist) {
-    			bestDist = dist;
-    			closestVertex = v;
-    		}
+    	projection = value;
+    	gridsByFloor.clear();
+    	for (Vertex v : vertices.values())
+    	{
+    		if (v.getLocation() == null || v.getLocation().getAbsoluteLocation() == null)
+    			continue;
+    		int floor = (int)v.getLocation().getAbsoluteLocation().getAltitude();
+    		getGrid(floor, null).add(v);
     	}
-    	return closestVertex;
     }
     
-    private double getDistance(double x1, double x2, double y1, double y2) {
-    	return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    //Gets (or creates) the spatial index of the given floor
+    private VertexGrid getGrid(int floor, AbsoluteLocation anchor)
+    {
+    	if (projection == null)
+    		projection = new LocalProjection(anchor.getLatitude(), anchor.getLongitude());
+    	VertexGrid grid = gridsByFloor.get(floor);
+    	if (grid == null)
+    	{
+    		grid = new VertexGrid(projection);
+    		gridsByFloor.put(floor, grid);
+    	}
+    	return grid;
     }
     
     public List<Edge> getEdges()
@@ -296,21 +383,17 @@ public class DictionaryGraph implements IGraph {
     public void InsertRadiusVertices(Vertex v, int radius)
     {
 		AbsoluteLocation sourceLocation = v.getLocation().getAbsoluteLocation(); 
-		AbsoluteLocation targetLocation;
-		double dist;
-		for (Vertex w : vertices.values())
-        {
-        	if (v.equals(w))
-        		continue;
-        	
-        	targetLocation = w.getLocation().getAbsoluteLocation(); 
-            dist = DistanceMeasurements.CalculateMoveddistanceInMeters(
-            		sourceLocation.getLatitude(), sourceLocation.getLongitude(),
-            		targetLocation.getLatitude(), targetLocation.getLongitude());
-            
-            if (dist <= radius)
-                v.addRadiusVertex((Vertex)w);
-        }
+		//The radius only considers the horizontal distance, so we query the grid of every floor
+		for (VertexGrid grid : gridsByFloor.values())
+		{
+			for (Vertex w : grid.getWithinRadius(sourceLocation.getLatitude(), sourceLocation.getLongitude(), radius))
+	        {
+	        	if (v.equals(w))
+	        		continue;
+	        	
+	            v.addRadiusVertex(w);
+	        }
+		}
     }
     
     public int numEdges()
@@ -348,12 +431,15 @@ public class DictionaryGraph implements IGraph {
     
     public boolean removeDirectionalEdge(Vertex origin, Vertex destination)
     {
-    	Edge e = new Edge(origin, destination);    
-    	//Removes edge if present
+    	//Removes edge if present (from both endpoints, i.e., no short-circuit)
     	boolean sourceMod = 
-    		origin.removeOutEdge(destination) ||
+    		origin.removeOutEdge(destination) |
     		destination.removeInEdge(origin);
-    	return edges.remove(e) || sourceMod;  
+    	Edge e = edgesByKey.remove(Edge.createKey(origin.getId(), destination.getId()));
+    	boolean modified = (e != null && edges.remove(e)) || sourceMod;
+    	if (modified)
+    		fireEdgeChanged(origin, destination);
+    	return modified;
     }
     
     public boolean removeElevatorVertex(Vertex v)
@@ -376,7 +462,10 @@ public class DictionaryGraph implements IGraph {
 	public boolean removeVertex(Vertex v)
     {
     	for (Edge e : v.incidentEdges())
-    		edges.remove(e);
+    	{
+    		if (edgesByKey.remove(e.getKey()) != null)
+    			edges.remove(e);
+    	}
     		
     	//remove from <vertexId, vertex> structure
     	vertices.remove(v.getId());
@@ -389,7 +478,13 @@ public class DictionaryGraph implements IGraph {
     		{
     			verticesByFloor.get(floor).remove(v);
     		}
+    		if (gridsByFloor.containsKey(floor))
+    		{
+    			gridsByFloor.get(floor).remove(v);
+    		}
     	}
+    	for (EditListener listener : editListeners)
+    		listener.vertexRemoved(v);
     	return true;
     }
 }
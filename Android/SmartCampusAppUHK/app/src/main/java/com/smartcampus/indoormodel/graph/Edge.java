@@ -27,8 +27,6 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.smartcampus.indoormodel.graph;
 
-import com.smartcampus.baselogic.DistanceMeasurements;
-
 public class Edge
 {
     private int id;
@@ -45,12 +43,8 @@ public class Edge
 
     public Edge(Vertex origin, Vertex destination)
     {
-    	this(origin, destination,
-    		(int)DistanceMeasurements.CalculateMoveddistanceInMeters(
-    			origin.getLocation().getAbsoluteLocation().getLatitude(), 
-    			origin.getLocation().getAbsoluteLocation().getLongitude(),
-    			destination.getLocation().getAbsoluteLocation().getLatitude(),
-    			destination.getLocation().getAbsoluteLocation().getLongitude()));
+    	//planar distance if the vertices are projected (cf. Vertex.getDistance())
+    	this(origin, destination, (int)origin.getDistance(destination));
     }
     
     public Edge(Vertex origin, Vertex destination, int distance)
@@ -96,12 +90,29 @@ public class Edge
     	return origin;
     }
     
+    /**
+     * Packs an (originId, destinationId) pair into a single long.
+     * The key preserves direction, i.e., e(a, b) and e(b, a) have different keys.
+     */
+    public static long createKey(int originId, int destinationId)
+    {
+    	return ((long)originId << 32) | (destinationId & 0xFFFFFFFFL);
+    }
+    
+    //Cf. createKey(). Edges are equal iff their keys are equal. 
+    public long getKey()
+    {
+    	return createKey(origin.getId(), destination.getId());
+    }
+    
     @Override
 	public int hashCode()
 	{
-		//We use division to preserve the directional properties
+		//Consistent with equals() which compares the endpoints' ids.
+		//The multiplication preserves the directional properties
 		//That is, there is a difference between e(a, b) and e(b, a)
-		return this.origin.hashCode() / this.destination.hashCode(); 
+		long key = getKey();
+		return 31 * (int)(key >>> 32) + (int)key; 
 	}
     /**
 	 * @return the isDirectional
@@ -0,0 +1,230 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.smartcampus.indoormodel.graph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a DictionaryGraph in bulk, e.g., when a radio map is downloaded. 
+ * Compared to adding edges one at a time via IGraph.addDirectionalEdge() the builder
+ * - dedupes edges in O(1) using their packed (originId, destinationId) key (cf. Edge.createKey())
+ * - pre-sizes the vertices' adjacency lists
+ * - computes each edge length only once per undirectional edge (as a planar distance in the graph's frame)
+ * so loading a graph scales linearly with its size. 
+ */
+public class GraphBuilder {
+	
+	private DictionaryGraph mGraph;
+	
+	//The pending undirectional edges (the endpoints are resolved in build())
+	private int mNumPendingEdges;
+	private int[] mIds, mOriginIds, mDestinationIds;
+	private boolean[] mIsDirectional, mIsElevator, mIsStair;
+	
+	public GraphBuilder()
+	{
+		this(new DictionaryGraph(), 16);
+	}
+	
+	/**
+	 * @param expectedNumVertices Used to pre-size the graph
+	 * @param expectedNumEdges The expected number of undirectional edges (used to pre-size the graph)
+	 */
+	public GraphBuilder(int expectedNumVertices, int expectedNumEdges)
+	{
+		this(new DictionaryGraph(expectedNumVertices, 2 * expectedNumEdges), expectedNumEdges);
+	}
+	
+	/**
+	 * Creates a builder that adds to an existing graph
+	 */
+	public GraphBuilder(DictionaryGraph target, int expectedNumEdges)
+	{
+		mGraph = target;
+		int capacity = Math.max(expectedNumEdges, 1);
+		mIds = new int[capacity];
+		mOriginIds = new int[capacity];
+		mDestinationIds = new int[capacity];
+		mIsDirectional = new boolean[capacity];
+		mIsElevator = new boolean[capacity];
+		mIsStair = new boolean[capacity];
+	}
+	
+	public boolean addVertex(Vertex v)
+	{
+		return mGraph.addVertex(v);
+	}
+	
+	/**
+	 * Adds an undirectional edge between two vertices (which may not have been added yet). 
+	 * The edge becomes two directional edges (sharing the same id) when build() is called.  
+	 */
+	public void addUndirectionalEdge(int id, int originId, int destinationId, boolean isDirectional, boolean isElevator, boolean isStair)
+	{
+		if (mNumPendingEdges == mIds.length)
+			grow();
+		int i = mNumPendingEdges++;
+		mIds[i] = id;
+		mOriginIds[i] = originId;
+		mDestinationIds[i] = destinationId;
+		mIsDirectional[i] = isDirectional;
+		mIsElevator[i] = isElevator;
+		mIsStair[i] = isStair;
+	}
+	
+	/**
+	 * Resolves the pending edges and adds them to the graph. 
+	 * Edges whose endpoints are not present in the graph, or which are already present, are skipped. 
+	 * @return The graph
+	 */
+	public DictionaryGraph build()
+	{
+		int n = mNumPendingEdges;
+		Vertex[] origins = new Vertex[n];
+		Vertex[] destinations = new Vertex[n];
+		
+		//Resolve endpoints and count the edges of each vertex (so we can pre-size the adjacency lists)
+		HashMap<Vertex, int[]> degrees = new HashMap<Vertex, int[]>(mGraph.numVertices() * 4 / 3 + 1);
+		int numResolved = 0;
+		for (int i = 0; i < n; i++)
+		{
+			Vertex v1 = mGraph.getVertexById(mOriginIds[i]);
+			Vertex v2 = mGraph.getVertexById(mDestinationIds[i]);
+			//extra check - just in case
+			//Although there shouldn't get any inconsistencies between vertices and edges 
+			//as long as we don't add stuff manually in the db.
+			if (v1 == null || v2 == null)
+				continue;
+			
+			//compact the resolved edges to the front of the arrays
+			mIds[numResolved] = mIds[i];
+			mIsDirectional[numResolved] = mIsDirectional[i];
+			mIsElevator[numResolved] = mIsElevator[i];
+			mIsStair[numResolved] = mIsStair[i];
+			origins[numResolved] = v1;
+			destinations[numResolved] = v2;
+			numResolved++;
+			
+			incrementDegree(degrees, v1);
+			incrementDegree(degrees, v2);
+		}
+		
+		for (Map.Entry<Vertex, int[]> entry : degrees.entrySet())
+		{
+			int degree = entry.getValue()[0];
+			entry.getKey().ensureEdgeCapacity(degree, degree);
+		}
+		
+		
+		Set<Vertex> elevatorVertices = new HashSet<Vertex>(mGraph.getElevatorVertices());
+		Set<Vertex> staircaseVertices = new HashSet<Vertex>(mGraph.getStaircaseVertices());
+		for (int i = 0; i < numResolved; i++)
+		{
+			Vertex v1 = origins[i];
+			Vertex v2 = destinations[i];
+			//The vertices are projected into the graph's frame, so this is a planar distance
+			int distance = (int)v1.getDistance(v2);
+			
+			//make 2* directional edges
+			//We just use the same id for both directional edges
+			//as we don't care about directions
+			Edge e1 = createEdge(v1, v2, distance, i);
+			Edge e2 = createEdge(v2, v1, distance, i);
+			
+			if (mIsElevator[i])
+			{
+				if (elevatorVertices.add(v1))
+					mGraph.addElevatorVertex(v1);
+				if (elevatorVertices.add(v2))
+					mGraph.addElevatorVertex(v2);
+			}
+			if (mIsStair[i])
+			{
+				if (staircaseVertices.add(v1))
+					mGraph.addStaircaseVertex(v1);
+				if (staircaseVertices.add(v2))
+					mGraph.addStaircaseVertex(v2);
+			}
+			
+			//the graph dedupes on the packed key, so we only link edges that are new
+			boolean isNew = false;
+			if (mGraph.addToEdges(e1))
+			{
+				v1.appendOutEdge(e1);
+				v2.appendInEdge(e1);
+				isNew = true;
+			}
+			if (mGraph.addToEdges(e2))
+			{
+				v2.appendOutEdge(e2);
+				v1.appendInEdge(e2);
+				isNew = true;
+			}
+			if (isNew)
+				mGraph.fireEdgeChanged(v1, v2);
+		}
+		mNumPendingEdges = 0;
+		return mGraph;
+	}
+	
+	private Edge createEdge(Vertex origin, Vertex destination, int distance, int i)
+	{
+		Edge e = new Edge(origin, destination, distance);
+		e.setId(mIds[i]);
+		e.setElevator(mIsElevator[i]);
+		e.setStair(mIsStair[i]);
+		e.setDirectional(mIsDirectional[i]);
+		return e;
+	}
+	
+	private static void incrementDegree(Map<Vertex, int[]> degrees, Vertex v)
+	{
+		int[] degree = degrees.get(v);
+		if (degree == null)
+		{
+			degree = new int[1];
+			degrees.put(v, degree);
+		}
+		degree[0]++;
+	}
+	
+	private void grow()
+	{
+		int capacity = mIds.length * 2;
+		mIds = Arrays.copyOf(mIds, capacity);
+		mOriginIds = Arrays.copyOf(mOriginIds, capacity);
+		mDestinationIds = Arrays.copyOf(mDestinationIds, capacity);
+		mIsDirectional = Arrays.copyOf(mIsDirectional, capacity);
+		mIsElevator = Arrays.copyOf(mIsElevator, capacity);
+		mIsStair = Arrays.copyOf(mIsStair, capacity);
+	}
+}
@@ -30,10 +30,31 @@ package com.smartcampus.indoormodel.graph;
 import java.util.Collection;
 import java.util.List;
 
+import com.smartcampus.baselogic.LocalProjection;
 import com.smartcampus.indoormodel.AbsoluteLocation;
 
 public interface IGraph {
 	
+	/**
+	 * Is notified of the edits of a graph, e.g., to repair a structure derived from it (cf. NavigationEngine)
+	 */
+	public interface EditListener
+	{
+		/**
+		 * Called after an edge between v1 and v2 has been added or removed
+		 */
+		void edgeChanged(Vertex v1, Vertex v2);
+		
+		/**
+		 * Called after v has been removed
+		 */
+		void vertexRemoved(Vertex v);
+	}
+	
+	public void addEditListener(EditListener listener);
+	
+	public void removeEditListener(EditListener listener);
+	
     Edge addDirectionalEdge(Edge e);
     
     //We also add any missing vertices
@@ -65,6 +86,11 @@ public interface IGraph {
     
     public Vertex getClosestVertex(AbsoluteLocation userAbsLoc);
     
+    /**
+     * @return The (up to) k vertices on the location's floor closest to the location, sorted by ascending distance
+     */
+    public List<Vertex> getClosestVertices(AbsoluteLocation userAbsLoc, int k);
+    
     public List<Edge> getEdges();
     
     public List<Edge> getEdges(int floor);
@@ -83,6 +109,21 @@ public interface IGraph {
     
     public List<Vertex> getVertices(int floor);
     
+    /**
+     * @return The local planar frame the vertices are projected into (null if the graph is empty)
+     */
+    public LocalProjection getProjection();
+    
+    /**
+     * Projects the vertices into the given local planar frame, cf. Building.getProjection() - unless they are projected into an equal frame already 
+     */
+    public void setProjection(LocalProjection value);
+    
+    /**
+     * @return All vertices on the center's floor that are within radiusInMeters of the center
+     */
+    public List<Vertex> getVerticesWithinRadius(AbsoluteLocation center, double radiusInMeters);
+    
     public Iterable<Edge> incidentEdges(Vertex v);
     
     public int inDegree(Vertex v);
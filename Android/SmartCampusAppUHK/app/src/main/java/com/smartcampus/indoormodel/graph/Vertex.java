@@ -32,12 +32,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.smartcampus.baselogic.DistanceMeasurements;
+import com.smartcampus.baselogic.LocalProjection;
 import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.AggregateLocation;
 import com.smartcampus.wifi.WifiMeasurement;
 
 public class Vertex
 {    
+    /**
+     * Loads the fingerprints of a vertex on demand, cf. setFingerprintSource()
+     */
+    public interface FingerprintSource
+    {
+    	List<WifiMeasurement> getFingerprints(Vertex v);
+    }
+    
     private ArrayList<Edge> inEdges = new ArrayList<Edge>();
     private ArrayList<Edge> outEdges = new ArrayList<Edge>();
     
@@ -47,11 +57,18 @@ public class Vertex
     private AggregateLocation location = new AggregateLocation();
     //The fingerprints attached to the location
     private ArrayList<WifiMeasurement> fingerprints = new ArrayList<WifiMeasurement>();
+    //If set, the fingerprints are not held by the vertex but loaded on demand (and fingerprints is unused)
+    private FingerprintSource mFingerprintSource;
+    private int mNumSourceFingerprints;
     //Cf. "the graph paper" regarding the use of radius vertices
     private Set<Vertex> radiusVertices = new HashSet<Vertex>();
   
     private boolean mIsStairEndpoint;
     private boolean mIsElevatorEndpoint;
+    
+    //The location projected (once) into the local planar frame of the building, cf. project()
+    private LocalProjection mProjection;
+    private float mX, mY;
         
     public static int NEXT_ID = 0;
     public Vertex()
@@ -83,8 +100,12 @@ public class Vertex
     	this.inEdges = (ArrayList<Edge>) aVertex.getInEdges();
     	this.outEdges = (ArrayList<Edge>) aVertex.getOutEdges();
     	this.id = aVertex.getId();
-    	this.fingerprints = (ArrayList<WifiMeasurement>) aVertex.getFingerPrints();
+    	this.fingerprints = aVertex.fingerprints;
+    	this.mFingerprintSource = aVertex.mFingerprintSource;
+    	this.mNumSourceFingerprints = aVertex.mNumSourceFingerprints;
     	this.radiusVertices = (Set<Vertex>) aVertex.getRadiusVertices();
+    	if (aVertex.getProjection() != null)
+    		this.project(aVertex.getProjection());
     }
     
     public boolean addFingerprint(WifiMeasurement value)
@@ -94,6 +115,12 @@ public class Vertex
     	if (value == null)
     		return false;
     	
+    	//The vertex holds its fingerprints from now on
+    	if (mFingerprintSource != null)
+    	{
+    		fingerprints = new ArrayList<WifiMeasurement>(mFingerprintSource.getFingerprints(this));
+    		mFingerprintSource = null;
+    	}
     	return fingerprints.add(value);    	
     }
     
@@ -150,6 +177,34 @@ public class Vertex
     	return addOutEdge(e);
     }
     
+    //Used by the GraphBuilder which has already ensured that the edge is unique,
+    //so we skip the (linear) contains() check of addInEdge()
+    void appendInEdge(Edge e)
+    {
+    	if (e.isElevator())
+    		this.setIsElevatorEndpoint(true);
+    	if (e.isStair())
+    		this.setIsStairEndpoint(true);
+    	inEdges.add(e);
+    }
+    
+    //Cf. appendInEdge()
+    void appendOutEdge(Edge e)
+    {
+    	if (e.isElevator())
+    		this.setIsElevatorEndpoint(true);
+    	if (e.isStair())
+    		this.setIsStairEndpoint(true);
+    	outEdges.add(e);
+    }
+    
+    //Pre-sizes the adjacency lists when the number of edges is known in advance
+    void ensureEdgeCapacity(int numInEdges, int numOutEdges)
+    {
+    	inEdges.ensureCapacity(inEdges.size() + numInEdges);
+    	outEdges.ensureCapacity(outEdges.size() + numOutEdges);
+    }
+    
     public boolean addRadiusVertex(Vertex value)
     {
     	//a radius vertex must not be present in the adjacent vertices
@@ -215,9 +270,28 @@ public class Vertex
     //Wifi measurements taken at this particular location
     public List<WifiMeasurement> getFingerPrints()
     {
+    	if (mFingerprintSource != null)
+    		return mFingerprintSource.getFingerprints(this);
         return fingerprints;
     }
     
+    //The source of the fingerprints (null if they are held by the vertex)
+    public FingerprintSource getFingerprintSource()
+    {
+    	return mFingerprintSource;
+    }
+    
+    /**
+     * Lets the fingerprints be loaded on demand, e.g., per floor from a radio map file (cf. FloorFingerprintCache) 
+     * @param numFingerprints The number of fingerprints the source holds for this vertex
+     */
+    public void setFingerprintSource(FingerprintSource source, int numFingerprints)
+    {
+    	this.mFingerprintSource = source;
+    	this.mNumSourceFingerprints = numFingerprints;
+    	this.fingerprints = new ArrayList<WifiMeasurement>();
+    }
+    
     public int getId()
     {
     	return this.id;
@@ -233,8 +307,81 @@ public class Vertex
     	return location;
     }
     
+    /**
+     * @return The distance (in meters) to the other vertex. 
+     * If both vertices are projected into the same frame, this is a cheap planar distance. 
+     */
+    public double getDistance(Vertex other)
+    {
+    	if (mProjection != null && mProjection == other.mProjection)
+    		return Math.sqrt(getSquaredDistance(other));
+    	
+    	AbsoluteLocation loc = this.getLocation().getAbsoluteLocation();
+    	AbsoluteLocation otherLoc = other.getLocation().getAbsoluteLocation();
+    	return DistanceMeasurements.CalculateMoveddistanceInMeters(
+    			loc.getLatitude(), loc.getLongitude(),
+    			otherLoc.getLatitude(), otherLoc.getLongitude());
+    }
+    
+    /**
+     * @return The squared distance (in square meters) to the other vertex. Use this when comparing distances. 
+     */
+    public double getSquaredDistance(Vertex other)
+    {
+    	if (mProjection != null && mProjection == other.mProjection)
+    	{
+    		float dx = mX - other.mX;
+    		float dy = mY - other.mY;
+    		return dx * dx + dy * dy;
+    	}
+    	double dist = getDistance(other);
+    	return dist * dist;
+    }
+    
+    //The frame the vertex has been projected into (null if the vertex has not been projected)
+    public LocalProjection getProjection()
+    {
+    	return mProjection;
+    }
+    
+    //The easting (in meters) in the local frame, cf. project()
+    public float getX()
+    {
+    	return mX;
+    }
+    
+    //The northing (in meters) in the local frame, cf. project()
+    public float getY()
+    {
+    	return mY;
+    }
+    
+    /**
+     * Projects the vertex' location into the given local frame. 
+     * Must be called again if the absolute location of the vertex changes. 
+     */
+    public void project(LocalProjection projection)
+    {
+    	AbsoluteLocation loc = this.getLocation().getAbsoluteLocation();
+    	this.mProjection = projection;
+    	this.mX = (float)projection.getX(loc.getLongitude());
+    	this.mY = (float)projection.getY(loc.getLatitude());
+    }
+    
+    /**
+     * Sets the vertex' coordinates in the given frame as they have been projected before (e.g., as stored in a RadioMapFile)
+     */
+    public void project(LocalProjection projection, float x, float y)
+    {
+    	this.mProjection = projection;
+    	this.mX = x;
+    	this.mY = y;
+    }
+    
     public int getNumFingerprints()
     {
+    	if (mFingerprintSource != null)
+    		return mNumSourceFingerprints;
     	return fingerprints.size();
     }    
      
@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.smartcampus.indoormodel.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.smartcampus.baselogic.LocalProjection;
+
+/**
+ * A uniform grid over the vertices of a single floor. 
+ * Vertices are bucketed by their projected (local, metric) coordinates, so nearest-vertex, 
+ * k-nearest and within-radius queries only inspect the cells around the query location 
+ * rather than every vertex on the floor. 
+ * Vertices are (re)projected into the grid's frame when added, cf. Vertex.project(). 
+ */
+public class VertexGrid {
+	
+	//The default side length of a cell in meters. Vertices are typically placed a few meters apart.
+	public static final double DEFAULT_CELL_SIZE = 5;
+	
+	private final LocalProjection mProjection;
+	private final double mCellSize;
+	private HashMap<Long, List<Vertex>> mCells = new HashMap<Long, List<Vertex>>();
+	private int mSize;
+	//The extent of the grid (in cell coordinates). Used to bound the ring search.
+	private int mMinCellX = Integer.MAX_VALUE, mMaxCellX = Integer.MIN_VALUE;
+	private int mMinCellY = Integer.MAX_VALUE, mMaxCellY = Integer.MIN_VALUE;
+	
+	public VertexGrid(LocalProjection projection)
+	{
+		this(projection, DEFAULT_CELL_SIZE);
+	}
+	
+	public VertexGrid(LocalProjection projection, double cellSize)
+	{
+		this.mProjection = projection;
+		this.mCellSize = cellSize;
+	}
+	
+	public LocalProjection getProjection()
+	{
+		return mProjection;
+	}
+	
+	public boolean add(Vertex v)
+	{
+		if (v.getProjection() != mProjection)
+			v.project(mProjection);
+		int cx = getCell(v.getX());
+		int cy = getCell(v.getY());
+		Long key = getCellKey(cx, cy);
+		List<Vertex> cell = mCells.get(key);
+		if (cell == null)
+		{
+			cell = new ArrayList<Vertex>(4);
+			mCells.put(key, cell);
+		}
+		cell.add(v);
+		mSize++;
+		
+		if (cx < mMinCellX) mMinCellX = cx;
+		if (cx > mMaxCellX) mMaxCellX = cx;
+		if (cy < mMinCellY) mMinCellY = cy;
+		if (cy > mMaxCellY) mMaxCellY = cy;
+		return true;
+	}
+	
+	public boolean remove(Vertex v)
+	{
+		if (v.getProjection() != mProjection)
+			return false;
+		Long key = getCellKey(getCell(v.getX()), getCell(v.getY()));
+		List<Vertex> cell = mCells.get(key);
+		if (cell == null || !cell.remove(v))
+			return false;
+		if (cell.isEmpty())
+			mCells.remove(key);
+		mSize--;
+		//NB: We don't shrink the extent. It is only used to bound searches. 
+		return true;
+	}
+	
+	public int size()
+	{
+		return mSize;
+	}
+	
+	/**
+	 * @return The vertex closest to the location, or null if the grid is empty
+	 */
+	public Vertex getClosest(double latitude, double longitude)
+	{
+		List<Vertex> res = getClosest(latitude, longitude, 1);
+		return res.isEmpty() ? null : res.get(0);
+	}
+	
+	/**
+	 * @return The (up to) k vertices closest to the location sorted by ascending distance
+	 */
+	public List<Vertex> getClosest(double latitude, double longitude, int k)
+	{
+		ArrayList<Vertex> result = new ArrayList<Vertex>(Math.max(k, 0));
+		if (k < 1 || mSize == 0)
+			return result;
+		
+		//max-heap on distance, so the head is the worst of the current k best
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(k + 1, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate lhs, Candidate rhs) {
+				return Double.compare(rhs.distSq, lhs.distSq);
+			}
+		});
+		
+		double x = mProjection.getX(longitude);
+		double y = mProjection.getY(latitude);
+		int cx = getCell(x);
+		int cy = getCell(y);
+		int maxRing = getMaxRing(cx, cy);
+		for (int ring = 0; ring <= maxRing; ring++)
+		{
+			//Every cell in this ring (and beyond) is at least (ring - 1) cells away from the query point
+			if (best.size() == k)
+			{
+				double minRingDist = (ring - 1) * mCellSize;
+				if (minRingDist > 0 && minRingDist * minRingDist > best.peek().distSq)
+					break;
+			}
+			for (int i = cx - ring; i <= cx + ring; i++)
+			{
+				//Only visit the border of the ring
+				int step = (i == cx - ring || i == cx + ring) ? 1 : 2 * ring;
+				for (int j = cy - ring; j <= cy + ring; j += step)
+				{
+					List<Vertex> cell = mCells.get(getCellKey(i, j));
+					if (cell == null)
+						continue;
+					for (Vertex v : cell)
+					{
+						double distSq = getSquaredDistance(v, x, y);
+						if (best.size() < k)
+							best.add(new Candidate(v, distSq));
+						else if (distSq < best.peek().distSq)
+						{
+							best.poll();
+							best.add(new Candidate(v, distSq));
+						}
+					}
+				}
+			}
+		}
+		
+		ArrayList<Candidate> sorted = new ArrayList<Candidate>(best);
+		Collections.sort(sorted, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate lhs, Candidate rhs) {
+				return Double.compare(lhs.distSq, rhs.distSq);
+			}
+		});
+		for (Candidate c : sorted)
+			result.add(c.vertex);
+		return result;
+	}
+	
+	/**
+	 * @return All vertices within radiusInMeters of the location (in no particular order)
+	 */
+	public List<Vertex> getWithinRadius(double latitude, double longitude, double radiusInMeters)
+	{
+		ArrayList<Vertex> result = new ArrayList<Vertex>();
+		if (mSize == 0 || radiusInMeters < 0)
+			return result;
+		
+		double x = mProjection.getX(longitude);
+		double y = mProjection.getY(latitude);
+		int minX = Math.max(getCell(x - radiusInMeters), mMinCellX);
+		int maxX = Math.min(getCell(x + radiusInMeters), mMaxCellX);
+		int minY = Math.max(getCell(y - radiusInMeters), mMinCellY);
+		int maxY = Math.min(getCell(y + radiusInMeters), mMaxCellY);
+		double radiusSq = radiusInMeters * radiusInMeters;
+		for (int cx = minX; cx <= maxX; cx++)
+			for (int cy = minY; cy <= maxY; cy++)
+			{
+				List<Vertex> cell = mCells.get(getCellKey(cx, cy));
+				if (cell == null)
+					continue;
+				for (Vertex v : cell)
+					if (getSquaredDistance(v, x, y) <= radiusSq)
+						result.add(v);
+			}
+		return result;
+	}
+	
+	private static double getSquaredDistance(Vertex v, double x, double y)
+	{
+		double dx = v.getX() - x;
+		double dy = v.getY() - y;
+		return dx * dx + dy * dy;
+	}
+	
+	//The number of rings needed to cover the whole grid from the given cell
+	private int getMaxRing(int cx, int cy)
+	{
+		int dx = Math.max(Math.abs(cx - mMinCellX), Math.abs(cx - mMaxCellX));
+		int dy = Math.max(Math.abs(cy - mMinCellY), Math.abs(cy - mMaxCellY));
+		return Math.max(dx, dy);
+	}
+	
+	private int getCell(double meters)
+	{
+		return (int)Math.floor(meters / mCellSize);
+	}
+	
+	private static Long getCellKey(int cx, int cy)
+	{
+		return ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+	
+	private static class Candidate
+	{
+		final Vertex vertex;
+		final double distSq;
+		
+		Candidate(Vertex vertex, double distSq)
+		{
+			this.vertex = vertex;
+			this.distSq = distSq;
+		}
+	}
+}
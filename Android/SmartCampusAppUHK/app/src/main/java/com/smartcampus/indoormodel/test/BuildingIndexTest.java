@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.BuildingIndex;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class BuildingIndexTest extends TestCase {
+	
+	public void testCandidates() throws Exception
+	{
+		List<Building> buildings = new ArrayList<Building>();
+		buildings.add(createBuilding(1, "a", "b", "c"));
+		buildings.add(createBuilding(2, "c", "d", "d")); //"d" is listed twice
+		buildings.add(createBuilding(3, "e"));
+		buildings.add(createBuilding(4, "b", "c", "x"));
+		BuildingIndex index = new BuildingIndex(buildings);
+		
+		List<BuildingIndex.Candidate> candidates = index.getCandidates(new HashSet<String>(Arrays.asList("b", "c", "d", "x", "z")));
+		Assert.assertEquals(3, candidates.size());
+		Assert.assertEquals(4, candidates.get(0).getBuilding().getBuildingID());
+		Assert.assertEquals(3, candidates.get(0).getNumCommonAPs());
+		//Buildings 1 and 2 tie - they keep their order
+		Assert.assertEquals(1, candidates.get(1).getBuilding().getBuildingID());
+		Assert.assertEquals(2, candidates.get(2).getBuilding().getBuildingID());
+		Assert.assertEquals(2, candidates.get(2).getNumCommonAPs());
+		Assert.assertEquals(1, index.getBestMatch(Arrays.asList("b", "c", "d")).getBuildingID());
+		
+		Assert.assertTrue(index.getCandidates(Arrays.asList("z")).isEmpty());
+		Assert.assertNull(index.getBestMatch(new HashSet<String>()));
+	}
+	
+	public void testManyBuildings() throws Exception
+	{
+		//500 buildings with 40 APs each out of 10000
+		Random rnd = new Random(42);
+		List<Building> buildings = new ArrayList<Building>();
+		for (int id = 0; id < 500; id++)
+		{
+			Building b = new Building();
+			b.setBuildingID(id);
+			for (int i = 0; i < 40; i++)
+				b.getPermissableAPs().add("mac" + rnd.nextInt(10000));
+			buildings.add(b);
+		}
+		BuildingIndex index = new BuildingIndex(buildings);
+		
+		//A scan of 30 APs - most of them from building 123
+		Set<String> scan = new HashSet<String>();
+		for (int i = 0; i < 20; i++)
+			scan.add(buildings.get(123).getPermissableAPs().get(i));
+		while (scan.size() < 30)
+			scan.add("mac" + rnd.nextInt(10000));
+		
+		List<BuildingIndex.Candidate> candidates = index.getCandidates(scan);
+		Assert.assertEquals(123, candidates.get(0).getBuilding().getBuildingID());
+		for (BuildingIndex.Candidate c : candidates)
+			Assert.assertEquals(countCommonAPs(scan, c.getBuilding()), c.getNumCommonAPs());
+		for (int i = 1; i < candidates.size(); i++)
+			Assert.assertTrue(candidates.get(i - 1).getNumCommonAPs() >= candidates.get(i).getNumCommonAPs());
+		
+		final int n = 10000;
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			index.getCandidates(scan);
+		long indexTime = (System.nanoTime() - start) / n;
+		start = System.nanoTime();
+		for (int i = 0; i < n / 10; i++)
+		{
+			for (Building b : buildings)
+				countCommonAPs(scan, b);
+		}
+		long listTime = (System.nanoTime() - start) / (n / 10);
+		System.out.println("Ranking 500 buildings: index " + indexTime / 1000.0 + " us, AP lists " + listTime / 1000.0 + " us");
+	}
+	
+	//The former LocationService.getNumberOfIdenticalMacs()
+	private static int countCommonAPs(Set<String> scan, Building b)
+	{
+		int numMatches = 0;
+		for (String mac : scan)
+		{
+			if (b.getPermissableAPs().contains(mac))
+				numMatches++;
+		}
+		return numMatches;
+	}
+	
+	private static Building createBuilding(int id, String... macs)
+	{
+		Building b = new Building();
+		b.setBuildingID(id);
+		b.getPermissableAPs().addAll(Arrays.asList(macs));
+		return b;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.FloorFingerprintCache;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class FloorFingerprintCacheTest extends TestCase {
+	
+	private static final int NUM_FLOORS = 3;
+	private static final int VERTICES_PER_FLOOR = 20;
+	
+	private File mFile;
+	private IGraph mGraph;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mGraph = createGraph();
+		mFile = File.createTempFile("radiomap", ".bin");
+		RadioMapFile.write(1, "v1", mGraph, 1000, mFile);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mFile.delete();
+	}
+	
+	public void testLoadOnDemand() throws Exception
+	{
+		IGraph graph = RadioMapFile.open(mFile).loadGraph(Long.MAX_VALUE);
+		FloorFingerprintCache cache = getCache(graph);
+		Assert.assertEquals(3, cache.getFloors().size());
+		Assert.assertEquals(0, cache.getSize());
+		
+		//Restoring the graph and taking a snapshot load no fingerprints
+		RadioMapSnapshot snapshot = new RadioMapSnapshot(new Building(), graph, "v1");
+		Assert.assertTrue(snapshot.hasFingerprintsOnDemand());
+		Assert.assertFalse(snapshot.exceedsFingerprintBudget()); //so all floors are searched
+		Assert.assertEquals(NUM_FLOORS * VERTICES_PER_FLOOR, snapshot.getFingerprintedVertices().size());
+		Assert.assertEquals(2 * VERTICES_PER_FLOOR, snapshot.getFingerprintedVertices(1, 2).size());
+		Assert.assertEquals(mGraph.getVertices().size() + 1, snapshot.getMacs().size()); //one mac per vertex and "shared"
+		Assert.assertEquals(0, cache.getSize());
+		
+		//The snapshot lists the vertices floor by floor
+		Assert.assertEquals(0, (int)snapshot.getFingerprintedVertices().get(0).getLocation().getAbsoluteLocation().getAltitude());
+		Assert.assertEquals(2, (int)snapshot.getFingerprintedVertices().get(2 * VERTICES_PER_FLOOR).getLocation().getAbsoluteLocation().getAltitude());
+		
+		//Reading a fingerprint loads its floor only
+		Vertex v = graph.getVertexById(4); //floor 1
+		Assert.assertEquals(1, v.getNumFingerprints());
+		assertSameFingerprints(mGraph.getVertexById(4), v);
+		Assert.assertTrue(cache.isLoaded(1));
+		Assert.assertFalse(cache.isLoaded(0));
+		Assert.assertFalse(cache.isLoaded(2));
+		Assert.assertTrue(cache.getSize() > 0);
+		
+		for (Vertex w : mGraph.getVertices())
+			assertSameFingerprints(w, graph.getVertexById(w.getId()));
+	}
+	
+	public void testBudget() throws Exception
+	{
+		IGraph graph = RadioMapFile.open(mFile).loadGraph(Long.MAX_VALUE);
+		graph.getVertexById(0).getFingerPrints();
+		long floorSize = getCache(graph).getSize();
+		Assert.assertTrue(getCache(RadioMapFile.open(mFile).loadGraph(NUM_FLOORS * floorSize)).fitsInBudget());
+		
+		//Room for two floors
+		graph = RadioMapFile.open(mFile).loadGraph(2 * floorSize);
+		FloorFingerprintCache cache = getCache(graph);
+		Assert.assertFalse(cache.fitsInBudget());
+		Assert.assertTrue(new RadioMapSnapshot(new Building(), graph, "v1").exceedsFingerprintBudget());
+		graph.getVertexById(0).getFingerPrints();
+		graph.getVertexById(1).getFingerPrints();
+		graph.getVertexById(0).getFingerPrints(); //floor 0 is now more recently used than floor 1
+		graph.getVertexById(2).getFingerPrints();
+		Assert.assertTrue(cache.isLoaded(0));
+		Assert.assertFalse(cache.isLoaded(1));
+		Assert.assertTrue(cache.isLoaded(2));
+		Assert.assertEquals(2 * floorSize, cache.getSize());
+		
+		//An evicted floor is loaded again
+		assertSameFingerprints(mGraph.getVertexById(1), graph.getVertexById(1));
+		Assert.assertTrue(cache.isLoaded(1));
+		Assert.assertFalse(cache.isLoaded(0));
+		
+		//A radio map whose fingerprints are loaded on demand can be written (e.g., after a delta has been applied)
+		File copy = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(1, "v2", graph, 2000, copy);
+			IGraph restored = RadioMapFile.open(copy).loadGraph();
+			for (Vertex w : mGraph.getVertices())
+				assertSameFingerprints(w, restored.getVertexById(w.getId()));
+		}
+		finally
+		{
+			copy.delete();
+		}
+	}
+	
+	public void testAddFingerprint() throws Exception
+	{
+		IGraph graph = RadioMapFile.open(mFile).loadGraph(Long.MAX_VALUE);
+		Vertex v = graph.getVertexById(5);
+		WifiMeasurement meas = new WifiMeasurement();
+		meas.addValue("new", -70);
+		v.addFingerprint(meas);
+		
+		//The vertex holds its fingerprints from now on
+		Assert.assertNull(v.getFingerprintSource());
+		Assert.assertEquals(2, v.getNumFingerprints());
+		Assert.assertSame(meas, v.getFingerPrints().get(1));
+	}
+	
+	public void testConcurrentWriters() throws Exception
+	{
+		//E.g., the prefetcher and a foreground load caching the same building
+		final Exception[] error = new Exception[1];
+		Thread[] writers = new Thread[2];
+		for (int t = 0; t < writers.length; t++)
+		{
+			final String version = "v" + t;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					try
+					{
+						for (int i = 0; i < 20; i++)
+							RadioMapFile.write(1, version, mGraph, 1000, mFile);
+					}
+					catch (Exception ex)
+					{
+						error[0] = ex;
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+		
+		Assert.assertNull(error[0]);
+		IGraph graph = RadioMapFile.open(mFile).loadGraph(Long.MAX_VALUE);
+		for (Vertex w : mGraph.getVertices())
+			assertSameFingerprints(w, graph.getVertexById(w.getId()));
+		String[] tmpFiles = mFile.getAbsoluteFile().getParentFile().list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(mFile.getName()) && name.endsWith(".tmp");
+			}
+		});
+		Assert.assertEquals(0, tmpFiles.length);
+	}
+	
+	private static FloorFingerprintCache getCache(IGraph graph)
+	{
+		return (FloorFingerprintCache)graph.getVertexById(0).getFingerprintSource();
+	}
+	
+	private static void assertSameFingerprints(Vertex expected, Vertex actual)
+	{
+		Assert.assertEquals(expected.getNumFingerprints(), actual.getFingerPrints().size());
+		for (int i = 0; i < expected.getNumFingerprints(); i++)
+			Assert.assertEquals(expected.getFingerPrints().get(i).getHistograms(), actual.getFingerPrints().get(i).getHistograms());
+	}
+	
+	//Vertex i is on floor i % NUM_FLOORS (so the floors are interleaved), and has a fingerprint with its own mac and a shared one
+	private static IGraph createGraph()
+	{
+		GraphBuilder builder = new GraphBuilder();
+		for (int id = 0; id < NUM_FLOORS * VERTICES_PER_FLOOR; id++)
+		{
+			Vertex v = new Vertex(id, new AbsoluteLocation(57.0 + id * 1E-5, 9.99, id % NUM_FLOORS));
+			WifiMeasurement meas = new WifiMeasurement();
+			meas.addValue("mac" + id, -40 - id % 30);
+			meas.addValue("shared", -60);
+			meas.addValue("shared", -61);
+			v.addFingerprint(meas);
+			builder.addVertex(v);
+		}
+		for (int id = 1; id < NUM_FLOORS * VERTICES_PER_FLOOR; id++)
+			builder.addUndirectionalEdge(id, id - 1, id, false, false, false);
+		return builder.build();
+	}
+}
@@ -0,0 +1,227 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.smartcampus.android.location.wifi.AlgorithmNNSS;
+import com.smartcampus.android.location.wifi.BCS;
+import com.smartcampus.android.location.wifi.EstimateResult;
+import com.smartcampus.android.location.wifi.WifiPosEngine;
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.PackedFingerprints;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class PackedFingerprintsTest extends TestCase {
+	
+	private static final int MISSING_DBM = -150;
+	
+	public void testDistances()
+	{
+		//Each vertex hears a few of the APs of a small floor (dense) or of a large floor (sparse)
+		for (int numMacs : new int[] { 8, 200 })
+		{
+			Random rnd = new Random(numMacs);
+			IGraph graph = createGraph(rnd, 1, 100, numMacs, 6);
+			List<Vertex> vertices = new ArrayList<Vertex>(graph.getVertices());
+			PackedFingerprints packed = new PackedFingerprints(vertices);
+			Assert.assertEquals(numMacs == 8, packed.isDense());
+			Assert.assertEquals(vertices.size(), packed.getNumRows());
+			
+			for (int i = 0; i < 10; i++)
+			{
+				WifiMeasurement meas = createMeasurement(rnd, numMacs + 2, 5); //may hold APs that are unknown to the block
+				String[] macs = meas.getMACs().toArray(new String[0]);
+				int[] dbms = new int[macs.length];
+				for (int j = 0; j < macs.length; j++)
+					dbms[j] = meas.getAvgDbM(macs[j]);
+				int[] result = new int[packed.getNumRows()];
+				packed.getSquaredDistances(macs, dbms, MISSING_DBM, result);
+				for (int r = 0; r < packed.getNumRows(); r++)
+					Assert.assertEquals(getSquaredDistance(meas, packed.getVertex(r).getFingerPrints().get(0)), result[r]);
+			}
+		}
+	}
+	
+	//The batched (dense) kernel computes the same distances as the per-row (sparse) kernel - and faster on a floor after AP selection
+	public void testLayouts()
+	{
+		Random rnd = new Random(2);
+		IGraph graph = createGraph(rnd, 1, 2500, 40, 20);
+		List<Vertex> vertices = new ArrayList<Vertex>(graph.getVertices());
+		PackedFingerprints dense = new PackedFingerprints(vertices, PackedFingerprints.Layout.DENSE);
+		PackedFingerprints sparse = new PackedFingerprints(vertices, PackedFingerprints.Layout.SPARSE);
+		Assert.assertTrue(dense.isDense());
+		Assert.assertFalse(sparse.isDense());
+		Assert.assertTrue(new PackedFingerprints(vertices).isDense());
+		
+		String[][] macs = new String[100][];
+		int[][] dbms = new int[100][];
+		for (int i = 0; i < macs.length; i++)
+		{
+			WifiMeasurement meas = AlgorithmNNSS.getNStrongestAPMeasurement(createMeasurement(rnd, 40, 10), 7);
+			macs[i] = meas.getMACs().toArray(new String[0]);
+			dbms[i] = new int[macs[i].length];
+			for (int j = 0; j < macs[i].length; j++)
+				dbms[i][j] = meas.getAvgDbM(macs[i][j]);
+		}
+		int[] denseResult = new int[dense.getNumRows()];
+		int[] sparseResult = new int[sparse.getNumRows()];
+		for (int i = 0; i < macs.length; i++)
+		{
+			dense.getSquaredDistances(macs[i], dbms[i], MISSING_DBM, denseResult);
+			sparse.getSquaredDistances(macs[i], dbms[i], MISSING_DBM, sparseResult);
+			Assert.assertTrue(Arrays.equals(sparseResult, denseResult));
+		}
+		
+		long denseNanos = 0, sparseNanos = 0;
+		for (int round = 0; round < 10; round++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < macs.length; i++)
+				dense.getSquaredDistances(macs[i], dbms[i], MISSING_DBM, denseResult);
+			long mid = System.nanoTime();
+			for (int i = 0; i < macs.length; i++)
+				sparse.getSquaredDistances(macs[i], dbms[i], MISSING_DBM, sparseResult);
+			if (round >= 5) //warmed up
+			{
+				denseNanos += mid - start;
+				sparseNanos += System.nanoTime() - mid;
+			}
+		}
+		System.out.println("Scoring " + dense.getNumRows() + " fingerprints: dense " + denseNanos / 500 + " ns (" + dense.getSize() 
+				+ " bytes), sparse " + sparseNanos / 500 + " ns (" + sparse.getSize() + " bytes) per measurement");
+	}
+	
+	public void testQuantize()
+	{
+		Assert.assertEquals(-40, PackedFingerprints.quantize(-40));
+		Assert.assertEquals(PackedFingerprints.MIN_DBM, PackedFingerprints.quantize(-200));
+		Assert.assertEquals(0, PackedFingerprints.quantize(5));
+		Assert.assertTrue(PackedFingerprints.MISSING < PackedFingerprints.MIN_DBM);
+	}
+	
+	//NNSS estimates the same from the packed fingerprints of a search space as from the vertices - and uses far less memory
+	public void testSearchSpace()
+	{
+		Random rnd = new Random(1);
+		int numFloors = 4, verticesPerFloor = 2500, macsPerFloor = 40;
+		IGraph graph = createGraph(rnd, numFloors, verticesPerFloor, macsPerFloor, 20);
+		RadioMapSnapshot snapshot = new RadioMapSnapshot(new Building(), graph, "v1");
+		RadioMapSnapshot.SearchSpace searchSpace = snapshot.getSearchSpace();
+		List<Vertex> vertices = snapshot.getFingerprintedVertices();
+		AlgorithmNNSS nnss = new AlgorithmNNSS();
+		
+		long packedNanos = 0, boxedNanos = 0;
+		for (int i = 0; i < 20; i++)
+		{
+			WifiMeasurement meas = createMeasurement(rnd, numFloors * macsPerFloor, 10);
+			WifiPosEngine.BestCandidateSet = new BCS(10);
+			long start = System.nanoTime();
+			EstimateResult packed = nnss.compare(searchSpace, meas);
+			packedNanos += System.nanoTime() - start;
+			WifiPosEngine.BestCandidateSet = new BCS(10);
+			start = System.nanoTime();
+			EstimateResult boxed = nnss.compare(vertices, meas);
+			boxedNanos += System.nanoTime() - start;
+			Assert.assertEquals(boxed.getDistance(), packed.getDistance(), 1E-9);
+			Assert.assertEquals(boxed.getErrorEstimate(), packed.getErrorEstimate(), 1E-9);
+		}
+		
+		long packedSize = 0, numEntries = 0;
+		for (PackedFingerprints block : searchSpace.getPackedFingerprints())
+			packedSize += block.getSize();
+		for (Vertex v : vertices)
+			numEntries += v.getFingerPrints().get(0).getNumMACs();
+		//cf. FloorFingerprintCache: ~160 bytes per WifiMeasurement and ~64 bytes per histogram entry (one value per AP here)
+		long boxedSize = vertices.size() * 160L + numEntries * 64;
+		System.out.println("Packed fingerprints: " + packedSize + " bytes (boxed ~" + boxedSize + " bytes), " 
+				+ packedNanos / 20000 + " us per estimate (boxed " + boxedNanos / 20000 + " us)");
+		Assert.assertTrue(packedSize * 10 < boxedSize);
+		Assert.assertEquals(numFloors, searchSpace.getPackedFingerprints().size());
+		Assert.assertEquals(2, snapshot.getSearchSpace(1, 2).getPackedFingerprints().size());
+		Assert.assertSame(searchSpace.getPackedFingerprints().get(1), snapshot.getSearchSpace(1, 2).getPackedFingerprints().get(0));
+	}
+	
+	private static int getSquaredDistance(WifiMeasurement meas, WifiMeasurement fp)
+	{
+		int result = 0;
+		for (String mac : meas.getMACs())
+		{
+			int d = meas.getAvgDbM(mac) - (fp.containsMac(mac) ? fp.getAvgDbM(mac) : MISSING_DBM);
+			result += d * d;
+		}
+		return result;
+	}
+	
+	private static WifiMeasurement createMeasurement(Random rnd, int numMacs, int numHeard)
+	{
+		WifiMeasurement meas = new WifiMeasurement();
+		for (int i = 0; i < numHeard; i++)
+		{
+			String mac = "mac" + rnd.nextInt(numMacs);
+			meas.addValue(mac, -30 - rnd.nextInt(60));
+			meas.addValue(mac, -30 - rnd.nextInt(60));
+		}
+		return meas;
+	}
+	
+	//The vertices of a floor hear some of the floor's APs
+	private static IGraph createGraph(Random rnd, int numFloors, int verticesPerFloor, int macsPerFloor, int numHeard)
+	{
+		GraphBuilder builder = new GraphBuilder();
+		int id = 0;
+		for (int floor = 0; floor < numFloors; floor++)
+		{
+			for (int i = 0; i < verticesPerFloor; i++)
+			{
+				Vertex v = new Vertex(id++, new AbsoluteLocation(57.0 + i * 1E-5, 9.99, floor));
+				WifiMeasurement meas = new WifiMeasurement();
+				for (int j = 0; j < numHeard; j++)
+				{
+					String mac = "mac" + (floor * macsPerFloor + rnd.nextInt(macsPerFloor));
+					meas.addValue(mac, -30 - rnd.nextInt(60));
+					meas.addValue(mac, -30 - rnd.nextInt(60));
+				}
+				v.addFingerprint(meas);
+				builder.addVertex(v);
+			}
+		}
+		return builder.build();
+	}
+}
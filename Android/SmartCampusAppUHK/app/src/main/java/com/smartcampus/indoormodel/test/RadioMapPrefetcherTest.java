@@ -0,0 +1,171 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.RadioMapPrefetcher;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class RadioMapPrefetcherTest extends TestCase {
+	
+	private static final long MAX_AGE = 60 * 60 * 1000;
+	
+	private File mCacheDir;
+	private final List<Integer> mFetched = new ArrayList<Integer>();
+	private final IGraph mGraph = createGraph();
+	
+	//Writes the same radio map for every building
+	private final RadioMapPrefetcher.Fetcher mFetcher = new RadioMapPrefetcher.Fetcher() {
+		public boolean fetch(int buildingId, File file) throws IOException {
+			mFetched.add(buildingId);
+			RadioMapFile.write(buildingId, "v1", mGraph, System.currentTimeMillis(), file);
+			return true;
+		}
+	};
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mCacheDir = File.createTempFile("radiomaps", "");
+		mCacheDir.delete();
+		mCacheDir.mkdir();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		for (File f : mCacheDir.listFiles())
+			f.delete();
+		mCacheDir.delete();
+	}
+	
+	public void testRank() throws Exception
+	{
+		//Buildings 1 - 4 lie 1, 2, 3 and 4 km north of the fix - building 3 shares an AP with the scan
+		List<Building> buildings = createBuildings(4);
+		buildings.get(2).getPermissableAPs().add("mac3");
+		
+		List<Building> ranked = RadioMapPrefetcher.rank(buildings, 57.0, 9.99, new HashSet<String>(Arrays.asList("mac3", "mac9")));
+		Assert.assertEquals(3, ranked.get(0).getBuildingID());
+		Assert.assertEquals(1, ranked.get(1).getBuildingID());
+		Assert.assertEquals(2, ranked.get(2).getBuildingID());
+		Assert.assertEquals(4, ranked.get(3).getBuildingID());
+		
+		//Without a fix or a scan the order is kept
+		ranked = RadioMapPrefetcher.rank(buildings, Double.NaN, Double.NaN, null);
+		Assert.assertEquals(1, ranked.get(0).getBuildingID());
+	}
+	
+	public void testPrefetchNearest() throws Exception
+	{
+		List<Building> buildings = createBuildings(5);
+		RadioMapPrefetcher prefetcher = new RadioMapPrefetcher(mCacheDir, mFetcher, 2, Long.MAX_VALUE, MAX_AGE);
+		
+		Assert.assertEquals(2, prefetcher.prefetch(buildings, 57.0, 9.99, null));
+		Assert.assertEquals(Arrays.asList(1, 2), mFetched);
+		Assert.assertEquals(1, RadioMapFile.open(RadioMapPrefetcher.getCacheFile(mCacheDir, 1)).getBuildingId());
+		
+		//The cached radio maps are fresh
+		Assert.assertEquals(0, prefetcher.prefetch(buildings, 57.0, 9.99, null));
+		
+		//..until they are older than maxAge
+		RadioMapFile.setTimestamp(RadioMapPrefetcher.getCacheFile(mCacheDir, 2), System.currentTimeMillis() - 2 * MAX_AGE);
+		Assert.assertEquals(1, prefetcher.prefetch(buildings, 57.0, 9.99, null));
+		Assert.assertEquals(Arrays.asList(1, 2, 2), mFetched);
+		
+		//Moving north makes buildings 4 and 5 the nearest
+		Assert.assertEquals(2, prefetcher.prefetch(buildings, 57.05, 9.99, null));
+		Assert.assertEquals(Arrays.asList(1, 2, 2, 5, 4), mFetched);
+	}
+	
+	public void testStorageBudget() throws Exception
+	{
+		List<Building> buildings = createBuildings(5);
+		//A radio map of a building that is no longer available
+		RadioMapFile.write(99, "v1", mGraph, System.currentTimeMillis(), RadioMapPrefetcher.getCacheFile(mCacheDir, 99));
+		long fileSize = RadioMapPrefetcher.getCacheFile(mCacheDir, 99).length();
+		
+		//Room for two radio maps
+		RadioMapPrefetcher prefetcher = new RadioMapPrefetcher(mCacheDir, mFetcher, 3, 2 * fileSize, MAX_AGE);
+		Assert.assertEquals(2, prefetcher.prefetch(buildings, 57.0, 9.99, null));
+		Assert.assertEquals(Arrays.asList(1, 2), mFetched);
+		Assert.assertFalse(RadioMapPrefetcher.getCacheFile(mCacheDir, 99).exists());
+		Assert.assertEquals(2 * fileSize, prefetcher.getCacheSize());
+		
+		//Near building 5 the radio maps of buildings 1 and 2 (now the farthest) are evicted
+		Assert.assertEquals(2, prefetcher.prefetch(buildings, 57.05, 9.99, null));
+		Assert.assertEquals(Arrays.asList(1, 2, 5, 4), mFetched);
+		Assert.assertFalse(RadioMapPrefetcher.getCacheFile(mCacheDir, 1).exists());
+		Assert.assertFalse(RadioMapPrefetcher.getCacheFile(mCacheDir, 2).exists());
+		Assert.assertEquals(3, prefetcher.getNumEvicted());
+	}
+	
+	//Building i lies i km north of (57.0, 9.99)
+	private static List<Building> createBuildings(int n)
+	{
+		List<Building> buildings = new ArrayList<Building>();
+		for (int id = 1; id <= n; id++)
+		{
+			Building b = new Building();
+			b.setBuildingID(id);
+			b.setLatitude(57.0 + id * 0.009);
+			b.setLongitude(9.99);
+			buildings.add(b);
+		}
+		return buildings;
+	}
+	
+	private static IGraph createGraph()
+	{
+		GraphBuilder builder = new GraphBuilder();
+		for (int id = 1; id <= 3; id++)
+		{
+			Vertex v = new Vertex(id, new AbsoluteLocation(57.0 + id * 1E-4, 9.99, 0));
+			WifiMeasurement meas = new WifiMeasurement();
+			meas.addValue("mac1", -40 - id);
+			v.addFingerprint(meas);
+			builder.addVertex(v);
+		}
+		builder.addUndirectionalEdge(1, 1, 2, false, false, false);
+		return builder.build();
+	}
+}
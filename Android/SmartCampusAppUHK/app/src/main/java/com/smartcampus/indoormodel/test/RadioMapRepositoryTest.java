@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapRepository;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class RadioMapRepositoryTest extends TestCase {
+	
+	private static final long MAX_AGE = 60 * 1000;
+	
+	//Counts the loads - each load blocks until the gate is opened, and fails while mFail is set
+	private final AtomicInteger mNumLoads = new AtomicInteger();
+	private volatile CountDownLatch mGate = new CountDownLatch(0);
+	private volatile boolean mFail;
+	
+	private final RadioMapRepository.Loader mLoader = new RadioMapRepository.Loader() {
+		public Building load(int buildingId) throws IOException {
+			mNumLoads.incrementAndGet();
+			try
+			{
+				mGate.await();
+			}
+			catch (InterruptedException ex)
+			{
+				throw new IOException("Interrupted");
+			}
+			if (mFail)
+				throw new IOException("Offline");
+			Building radioMap = new Building();
+			radioMap.setRadioMapVersion("v" + buildingId);
+			return radioMap;
+		}
+	};
+	
+	//Calls get() on a background thread
+	private static class Request extends Thread
+	{
+		private final RadioMapRepository mRepository;
+		private final int mBuildingId;
+		volatile Building result;
+		volatile IOException error;
+		
+		Request(RadioMapRepository repository, int buildingId)
+		{
+			mRepository = repository;
+			mBuildingId = buildingId;
+			start();
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				result = mRepository.get(mBuildingId);
+			}
+			catch (IOException ex)
+			{
+				error = ex;
+			}
+		}
+	}
+	
+	public void testConcurrentRequestsShareOneLoad() throws Exception
+	{
+		RadioMapRepository repository = new RadioMapRepository(mLoader, MAX_AGE, 2);
+		mGate = new CountDownLatch(1);
+		
+		Request first = new Request(repository, 1);
+		waitUntil(repository, 1, 0);
+		Request second = new Request(repository, 1);
+		Request third = new Request(repository, 1);
+		waitUntil(repository, 1, 2);
+		Assert.assertTrue(repository.isLoading(1));
+		Assert.assertFalse(repository.contains(1));
+		
+		mGate.countDown();
+		first.join();
+		second.join();
+		third.join();
+		Assert.assertEquals(1, mNumLoads.get());
+		Assert.assertNotNull(first.result);
+		Assert.assertSame(first.result, second.result);
+		Assert.assertSame(first.result, third.result);
+		
+		//Now it is served from memory
+		Assert.assertTrue(repository.contains(1));
+		Assert.assertSame(first.result, repository.get(1));
+		Assert.assertEquals(1, repository.getNumHits());
+		Assert.assertEquals(1, repository.getNumMisses());
+		Assert.assertEquals(2, repository.getNumCoalesced());
+		Assert.assertEquals(1, mNumLoads.get());
+	}
+	
+	public void testFailedLoadIsNotRemembered() throws Exception
+	{
+		RadioMapRepository repository = new RadioMapRepository(mLoader, MAX_AGE, 2);
+		mGate = new CountDownLatch(1);
+		mFail = true;
+		
+		Request first = new Request(repository, 1);
+		waitUntil(repository, 1, 0);
+		Request second = new Request(repository, 1);
+		waitUntil(repository, 1, 1);
+		mGate.countDown();
+		first.join();
+		second.join();
+		//Both get the failure of the shared load
+		Assert.assertNotNull(first.error);
+		Assert.assertNotNull(second.error);
+		Assert.assertEquals(1, repository.getNumFailures());
+		Assert.assertFalse(repository.isLoading(1));
+		
+		mFail = false;
+		Assert.assertEquals("v1", repository.get(1).getRadioMapVersion());
+		Assert.assertEquals(2, mNumLoads.get());
+	}
+	
+	public void testExpiryAndEviction() throws Exception
+	{
+		//Every radio map is too old right away
+		RadioMapRepository repository = new RadioMapRepository(mLoader, -1, 2);
+		repository.get(1);
+		repository.get(1);
+		Assert.assertEquals(2, mNumLoads.get());
+		Assert.assertEquals(0, repository.getNumHits());
+		
+		//The least recently used radio map is evicted
+		repository = new RadioMapRepository(mLoader, MAX_AGE, 2);
+		repository.get(1);
+		repository.get(2);
+		repository.get(1);
+		repository.get(3);
+		Assert.assertTrue(repository.contains(1));
+		Assert.assertFalse(repository.contains(2));
+		Assert.assertTrue(repository.contains(3));
+		
+		repository.invalidate(1);
+		Assert.assertFalse(repository.contains(1));
+	}
+	
+	//Waits until the given numbers of loads have been started and requests have joined them
+	private static void waitUntil(RadioMapRepository repository, long misses, long coalesced) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (repository.getNumMisses() < misses || repository.getNumCoalesced() < coalesced)
+		{
+			if (System.currentTimeMillis() > deadline)
+				Assert.fail("Timed out: " + repository);
+			Thread.sleep(5);
+		}
+	}
+}
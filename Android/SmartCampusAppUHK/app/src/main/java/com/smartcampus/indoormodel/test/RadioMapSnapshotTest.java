@@ -0,0 +1,166 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.indoormodel.test;
+
+import com.smartcampus.baselogic.LocalProjection;
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapSnapshot;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class RadioMapSnapshotTest extends TestCase {
+	
+	public void testSnapshot() throws Exception
+	{
+		Building building = new Building();
+		building.setBuildingID(1);
+		IGraph graph = createGraph(new String[] { "mac1", "mac2" });
+		RadioMapSnapshot snapshot = new RadioMapSnapshot(building, graph, "v1");
+		
+		Assert.assertSame(graph, snapshot.getGraph());
+		Assert.assertEquals(3, snapshot.getVertices().size());
+		//Vertex 3 has no fingerprints
+		Assert.assertEquals(2, snapshot.getFingerprintedVertices().size());
+		Assert.assertEquals(2, snapshot.getMacs().size());
+		Assert.assertTrue(snapshot.getMacs().contains("mac2"));
+		Assert.assertSame(graph.getVertexById(2), snapshot.getVertexById(2));
+		Assert.assertTrue(snapshot.getScanFilter().accept("mac2"));
+		Assert.assertFalse(snapshot.getScanFilter().accept("mac3"));
+		try
+		{
+			snapshot.getFingerprintedVertices().clear();
+			Assert.fail();
+		}
+		catch (UnsupportedOperationException ex) { }
+	}
+	
+	public void testReplacement() throws Exception
+	{
+		Building building = new Building();
+		building.setBuildingID(1);
+		building.setGraphModel(createGraph(new String[] { "mac1" }));
+		building.setRadioMapVersion("v1");
+		RadioMapSnapshot first = new RadioMapSnapshot(building);
+		
+		//A refresh replaces the graph of the building - the snapshot taken before is not affected
+		building.setGraphModel(createGraph(new String[] { "mac1", "mac3" }));
+		building.setRadioMapVersion("v2");
+		RadioMapSnapshot second = new RadioMapSnapshot(building);
+		
+		Assert.assertTrue(second.getVersion() > first.getVersion());
+		Assert.assertEquals("v1", first.getRadioMapVersion());
+		Assert.assertEquals(1, first.getMacs().size());
+		Assert.assertNotSame(first.getGraph(), second.getGraph());
+		Assert.assertFalse(first.getMacs().contains("mac3"));
+		Assert.assertTrue(second.getMacs().contains("mac3"));
+	}
+	
+	//Publishing a radio map again (e.g., a repository hit) neither modifies the shared building nor re-projects the graph
+	public void testUnknownLocation() throws Exception
+	{
+		//The parsers use (-1, -1) when the server omits the building's location
+		Building building = new Building();
+		building.setLatitude(-1);
+		building.setLongitude(-1);
+		Assert.assertFalse(building.hasLocation());
+		building.setLatitude(91);
+		building.setLongitude(9.99);
+		Assert.assertFalse(building.hasLocation());
+		
+		//The frame is anchored at the graph's own anchor then
+		IGraph graph = createGraph(new String[] { "mac1" });
+		LocalProjection anchor = graph.getProjection();
+		building.setGraphModel(graph);
+		Assert.assertSame(anchor, building.getProjection());
+		
+		building.setLatitude(57.0);
+		Assert.assertTrue(building.hasLocation());
+		Assert.assertEquals(new LocalProjection(57.0, 9.99), building.getProjection());
+	}
+	
+	public void testRepublish() throws Exception
+	{
+		Building shallow = new Building();
+		shallow.setBuildingID(1);
+		shallow.setLatitude(57.0);
+		shallow.setLongitude(9.99);
+		IGraph graph = createGraph(new String[] { "mac1" });
+		IGraph shallowGraph = shallow.getGraphModel();
+		
+		//The graph is projected into the building's frame when it is loaded (cf. LocationService.projectRadioMap())
+		graph.setProjection(new LocalProjection(57.0, 9.99));
+		LocalProjection frame = graph.getProjection();
+		Vertex v = graph.getVertexById(2);
+		float x = v.getX();
+		
+		RadioMapSnapshot[] snapshots = new RadioMapSnapshot[2];
+		for (int i = 0; i < snapshots.length; i++)
+		{
+			Building current = new Building(shallow);
+			current.setGraphModel(graph);
+			current.setRadioMapVersion("v" + i);
+			snapshots[i] = new RadioMapSnapshot(current, graph, current.getRadioMapVersion());
+			
+			Assert.assertSame(frame, graph.getProjection());
+			Assert.assertSame(frame, v.getProjection());
+			Assert.assertEquals(x, v.getX(), 0);
+			Assert.assertEquals(new LocalProjection(57.0, 9.99), current.getProjection());
+		}
+		Assert.assertSame(shallowGraph, shallow.getGraphModel());
+		Assert.assertNull(shallow.getRadioMapVersion());
+		Assert.assertNotSame(snapshots[0].getBuilding(), snapshots[1].getBuilding());
+		Assert.assertEquals("v0", snapshots[0].getBuilding().getRadioMapVersion());
+		Assert.assertSame(v, graph.getClosestVertex(v.getLocation().getAbsoluteLocation()));
+	}
+	
+	//Vertices 1 and 2 have a fingerprint with the given macs, vertex 3 has none
+	private static IGraph createGraph(String[] macs)
+	{
+		GraphBuilder builder = new GraphBuilder();
+		for (int id = 1; id <= 3; id++)
+		{
+			Vertex v = new Vertex(id, new AbsoluteLocation(57.0 + id * 1E-4, 9.99, 0));
+			if (id < 3)
+			{
+				WifiMeasurement meas = new WifiMeasurement();
+				for (int i = 0; i < macs.length; i++)
+					meas.addValue(macs[i], -40 - 10 * i);
+				v.addFingerprint(meas);
+			}
+			builder.addVertex(v);
+		}
+		builder.addUndirectionalEdge(1, 1, 2, false, false, false);
+		builder.addUndirectionalEdge(2, 2, 3, false, false, false);
+		return builder.build();
+	}
+}
@@ -0,0 +1,360 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.tracking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of tracked positions (an alternative to one Atom entry per position, cf. BatchUpdater). 
+ * Positions are grouped by client id and each group is stored column by column, 
+ * with time, coordinates, building id and vertex id delta-encoded against the previous position of the group. 
+ * All numbers are (zigzag) varints, so a position of a continuously tracked client takes about 15-25 bytes. 
+ * 
+ * Layout: 
+ * - magic (4 bytes), format version (varint)
+ * - strings: count, then each length-prefixed UTF-8 (the client ids and providers - positions refer to them by index)
+ * - groups: count, then per group the client id index, the number of positions n and the columns (n values each): 
+ *   id, time (ms), latitude, longitude, altitude, building id, vertex id, provider index, flags (hasAccuracy, hasSpeed, hasBearing), 
+ *   followed by the accuracy, speed and bearing of the positions that have them
+ * 
+ * NB: Values are quantized: latitude and longitude to 1E-7 degrees (about 1 cm), altitude, accuracy, speed and bearing to 1E-2. 
+ * Decoded positions are ordered by client id (in order of first appearance), but keep their order within a client. 
+ */
+public class TrackedPositionCodec {
+	
+	public static final String CONTENT_TYPE = "application/x-smartcampus-tracking";
+	
+	private static final byte[] MAGIC = { 'S', 'C', 'T', 'P' };
+	private static final int FORMAT_VERSION = 1;
+	
+	private static final double COORDINATE_SCALE = 1E7;
+	private static final double SCALE = 1E2;
+	
+	private static final int HAS_ACCURACY = 1;
+	private static final int HAS_SPEED = 2;
+	private static final int HAS_BEARING = 4;
+	
+	public static byte[] encode(TrackedPosition[] positions)
+	{
+		//Group by client id - and index the strings
+		Map<String, List<TrackedPosition>> groups = new LinkedHashMap<String, List<TrackedPosition>>();
+		Map<String, Integer> stringIndexes = new LinkedHashMap<String, Integer>();
+		for (TrackedPosition pos : positions)
+		{
+			String clientId = nullToEmpty(pos.getClientId());
+			List<TrackedPosition> group = groups.get(clientId);
+			if (group == null)
+			{
+				group = new ArrayList<TrackedPosition>();
+				groups.put(clientId, group);
+			}
+			group.add(pos);
+			addString(stringIndexes, clientId);
+			addString(stringIndexes, nullToEmpty(pos.getProvider()));
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + positions.length * 24);
+		out.write(MAGIC, 0, MAGIC.length);
+		writeVarint(out, FORMAT_VERSION);
+		writeVarint(out, stringIndexes.size());
+		for (String s : stringIndexes.keySet())
+		{
+			byte[] utf8 = toUtf8(s);
+			writeVarint(out, utf8.length);
+			out.write(utf8, 0, utf8.length);
+		}
+		
+		writeVarint(out, groups.size());
+		for (Map.Entry<String, List<TrackedPosition>> group : groups.entrySet())
+		{
+			List<TrackedPosition> g = group.getValue();
+			writeVarint(out, stringIndexes.get(group.getKey()));
+			writeVarint(out, g.size());
+			
+			for (TrackedPosition pos : g)
+				writeSignedVarint(out, pos.getId());
+			long prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				writeSignedVarint(out, pos.getTime() - prev);
+				prev = pos.getTime();
+			}
+			prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				long cur = quantize(pos.getLatitude(), COORDINATE_SCALE);
+				writeSignedVarint(out, cur - prev);
+				prev = cur;
+			}
+			prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				long cur = quantize(pos.getLongitude(), COORDINATE_SCALE);
+				writeSignedVarint(out, cur - prev);
+				prev = cur;
+			}
+			prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				long cur = quantize(pos.getAltitude(), SCALE);
+				writeSignedVarint(out, cur - prev);
+				prev = cur;
+			}
+			prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				writeSignedVarint(out, pos.getBuildingId() - prev);
+				prev = pos.getBuildingId();
+			}
+			prev = 0;
+			for (TrackedPosition pos : g)
+			{
+				writeSignedVarint(out, pos.getVertexId() - prev);
+				prev = pos.getVertexId();
+			}
+			for (TrackedPosition pos : g)
+				writeVarint(out, stringIndexes.get(nullToEmpty(pos.getProvider())));
+			for (TrackedPosition pos : g)
+				writeVarint(out, getFlags(pos));
+			for (TrackedPosition pos : g)
+				if (pos.isHasAccuracy())
+					writeSignedVarint(out, quantize(pos.getAccuracy(), SCALE));
+			for (TrackedPosition pos : g)
+				if (pos.isHasSpeed())
+					writeSignedVarint(out, quantize(pos.getSpeed(), SCALE));
+			for (TrackedPosition pos : g)
+				if (pos.isHasBearing())
+					writeSignedVarint(out, quantize(pos.getBearing(), SCALE));
+		}
+		return out.toByteArray();
+	}
+	
+	public static TrackedPosition[] decode(InputStream in) throws IOException
+	{
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (readByte(in) != MAGIC[i])
+				throw new IOException("Not an encoding of tracked positions");
+		}
+		int version = (int)readVarint(in);
+		if (version != FORMAT_VERSION)
+			throw new IOException("Unsupported format version: " + version);
+		
+		int numStrings = readCount(in);
+		String[] strings = new String[numStrings];
+		for (int i = 0; i < numStrings; i++)
+		{
+			byte[] utf8 = new byte[readCount(in)];
+			readFully(in, utf8);
+			strings[i] = new String(utf8, "UTF-8");
+		}
+		
+		List<TrackedPosition> result = new ArrayList<TrackedPosition>();
+		int numGroups = readCount(in);
+		for (int i = 0; i < numGroups; i++)
+		{
+			String clientId = strings[readIndex(in, numStrings)];
+			int n = readCount(in);
+			TrackedPosition[] g = new TrackedPosition[n];
+			for (int j = 0; j < n; j++)
+			{
+				g[j] = new TrackedPosition();
+				g[j].setClientId(clientId);
+				g[j].setId((int)readSignedVarint(in));
+			}
+			long prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setTime(prev);
+			}
+			prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setLatitude(prev / COORDINATE_SCALE);
+			}
+			prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setLongitude(prev / COORDINATE_SCALE);
+			}
+			prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setAltitude(prev / SCALE);
+			}
+			prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setBuildingId((int)prev);
+			}
+			prev = 0;
+			for (int j = 0; j < n; j++)
+			{
+				prev += readSignedVarint(in);
+				g[j].setVertexId((int)prev);
+			}
+			for (int j = 0; j < n; j++)
+				g[j].setProvider(strings[readIndex(in, numStrings)]);
+			for (int j = 0; j < n; j++)
+			{
+				int flags = (int)readVarint(in);
+				g[j].setHasAccuracy((flags & HAS_ACCURACY) != 0);
+				g[j].setHasSpeed((flags & HAS_SPEED) != 0);
+				g[j].setHasBearing((flags & HAS_BEARING) != 0);
+			}
+			for (int j = 0; j < n; j++)
+				if (g[j].isHasAccuracy())
+					g[j].setAccuracy(readSignedVarint(in) / SCALE);
+			for (int j = 0; j < n; j++)
+				if (g[j].isHasSpeed())
+					g[j].setSpeed(readSignedVarint(in) / SCALE);
+			for (int j = 0; j < n; j++)
+				if (g[j].isHasBearing())
+					g[j].setBearing(readSignedVarint(in) / SCALE);
+			for (TrackedPosition pos : g)
+				result.add(pos);
+		}
+		return result.toArray(new TrackedPosition[result.size()]);
+	}
+	
+	private static int getFlags(TrackedPosition pos)
+	{
+		return (pos.isHasAccuracy() ? HAS_ACCURACY : 0) | (pos.isHasSpeed() ? HAS_SPEED : 0) | (pos.isHasBearing() ? HAS_BEARING : 0);
+	}
+	
+	private static long quantize(double value, double scale)
+	{
+		return Math.round(value * scale);
+	}
+	
+	private static String nullToEmpty(String s)
+	{
+		return s == null ? "" : s;
+	}
+	
+	private static void addString(Map<String, Integer> indexes, String s)
+	{
+		if (!indexes.containsKey(s))
+			indexes.put(s, indexes.size());
+	}
+	
+	private static byte[] toUtf8(String s)
+	{
+		try
+		{
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException ex)
+		{
+			throw new RuntimeException(ex); //UTF-8 is always supported
+		}
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	//Zigzag encoding, so small negative numbers take few bytes too
+	private static void writeSignedVarint(ByteArrayOutputStream out, long value)
+	{
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+	
+	private static long readVarint(InputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = readByte(in);
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	private static long readSignedVarint(InputStream in) throws IOException
+	{
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static int readCount(InputStream in) throws IOException
+	{
+		long count = readVarint(in);
+		if (count > Integer.MAX_VALUE)
+			throw new IOException("Malformed count: " + count);
+		return (int)count;
+	}
+	
+	private static int readIndex(InputStream in, int numStrings) throws IOException
+	{
+		long index = readVarint(in);
+		if (index >= numStrings)
+			throw new IOException("Malformed string index: " + index);
+		return (int)index;
+	}
+	
+	private static int readByte(InputStream in) throws IOException
+	{
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException();
+		return b;
+	}
+	
+	private static void readFully(InputStream in, byte[] b) throws IOException
+	{
+		int off = 0;
+		while (off < b.length)
+		{
+			int n = in.read(b, off, b.length - off);
+			if (n == -1)
+				throw new EOFException();
+			off += n;
+		}
+	}
+}
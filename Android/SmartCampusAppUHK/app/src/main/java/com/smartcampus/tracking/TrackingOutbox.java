@@ -0,0 +1,567 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.tracking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent queue of tracked positions that are uploaded in batches by a single background thread. 
+ * - Positions are appended to a file before they are queued, so positions that have not been uploaded survive a restart (or crash). 
+ *   Each record has a checksum - a record that was only partly written (e.g., at a crash) is discarded when the file is opened. 
+ *   The file starts with the offset of the first pending record (the head), which is advanced after each successful upload. 
+ *   NB: Positions are uploaded at least once - a crash between an upload and the update of the head causes them to be uploaded again. 
+ * - A batch is uploaded when maxBatchSize positions are pending or the oldest pending position is older than maxAge. 
+ * - A failed upload (e.g., when offline or rejected by the server) is retried with exponential backoff. 
+ * - Runs of identical positions (same provider, building, vertex and coordinates, e.g., while standing still) are coalesced to their first and last fix. 
+ * - At most maxPending positions are kept - when full, the oldest positions are dropped. 
+ */
+public class TrackingOutbox {
+	
+	/**
+	 * Uploads a batch of positions, e.g., BatchUpdater.postTrackedPositions()
+	 */
+	public interface Uploader
+	{
+		void upload(TrackedPosition[] positions) throws IOException;
+	}
+	
+	private static final int MAGIC = 0x5343544F; //"SCTO"
+	private static final int HEADER_SIZE = 16; //magic, version and head
+	private static final int FORMAT_VERSION = 1;
+	//The file is compacted when at least this many bytes precede the head (and they make up at least half the file)
+	private static final long COMPACTION_THRESHOLD = 64 * 1024;
+	
+	public static final long DEFAULT_INITIAL_BACKOFF = 5 * 1000;
+	public static final long DEFAULT_MAX_BACKOFF = 10 * 60 * 1000;
+	public static final int DEFAULT_MAX_PENDING = 10000;
+	//close() waits at most this long (in ms) for an upload in progress
+	private static final long CLOSE_TIMEOUT = 500;
+	
+	//A pending position and the file offset of its record
+	private static class Entry
+	{
+		final TrackedPosition position;
+		long offset;
+		
+		Entry(TrackedPosition position, long offset)
+		{
+			this.position = position;
+			this.offset = offset;
+		}
+	}
+	
+	private final File mFile;
+	private final Uploader mUploader;
+	private final int mMaxBatchSize;
+	private final long mMaxAge;
+	private final int mMaxPending;
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	
+	private RandomAccessFile mRaf;
+	private long mHead;
+	private final LinkedList<Entry> mPending = new LinkedList<Entry>();
+	private boolean mFlushRequested;
+	private boolean mClosed;
+	private boolean mFileClosed;
+	private long mBackoff; //0 unless the last upload failed
+	private long mNextAttempt; //when backing off
+	private Thread mUploadThread;
+	
+	//metrics
+	private int mNumUploads, mNumFailedUploads;
+	private long mNumUploaded, mNumCoalesced, mNumDropped, mNumRecovered;
+	private long mTotalUploadLatency; //in ms
+	
+	/**
+	 * Opens (or creates) the outbox file. Positions left from a previous run are queued for upload. 
+	 * Call start() to start uploading.  
+	 * @param file The outbox file
+	 * @param uploader Uploads the batches
+	 * @param maxBatchSize The maximum number of positions per upload - a batch is uploaded when this many positions are pending
+	 * @param maxAge A batch is uploaded when its oldest position is older than this (in milliseconds)
+	 * @param maxPending The maximum number of pending positions
+	 */
+	public TrackingOutbox(File file, Uploader uploader, int maxBatchSize, long maxAge, int maxPending) throws IOException
+	{
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		this.mFile = file;
+		this.mUploader = uploader;
+		this.mMaxBatchSize = maxBatchSize;
+		this.mMaxAge = maxAge;
+		this.mMaxPending = maxPending;
+		open();
+	}
+	
+	public TrackingOutbox(File file, Uploader uploader, int maxBatchSize, long maxAge) throws IOException
+	{
+		this(file, uploader, maxBatchSize, maxAge, DEFAULT_MAX_PENDING);
+	}
+	
+	/**
+	 * Sets the backoff after the first failed upload, which is doubled on each subsequent failure (up to maxBackoff)
+	 */
+	public synchronized void setBackoff(long initialBackoff, long maxBackoff)
+	{
+		this.mInitialBackoff = initialBackoff;
+		this.mMaxBackoff = maxBackoff;
+	}
+	
+	/**
+	 * Starts the upload thread
+	 */
+	public synchronized void start()
+	{
+		if (mUploadThread != null || mClosed)
+			return;
+		mUploadThread = new Thread(new Runnable() {
+			public void run() {
+				uploadLoop();
+			}
+		}, "TrackingOutbox");
+		mUploadThread.setDaemon(true);
+		mUploadThread.start();
+	}
+	
+	/**
+	 * Stops the upload thread and closes the file. Pending positions remain in the file. 
+	 * An upload in progress is awaited for at most CLOSE_TIMEOUT ms (so close() may be called on the main thread) - 
+	 * if it takes longer, the upload thread is interrupted and the batch is uploaded again on the next run. 
+	 */
+	public void close() throws IOException
+	{
+		Thread uploadThread;
+		synchronized (this)
+		{
+			if (mClosed)
+				return;
+			mClosed = true;
+			notifyAll();
+			uploadThread = mUploadThread;
+		}
+		if (uploadThread != null && uploadThread != Thread.currentThread())
+		{
+			try
+			{
+				uploadThread.join(CLOSE_TIMEOUT);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			if (uploadThread.isAlive())
+				uploadThread.interrupt();
+		}
+		synchronized (this)
+		{
+			mFileClosed = true;
+			mRaf.close();
+		}
+	}
+	
+	/**
+	 * Appends a position to the outbox
+	 */
+	public synchronized void add(TrackedPosition pos) throws IOException
+	{
+		if (mClosed)
+			throw new IOException("The outbox is closed");
+		byte[] record = encode(pos);
+		long offset = mRaf.length();
+		mRaf.seek(offset);
+		mRaf.write(record);
+		mPending.add(new Entry(pos, offset));
+		
+		if (mPending.size() > mMaxPending)
+		{
+			while (mPending.size() > mMaxPending)
+			{
+				mPending.removeFirst();
+				mNumDropped++;
+			}
+			setHead();
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Uploads all pending positions as soon as possible (regardless of batch size and age, but not of backoff)
+	 */
+	public synchronized void flush()
+	{
+		mFlushRequested = true;
+		notifyAll();
+	}
+	
+	private void uploadLoop()
+	{
+		while (true)
+		{
+			TrackedPosition[] batch;
+			synchronized (this)
+			{
+				long wait;
+				while (!mClosed && (wait = getTimeToNextUpload()) != 0)
+				{
+					try
+					{
+						wait(wait < 0 ? 0 : wait);
+					}
+					catch (InterruptedException ex)
+					{
+						return;
+					}
+				}
+				if (mClosed)
+					return;
+				
+				int n = Math.min(mMaxBatchSize, mPending.size());
+				batch = new TrackedPosition[n];
+				int i = 0;
+				for (Entry e : mPending)
+				{
+					if (i == n)
+						break;
+					batch[i++] = e.position;
+				}
+			}
+			
+			List<TrackedPosition> coalesced = coalesce(batch);
+			long start = System.currentTimeMillis();
+			try
+			{
+				mUploader.upload(coalesced.toArray(new TrackedPosition[coalesced.size()]));
+				synchronized (this)
+				{
+					//Closed while uploading - the batch is still pending in the file
+					if (mFileClosed)
+						return;
+					mNumUploads++;
+					mTotalUploadLatency += System.currentTimeMillis() - start;
+					mNumUploaded += coalesced.size();
+					mNumCoalesced += batch.length - coalesced.size();
+					mBackoff = 0;
+					//The batch is still at the front - unless (some of) it was dropped while uploading
+					for (int i = 0; i < batch.length; i++)
+					{
+						if (!mPending.isEmpty() && mPending.getFirst().position == batch[i])
+							mPending.removeFirst();
+					}
+					if (mPending.isEmpty())
+						mFlushRequested = false;
+					setHead();
+				}
+			}
+			catch (IOException ex)
+			{
+				onUploadFailed();
+			}
+			catch (RuntimeException ex)
+			{
+				//E.g., an unexpected response - the upload thread must survive it
+				onUploadFailed();
+			}
+		}
+	}
+	
+	private synchronized void onUploadFailed()
+	{
+		mNumFailedUploads++;
+		mBackoff = mBackoff == 0 ? mInitialBackoff : Math.min(2 * mBackoff, mMaxBackoff);
+		mNextAttempt = System.currentTimeMillis() + mBackoff;
+	}
+	
+	//Returns 0 if a batch is due now, -1 if nothing is pending and otherwise the time (in ms) until the next batch is due
+	private long getTimeToNextUpload()
+	{
+		if (mPending.isEmpty())
+			return -1;
+		long now = System.currentTimeMillis();
+		if (mBackoff > 0 && now < mNextAttempt)
+			return mNextAttempt - now;
+		if (mFlushRequested || mPending.size() >= mMaxBatchSize)
+			return 0;
+		long due = mPending.getFirst().position.getTime() + mMaxAge;
+		return Math.max(0, due - now);
+	}
+	
+	/**
+	 * Reduces runs of identical positions (cf. isSamePosition()) to their first and last fix
+	 */
+	public static List<TrackedPosition> coalesce(TrackedPosition[] positions)
+	{
+		List<TrackedPosition> result = new ArrayList<TrackedPosition>(positions.length);
+		for (int i = 0; i < positions.length; i++)
+		{
+			boolean continuesRun = i > 0 && isSamePosition(positions[i - 1], positions[i]);
+			boolean endsRun = i == positions.length - 1 || !isSamePosition(positions[i], positions[i + 1]);
+			if (!continuesRun || endsRun)
+				result.add(positions[i]);
+		}
+		return result;
+	}
+	
+	private static boolean isSamePosition(TrackedPosition a, TrackedPosition b)
+	{
+		return a.getBuildingId() == b.getBuildingId() && a.getVertexId() == b.getVertexId()
+			&& a.getLatitude() == b.getLatitude() && a.getLongitude() == b.getLongitude() && a.getAltitude() == b.getAltitude()
+			&& equals(a.getProvider(), b.getProvider()) && equals(a.getClientId(), b.getClientId());
+	}
+	
+	private static boolean equals(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	//Persists the head (the first pending record) and compacts the file if much of it has been uploaded
+	private void setHead() throws IOException
+	{
+		mHead = mPending.isEmpty() ? mRaf.length() : mPending.getFirst().offset;
+		if (mHead >= COMPACTION_THRESHOLD && mHead >= mRaf.length() / 2)
+		{
+			compact();
+		}
+		else
+		{
+			mRaf.seek(8);
+			mRaf.writeLong(mHead);
+		}
+	}
+	
+	//Rewrites the file with only the pending records
+	private void compact() throws IOException
+	{
+		File tmp = new File(mFile.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try
+		{
+			out.setLength(0);
+			writeHeader(out, HEADER_SIZE);
+			for (Entry e : mPending)
+			{
+				e.offset = out.getFilePointer();
+				out.write(encode(e.position));
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		mRaf.close();
+		if (!tmp.renameTo(mFile))
+		{
+			mFile.delete();
+			if (!tmp.renameTo(mFile))
+				throw new IOException("Could not replace " + mFile);
+		}
+		mRaf = new RandomAccessFile(mFile, "rw");
+		mHead = HEADER_SIZE;
+	}
+	
+	private void open() throws IOException
+	{
+		mRaf = new RandomAccessFile(mFile, "rw");
+		if (mRaf.length() < HEADER_SIZE || mRaf.readInt() != MAGIC || mRaf.readInt() != FORMAT_VERSION)
+		{
+			mRaf.setLength(0);
+			writeHeader(mRaf, HEADER_SIZE);
+			mHead = HEADER_SIZE;
+			return;
+		}
+		mHead = mRaf.readLong();
+		long length = mRaf.length();
+		if (mHead < HEADER_SIZE || mHead > length)
+			mHead = length;
+		
+		//Read the pending records - a truncated or corrupt record (and anything after it) is discarded
+		long offset = mHead;
+		mRaf.seek(offset);
+		while (offset + 8 <= length)
+		{
+			int size = mRaf.readInt();
+			int checksum = mRaf.readInt();
+			if (size <= 0 || offset + 8 + size > length)
+				break;
+			byte[] payload = new byte[size];
+			mRaf.readFully(payload);
+			if (checksum(payload) != checksum)
+				break;
+			mPending.add(new Entry(decode(payload), offset));
+			offset += 8 + size;
+		}
+		if (offset < length)
+			mRaf.setLength(offset);
+		mNumRecovered = mPending.size();
+		
+		while (mPending.size() > mMaxPending)
+		{
+			mPending.removeFirst();
+			mNumDropped++;
+		}
+		if (!mPending.isEmpty())
+			mHead = mPending.getFirst().offset;
+	}
+	
+	private static void writeHeader(RandomAccessFile raf, long head) throws IOException
+	{
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeInt(FORMAT_VERSION);
+		raf.writeLong(head);
+	}
+	
+	private static int checksum(byte[] payload)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int)crc.getValue();
+	}
+	
+	//A record: payload size, checksum, payload
+	private static byte[] encode(TrackedPosition pos) throws IOException
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeInt(pos.getId());
+		out.writeInt(pos.getBuildingId());
+		out.writeInt(pos.getVertexId());
+		out.writeDouble(pos.getLatitude());
+		out.writeDouble(pos.getLongitude());
+		out.writeDouble(pos.getAltitude());
+		out.writeUTF(pos.getProvider() == null ? "" : pos.getProvider());
+		out.writeLong(pos.getTime());
+		out.writeDouble(pos.getAccuracy());
+		out.writeDouble(pos.getSpeed());
+		out.writeDouble(pos.getBearing());
+		out.writeByte((pos.isHasAccuracy() ? 1 : 0) | (pos.isHasSpeed() ? 2 : 0) | (pos.isHasBearing() ? 4 : 0));
+		out.writeUTF(pos.getClientId() == null ? "" : pos.getClientId());
+		out.close();
+		byte[] bytes = payload.toByteArray();
+		
+		ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+		DataOutputStream recordOut = new DataOutputStream(record);
+		recordOut.writeInt(bytes.length);
+		recordOut.writeInt(checksum(bytes));
+		recordOut.write(bytes);
+		recordOut.close();
+		return record.toByteArray();
+	}
+	
+	private static TrackedPosition decode(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		TrackedPosition pos = new TrackedPosition();
+		pos.setId(in.readInt());
+		pos.setBuildingId(in.readInt());
+		pos.setVertexId(in.readInt());
+		pos.setLatitude(in.readDouble());
+		pos.setLongitude(in.readDouble());
+		pos.setAltitude(in.readDouble());
+		pos.setProvider(in.readUTF());
+		pos.setTime(in.readLong());
+		pos.setAccuracy(in.readDouble());
+		pos.setSpeed(in.readDouble());
+		pos.setBearing(in.readDouble());
+		int flags = in.readByte();
+		pos.setHasAccuracy((flags & 1) != 0);
+		pos.setHasSpeed((flags & 2) != 0);
+		pos.setHasBearing((flags & 4) != 0);
+		pos.setClientId(in.readUTF());
+		return pos;
+	}
+	
+	/**
+	 * @return The number of positions waiting to be uploaded (the queue depth)
+	 */
+	public synchronized int getNumPending()
+	{
+		return mPending.size();
+	}
+	
+	public synchronized int getNumUploads()
+	{
+		return mNumUploads;
+	}
+	
+	public synchronized int getNumFailedUploads()
+	{
+		return mNumFailedUploads;
+	}
+	
+	/**
+	 * @return The number of positions uploaded (after coalescing)
+	 */
+	public synchronized long getNumUploaded()
+	{
+		return mNumUploaded;
+	}
+	
+	public synchronized long getNumCoalesced()
+	{
+		return mNumCoalesced;
+	}
+	
+	/**
+	 * @return The number of positions dropped because the outbox was full
+	 */
+	public synchronized long getNumDropped()
+	{
+		return mNumDropped;
+	}
+	
+	/**
+	 * @return The number of positions restored from the file when it was opened
+	 */
+	public synchronized long getNumRecovered()
+	{
+		return mNumRecovered;
+	}
+	
+	public synchronized double getAverageUploadLatencyInMillis()
+	{
+		return mNumUploads == 0 ? 0 : (double)mTotalUploadLatency / mNumUploads;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "TrackingOutbox: pending=" + mPending.size() + ", uploads=" + mNumUploads + " (" + mNumFailedUploads + " failed)" 
+				+ ", uploaded=" + mNumUploaded + ", coalesced=" + mNumCoalesced + ", dropped=" + mNumDropped 
+				+ ", avg latency=" + getAverageUploadLatencyInMillis() + " ms";
+	}
+}
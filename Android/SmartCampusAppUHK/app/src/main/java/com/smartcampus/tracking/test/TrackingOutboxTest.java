@@ -0,0 +1,299 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.tracking.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartcampus.tracking.TrackedPosition;
+import com.smartcampus.tracking.TrackingOutbox;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class TrackingOutboxTest extends TestCase {
+	
+	//Records the uploaded batches - and fails while offline
+	private static class RecordingUploader implements TrackingOutbox.Uploader
+	{
+		final List<TrackedPosition[]> batches = new ArrayList<TrackedPosition[]>();
+		boolean offline;
+		RuntimeException error;
+		int attempts;
+		
+		public synchronized void upload(TrackedPosition[] positions) throws IOException
+		{
+			attempts++;
+			if (offline)
+				throw new IOException("offline");
+			if (error != null)
+				throw error;
+			batches.add(positions);
+			notifyAll();
+		}
+		
+		synchronized int numUploaded()
+		{
+			int n = 0;
+			for (TrackedPosition[] batch : batches)
+				n += batch.length;
+			return n;
+		}
+		
+		synchronized void awaitUploaded(int n) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while (numUploaded() < n && System.currentTimeMillis() < deadline)
+				wait(50);
+		}
+	}
+	
+	private File mFile;
+	private RecordingUploader mUploader;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mFile = File.createTempFile("outbox", ".bin");
+		mUploader = new RecordingUploader();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mFile.delete();
+	}
+	
+	private static TrackedPosition createPosition(int vertexId, long time)
+	{
+		TrackedPosition pos = new TrackedPosition();
+		pos.setBuildingId(1);
+		pos.setVertexId(vertexId);
+		pos.setLatitude(57.0 + vertexId * 1E-4);
+		pos.setLongitude(9.99);
+		pos.setProvider("Android Device Wifi");
+		pos.setClientId("client");
+		pos.setTime(time);
+		pos.setHasAccuracy(true);
+		pos.setAccuracy(2.5);
+		return pos;
+	}
+	
+	public void testBatchSize() throws Exception
+	{
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 10, 60 * 1000);
+		outbox.start();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 25; i++)
+			outbox.add(createPosition(i, now));
+		mUploader.awaitUploaded(20);
+		Thread.sleep(100);
+		
+		//The last 5 positions are neither enough for a batch nor old enough
+		Assert.assertEquals(2, mUploader.batches.size());
+		Assert.assertEquals(10, mUploader.batches.get(0).length);
+		Assert.assertEquals(5, outbox.getNumPending());
+		
+		outbox.flush();
+		mUploader.awaitUploaded(25);
+		Assert.assertEquals(0, outbox.getNumPending());
+		Assert.assertEquals(3, outbox.getNumUploads());
+		outbox.close();
+	}
+	
+	public void testMaxAge() throws Exception
+	{
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 100, 200);
+		outbox.start();
+		outbox.add(createPosition(1, System.currentTimeMillis()));
+		Thread.sleep(50);
+		Assert.assertEquals(0, mUploader.numUploaded());
+		mUploader.awaitUploaded(1);
+		Assert.assertEquals(1, mUploader.numUploaded());
+		outbox.close();
+	}
+	
+	public void testRetryWithBackoff() throws Exception
+	{
+		mUploader.offline = true;
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 2, 60 * 1000);
+		outbox.setBackoff(50, 100);
+		outbox.start();
+		outbox.add(createPosition(1, System.currentTimeMillis()));
+		outbox.add(createPosition(2, System.currentTimeMillis()));
+		Thread.sleep(400);
+		
+		//Attempts at 0, 50, 150, 250, 350 ms (at most)
+		Assert.assertTrue(outbox.getNumFailedUploads() >= 2);
+		Assert.assertTrue(outbox.getNumFailedUploads() <= 5);
+		Assert.assertEquals(2, outbox.getNumPending());
+		
+		synchronized (mUploader)
+		{
+			mUploader.offline = false;
+		}
+		mUploader.awaitUploaded(2);
+		Assert.assertEquals(1, mUploader.batches.size());
+		outbox.close();
+	}
+	
+	public void testUnexpectedFailure() throws Exception
+	{
+		mUploader.error = new IllegalStateException("unexpected response");
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 1, 60 * 1000);
+		outbox.setBackoff(50, 100);
+		outbox.start();
+		outbox.add(createPosition(1, System.currentTimeMillis()));
+		Thread.sleep(200);
+		
+		//The upload thread survives and retries with backoff
+		Assert.assertTrue(outbox.getNumFailedUploads() >= 2);
+		Assert.assertEquals(1, outbox.getNumPending());
+		synchronized (mUploader)
+		{
+			mUploader.error = null;
+		}
+		mUploader.awaitUploaded(1);
+		Assert.assertEquals(1, mUploader.numUploaded());
+		outbox.close();
+	}
+	
+	public void testCloseDuringUpload() throws Exception
+	{
+		final Object hang = new Object();
+		TrackingOutbox outbox = new TrackingOutbox(mFile, new TrackingOutbox.Uploader() {
+			public void upload(TrackedPosition[] positions) throws IOException {
+				synchronized (hang)
+				{
+					try
+					{
+						hang.wait();
+					}
+					catch (InterruptedException ex)
+					{
+						throw new IOException("interrupted");
+					}
+				}
+			}
+		}, 1, 60 * 1000);
+		outbox.start();
+		outbox.add(createPosition(1, System.currentTimeMillis()));
+		Thread.sleep(50);
+		
+		//close() does not wait for a hanging upload - and the position is kept for the next run
+		long start = System.currentTimeMillis();
+		outbox.close();
+		Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+		outbox = new TrackingOutbox(mFile, mUploader, 1, 60 * 1000);
+		Assert.assertEquals(1, outbox.getNumPending());
+		outbox.close();
+	}
+	
+	public void testRecovery() throws Exception
+	{
+		mUploader.offline = true;
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 3, 60 * 1000);
+		outbox.setBackoff(60 * 1000, 60 * 1000);
+		outbox.start();
+		for (int i = 0; i < 3; i++)
+			outbox.add(createPosition(i, 1000 + i));
+		Thread.sleep(100);
+		outbox.close();
+		
+		//A crash while appending a position leaves a partial record
+		RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+		long length = raf.length();
+		raf.seek(length);
+		raf.writeInt(100);
+		raf.writeInt(12345);
+		raf.write(new byte[20]);
+		raf.close();
+		
+		mUploader.offline = false;
+		outbox = new TrackingOutbox(mFile, mUploader, 3, 60 * 1000);
+		Assert.assertEquals(3, outbox.getNumRecovered());
+		Assert.assertEquals(length, mFile.length());
+		outbox.start();
+		mUploader.awaitUploaded(3);
+		TrackedPosition restored = mUploader.batches.get(0)[2];
+		Assert.assertEquals(2, restored.getVertexId());
+		Assert.assertEquals(1002, restored.getTime());
+		Assert.assertEquals(57.0002, restored.getLatitude(), 1E-9);
+		Assert.assertEquals("client", restored.getClientId());
+		Assert.assertTrue(restored.isHasAccuracy());
+		Assert.assertEquals(2.5, restored.getAccuracy(), 1E-9);
+		outbox.close();
+		
+		//Uploaded positions are not uploaded again
+		outbox = new TrackingOutbox(mFile, mUploader, 3, 60 * 1000);
+		Assert.assertEquals(0, outbox.getNumPending());
+		outbox.close();
+	}
+	
+	public void testCompaction() throws Exception
+	{
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 100, 60 * 1000);
+		outbox.start();
+		for (int i = 0; i < 3000; i++)
+			outbox.add(createPosition(i, System.currentTimeMillis()));
+		mUploader.awaitUploaded(3000);
+		outbox.close();
+		Assert.assertTrue(mFile.length() < 64 * 1024);
+	}
+	
+	public void testOverflow() throws Exception
+	{
+		TrackingOutbox outbox = new TrackingOutbox(mFile, mUploader, 100, 60 * 1000, 5);
+		for (int i = 0; i < 8; i++)
+			outbox.add(createPosition(i, 1000 + i));
+		Assert.assertEquals(5, outbox.getNumPending());
+		Assert.assertEquals(3, outbox.getNumDropped());
+		outbox.close();
+		
+		outbox = new TrackingOutbox(mFile, mUploader, 100, 60 * 1000, 5);
+		outbox.start();
+		outbox.flush();
+		mUploader.awaitUploaded(5);
+		Assert.assertEquals(3, mUploader.batches.get(0)[0].getVertexId());
+		outbox.close();
+	}
+	
+	public void testCoalesce() throws Exception
+	{
+		TrackedPosition[] positions = new TrackedPosition[] {
+				createPosition(1, 1), createPosition(1, 2), createPosition(1, 3), createPosition(1, 4),
+				createPosition(2, 5), createPosition(1, 6), createPosition(1, 7) };
+		List<TrackedPosition> coalesced = TrackingOutbox.coalesce(positions);
+		Assert.assertEquals(5, coalesced.size());
+		long[] expectedTimes = new long[] { 1, 4, 5, 6, 7 };
+		for (int i = 0; i < expectedTimes.length; i++)
+			Assert.assertEquals(expectedTimes[i], coalesced.get(i).getTime());
+	}
+}
@@ -0,0 +1,389 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.SymbolicLocation;
+import com.smartcampus.indoormodel.SymbolicLocation.InfoType;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.Histogram;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * Reads a radio map from the Atom feed returned by the RemoveNonCollectiveMeasurements service operation 
+ * (with Edges, Vertices and their locations, measurements and histograms expanded) in a single forward pass. 
+ * This is the pull parser counterpart of DomWebClient's DOM traversal: It yields the same building, but the 
+ * feed is never materialized, so peak memory stays close to the size of the resulting model (cf. JsonRadioMapParser). 
+ */
+public class AtomRadioMapParser {
+	
+	private static final String FEED 	= "feed";
+	private static final String ENTRY 	= "entry";
+	private static final String LINK 	= "link";
+	private static final String INLINE 	= "m:inline";
+	private static final String CONTENT = "content";
+	//Properties are named d:<property>, e.g., <d:ID m:type="Edm.Int32">2</d:ID>
+	private static final String PROPERTY_PREFIX = "d:";
+	
+	//MAC addresses recur in (almost) every measurement, so we keep a single instance of each
+	private HashMap<String, String> mMacs = new HashMap<String, String>();
+	//The properties of the element being read (reused for every entry). Empty and null (m:null) properties are mapped to null
+	private HashMap<String, String> mProperties = new HashMap<String, String>();
+	
+	/**
+	 * @return The building of the response including its graph, i.e., the radio map. 
+	 * The response may either be a feed (e.g., RemoveNonCollectiveMeasurements?building_id=4) or a single entry (e.g., Buildings(4))
+	 */
+	public Building parse(InputStream in) throws IOException
+	{
+		try
+		{
+			XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+			//Without namespace processing element names are reported as they appear in the feed, e.g., 'd:ID' and 'm:inline'
+			factory.setNamespaceAware(false);
+			XmlPullParser parser = factory.newPullParser();
+			parser.setInput(in, null);
+			
+			int event = parser.next();
+			while (event != XmlPullParser.START_TAG && event != XmlPullParser.END_DOCUMENT)
+				event = parser.next();
+			if (event == XmlPullParser.START_TAG && parser.getName().equals(FEED))
+			{
+				if (!enterChild(parser, ENTRY))
+					event = XmlPullParser.END_DOCUMENT;
+			}
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("The response contains no building");
+			return readBuilding(parser);
+		}
+		catch (XmlPullParserException ex)
+		{
+			throw new IOException("Malformed radio map feed: " + ex.getMessage());
+		}
+	}
+	
+	private Building readBuilding(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		Building newBuilding = new Building();
+		List<ShallowEdge> shallowEdges = new ArrayList<ShallowEdge>();
+		//Edges are resolved when the graph is built, so the order of 'Edges' and 'Vertices' does not matter
+		GraphBuilder g = new GraphBuilder();
+		
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth))
+		{
+			if (isLink(parser, ODataProperties.Vertex.ENTITY_NAME))
+			{
+				if (enterInlineFeed(parser))
+				{
+					int feedDepth = parser.getDepth();
+					while (nextChild(parser, feedDepth))
+						if (parser.getName().equals(ENTRY))
+							g.addVertex(readVertex(parser));
+				}
+			}
+			else if (isLink(parser, ODataProperties.Edge.ENTITY_NAME))
+			{
+				if (enterInlineFeed(parser))
+				{
+					int feedDepth = parser.getDepth();
+					while (nextChild(parser, feedDepth))
+						if (parser.getName().equals(ENTRY))
+							shallowEdges.add(readShallowEdge(parser));
+				}
+			}
+			else if (parser.getName().equals(CONTENT))
+			{
+				readProperties(parser);
+				String strLat = getProperty(ODataProperties.Building.LATITUDE);
+				String strLon = getProperty(ODataProperties.Building.LONGITUDE);
+				
+				newBuilding.setBuildingID(Integer.parseInt(requireProperty(ODataProperties.Building.ID)));
+				newBuilding.setName(getProperty(ODataProperties.Building.NAME));
+				newBuilding.setIfcUrl(getProperty(ODataProperties.Building.IFC_URL));
+				newBuilding.setLatitude(strLat == null ? -1 : Double.parseDouble(strLat));
+				newBuilding.setLongitude(strLon == null ? -1 : Double.parseDouble(strLon));
+				newBuilding.setCountry(getProperty(ODataProperties.Building.COUNTRY));
+				newBuilding.setPostalCode(getProperty(ODataProperties.Building.POSTAL_CODE));
+				newBuilding.setMaxAddress(getProperty(ODataProperties.Building.MAX_ADDRESS));
+				newBuilding.setUrl(getProperty(ODataProperties.Building.URL));
+			}
+		}
+		
+		ShallowEdge.addUndirectionalEdges(g, shallowEdges);
+		newBuilding.setGraphModel(g.build());
+		return newBuilding;
+	}
+	
+	private ShallowEdge readShallowEdge(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		readProperties(parser);
+		
+		ShallowEdge newEdge = new ShallowEdge(
+				Integer.parseInt(requireProperty(ODataProperties.Edge.VERTEX_ORIGIN)),
+				Integer.parseInt(requireProperty(ODataProperties.Edge.VERTEX_DESTINATION)));
+		newEdge.setId(Integer.parseInt(requireProperty(ODataProperties.Edge.ID)));
+		//Account for nullable values
+		newEdge.setDirectional(getBooleanProperty(ODataProperties.Edge.IS_DIRECTIONAL));
+		newEdge.setStair(getBooleanProperty(ODataProperties.Edge.IS_STAIR));
+		newEdge.setElevator(getBooleanProperty(ODataProperties.Edge.IS_ELEVATOR));
+		return newEdge;
+	}
+	
+	private Vertex readVertex(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		int id = 0;
+		AbsoluteLocation absLoc = null;
+		SymbolicLocation symLoc = null;
+		List<WifiMeasurement> measurements = new ArrayList<WifiMeasurement>();
+		
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth))
+		{
+			if (isLink(parser, ODataProperties.AbsoluteLocation.ENTITY_NAME))
+			{
+				readProperties(parser);
+				if (getProperty(ODataProperties.AbsoluteLocation.LATITUDE) != null)
+				{
+					absLoc = new AbsoluteLocation(
+							Double.parseDouble(requireProperty(ODataProperties.AbsoluteLocation.LATITUDE)), 
+							Double.parseDouble(requireProperty(ODataProperties.AbsoluteLocation.LONGITUDE)), 
+							Double.parseDouble(requireProperty(ODataProperties.AbsoluteLocation.ALTITUDE)));
+				}
+			}
+			else if (isLink(parser, ODataProperties.SymbolicLocation.ENTITY_NAME))
+			{
+				//0..1 - the link is empty if the vertex has no symbolic location
+				readProperties(parser);
+				if (getProperty(ODataProperties.SymbolicLocation.ID) != null)
+					symLoc = createSymbolicLocation();
+			}
+			else if (isLink(parser, ODataProperties.WifiMeasurement.ENTITY_NAME))
+			{
+				if (enterInlineFeed(parser))
+				{
+					int feedDepth = parser.getDepth();
+					while (nextChild(parser, feedDepth))
+						if (parser.getName().equals(ENTRY))
+							measurements.add(readWifiMeasurement(parser));
+				}
+			}
+			else if (parser.getName().equals(CONTENT))
+			{
+				readProperties(parser);
+				id = Integer.parseInt(requireProperty(ODataProperties.Vertex.ID));
+			}
+		}
+		
+		if (absLoc == null)
+			throw new IOException("Vertex " + id + " has no absolute location");
+		
+		Vertex newVertex = new Vertex(id, absLoc);
+		if (symLoc != null)
+			newVertex.getLocation().setSymbolicLocation(symLoc);
+		//DomWebClient adds the fingerprints last to first - we do the same, so both yield the same radio map
+		for (int i = measurements.size() - 1; i >= 0; i--)
+			newVertex.addFingerprint(measurements.get(i));
+		return newVertex;
+	}
+	
+	private SymbolicLocation createSymbolicLocation()
+	{
+		final String na = "N/A";
+		String title       = getProperty(ODataProperties.SymbolicLocation.TITLE);
+		String description = getProperty(ODataProperties.SymbolicLocation.DESCRIPTION);
+		String url         = getProperty(ODataProperties.SymbolicLocation.URL);
+		String strInfo     = getProperty(ODataProperties.SymbolicLocation.INFO_TYPE);
+		int infoVal = 0;
+		try
+		{
+			infoVal = strInfo == null ? 0 : Integer.parseInt(strInfo);
+		}
+		catch (NumberFormatException ex) { }
+		
+		SymbolicLocation newSymbolicLocation = new SymbolicLocation(
+				Integer.parseInt(getProperty(ODataProperties.SymbolicLocation.ID)), 
+				title != null ? title : na, 
+				description != null ? description : na, 
+				url != null ? url : na);
+		newSymbolicLocation.setEntrance(getBooleanProperty(ODataProperties.SymbolicLocation.IS_ENTRANCE));
+		newSymbolicLocation.setType(InfoType.getValue(infoVal));
+		return newSymbolicLocation;
+	}
+	
+	private WifiMeasurement readWifiMeasurement(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		WifiMeasurement newWifiMeasurement = new WifiMeasurement();
+		
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth))
+		{
+			if (isLink(parser, ODataProperties.Histogram.ENTITY_NAME))
+			{
+				if (enterInlineFeed(parser))
+				{
+					int feedDepth = parser.getDepth();
+					while (nextChild(parser, feedDepth))
+					{
+						if (!parser.getName().equals(ENTRY))
+							continue;
+						readProperties(parser);
+						String mac = requireProperty(ODataProperties.Histogram.MAC);
+						newWifiMeasurement.setHistogram(new Histogram(-1, getMac(mac), 
+								Integer.parseInt(requireProperty(ODataProperties.Histogram.VALUE)), 
+								Integer.parseInt(requireProperty(ODataProperties.Histogram.COUNT))));
+					}
+				}
+			}
+			else if (parser.getName().equals(CONTENT))
+			{
+				readProperties(parser);
+				String startMeasStr = getProperty(ODataProperties.WifiMeasurement.MEAS_TIME_START);
+				String endMeasStr   = getProperty(ODataProperties.WifiMeasurement.MEAS_TIME_END);
+				Date startMeas = startMeasStr == null ? null : DomWebClient.decodeStringDate(startMeasStr);
+				Date endMeas   = endMeasStr   == null ? null : DomWebClient.decodeStringDate(endMeasStr);
+				newWifiMeasurement.setMeasTimeStart(startMeas);
+				newWifiMeasurement.setMeasTimeEnd(endMeas);
+			}
+		}
+		return newWifiMeasurement;
+	}
+	
+	/**
+	 * Reads the properties found anywhere below the current element (up to and including its end tag). 
+	 * As DomWebClient.getPropertyValue() the first occurrence of a property wins
+	 */
+	private void readProperties(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		mProperties.clear();
+		int depth = parser.getDepth();
+		while (true)
+		{
+			int event = parser.next();
+			if (event == XmlPullParser.START_TAG)
+			{
+				String name = parser.getName();
+				if (name.startsWith(PROPERTY_PREFIX) && !mProperties.containsKey(name))
+				{
+					String value = parser.nextText();
+					mProperties.put(name, value.length() == 0 ? null : value);
+				}
+			}
+			else if (event == XmlPullParser.END_TAG && parser.getDepth() == depth)
+			{
+				return;
+			}
+			else if (event == XmlPullParser.END_DOCUMENT)
+			{
+				throw new IOException("Unexpected end of radio map feed");
+			}
+		}
+	}
+	
+	private String getProperty(String name)
+	{
+		return mProperties.get(name);
+	}
+	
+	private boolean getBooleanProperty(String name)
+	{
+		String value = mProperties.get(name);
+		return value == null ? false : Boolean.parseBoolean(value);
+	}
+	
+	//Used for the values that MUST be present
+	private String requireProperty(String name) throws IOException
+	{
+		String value = mProperties.get(name);
+		if (value == null)
+			throw new IOException("Missing property " + name);
+		return value;
+	}
+	
+	private String getMac(String mac)
+	{
+		String res = mMacs.get(mac);
+		if (res == null)
+		{
+			mMacs.put(mac, mac);
+			res = mac;
+		}
+		return res;
+	}
+	
+	private static boolean isLink(XmlPullParser parser, String title)
+	{
+		return parser.getName().equals(LINK) && title.equalsIgnoreCase(parser.getAttributeValue(null, "title"));
+	}
+	
+	/**
+	 * Advances to the next child element of the element at the given depth. Any content of the current element is skipped.  
+	 * @return false if there are no more children, i.e., the parser is at the end tag of the parent
+	 */
+	private static boolean nextChild(XmlPullParser parser, int parentDepth) throws XmlPullParserException, IOException
+	{
+		while (true)
+		{
+			int event = parser.next();
+			if (event == XmlPullParser.START_TAG && parser.getDepth() == parentDepth + 1)
+				return true;
+			if (event == XmlPullParser.END_TAG && parser.getDepth() == parentDepth)
+				return false;
+			if (event == XmlPullParser.END_DOCUMENT)
+				throw new IOException("Unexpected end of radio map feed");
+		}
+	}
+	
+	//Advances to the first child element with the given name. Returns false if the current element has no such child
+	private static boolean enterChild(XmlPullParser parser, String name) throws XmlPullParserException, IOException
+	{
+		int depth = parser.getDepth();
+		while (nextChild(parser, depth))
+			if (parser.getName().equals(name))
+				return true;
+		return false;
+	}
+	
+	//Moves from a link (e.g., <link title="Vertices">) to its inlined feed: link/m:inline/feed
+	private static boolean enterInlineFeed(XmlPullParser parser) throws XmlPullParserException, IOException
+	{
+		return enterChild(parser, INLINE) && enterChild(parser, FEED);
+	}
+}
@@ -29,19 +29,22 @@ package com.smartcampus.webclient;
 
 import java.io.BufferedReader;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 //import android.text.format.DateFormat;
 
@@ -51,80 +54,188 @@ import com.smartcampus.tracking.TrackedPosition;
 import com.smartcampus.wifi.WifiMeasurement;
 
 public class BatchUpdater {
-		
-	private static String batchPost(String categoryTerm, String collectionName, Iterable<String> entries) throws ClientProtocolException, IOException
+	
+	private static final String BATCH = "batch_1";
+	private static final String CHANGESET = "changeset_77162fcd";
+	private static final String NEWLINE = "\n";
+	private static final String ENTRY_FOOTER = 
+			"    </m:properties>" + NEWLINE + 
+			"  </content>" + NEWLINE + 
+			"</entry>" + NEWLINE + NEWLINE;
+	
+	//Large batches are split into several requests (of one changeset each) of at most this many entries..
+	private static final int MAX_ENTRIES_PER_REQUEST = 250;
+	//..and at most (approximately) this many bytes
+	private static final int MAX_REQUEST_BYTES = 256 * 1024;
+	//The number of requests of a batch that are sent in parallel
+	private static final int MAX_PARALLEL_REQUESTS = 2;
+	
+	/**
+	 * Posts the entries as OData batch requests. 
+	 * The requests are streamed to the connection, so a request is never held in memory as a whole. 
+	 * NB: A large batch is split into several requests (each being a changeset of its own), so if one fails the others may still have been saved. 
+	 */
+	private static String batchPost(String categoryTerm, String collectionName, List<String> entries) throws IOException
 	{    	
     	String successMsg = "ok";
-    	final String batch = "batch_1";
-    	final String changeSet = "changeset_77162fcd";
-    	final String newLine = "\n";
-    	//final String radioMapSvc = ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI;
+    	//The envelope of an entry (i.e., everything but its properties) is the same for all entries
+    	final String entryHeader = createEntryHeader(categoryTerm, collectionName);
+    	List<List<String>> requests = splitEntries(entries, entryHeader.length() + ENTRY_FOOTER.length());
+    	if (requests.size() == 1)
+    	{
+    		postChangeSet(entryHeader, requests.get(0));
+    		return successMsg;
+    	}
     	
-    	// Create a new HttpClient and Post Header
-	    HttpClient httpclient = new DefaultHttpClient();
-	    HttpPost post = new HttpPost(ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "/$batch"); 
-	    post.addHeader("content-type", "multipart/mixed;boundary=" + batch);
-	    
-	    //Create the batch post
-        StringBuffer sb = new StringBuffer();
-        //batch_1
-        sb.append("--").append(batch).append(newLine);
-        sb.append("Content-Type: multipart/mixed;boundary=" + changeSet).append(newLine).append(newLine);
-                
-        for (String content : entries)
-        {
-	        //changeset_1
-	        sb.append("--").append(changeSet).append(newLine);
-	        sb.append("Content-Type: application/http").append(newLine);
-	        sb.append("Content-Transfer-Encoding: binary").append(newLine).append(newLine);
-	        
-	        sb.append("POST " + ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "/" + collectionName + " HTTP/1.1").append(newLine);
-	        sb.append("accept: application/atom+xml").append(newLine);
-	        sb.append("Content-Type: application/atom+xml;type=entry").append(newLine).append(newLine);
-	        
-	        //<AtomPub representation of entity 	        	        
-	        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>").append(newLine);	        
-	        sb.append("<entry xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\"").append(newLine);
-	        sb.append("  xml:base=\"" + ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "\"").append(newLine);
-	        sb.append("  xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\"").append(newLine);
-	        sb.append("  xmlns=\"http://www.w3.org/2005/Atom\">").append(newLine);
-	                
-	        sb.append("  <title type=\"text\"></title>").append(newLine);    
-			sb.append("  <updated>2011-11-27T15:59:56Z</updated>").append(newLine); //dummy date   
-			sb.append("  <author>").append("<name/>").append("</author>").append(newLine);   
-			sb.append("  <category term=\"radiomapModel." + categoryTerm + "\" scheme=\"http://schemas.microsoft.com/ado/2007/08/dataservices/scheme\" />").append(newLine);
-			sb.append("  <content type=\"application/xml\">").append(newLine);
-			sb.append("    <m:properties>").append(newLine);
-			
-			sb.append(content);
-						
-			sb.append("    </m:properties>").append(newLine);
-			sb.append("  </content>").append(newLine);
-			sb.append("</entry>").append(newLine).append(newLine);		
-        }
-        
-        //closing delimeters
-		sb.append("--").append(changeSet).append("--").append(newLine);
-        sb.append("--").append(batch).append("--");
-        
-        String entity = sb.toString();
-        
-        //try to post the data
-        //May throw ClientProtocolException and IOException
-    	StringEntity se = new StringEntity(entity); //UnsupportedEncodingException (subclass af ClientProtocolException?)
-    
-        post.setEntity(se);
-        // Execute HTTP Post Request
-        HttpResponse response = httpclient.execute(post); //ClientProtocolException, IOException
-        
-        //NOTE: WE used to return the response (but we didn't use it for anything upstream)
-        //msg = writeResponse(response);	       
-	    writeResponse(response);  
+    	ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_REQUESTS, requests.size()));
+    	try
+    	{
+    		List<Future<Void>> results = new ArrayList<Future<Void>>(requests.size());
+    		for (final List<String> request : requests)
+    		{
+    			results.add(executor.submit(new Callable<Void>() {
+    				public Void call() throws IOException {
+    					postChangeSet(entryHeader, request);
+    					return null;
+    				}
+    			}));
+    		}
+    		for (Future<Void> result : results)
+    		{
+    			try
+    			{
+    				result.get();
+    			}
+    			catch (InterruptedException ex)
+    			{
+    				throw new InterruptedIOException("Interrupted while posting batch");
+    			}
+    			catch (ExecutionException ex)
+    			{
+    				if (ex.getCause() instanceof IOException)
+    					throw (IOException)ex.getCause();
+    				throw new RuntimeException(ex.getCause());
+    			}
+    		}
+    	}
+    	finally
+    	{
+    		executor.shutdownNow();
+    	}
         
 	    //We will always return "ok" - unless an exception occured
 	    return successMsg; 
 	}
 	
+	//Splits the entries into requests of at most MAX_ENTRIES_PER_REQUEST entries and (approximately) MAX_REQUEST_BYTES bytes
+	private static List<List<String>> splitEntries(List<String> entries, int entryOverhead)
+	{
+		List<List<String>> result = new ArrayList<List<String>>();
+		int start = 0, size = 0;
+		for (int i = 0; i < entries.size(); i++)
+		{
+			int entrySize = entryOverhead + entries.get(i).length();
+			if (i > start && (i - start == MAX_ENTRIES_PER_REQUEST || size + entrySize > MAX_REQUEST_BYTES))
+			{
+				result.add(entries.subList(start, i));
+				start = i;
+				size = 0;
+			}
+			size += entrySize;
+		}
+		result.add(entries.subList(start, entries.size()));
+		return result;
+	}
+	
+	//The AtomPub representation of an entity (up to its properties)
+	private static String createEntryHeader(String categoryTerm, String collectionName)
+	{
+		StringBuilder sb = new StringBuilder();
+		//changeset_1
+        sb.append("--").append(CHANGESET).append(NEWLINE);
+        sb.append("Content-Type: application/http").append(NEWLINE);
+        sb.append("Content-Transfer-Encoding: binary").append(NEWLINE).append(NEWLINE);
+        
+        sb.append("POST " + ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "/" + collectionName + " HTTP/1.1").append(NEWLINE);
+        sb.append("accept: application/atom+xml").append(NEWLINE);
+        sb.append("Content-Type: application/atom+xml;type=entry").append(NEWLINE).append(NEWLINE);
+        
+        //<AtomPub representation of entity 	        	        
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>").append(NEWLINE);	        
+        sb.append("<entry xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\"").append(NEWLINE);
+        sb.append("  xml:base=\"" + ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "\"").append(NEWLINE);
+        sb.append("  xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\"").append(NEWLINE);
+        sb.append("  xmlns=\"http://www.w3.org/2005/Atom\">").append(NEWLINE);
+                
+        sb.append("  <title type=\"text\"></title>").append(NEWLINE);    
+		sb.append("  <updated>2011-11-27T15:59:56Z</updated>").append(NEWLINE); //dummy date   
+		sb.append("  <author>").append("<name/>").append("</author>").append(NEWLINE);   
+		sb.append("  <category term=\"radiomapModel." + categoryTerm + "\" scheme=\"http://schemas.microsoft.com/ado/2007/08/dataservices/scheme\" />").append(NEWLINE);
+		sb.append("  <content type=\"application/xml\">").append(NEWLINE);
+		sb.append("    <m:properties>").append(NEWLINE);
+		return sb.toString();
+	}
+	
+	//Posts the entries as a single changeset
+	private static void postChangeSet(final String entryHeader, final List<String> entries) throws IOException
+	{
+		HttpTransport.Response response = HttpTransport.getDefault().post(ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "/$batch", 
+				"multipart/mixed;boundary=" + BATCH, new HttpTransport.BodyWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8 * 1024);
+				//batch_1
+				writer.write("--" + BATCH + NEWLINE);
+				writer.write("Content-Type: multipart/mixed;boundary=" + CHANGESET + NEWLINE + NEWLINE);
+				for (String content : entries)
+				{
+					writer.write(entryHeader);
+					writer.write(content);
+					writer.write(ENTRY_FOOTER);
+				}
+				//closing delimeters
+				writer.write("--" + CHANGESET + "--" + NEWLINE);
+				writer.write("--" + BATCH + "--");
+				writer.flush();
+			}
+		});
+		
+		int status = response.getStatusCode();
+		if (status < 200 || status >= 300)
+		{
+			response.close();
+			throw new IOException("The batch was not accepted: " + status);
+		}
+		//NOTE: WE used to return the response (but we didn't use it for anything upstream)
+		//msg = writeResponse(response);	       
+		String msg = writeResponse(response);
+		//A failed changeset is reported inside the (202) batch response
+		int changeSetStatus = getChangeSetStatus(msg);
+		if (changeSetStatus >= 400)
+			throw new IOException("The changeset was not accepted: " + changeSetStatus);
+	}
+	
+	//The first error status (>= 400) of the operations in a batch response - or 0 if there is none
+	private static int getChangeSetStatus(String batchResponse)
+	{
+		int index = batchResponse.indexOf("HTTP/1.1 ");
+		while (index != -1)
+		{
+			int start = index + "HTTP/1.1 ".length();
+			if (start + 3 <= batchResponse.length())
+			{
+				try
+				{
+					int status = Integer.parseInt(batchResponse.substring(start, start + 3));
+					if (status >= 400)
+						return status;
+				}
+				catch (NumberFormatException ex) { }
+			}
+			index = batchResponse.indexOf("HTTP/1.1 ", start);
+		}
+		return 0;
+	}
+	
 	private static List<String> createBuilding_MacInfoEntries(List<String> macs, int buildingId)
     {		
 		//We are just saving the macs currently
@@ -228,9 +339,6 @@ public class BatchUpdater {
 		{
 			try {
 				msg = batchPost(categoryTerm, collectionName, entries);
-			} catch (ClientProtocolException e) {
-				msg = e.getMessage();
-				//e.printStackTrace();
 			} catch (IOException e) {
 				msg = e.getMessage();
 				//e.printStackTrace();
@@ -249,9 +357,6 @@ public class BatchUpdater {
         {
         	try {
 				msg = batchPost(categoryTerm, collectionName, entries);
-			} catch (ClientProtocolException e) {
-				msg = e.getMessage();
-				//e.printStackTrace();
 			} catch (IOException e) {
 				msg = e.getMessage();
 				//e.printStackTrace();
@@ -263,16 +368,11 @@ public class BatchUpdater {
 	public static String updateTrackedPositions(TrackedPosition[] trackedPositions)
 	{
 		String msg = null;
-		String categoryTerm = "TrackedPosition";
-        String collectionName = "TrackedPositions";
-        List<String> entries = createTrackedPositionEntries(trackedPositions);
-        if (entries.size() > 0)
+        if (trackedPositions.length > 0)
         {
         	try {
-				msg = batchPost(categoryTerm, collectionName, entries);
-			} catch (ClientProtocolException e) {
-				msg = e.getMessage();
-				//e.printStackTrace();
+				postTrackedPositions(trackedPositions);
+				msg = "ok";
 			} catch (IOException e) {
 				msg = e.getMessage();
 				//e.printStackTrace();
@@ -281,14 +381,26 @@ public class BatchUpdater {
         return msg;
 	}
 	
-	private static String writeResponse(HttpResponse response) throws IOException {
+	/**
+	 * Like updateTrackedPositions() but failures are reported as exceptions (so they can be retried, cf. TrackingOutbox)
+	 */
+	public static void postTrackedPositions(TrackedPosition[] trackedPositions) throws IOException
+	{
+		String categoryTerm = "TrackedPosition";
+        String collectionName = "TrackedPositions";
+        List<String> entries = createTrackedPositionEntries(trackedPositions);
+        if (entries.size() > 0)
+        	batchPost(categoryTerm, collectionName, entries);
+	}
+	
+	private static String writeResponse(HttpTransport.Response response) throws IOException {
 		IOException ioException = null;
 		
 		String msg = null;
 		BufferedReader in = null;
 		try
 		{			
-			in = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
+			in = new BufferedReader(new InputStreamReader(response.getContent()));
 			StringBuffer sb = new StringBuffer("");
 			String line = "";
 			String NL = System.getProperty("line.separator");
@@ -312,6 +424,8 @@ public class BatchUpdater {
 					e.printStackTrace();
 				}
 	    	}
+	    	//Releases the request slot (a no-op if the stream was closed)
+	    	response.close();
 	    	if (ioException != null)
 	    	{
 	    		throw ioException;
@@ -0,0 +1,72 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.IOException;
+
+import com.smartcampus.tracking.TrackedPosition;
+import com.smartcampus.tracking.TrackedPositionCodec;
+import com.smartcampus.tracking.TrackingOutbox;
+
+/**
+ * Uploads tracked positions in the compact binary format (cf. TrackedPositionCodec) 
+ * instead of as OData batches of Atom entries (cf. BatchUpdater.postTrackedPositions()). 
+ * This requires a backend endpoint that decodes the format (cf. ConnectionInfo.SMARTCAMPUS_COMPACT_TRACKING_URI). 
+ */
+public class CompactTrackingClient implements TrackingOutbox.Uploader {
+	
+	private final String mUri;
+	private final HttpTransport mTransport;
+	
+	public CompactTrackingClient(String uri)
+	{
+		this(uri, HttpTransport.getDefault());
+	}
+	
+	public CompactTrackingClient(String uri, HttpTransport transport)
+	{
+		this.mUri = uri;
+		this.mTransport = transport;
+	}
+	
+	public void upload(TrackedPosition[] positions) throws IOException
+	{
+		if (positions.length == 0)
+			return;
+		HttpTransport.Response response = mTransport.post(mUri, TrackedPositionCodec.CONTENT_TYPE, TrackedPositionCodec.encode(positions));
+		try
+		{
+			int status = response.getStatusCode();
+			if (status < 200 || status >= 300)
+				throw new IOException("Tracked positions were not accepted: " + status);
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+}
@@ -35,4 +35,8 @@ public class ConnectionInfo {
 	public static final String SMARTCAMPUS_SERVICE_ROOT_URI = "http://beacon.uhk.cz/RadioMapService3/RadioMapService.svc/";
 
 	public static final String SMARTCAMPUS_SNIFFER_SERVICE_URI = "http://beacon.uhk.cz/WifiSnifferPositioningService/SnifferService.svc/";
+	
+	//An endpoint accepting tracked positions in the compact binary format (cf. CompactTrackingClient). 
+	//Null as long as the backend only accepts tracked positions as OData (Atom) entries
+	public static final String SMARTCAMPUS_COMPACT_TRACKING_URI = null;
 }
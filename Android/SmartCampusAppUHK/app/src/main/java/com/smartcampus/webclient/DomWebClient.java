@@ -30,8 +30,6 @@ package com.smartcampus.webclient;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -80,40 +78,28 @@ public class DomWebClient implements IWebClient {
 	}
 
 	/* Used to open an http connection to a given url
-     * 1) To open a connection to a server, you first create an instance of the URL class and initialize it with the URL of the server.
-     * 2) When the connection is established, you pass this connection to an URLConnection object.
-     * 3) You then verify whether the protocol is indeed HTTP; if not you will throw an IOException. 
-     * 4) The URLConnection object is then cast into an HttpURLConnection object and you set the various properties of the HTTP connection.
-     * 5) Next, you connect to the HTTP server and get a response from the server. 
-     * 6) If the response code is HTTP_OK, you then get the InputStream object from the connection so that you can begin to read incoming data from the server.
-     * 7) The function then returns the InputStream object obtained. 
+     * The connection itself is handled by the shared HttpTransport (pooling, gzip, timeouts). 
+     * If the response code is HTTP_OK, the InputStream of the response is returned so that you can begin to read incoming data from the server.
      * */
     private static InputStream OpenHttpConnection(String urlString) 
     	throws IOException
     {
         InputStream in = null;
-        int response = -1;
-               
-        URL url = new URL(urlString); 
-        URLConnection conn = url.openConnection();
-                 
-        if (!(conn instanceof HttpURLConnection))                     
-            throw new IOException("Not an HTTP connection");
-        
+        HttpTransport.Response response = null;
         try{
-            HttpURLConnection httpConn = (HttpURLConnection) conn;
-            httpConn.setAllowUserInteraction(false);
-            httpConn.setInstanceFollowRedirects(true);
-            httpConn.setRequestMethod("GET");
-            httpConn.connect(); 
-
-            response = httpConn.getResponseCode();                 
-            if (response == HttpURLConnection.HTTP_OK) {
-                in = httpConn.getInputStream();                                 
-            }                     
+        	//The shared transport pools the connection and decompresses the (gzip'ed) feed. Closing the stream closes the response.
+            response = HttpTransport.getDefault().get(urlString, null);
+            if (response.getStatusCode() == HttpURLConnection.HTTP_OK) {
+                in = response.getContent();                                 
+            }
+            else {
+            	response.close();
+            }
         }
         catch (Exception ex)
         {
+        	if (response != null)
+        		response.close();
             throw new IOException("Error connecting");            
         }
         return in;     
@@ -533,7 +519,7 @@ public class DomWebClient implements IWebClient {
 	 * 2 0 1 1 - 0 9 - 1 6 T  0  0  :  0  1  :  1  0  <- entries 
 	 * 0 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 <-index no.'s
 	*/
-    private Date decodeStringDate(String input)
+    static Date decodeStringDate(String input)
 	{
 		if (input == null)
 			return null;		
@@ -567,6 +553,11 @@ public class DomWebClient implements IWebClient {
 		return b;		
 	}		
 	
+	public RadioMapDelta downloadRadioMapChanges(int buildingId, String version) {
+		//Delta sync is not supported - always download the full radio map
+		return null;
+	}
+	
 	/*
 	 * The remainder of this class is used to download a building in XML format and
 	 * the parse the input of a constructed Document Object Model. 
@@ -583,32 +574,51 @@ public class DomWebClient implements IWebClient {
 		InputStream in = null;
         try {
             in = OpenHttpConnection(url);
-            
-            Document doc = null;
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db;
-            
-            try {
-                db = dbf.newDocumentBuilder();
-                doc = db.parse(in);
-            }
-            catch (ParserConfigurationException e) { }
-            catch (SAXException e) { }        
-            
-            Node root = doc.getFirstChild();
-            
-            if (isFeed(root))
-            	root = getBuildingRootForFeed(root);
-            result = createBuilding(root);
-            
-        
+            if (in != null)
+            	result = parseRadioMap(in);
         } catch (Exception e1)
         {
         	e1.printStackTrace();        	
         }
+        finally
+        {
+        	//Returns the connection to the shared transport
+        	if (in != null)
+        		try { in.close(); } catch (IOException ex) { }
+        }
         return result;
     }
 	
+	/**
+	 * Builds the radio map from a RemoveNonCollectiveMeasurements feed or a single building entry. 
+	 * The response is read into a DOM before the building is created, i.e., the whole feed is kept in memory 
+	 * (see XmlPullWebClient for a single pass alternative).
+	 */
+	public Building parseRadioMap(InputStream in) throws IOException
+	{
+		Document doc = null;
+		try {
+			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			doc = db.parse(in);
+		}
+		catch (ParserConfigurationException e) { 
+			throw new IOException(e.getMessage());
+		}
+		catch (SAXException e) { 
+			throw new IOException("Malformed radio map feed: " + e.getMessage());
+		}
+		
+		Node root = doc.getFirstChild();
+		if (isFeed(root))
+			root = getBuildingRootForFeed(root);
+		try {
+			return createBuilding(root);
+		}
+		catch (UnexpectedNodeException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
 	public int getBuildingIdFromMacs(List<String> macs) {
 		// TODO Auto-generated method stub
 		return -1;
@@ -819,7 +829,7 @@ public class DomWebClient implements IWebClient {
 	/*
      * A given part of a date string (month, minute, etc.) may have a leading zero which this method removes.
      */
-	private int parseAndRemoveLeadingZero(String input)
+	private static int parseAndRemoveLeadingZero(String input)
 	{
 		int result;
 		if (input.charAt(0) == '0')
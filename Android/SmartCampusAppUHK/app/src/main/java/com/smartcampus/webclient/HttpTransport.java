@@ -0,0 +1,611 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP transport shared by the web clients (JsonWebClient, DomWebClient, BatchUpdater and the sniffer backend client): 
+ * - Connections are kept alive and reused (HttpURLConnection pools idle connections per host, cf. the http.maxConnections property). 
+ *   A connection is only returned to the pool once its response has been read to the end, so responses must always be closed (cf. Response.close()). 
+ * - Responses are requested gzip-compressed and are decompressed as they stream in. 
+ * - Request bodies can be streamed (chunked) to the connection, cf. post(String, String, BodyWriter). 
+ * - The number of concurrent requests is bounded - a request blocks until a slot is free (and holds it until its response is closed). 
+ * - Connect and read timeouts. 
+ * - Requests, latency (time to the response headers) and bytes are counted per endpoint, i.e., per service operation (cf. getEndpoint()). 
+ */
+public class HttpTransport {
+	
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+	
+	public static final String ACCEPT_JSON = "application/json";
+	
+	//We read at most this much of an unread response in order to reuse its connection
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+	
+	//The chunk size of streamed request bodies
+	private static final int CHUNK_SIZE = 8 * 1024;
+	
+	private static HttpTransport cDefault;
+	
+	/**
+	 * @return The transport shared by all web clients
+	 */
+	public static synchronized HttpTransport getDefault()
+	{
+		if (cDefault == null)
+			cDefault = new HttpTransport(DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		return cDefault;
+	}
+	
+	/**
+	 * @return The endpoint (service operation) of a url, i.e., its last path segment, e.g., "GetPosition" for ../SnifferService.svc/GetPosition?clientMac=..
+	 */
+	public static String getEndpoint(String url)
+	{
+		int end = url.indexOf('?');
+		if (end < 0)
+			end = url.length();
+		while (end > 0 && url.charAt(end - 1) == '/')
+			end--;
+		int start = url.lastIndexOf('/', end - 1) + 1;
+		return url.substring(start, end);
+	}
+	
+	private final Semaphore mRequestSlots;
+	private final int mConnectTimeout, mReadTimeout;
+	private final Map<String, EndpointStats> mStats = new HashMap<String, EndpointStats>();
+	//The connections of the requests in progress (until their responses are closed), cf. abort()
+	private final Set<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+	//Guarded by mConnections, cf. close()
+	private boolean mClosed;
+	
+	/**
+	 * @param maxConcurrentRequests The maximum number of requests (including the reading of their responses) in progress at a time
+	 * @param connectTimeout The connect timeout in milliseconds
+	 * @param readTimeout The read timeout in milliseconds
+	 */
+	public HttpTransport(int maxConcurrentRequests, int connectTimeout, int readTimeout)
+	{
+		this.mRequestSlots = new Semaphore(maxConcurrentRequests, true);
+		this.mConnectTimeout = connectTimeout;
+		this.mReadTimeout = readTimeout;
+	}
+	
+	public Response get(String url, String accept) throws IOException
+	{
+		return get(url, accept, null);
+	}
+	
+	/**
+	 * Sends a GET request
+	 * @param accept The accept header (null for the server's default representation)
+	 * @param ifNoneMatch If not null, the request is conditional, i.e., the server responds 304 (Not Modified) if its version (ETag) matches
+	 * @return The response, which the caller must close
+	 */
+	public Response get(String url, String accept, String ifNoneMatch) throws IOException
+	{
+		HashMap<String, String> headers = new HashMap<String, String>();
+		if (accept != null)
+			headers.put("accept", accept);
+		if (ifNoneMatch != null)
+			headers.put("If-None-Match", ifNoneMatch);
+		return execute("GET", url, headers, null, 0);
+	}
+	
+	/**
+	 * Sends a POST request
+	 * @return The response, which the caller must close
+	 */
+	public Response post(String url, String contentType, final byte[] body) throws IOException
+	{
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", contentType);
+		return execute("POST", url, headers, new BodyWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(body);
+			}
+		}, body.length);
+	}
+	
+	/**
+	 * Sends a POST request whose body is streamed (chunked) to the connection as it is written, i.e., without buffering it first
+	 * @return The response, which the caller must close
+	 */
+	public Response post(String url, String contentType, BodyWriter body) throws IOException
+	{
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", contentType);
+		return execute("POST", url, headers, body, -1);
+	}
+	
+	/**
+	 * Writes a request body 
+	 */
+	public interface BodyWriter
+	{
+		/**
+		 * @param out The request stream (the caller closes it)
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * @param contentLength The length of the body - or -1 if unknown, in which case it is sent chunked
+	 */
+	private Response execute(String method, String url, Map<String, String> headers, BodyWriter body, long contentLength) throws IOException
+	{
+		EndpointStats stats = getStats(getEndpoint(url));
+		try
+		{
+			mRequestSlots.acquire();
+		}
+		catch (InterruptedException ex)
+		{
+			throw new InterruptedIOException("Interrupted while waiting for a request slot");
+		}
+		
+		long start = System.nanoTime();
+		HttpURLConnection httpConn = null;
+		try
+		{
+			URLConnection conn = new URL(url).openConnection();
+			if (!(conn instanceof HttpURLConnection))
+				throw new IOException("Not an HTTP connection");
+			
+			httpConn = (HttpURLConnection)conn;
+			synchronized (mConnections)
+			{
+				//Checked as the connection is registered, so a request that starts while close() runs cannot escape it
+				if (mClosed)
+					throw new IOException("The transport is closed");
+				mConnections.add(httpConn);
+			}
+			httpConn.setConnectTimeout(mConnectTimeout);
+			httpConn.setReadTimeout(mReadTimeout);
+			httpConn.setAllowUserInteraction(false);
+			httpConn.setInstanceFollowRedirects(true);
+			httpConn.setRequestMethod(method);
+			//NB: As we ask for gzip ourselves, the response is not decompressed transparently, cf. Response.getContent()
+			httpConn.setRequestProperty("Accept-Encoding", "gzip");
+			for (Map.Entry<String, String> header : headers.entrySet())
+				httpConn.setRequestProperty(header.getKey(), header.getValue());
+			
+			if (body != null)
+			{
+				httpConn.setDoOutput(true);
+				if (contentLength >= 0)
+					httpConn.setFixedLengthStreamingMode((int)contentLength);
+				else
+					httpConn.setChunkedStreamingMode(CHUNK_SIZE);
+				CountingOutputStream out = new CountingOutputStream(httpConn.getOutputStream());
+				try
+				{
+					body.writeTo(out);
+				}
+				finally
+				{
+					out.close();
+					stats.addBytesSent(out.getCount());
+				}
+			}
+			
+			int status = httpConn.getResponseCode();
+			stats.addResponse(System.nanoTime() - start);
+			return new Response(httpConn, status, stats);
+		}
+		catch (IOException ex)
+		{
+			stats.addFailure();
+			release(httpConn);
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			stats.addFailure();
+			boolean aborted = release(httpConn);
+			//HttpURLConnection may fail with a RuntimeException when disconnected by another thread
+			if (aborted)
+				throw new IOException("The request was aborted");
+			throw ex;
+		}
+	}
+	
+	//Frees the request slot of a finished request - and returns true if the request was aborted
+	private boolean release(HttpURLConnection conn)
+	{
+		boolean aborted = false;
+		if (conn != null)
+		{
+			synchronized (mConnections)
+			{
+				aborted = !mConnections.remove(conn);
+			}
+		}
+		mRequestSlots.release();
+		return aborted;
+	}
+	
+	/**
+	 * Aborts the requests in progress by disconnecting their connections, i.e., a request that is blocked waiting for 
+	 * (or reading) its response fails with an IOException right away. The transport can still be used afterwards. 
+	 */
+	public void abort()
+	{
+		List<HttpURLConnection> conns;
+		synchronized (mConnections)
+		{
+			conns = new ArrayList<HttpURLConnection>(mConnections);
+			mConnections.clear();
+		}
+		for (HttpURLConnection conn : conns)
+			conn.disconnect();
+	}
+	
+	/**
+	 * Aborts the requests in progress (cf. abort()) and makes all later requests fail with an IOException right away. 
+	 * Unlike abort(), it also stops a request that is just being started on another thread. 
+	 */
+	public void close()
+	{
+		synchronized (mConnections)
+		{
+			mClosed = true;
+		}
+		abort();
+	}
+	
+	public synchronized EndpointStats getStats(String endpoint)
+	{
+		EndpointStats res = mStats.get(endpoint);
+		if (res == null)
+		{
+			res = new EndpointStats(endpoint);
+			mStats.put(endpoint, res);
+		}
+		return res;
+	}
+	
+	public synchronized List<EndpointStats> getAllStats()
+	{
+		return new ArrayList<EndpointStats>(mStats.values());
+	}
+	
+	/**
+	 * A response of the transport. It holds a request slot (and its connection) until it is closed. 
+	 */
+	public class Response
+	{
+		private final HttpURLConnection mConnection;
+		private final int mStatusCode;
+		private final EndpointStats mStats;
+		private CountingInputStream mRawContent;
+		//The decompressing stream (null if the body is not compressed) - it holds a native Inflater until it is closed
+		private GZIPInputStream mGzipContent;
+		private InputStream mContent;
+		private boolean mIsClosed;
+		
+		private Response(HttpURLConnection connection, int statusCode, EndpointStats stats)
+		{
+			this.mConnection = connection;
+			this.mStatusCode = statusCode;
+			this.mStats = stats;
+		}
+		
+		public int getStatusCode()
+		{
+			return mStatusCode;
+		}
+		
+		public String getHeader(String name)
+		{
+			return mConnection.getHeaderField(name);
+		}
+		
+		/**
+		 * @return The (decompressed) body of the response. Closing it closes the response. 
+		 */
+		public synchronized InputStream getContent() throws IOException
+		{
+			if (mIsClosed)
+				throw new IOException("The response is closed");
+			if (mContent == null)
+			{
+				mRawContent = openRawContent();
+				InputStream decoded = mRawContent;
+				if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding()))
+				{
+					mGzipContent = new GZIPInputStream(mRawContent, 8 * 1024);
+					decoded = mGzipContent;
+				}
+				mContent = new FilterInputStream(decoded) {
+					@Override
+					public void close() throws IOException {
+						Response.this.close();
+					}
+				};
+			}
+			return mContent;
+		}
+		
+		//The body as sent on the wire. NB: The error stream is null if an error response has no body
+		private CountingInputStream openRawContent() throws IOException
+		{
+			InputStream raw = mStatusCode >= 400 ? mConnection.getErrorStream() : mConnection.getInputStream();
+			return new CountingInputStream(raw != null ? raw : new ByteArrayInputStream(new byte[0]));
+		}
+		
+		/**
+		 * Reads the whole body of the response as a (UTF-8) string and closes the response
+		 */
+		public String readString() throws IOException
+		{
+			try
+			{
+				InputStream in = getContent();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buf = new byte[8 * 1024];
+				int n;
+				while ((n = in.read(buf)) != -1)
+					bytes.write(buf, 0, n);
+				return bytes.toString("UTF-8");
+			}
+			finally
+			{
+				close();
+			}
+		}
+		
+		/**
+		 * Releases the request slot. The rest of the response is drained (up to a limit), so the connection can be reused. 
+		 */
+		public synchronized void close()
+		{
+			if (mIsClosed)
+				return;
+			mIsClosed = true;
+			try
+			{
+				if (mRawContent == null)
+				{
+					mRawContent = openRawContent();
+				}
+				if (mRawContent.skipRemaining(MAX_DRAIN_BYTES))
+					mRawContent.close();
+				else
+					mConnection.disconnect();
+			}
+			catch (IOException ex)
+			{
+				//E.g., there is no body (304) - the connection is reused or discarded by HttpURLConnection
+			}
+			finally
+			{
+				//Ends the Inflater right away rather than when the stream is finalized (the raw stream is drained or discarded above)
+				if (mGzipContent != null)
+				{
+					try
+					{
+						mGzipContent.close();
+					}
+					catch (IOException ex) { }
+				}
+				if (mRawContent != null)
+					mStats.addBytesReceived(mRawContent.getCount());
+				release(mConnection);
+			}
+		}
+	}
+	
+	/**
+	 * Counters of the requests to an endpoint
+	 */
+	public static class EndpointStats
+	{
+		private final String mEndpoint;
+		private int mNumResponses, mNumFailures;
+		private long mTotalLatencyNanos;
+		private long mBytesSent, mBytesReceived;
+		
+		EndpointStats(String endpoint)
+		{
+			this.mEndpoint = endpoint;
+		}
+		
+		synchronized void addResponse(long latencyNanos)
+		{
+			mNumResponses++;
+			mTotalLatencyNanos += latencyNanos;
+		}
+		
+		synchronized void addFailure()
+		{
+			mNumFailures++;
+		}
+		
+		synchronized void addBytesSent(long bytes)
+		{
+			mBytesSent += bytes;
+		}
+		
+		synchronized void addBytesReceived(long bytes)
+		{
+			mBytesReceived += bytes;
+		}
+		
+		public String getEndpoint()
+		{
+			return mEndpoint;
+		}
+		
+		public synchronized int getNumResponses()
+		{
+			return mNumResponses;
+		}
+		
+		//The number of requests that failed with an exception (i.e., without a response)
+		public synchronized int getNumFailures()
+		{
+			return mNumFailures;
+		}
+		
+		//The average time until the response headers were received
+		public synchronized double getAverageLatencyInMillis()
+		{
+			return mNumResponses == 0 ? 0 : mTotalLatencyNanos / (1000000.0 * mNumResponses);
+		}
+		
+		public synchronized long getBytesSent()
+		{
+			return mBytesSent;
+		}
+		
+		//The number of (compressed) bytes received
+		public synchronized long getBytesReceived()
+		{
+			return mBytesReceived;
+		}
+		
+		@Override
+		public synchronized String toString()
+		{
+			return mEndpoint + ": " + mNumResponses + " responses, " + mNumFailures + " failures, avg. latency " + 
+				Math.round(getAverageLatencyInMillis()) + " ms, " + mBytesSent + " bytes sent, " + mBytesReceived + " bytes received";
+		}
+	}
+	
+	//Counts the bytes written to the wire
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		private long mCount;
+		
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+		
+		long getCount()
+		{
+			return mCount;
+		}
+		
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			mCount++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			mCount += len;
+		}
+	}
+	
+	//Counts the bytes read from the wire
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long mCount;
+		
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+		
+		long getCount()
+		{
+			return mCount;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b != -1)
+				mCount++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0)
+				mCount += n;
+			return n;
+		}
+		
+		/**
+		 * Reads (and discards) the rest of the stream
+		 * @return true, if the end of the stream was reached within maxBytes
+		 */
+		boolean skipRemaining(int maxBytes) throws IOException
+		{
+			if (in == null)
+				return true;
+			byte[] buf = new byte[4 * 1024];
+			int remaining = maxBytes;
+			while (remaining > 0)
+			{
+				int n = read(buf, 0, Math.min(buf.length, remaining));
+				if (n == -1)
+					return true;
+				remaining -= n;
+			}
+			return read() == -1;
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			if (in != null)
+				super.close();
+		}
+	}
+}
@@ -68,6 +68,10 @@ public interface IWebClient {
 	//Downloads a radio map (building with graph populated) from a given building id
 	com.smartcampus.indoormodel.Building downloadRadioMap(int buildingId) throws IOException;
 	
+	//Downloads the changes made to a radio map since the given version (cf. Building.getRadioMapVersion()). 
+	//Returns an empty delta if the radio map is unchanged, and null if the changes are not available (i.e., the full radio map must be downloaded) 
+	RadioMapDelta downloadRadioMapChanges(int buildingId, String version) throws IOException;
+	
 	//Determines a building id based on a list of mac addresses
 	int getBuildingIdFromMacs(List<String> macs);
 
@@ -0,0 +1,433 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A minimal streaming (pull) JSON parser. 
+ * Tokens are read directly from the underlying reader, so - unlike org.json - a document is never materialized in memory. 
+ * The api mirrors android.util.JsonReader (which is only available from API level 11). 
+ */
+public class JsonPullParser {
+	
+	public enum Token { BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+	
+	//The scopes of the documents (i.e., where we are in the nesting)
+	private static final int EMPTY_ARRAY = 1;
+	private static final int NONEMPTY_ARRAY = 2;
+	private static final int EMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4; //a name has been read, but not its value
+	private static final int NONEMPTY_OBJECT = 5;
+	private static final int EMPTY_DOCUMENT = 6;
+	private static final int NONEMPTY_DOCUMENT = 7;
+	
+	private final Reader mIn;
+	private final char[] mBuffer = new char[8192];
+	private int mPos, mLimit;
+	
+	private int[] mStack = new int[32];
+	private int mStackSize;
+	
+	//The next token (null if it has not been peeked yet). 
+	//The opening character of strings, names, booleans and null has been consumed - numbers are untouched. 
+	private Token mPeeked;
+	private boolean mPeekedBoolean;
+	private StringBuilder mSb = new StringBuilder();
+	
+	public JsonPullParser(Reader in)
+	{
+		this.mIn = in;
+		push(EMPTY_DOCUMENT);
+	}
+	
+	public void beginArray() throws IOException
+	{
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+	
+	public void endArray() throws IOException
+	{
+		expect(Token.END_ARRAY);
+		mStackSize--;
+	}
+	
+	public void beginObject() throws IOException
+	{
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+	
+	public void endObject() throws IOException
+	{
+		expect(Token.END_OBJECT);
+		mStackSize--;
+	}
+	
+	/**
+	 * @return True, if the current array or object has another element
+	 */
+	public boolean hasNext() throws IOException
+	{
+		Token t = peek();
+		return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+	}
+	
+	public String nextName() throws IOException
+	{
+		expect(Token.NAME);
+		return readString();
+	}
+	
+	/**
+	 * @return The next string (numbers are returned in their literal form)
+	 */
+	public String nextString() throws IOException
+	{
+		Token t = peek();
+		if (t == Token.NUMBER)
+		{
+			mPeeked = null;
+			return readLiteral();
+		}
+		expect(Token.STRING);
+		return readString();
+	}
+	
+	public boolean nextBoolean() throws IOException
+	{
+		expect(Token.BOOLEAN);
+		boolean res = mPeekedBoolean;
+		skipKeyword(res ? "true" : "false");
+		return res;
+	}
+	
+	public void nextNull() throws IOException
+	{
+		expect(Token.NULL);
+		skipKeyword("null");
+	}
+	
+	public double nextDouble() throws IOException
+	{
+		Token t = peek();
+		if (t == Token.STRING)
+			return Double.parseDouble(nextString());
+		expect(Token.NUMBER);
+		return Double.parseDouble(readLiteral());
+	}
+	
+	public int nextInt() throws IOException
+	{
+		Token t = peek();
+		if (t == Token.STRING)
+			return Integer.parseInt(nextString());
+		expect(Token.NUMBER);
+		
+		//Fast path for plain integers (avoids creating a string per number)
+		int c = read();
+		boolean negative = c == '-';
+		if (negative)
+			c = read();
+		long res = 0;
+		int numDigits = 0;
+		while (c >= '0' && c <= '9' && numDigits < 10)
+		{
+			res = res * 10 + (c - '0');
+			numDigits++;
+			c = read();
+		}
+		if (numDigits > 0 && !isLiteral(c))
+		{
+			unread(c);
+			return (int)(negative ? -res : res);
+		}
+		
+		//Fractions, exponents and the like - we take the slow path
+		mSb.setLength(0);
+		if (negative)
+			mSb.append('-');
+		if (numDigits > 0)
+			mSb.append(res);
+		unread(c);
+		return (int)Double.parseDouble(mSb.append(readLiteral()).toString());
+	}
+	
+	/**
+	 * Skips the next value - including nested arrays and objects
+	 */
+	public void skipValue() throws IOException
+	{
+		int depth = 0;
+		do
+		{
+			Token t = peek();
+			switch (t)
+			{
+			case BEGIN_ARRAY:
+				beginArray();
+				depth++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				depth++;
+				break;
+			case END_ARRAY:
+				endArray();
+				depth--;
+				break;
+			case END_OBJECT:
+				endObject();
+				depth--;
+				break;
+			case NAME:
+				nextName();
+				break;
+			case STRING:
+				nextString();
+				break;
+			case NUMBER:
+				mPeeked = null;
+				readLiteral();
+				break;
+			case BOOLEAN:
+				nextBoolean();
+				break;
+			case NULL:
+				nextNull();
+				break;
+			default:
+				throw syntaxError("Unexpected " + t);
+			}
+		} while (depth > 0);
+	}
+	
+	public Token peek() throws IOException
+	{
+		if (mPeeked != null)
+			return mPeeked;
+		
+		int c;
+		switch (mStack[mStackSize - 1])
+		{
+		case EMPTY_ARRAY:
+			mStack[mStackSize - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']')
+				return mPeeked = Token.END_ARRAY;
+			unread(c);
+			return mPeeked = readValueToken();
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']')
+				return mPeeked = Token.END_ARRAY;
+			if (c != ',')
+				throw syntaxError("Expected ',' or ']'");
+			return mPeeked = readValueToken();
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			boolean isEmpty = mStack[mStackSize - 1] == EMPTY_OBJECT;
+			c = nextNonWhitespace();
+			if (c == '}')
+				return mPeeked = Token.END_OBJECT;
+			if (!isEmpty)
+			{
+				if (c != ',')
+					throw syntaxError("Expected ',' or '}'");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("Expected a name");
+			mStack[mStackSize - 1] = DANGLING_NAME;
+			return mPeeked = Token.NAME;
+		case DANGLING_NAME:
+			mStack[mStackSize - 1] = NONEMPTY_OBJECT;
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("Expected ':'");
+			return mPeeked = readValueToken();
+		case EMPTY_DOCUMENT:
+			mStack[mStackSize - 1] = NONEMPTY_DOCUMENT;
+			return mPeeked = readValueToken();
+		default: //NONEMPTY_DOCUMENT
+			if (nextNonWhitespace() != -1)
+				throw syntaxError("Expected end of document");
+			return mPeeked = Token.END_DOCUMENT;
+		}
+	}
+	
+	private Token readValueToken() throws IOException
+	{
+		int c = nextNonWhitespace();
+		switch (c)
+		{
+		case '{':
+			return Token.BEGIN_OBJECT;
+		case '[':
+			return Token.BEGIN_ARRAY;
+		case '"':
+			return Token.STRING;
+		case 't':
+		case 'f':
+			mPeekedBoolean = c == 't';
+			return Token.BOOLEAN;
+		case 'n':
+			return Token.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			unread(c);
+			return Token.NUMBER;
+		}
+	}
+	
+	private void expect(Token expected) throws IOException
+	{
+		Token t = peek();
+		if (t != expected)
+			throw syntaxError("Expected " + expected + " but was " + t);
+		mPeeked = null;
+	}
+	
+	//Reads the remainder of a string whose opening quote has been consumed
+	private String readString() throws IOException
+	{
+		mSb.setLength(0);
+		while (true)
+		{
+			int c = read();
+			if (c == '"')
+				return mSb.toString();
+			if (c == -1)
+				throw syntaxError("Unterminated string");
+			if (c == '\\')
+			{
+				c = read();
+				switch (c)
+				{
+				case 'b': mSb.append('\b'); break;
+				case 'f': mSb.append('\f'); break;
+				case 'n': mSb.append('\n'); break;
+				case 'r': mSb.append('\r'); break;
+				case 't': mSb.append('\t'); break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++)
+						code = (code << 4) + Character.digit(read(), 16);
+					mSb.append((char)code);
+					break;
+				case -1:
+					throw syntaxError("Unterminated string");
+				default: //'"', '\\' and '/'
+					mSb.append((char)c);
+				}
+			}
+			else
+			{
+				mSb.append((char)c);
+			}
+		}
+	}
+	
+	//Reads an unquoted literal, i.e., a number
+	private String readLiteral() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		int c = read();
+		while (isLiteral(c))
+		{
+			sb.append((char)c);
+			c = read();
+		}
+		unread(c);
+		if (sb.length() == 0)
+			throw syntaxError("Expected a value");
+		return sb.toString();
+	}
+	
+	private static boolean isLiteral(int c)
+	{
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+	}
+	
+	//Skips the remainder of true, false or null (the first character has been consumed)
+	private void skipKeyword(String keyword) throws IOException
+	{
+		for (int i = 1; i < keyword.length(); i++)
+		{
+			if (read() != keyword.charAt(i))
+				throw syntaxError("Expected " + keyword);
+		}
+	}
+	
+	private int nextNonWhitespace() throws IOException
+	{
+		int c = read();
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+			c = read();
+		return c;
+	}
+	
+	private int read() throws IOException
+	{
+		if (mPos == mLimit)
+		{
+			mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+			mPos = 0;
+			if (mLimit <= 0)
+			{
+				mLimit = 0;
+				return -1;
+			}
+		}
+		return mBuffer[mPos++];
+	}
+	
+	//Un-reads the character just read (a no-op at the end of the document)
+	private void unread(int c)
+	{
+		if (c != -1)
+			mPos--;
+	}
+	
+	private void push(int scope)
+	{
+		if (mStackSize == mStack.length)
+		{
+			int[] newStack = new int[mStackSize * 2];
+			System.arraycopy(mStack, 0, newStack, 0, mStackSize);
+			mStack = newStack;
+		}
+		mStack[mStackSize++] = scope;
+	}
+	
+	private IOException syntaxError(String message)
+	{
+		return new IOException("Malformed JSON: " + message);
+	}
+}
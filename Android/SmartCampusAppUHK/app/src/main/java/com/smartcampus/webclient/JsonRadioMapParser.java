@@ -0,0 +1,428 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.SymbolicLocation;
+import com.smartcampus.indoormodel.SymbolicLocation.InfoType;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.webclient.JsonPullParser.Token;
+import com.smartcampus.wifi.Histogram;
+import com.smartcampus.wifi.WifiMeasurement;
+
+/**
+ * Reads a radio map (as returned by the RemoveNonCollectiveMeasurements service operation) straight from the response stream. 
+ * Vertices, measurements and edges are created as their json objects are read, i.e., the json document is never 
+ * materialized (cf. JsonPullParser), so peak memory stays close to the size of the resulting model. 
+ */
+public class JsonRadioMapParser {
+	
+	//MAC addresses recur in (almost) every measurement, so we keep a single instance of each
+	private HashMap<String, String> mMacs = new HashMap<String, String>();
+	
+	/**
+	 * @return The (first) building of the response including its graph, i.e., the radio map
+	 */
+	public Building parse(InputStream in) throws IOException
+	{
+		JsonPullParser reader = new JsonPullParser(new InputStreamReader(in, "UTF-8"));
+		Building newBuilding = null;
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			//The root is 'd' for some reason
+			if (reader.nextName().equals("d"))
+			{
+				reader.beginArray();
+				//The building is returned as an array - we only read the first one
+				if (reader.hasNext())
+					newBuilding = readBuilding(reader);
+				while (reader.hasNext())
+					reader.skipValue();
+				reader.endArray();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		if (newBuilding == null)
+			throw new IOException("The response contains no building");
+		return newBuilding;
+	}
+	
+	/**
+	 * Reads the changes made to a radio map since a given version (as returned by the RadioMapChanges service operation), i.e., 
+	 * {"d": {"Version": .., "Vertices": [..], "RemovedVertices": [ids], "Edges": [..], "RemovedEdges": [{"vertexOrigin": .., "vertexDestination": ..}]}}
+	 * Vertices and edges have the same form as in a full radio map. 
+	 */
+	public RadioMapDelta parseChanges(InputStream in) throws IOException
+	{
+		JsonPullParser reader = new JsonPullParser(new InputStreamReader(in, "UTF-8"));
+		RadioMapDelta delta = null;
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			if (reader.nextName().equals("d"))
+				delta = readChanges(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		
+		if (delta == null)
+			throw new IOException("The response contains no changes");
+		return delta;
+	}
+	
+	private RadioMapDelta readChanges(JsonPullParser reader) throws IOException
+	{
+		String version = null;
+		List<Vertex> vertices = new ArrayList<Vertex>();
+		List<Integer> removedVertexIds = new ArrayList<Integer>();
+		List<ShallowEdge> edges = new ArrayList<ShallowEdge>();
+		List<ShallowEdge> removedEdges = new ArrayList<ShallowEdge>();
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("Version"))
+			{
+				version = reader.nextString();
+			}
+			else if (name.equals("Vertices"))
+			{
+				reader.beginArray();
+				while (reader.hasNext())
+					vertices.add(readVertex(reader));
+				reader.endArray();
+			}
+			else if (name.equals("RemovedVertices"))
+			{
+				reader.beginArray();
+				while (reader.hasNext())
+					removedVertexIds.add(reader.nextInt());
+				reader.endArray();
+			}
+			else if (name.equals("Edges") || name.equals("RemovedEdges"))
+			{
+				List<ShallowEdge> target = name.equals("Edges") ? edges : removedEdges;
+				reader.beginArray();
+				while (reader.hasNext())
+					target.add(readShallowEdge(reader));
+				reader.endArray();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		if (version == null)
+			throw new IOException("The changes have no version");
+		RadioMapDelta delta = new RadioMapDelta(version);
+		for (Vertex v : vertices)
+			delta.addVertex(v);
+		for (int vertexId : removedVertexIds)
+			delta.addRemovedVertexId(vertexId);
+		for (ShallowEdge e : edges)
+			delta.addEdge(e);
+		for (ShallowEdge e : removedEdges)
+			delta.addRemovedEdge(e);
+		return delta;
+	}
+	
+	private Building readBuilding(JsonPullParser reader) throws IOException
+	{
+		Building newBuilding = new Building();
+		List<ShallowEdge> shallowEdges = new ArrayList<ShallowEdge>();
+		//Edges are resolved when the graph is built, so the order of 'Edges' and 'Vertices' does not matter
+		GraphBuilder g = new GraphBuilder();
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("Edges"))
+			{
+				reader.beginArray();
+				while (reader.hasNext())
+					shallowEdges.add(readShallowEdge(reader));
+				reader.endArray();
+			}
+			else if (name.equals("Vertices"))
+			{
+				reader.beginArray();
+				while (reader.hasNext())
+					g.addVertex(readVertex(reader));
+				reader.endArray();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		ShallowEdge.addUndirectionalEdges(g, shallowEdges);
+		newBuilding.setGraphModel(g.build());
+		return newBuilding;
+	}
+	
+	private ShallowEdge readShallowEdge(JsonPullParser reader) throws IOException
+	{
+		int id = 0, v1_id = 0, v2_id = 0;
+		//Account for nullable values
+		boolean isDirectional = false, isStair = false, isElevator = false;
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("ID"))
+				id = reader.nextInt();
+			else if (name.equals("vertexOrigin"))
+				v1_id = reader.nextInt();
+			else if (name.equals("vertexDestination"))
+				v2_id = reader.nextInt();
+			else if (name.equals("directional"))
+				isDirectional = readNullableBoolean(reader);
+			else if (name.equals("is_stair"))
+				isStair = readNullableBoolean(reader);
+			else if (name.equals("is_elevator"))
+				isElevator = readNullableBoolean(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		
+		ShallowEdge newEdge = new ShallowEdge(v1_id, v2_id);
+		newEdge.setId(id);
+		newEdge.setDirectional(isDirectional);
+		newEdge.setStair(isStair);
+		newEdge.setElevator(isElevator);
+		return newEdge;
+	}
+	
+	private Vertex readVertex(JsonPullParser reader) throws IOException
+	{
+		int id = 0;
+		AbsoluteLocation absLoc = null;
+		SymbolicLocation symLoc = null;
+		List<WifiMeasurement> measurements = new ArrayList<WifiMeasurement>();
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("ID"))
+			{
+				id = reader.nextInt();
+			}
+			else if (name.equals("AbsoluteLocations"))
+			{
+				//We use the first absolute location
+				reader.beginArray();
+				while (reader.hasNext())
+				{
+					if (absLoc == null)
+						absLoc = readAbsoluteLocation(reader);
+					else
+						reader.skipValue();
+				}
+				reader.endArray();
+			}
+			else if (name.equals("SymbolicLocations"))
+			{
+				reader.beginArray();
+				while (reader.hasNext()) //0..1
+					symLoc = readSymbolicLocation(reader);
+				reader.endArray();
+			}
+			else if (name.equals("WifiMeasurements"))
+			{
+				reader.beginArray();
+				while (reader.hasNext())
+					measurements.add(readWifiMeasurement(reader));
+				reader.endArray();
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		if (absLoc == null)
+			throw new IOException("Vertex " + id + " has no absolute location");
+		
+		Vertex newVertex = new Vertex(id, absLoc);
+		if (symLoc != null)
+			newVertex.getLocation().setSymbolicLocation(symLoc);
+		for (WifiMeasurement meas : measurements)
+			newVertex.addFingerprint(meas);
+		return newVertex;
+	}
+	
+	private AbsoluteLocation readAbsoluteLocation(JsonPullParser reader) throws IOException
+	{
+		double lat = 0, lon = 0, alt = 0;
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("latitude"))
+				lat = reader.nextDouble();
+			else if (name.equals("longitude"))
+				lon = reader.nextDouble();
+			else if (name.equals("altitude"))
+				alt = reader.nextDouble();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return new AbsoluteLocation(lat, lon, alt);
+	}
+	
+	private SymbolicLocation readSymbolicLocation(JsonPullParser reader) throws IOException
+	{
+		SymbolicLocation newSymbolicLocation = new SymbolicLocation();
+		newSymbolicLocation.setType(InfoType.NONE);
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			if (name.equals("ID"))
+				newSymbolicLocation.setId(reader.nextInt());
+			else if (name.equals("title"))
+				newSymbolicLocation.setTitle(readString(reader));
+			else if (name.equals("description"))
+				newSymbolicLocation.setDescription(readString(reader));
+			else if (name.equals("url"))
+				newSymbolicLocation.setUrl(readString(reader));
+			else if (name.equals("is_entrance") && reader.peek() != Token.NULL)
+				newSymbolicLocation.setEntrance(reader.nextBoolean());
+			else if (name.equals("info_type") && reader.peek() != Token.NULL)
+				newSymbolicLocation.setType(InfoType.getValue(reader.nextInt()));
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		return newSymbolicLocation;
+	}
+	
+	private WifiMeasurement readWifiMeasurement(JsonPullParser reader) throws IOException
+	{
+		WifiMeasurement newWifiMeasurement = new WifiMeasurement();
+		//"meas_time_start": null,
+		//"meas_time_end": null,
+		
+		reader.beginObject();
+		while (reader.hasNext())
+		{
+			if (!reader.nextName().equals("Histograms"))
+			{
+				reader.skipValue();
+				continue;
+			}
+			
+			//No need to create histogram objects
+			reader.beginArray();
+			while (reader.hasNext())
+			{
+				int value = 0, count = 0;
+				String mac = null;
+				reader.beginObject();
+				while (reader.hasNext())
+				{
+					String name = reader.nextName();
+					if (name.equals("value"))
+						value = reader.nextInt();
+					else if (name.equals("count"))
+						count = reader.nextInt();
+					else if (name.equals("Mac"))
+						mac = getMac(readString(reader));
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+				newWifiMeasurement.setHistogram(new Histogram(-1, mac, value, count));
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+		return newWifiMeasurement;
+	}
+	
+	private String getMac(String mac)
+	{
+		String res = mMacs.get(mac);
+		if (res == null)
+		{
+			mMacs.put(mac, mac);
+			res = mac;
+		}
+		return res;
+	}
+	
+	private static boolean readNullableBoolean(JsonPullParser reader) throws IOException
+	{
+		if (reader.peek() == Token.NULL)
+		{
+			reader.nextNull();
+			return false;
+		}
+		return reader.nextBoolean();
+	}
+	
+	//As org.json's getString(), null values are returned as "null"
+	private static String readString(JsonPullParser reader) throws IOException
+	{
+		if (reader.peek() == Token.NULL)
+		{
+			reader.nextNull();
+			return "null";
+		}
+		return reader.nextString();
+	}
+}
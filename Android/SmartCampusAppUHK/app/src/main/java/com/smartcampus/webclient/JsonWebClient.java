@@ -34,8 +34,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -43,20 +42,38 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.smartcampus.indoormodel.AbsoluteLocation;
 import com.smartcampus.indoormodel.Building;
 import com.smartcampus.indoormodel.Building_Floor;
 import com.smartcampus.indoormodel.SymbolicLocation;
-import com.smartcampus.indoormodel.SymbolicLocation.InfoType;
 import com.smartcampus.indoormodel.graph.Edge;
-import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
-import com.smartcampus.wifi.Histogram;
 import com.smartcampus.wifi.WifiMeasurement;
 
 public class JsonWebClient implements IWebClient {
 
 	private static final String TAG = "JsonWebClient";
+	
+	private final String mServiceRootUri;
+	private final HttpTransport mTransport;
+	
+	public JsonWebClient()
+	{
+		this(ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI);
+	}
+	
+	/**
+	 * @param serviceRootUri The root of the radio map service (ending with a '/'), e.g., a local test server
+	 */
+	public JsonWebClient(String serviceRootUri)
+	{
+		this(serviceRootUri, HttpTransport.getDefault());
+	}
+	
+	public JsonWebClient(String serviceRootUri, HttpTransport transport)
+	{
+		this.mServiceRootUri = serviceRootUri;
+		this.mTransport = transport;
+	}
 
 	@Override
 	public int addBuilding(Building b) {
@@ -109,71 +126,11 @@ public class JsonWebClient implements IWebClient {
 	
 	@Override
 	public void addVertexToGraveYard(int vertexId, int buildingId) throws Exception {		
-		String url = ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "AddToVertexGraveyard?buildingId=" + buildingId + "&vertexId=" + vertexId;
+		String url = mServiceRootUri + "AddToVertexGraveyard?buildingId=" + buildingId + "&vertexId=" + vertexId;
 		//A succesful request returns 204 (void), so there is no json response to parse
 		OpenHttpConnection(url);		
 	}
 
-	private ShallowEdge createShallowEdge(JSONObject curEdge) throws JSONException {
-		int id = curEdge.getInt("ID");
-		int v1_id = curEdge.getInt("vertexOrigin");
-		int v2_id = curEdge.getInt("vertexDestination");
-		//Account for nullable values
-		boolean isDirectional = curEdge.isNull("directional") ? false : curEdge.getBoolean("directional");
-		boolean isStair = curEdge.isNull("is_stair") 		  ? false : curEdge.getBoolean("is_stair");
-		boolean isElevator = curEdge.isNull("is_elevator")    ? false : curEdge.getBoolean("is_elevator");		
-		
-		//Account for nullable values
-		ShallowEdge newEdge = new ShallowEdge(v1_id, v2_id);
-		newEdge.setId(id);
-		newEdge.setDirectional(isDirectional);
-		newEdge.setStair(isStair);
-		newEdge.setElevator(isElevator);
-		return newEdge;
-	}
-
-	private SymbolicLocation createSymbolicLocation(JSONObject curSymLoc)
-			throws JSONException {
-		SymbolicLocation newSymbolicLocation = new SymbolicLocation();
-		newSymbolicLocation.setId(curSymLoc.getInt("ID"));
-		newSymbolicLocation.setTitle(curSymLoc.getString("title"));
-		newSymbolicLocation.setDescription(curSymLoc.getString("description"));
-		newSymbolicLocation.setUrl(curSymLoc.getString("url"));
-		if (!curSymLoc.isNull("is_entrance"))
-			newSymbolicLocation.setEntrance(curSymLoc.getBoolean("is_entrance"));
-		if (!curSymLoc.isNull("info_type"))
-		{
-			int infoVal = curSymLoc.getInt("info_type");
-			newSymbolicLocation.setType(InfoType.getValue(infoVal));
-		}
-		else
-		{
-			newSymbolicLocation.setType(InfoType.NONE);
-		}
-		return newSymbolicLocation;
-	}
-
-	private WifiMeasurement createWifiMeasurement(JSONObject curMeas)
-			throws JSONException {
-		WifiMeasurement newWifiMeasurement = new WifiMeasurement();
-		//"meas_time_start": null,
-		//"meas_time_end": null,
-		
-		JSONArray histograms = curMeas.getJSONArray("Histograms");
-		//No need to create histogram objects
-		JSONObject curHistogram;
-		for (int l = 0; l < histograms.length(); l++)
-		{
-			curHistogram = histograms.getJSONObject(l);
-			int value = curHistogram.getInt("value");
-			int count = curHistogram.getInt("count");
-			String mac = curHistogram.getString("Mac");
-			Histogram newHistogram = new Histogram(-1, mac, value, count);
-			newWifiMeasurement.setHistogram(newHistogram);
-		}
-		return newWifiMeasurement;
-	}
-
 	@Override
 	public void deleteEdge(int edgeID) {
 		// TODO Auto-generated method stub
@@ -189,86 +146,60 @@ public class JsonWebClient implements IWebClient {
 	@Override
 	public Building downloadRadioMap(int buildingId)
     {
+		HttpTransport.Response response = null;
 		try
     	{
-			Building newBuilding = new Building();
-			IGraph g = newBuilding.getGraphModel();
-			List<ShallowEdge> shallowEdges = new ArrayList<ShallowEdge>();
-			    	
-	    	String url = ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "RemoveNonCollectiveMeasurements?building_id=" + buildingId + "&$expand=Edges,Vertices,Vertices/AbsoluteLocations,Vertices/SymbolicLocations,Vertices/WifiMeasurements,Vertices/WifiMeasurements/Histograms";
-	    	String jsonResponse = OpenHttpConnection(url); 
-    		JSONObject root = new JSONObject(jsonResponse);
-	        //JSONArray buildings = root.getJSONArray("d");
-	        
-	        //The building is returned as an array - we will break after the first iteration.
-	        JSONObject curBuilding;
-	        curBuilding = root.getJSONArray("d").getJSONObject(0);
-	        	          	
-        	//Read in edges:
-        	JSONArray edges = curBuilding.getJSONArray("Edges");
-        	JSONObject curEdge;
-        	for (int j = 0; j < edges.length(); j++)
-        	{
-        		//Create shallowEdge
-        		curEdge = edges.getJSONObject(j);	
-        		
-        		ShallowEdge newEdge = createShallowEdge(curEdge);
-        		
-        		shallowEdges.add(newEdge);
-        	}
-        	
-        	//Read in vertices
-        	JSONArray vertices = curBuilding.getJSONArray("Vertices");
-        	JSONObject curVertex;
-        	for (int j = 0; j < vertices.length(); j++)
-        	{
-        		curVertex = vertices.getJSONObject(j);
-        		
-        		JSONObject absoluteLocation = curVertex.getJSONArray("AbsoluteLocations").getJSONObject(0);
-        		double lat = absoluteLocation.getDouble("latitude");
-        		double lon = absoluteLocation.getDouble("longitude");
-        		double alt = absoluteLocation.getDouble("altitude");
-        		
-        		int id = curVertex.getInt("ID");
-        		Vertex newVertex = new Vertex(id, new AbsoluteLocation(lat, lon, alt));	        		
-        		
-        		//Read in symbolic location
-        		JSONArray symbolicLocations = curVertex.getJSONArray("SymbolicLocations");
-        		JSONObject curSymLoc;
-        		for (int x = 0; x < symbolicLocations.length(); x++) //0..1
-        		{
-        			curSymLoc = symbolicLocations.getJSONObject(x);    
-        			
-        			SymbolicLocation newSymbolicLocation = createSymbolicLocation(curSymLoc);  
-        			
-        			newVertex.getLocation().setSymbolicLocation(newSymbolicLocation);
-        		}
-        		
-        		//Read in measurements:
-        		JSONArray measurements = curVertex.getJSONArray("WifiMeasurements");
-        		for (int k = 0; k < measurements.length(); k++)
-        		{
-        			JSONObject curMeas = measurements.getJSONObject(k);
-        			
-        			WifiMeasurement newWifiMeasurement = createWifiMeasurement(curMeas);
-        			
-        			newVertex.addFingerprint(newWifiMeasurement);
-        			
-        		}
-        		
-        		g.addVertex(newVertex);
-        	}
-        	
-        	ShallowEdge.addUndirectionalEdges(g, shallowEdges);
-        	return newBuilding;
+	    	String url = mServiceRootUri + "RemoveNonCollectiveMeasurements?building_id=" + buildingId + "&$expand=Edges,Vertices,Vertices/AbsoluteLocations,Vertices/SymbolicLocations,Vertices/WifiMeasurements,Vertices/WifiMeasurements/Histograms";
+	    	response = mTransport.get(url, HttpTransport.ACCEPT_JSON);
+	    	if (response.getStatusCode() != HttpURLConnection.HTTP_OK)
+	    		return null;
+	    	
+	    	//The radio map is by far our largest response, so we parse it as it streams in (and is decompressed) 
+	    	//rather than reading it into a string and building a json tree first
+	    	Building res = new JsonRadioMapParser().parse(response.getContent());
+	    	//The version is used to revalidate (cf. downloadRadioMapChanges()) - servers that don't send one simply get full downloads
+	    	res.setRadioMapVersion(response.getHeader("ETag"));
+	    	return res;
     	}
     	catch (Exception ex) 
     	{
             Log.e(TAG, Log.getStackTraceString(ex));
     		return null;
-    	}    	
+    	}
+		finally
+		{
+			if (response != null)
+				response.close();
+		}
     }
 
+	@Override
+	public RadioMapDelta downloadRadioMapChanges(int buildingId, String version) throws IOException
+	{
+		if (version == null)
+			return null;
+		
+		String url = mServiceRootUri + "RadioMapChanges?building_id=" + buildingId + "&since=" + URLEncoder.encode(version, "UTF-8");
+		HttpTransport.Response response = mTransport.get(url, HttpTransport.ACCEPT_JSON, version);
+		try
+		{
+			int status = response.getStatusCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+				return new RadioMapDelta(version);
+			//E.g., 404 if the server does not support delta sync or 410 if the version is too old to compute the changes
+			if (status != HttpURLConnection.HTTP_OK)
+			{
+				Log.i(TAG, "No radio map changes available (HTTP " + status + ")");
+				return null;
+			}
+			return new JsonRadioMapParser().parseChanges(response.getContent());
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+
 	@Override
 	public int getBuildingIdFromMacs(List<String> macs) {
 		// TODO Auto-generated method stub
@@ -281,7 +212,7 @@ public class JsonWebClient implements IWebClient {
 		   	String jsonResponse;
 		   	try
 		   	{
-		   		String url = ConnectionInfo.SMARTCAMPUS_SERVICE_ROOT_URI + "Buildings?$expand=Building_MacInfos,Building_Floors";
+		   		String url = mServiceRootUri + "Buildings?$expand=Building_MacInfos,Building_Floors";
 		   		
 		   		jsonResponse = OpenHttpConnection(url);            
 		   	}
@@ -347,45 +278,50 @@ public class JsonWebClient implements IWebClient {
 	       return res;
 	   }
    
+ /**
+  * Opens a GET request with a json accept header (via the shared HttpTransport). 
+  * @return The (decompressed) response stream (which the caller must close), or null if the response code was not 200 OK
+  */
+ public static InputStream OpenHttpStream(String urlString) throws Exception
+ {
+     HttpTransport.Response response = null;
+     try{
+    	 //NOTE: Setting the accept header to 'application/json' is a must!
+         response = HttpTransport.getDefault().get(urlString, HttpTransport.ACCEPT_JSON);
+         if (response.getStatusCode() == HttpURLConnection.HTTP_OK) {
+        	 return response.getContent();   
+         }
+         response.close();
+         return null;
+     }
+     catch (Exception ex)
+     {
+		 Log.e(TAG, Log.getStackTraceString(ex));
+		 if (response != null)
+			 response.close();
+         throw ex;            
+     }
+ }
+ 
 //private String OpenHttpConnection(String urlString) throws Exception	
    public static String OpenHttpConnection(String urlString) throws Exception
  {
-     InputStream in = null;
-     int response = -1;
      StringBuilder builder = new StringBuilder();			
      String res = null;
      
-     URL url = new URL(urlString); 
-     URLConnection conn = url.openConnection();
-              
-     if (!(conn instanceof HttpURLConnection))                     
-         throw new IOException("Not an HTTP connection");	     
-     
-     try{
-         HttpURLConnection httpConn = (HttpURLConnection) conn;
-         httpConn.setAllowUserInteraction(false);
-         httpConn.setInstanceFollowRedirects(true);
-         httpConn.setRequestMethod("GET");
-         //NOTE: Setting the accept header to 'application/json' is a must!
-         httpConn.setRequestProperty("accept", "application/json");
-         httpConn.connect(); 
-
-         response = httpConn.getResponseCode();                 
-         if (response == HttpURLConnection.HTTP_OK) {
-        	 in = httpConn.getInputStream();   
-             
+     InputStream in = OpenHttpStream(urlString);
+     if (in != null) {
+    	 try {
              BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 			 String line;
              while ((line = reader.readLine()) != null) {
             	 builder.append(line);
              }
              res = builder.toString();
-         }
-     }
-     catch (Exception ex)
-     {
-		 Log.e(TAG, Log.getStackTraceString(ex));
-         throw ex;            
+    	 }
+    	 finally {
+    		 in.close();
+    	 }
      }
      return res;     
  }
@@ -313,6 +313,12 @@ public class OData4jWebClient implements IWebClient {
 		return null;
 	}
 
+	@Override
+	public RadioMapDelta downloadRadioMapChanges(int buildingId, String version) {
+		//Delta sync is not supported - always download the full radio map
+		return null;
+	}
+
 	@Override
 	public int getBuildingIdFromMacs(List<String> macs) {
 		// TODO Auto-generated method stub
@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.smartcampus.indoormodel.graph.Edge;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+
+/**
+ * The changes made to a radio map since a given version, as returned by the RadioMapChanges service operation. 
+ * Changed vertices are complete, i.e., they carry all their measurements and replace the cached vertex of the same id. 
+ * Edges are undirectional and identified by their endpoints. 
+ */
+public class RadioMapDelta {
+	
+	private String mVersion;
+	private List<Vertex> mVertices = new ArrayList<Vertex>();
+	private List<Integer> mRemovedVertexIds = new ArrayList<Integer>();
+	private List<ShallowEdge> mEdges = new ArrayList<ShallowEdge>();
+	private List<ShallowEdge> mRemovedEdges = new ArrayList<ShallowEdge>();
+	
+	public RadioMapDelta(String version)
+	{
+		this.mVersion = version;
+	}
+	
+	public void addEdge(ShallowEdge e)
+	{
+		mEdges.add(e);
+	}
+	
+	public void addRemovedEdge(ShallowEdge e)
+	{
+		mRemovedEdges.add(e);
+	}
+	
+	public void addRemovedVertexId(int vertexId)
+	{
+		mRemovedVertexIds.add(vertexId);
+	}
+	
+	public void addVertex(Vertex v)
+	{
+		mVertices.add(v);
+	}
+	
+	/**
+	 * Applies the changes to a graph holding the previous version of the radio map. 
+	 * Removals are applied first, then changed vertices (which keep their edges) and finally changed edges. 
+	 */
+	public void apply(IGraph graph)
+	{
+		for (int vertexId : mRemovedVertexIds)
+		{
+			Vertex v = graph.getVertexById(vertexId);
+			if (v != null)
+				removeVertex(graph, v);
+		}
+		
+		for (ShallowEdge e : mRemovedEdges)
+		{
+			Vertex v1 = graph.getVertexById(e.getOriginId());
+			Vertex v2 = graph.getVertexById(e.getDestinationId());
+			if (v1 != null && v2 != null)
+				graph.removeUndirectionalEdges(v1, v2);
+		}
+		
+		//The edges to (re)add keyed by their endpoints, so a changed edge replaces the edge of a replaced vertex
+		Map<Long, ShallowEdge> edges = new LinkedHashMap<Long, ShallowEdge>();
+		for (Vertex newVertex : mVertices)
+		{
+			Vertex oldVertex = graph.getVertexById(newVertex.getId());
+			if (oldVertex != null)
+			{
+				//The location may have changed, so the vertex is replaced rather than updated in place
+				for (Edge e : oldVertex.getOutEdges())
+				{
+					ShallowEdge shallowEdge = createShallowEdge(e);
+					edges.put(getUndirectionalKey(shallowEdge), shallowEdge);
+				}
+				removeVertex(graph, oldVertex);
+			}
+			graph.addVertex(newVertex);
+		}
+		
+		//Changed edges replace existing ones, e.g., if an edge became an elevator edge
+		for (ShallowEdge e : mEdges)
+		{
+			Vertex v1 = graph.getVertexById(e.getOriginId());
+			Vertex v2 = graph.getVertexById(e.getDestinationId());
+			if (v1 != null && v2 != null)
+				graph.removeUndirectionalEdges(v1, v2);
+			edges.put(getUndirectionalKey(e), e);
+		}
+		ShallowEdge.addUndirectionalEdges(graph, edges.values());
+	}
+	
+	private static long getUndirectionalKey(ShallowEdge e)
+	{
+		return Edge.createKey(Math.min(e.getOriginId(), e.getDestinationId()), Math.max(e.getOriginId(), e.getDestinationId()));
+	}
+	
+	private static ShallowEdge createShallowEdge(Edge e)
+	{
+		ShallowEdge res = new ShallowEdge(e.getOrigin().getId(), e.getDestination().getId());
+		res.setId(e.getId());
+		res.setDirectional(e.isDirectional());
+		res.setElevator(e.isElevator());
+		res.setStair(e.isStair());
+		return res;
+	}
+	
+	//Removes the vertex along with its edges (IGraph.removeVertex() leaves the neighbours' edges)
+	private static void removeVertex(IGraph graph, Vertex v)
+	{
+		for (Vertex neighbour : v.adjacentVertices())
+			graph.removeUndirectionalEdges(v, neighbour);
+		graph.removeElevatorVertex(v);
+		graph.removeStaircaseVertex(v);
+		graph.removeVertex(v);
+	}
+	
+	public List<ShallowEdge> getEdges()
+	{
+		return mEdges;
+	}
+	
+	public List<ShallowEdge> getRemovedEdges()
+	{
+		return mRemovedEdges;
+	}
+	
+	public List<Integer> getRemovedVertexIds()
+	{
+		return mRemovedVertexIds;
+	}
+	
+	//The version of the radio map once the changes have been applied
+	public String getVersion()
+	{
+		return mVersion;
+	}
+	
+	public List<Vertex> getVertices()
+	{
+		return mVertices;
+	}
+	
+	public boolean isEmpty()
+	{
+		return mVertices.isEmpty() && mRemovedVertexIds.isEmpty() && mEdges.isEmpty() && mRemovedEdges.isEmpty();
+	}
+}
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.graph.IGraph;
+
+/**
+ * Restores a radio map from the disk cache (cf. RadioMapFile) and revalidates it with the server: 
+ * - If the radio map has changed since the cached version, only the changes are downloaded and applied (to the restored graph and the cache). 
+ * - If it has not changed, the cached radio map is used and its timestamp is renewed. 
+ * - If the changes cannot be obtained - the device is offline, or the server does not support delta sync (cf. IWebClient.downloadRadioMapChanges()) - 
+ *   the cached radio map is used as is, as long as it is younger than maxAge. 
+ */
+public class RadioMapRevalidator {
+	
+	private static final String TAG = "RadioMapRevalidator";
+	
+	/**
+	 * Writes a (revalidated) radio map to the cache file
+	 */
+	public interface Writer
+	{
+		void write(int buildingId, String version, IGraph graph, File file) throws IOException;
+	}
+	
+	private final long mMaxAge;
+	private final long mFingerprintBudget;
+	private final Writer mWriter;
+	
+	/**
+	 * @param maxAge A cached radio map that cannot be revalidated is used if it is younger than this (in ms)
+	 * @param fingerprintBudget The fingerprints are loaded per floor within this budget (cf. RadioMapFile.loadGraph(long))
+	 * @param writer Writes the radio map to the cache once changes have been applied
+	 */
+	public RadioMapRevalidator(long maxAge, long fingerprintBudget, Writer writer)
+	{
+		this.mMaxAge = maxAge;
+		this.mFingerprintBudget = fingerprintBudget;
+		this.mWriter = writer;
+	}
+	
+	/**
+	 * @return The restored radio map (graph and version) - or null if the full radio map must be downloaded
+	 */
+	public Building load(int buildingId, File file, IWebClient webClient)
+	{
+		if (!file.exists())
+			return null;
+		
+		RadioMapFile radioMap;
+		IGraph graph;
+		try
+		{
+			radioMap = RadioMapFile.open(file);
+			if (radioMap.getBuildingId() != buildingId)
+				return null;
+			graph = radioMap.loadGraph(mFingerprintBudget);
+		}
+		catch (IOException ex)
+		{
+			//E.g., a file of an older format version
+			Log.e(TAG, Log.getStackTraceString(ex));
+			file.delete();
+			return null;
+		}
+		
+		String version = radioMap.getVersion();
+		RadioMapDelta delta;
+		try
+		{
+			delta = webClient.downloadRadioMapChanges(buildingId, version);
+		}
+		catch (IOException ex)
+		{
+			//Offline
+			Log.e(TAG, Log.getStackTraceString(ex));
+			delta = null;
+		}
+		
+		if (delta == null)
+		{
+			//The changes are not available - fall back to the age of the cached radio map
+			if (System.currentTimeMillis() - radioMap.getTimestamp() >= mMaxAge)
+				return null;
+		}
+		else if (!delta.isEmpty())
+		{
+			delta.apply(graph);
+			version = delta.getVersion();
+			try
+			{
+				mWriter.write(buildingId, version, graph, file);
+			}
+			catch (IOException ex)
+			{
+				//Not critical - the changes are just downloaded again next time
+				Log.e(TAG, Log.getStackTraceString(ex));
+			}
+		}
+		else
+		{
+			try
+			{
+				RadioMapFile.setTimestamp(file, System.currentTimeMillis());
+			}
+			catch (IOException ex)
+			{
+				Log.e(TAG, Log.getStackTraceString(ex));
+			}
+		}
+		
+		Building result = new Building();
+		result.setGraphModel(graph);
+		result.setRadioMapVersion(version);
+		return result;
+	}
+}
@@ -27,7 +27,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.smartcampus.webclient;
 
+import com.smartcampus.indoormodel.graph.DictionaryGraph;
 import com.smartcampus.indoormodel.graph.Edge;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
 import com.smartcampus.indoormodel.graph.IGraph;
 import com.smartcampus.indoormodel.graph.Vertex;
 /**
@@ -40,6 +42,15 @@ import com.smartcampus.indoormodel.graph.Vertex;
 public class ShallowEdge extends Edge {
 
 	public static void addUndirectionalEdges(IGraph graph, Iterable<ShallowEdge> shallowEdges) {
+		if (graph instanceof DictionaryGraph)
+		{
+			//Bulk insertion: O(1) dedupe and a single pass over the edge lengths
+			GraphBuilder builder = new GraphBuilder((DictionaryGraph)graph, 16);
+			addUndirectionalEdges(builder, shallowEdges);
+			builder.build();
+			return;
+		}
+		
 		Vertex v1, v2;
 		Edge e1, e2;
 		for (ShallowEdge e : shallowEdges)
@@ -87,6 +98,17 @@ public class ShallowEdge extends Edge {
 		}
 	}
 	
+	/**
+	 * Queues the shallow edges in the builder. The edges are added to the graph when builder.build() is called. 
+	 */
+	public static void addUndirectionalEdges(GraphBuilder builder, Iterable<ShallowEdge> shallowEdges) {
+		for (ShallowEdge e : shallowEdges)
+		{
+			builder.addUndirectionalEdge(e.getId(), e.getOriginId(), e.getDestinationId(), 
+					e.isDirectional(), e.isElevator(), e.isStair());
+		}
+	}
+	
 	private int mOriginId, mDestinationId;
 	
 	public ShallowEdge(int originId, int destinationId)
@@ -100,6 +122,13 @@ public class ShallowEdge extends Edge {
 		return mDestinationId;
 	}
 	
+	//The endpoints have not been resolved, so we key on their ids
+	@Override
+	public long getKey()
+	{
+		return Edge.createKey(mOriginId, mDestinationId);
+	}
+	
 	public int getOriginId()
 	{
 		return mOriginId;
@@ -0,0 +1,241 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.snifferbackend;
+
+import java.io.IOException;
+
+import com.smartcampus.webclient.HttpTransport;
+
+/**
+ * Delivers the infrastructure-based position estimates of a client as the sniffer backend produces them. 
+ * The channel long-polls the backend: WaitForPosition?clientMac='..'&since=[time]&timeout=[s] is held open by the backend 
+ * until it has an estimate newer than 'since' (200) or the timeout expires (204), and is then re-issued immediately. 
+ * Thus, an estimate is delivered as soon as it has been computed, and an idle client issues only one request per hold timeout. 
+ * If the backend does not support WaitForPosition (404), the channel falls back to polling GetPosition at the poll interval. 
+ * 
+ * The long-polls use a transport of their own, so a held request does not occupy a slot of the shared transport. 
+ */
+public class InfrastructurePositionChannel {
+	
+	public interface Listener
+	{
+		void onPosition(InfrastructurePositionEstimate pos);
+	}
+	
+	public static final int DEFAULT_HOLD_TIMEOUT = 20; //seconds
+	//After a failed request we wait this long before trying again (in ms)
+	private static final int RETRY_INTERVAL = 2000;
+	
+	private final String mServiceUri;
+	private final String mClientMac;
+	private final int mHoldTimeout;
+	private final int mPollInterval;
+	private final HttpTransport mTransport;
+	private volatile boolean mClosed;
+	private boolean mPushSupported = true;
+	//the time of the last delivered estimate
+	private long mLastTime;
+	
+	//metrics
+	private int mNumRequests, mNumEmptyResponses, mNumFailures, mNumDelivered;
+	
+	public InfrastructurePositionChannel(String serviceUri, String clientMac, int pollInterval)
+	{
+		this(serviceUri, clientMac, DEFAULT_HOLD_TIMEOUT, pollInterval);
+	}
+	
+	/**
+	 * @param serviceUri The uri of the sniffer service (ending with '/')
+	 * @param clientMac The mac address of the client to receive estimates for
+	 * @param holdTimeout The maximum time (in seconds) the backend holds a request
+	 * @param pollInterval The interval (in ms) between requests when falling back to polling
+	 */
+	public InfrastructurePositionChannel(String serviceUri, String clientMac, int holdTimeout, int pollInterval)
+	{
+		this.mServiceUri = serviceUri;
+		this.mClientMac = clientMac;
+		this.mHoldTimeout = holdTimeout;
+		this.mPollInterval = pollInterval;
+		//The read timeout must allow for the backend holding the request
+		this.mTransport = new HttpTransport(1, HttpTransport.DEFAULT_CONNECT_TIMEOUT, holdTimeout * 1000 + HttpTransport.DEFAULT_READ_TIMEOUT);
+	}
+	
+	/**
+	 * Delivers estimates to the listener (on the calling thread) until close() is called or the thread is interrupted
+	 */
+	public void run(Listener listener)
+	{
+		JsonInfrastructurePositioningClient pollingClient = null;
+		while (!mClosed && !Thread.currentThread().isInterrupted())
+		{
+			InfrastructurePositionEstimate pos;
+			if (isPushSupported())
+			{
+				try
+				{
+					pos = waitForPosition();
+				}
+				catch (IOException ex)
+				{
+					if (mClosed)
+						break;
+					synchronized (this)
+					{
+						mNumFailures++;
+					}
+					if (!sleep(RETRY_INTERVAL))
+						break;
+					continue;
+				}
+			}
+			else
+			{
+				if (!sleep(mPollInterval))
+					break;
+				if (pollingClient == null)
+					pollingClient = new JsonInfrastructurePositioningClient(mServiceUri);
+				pos = pollingClient.getPosition(mClientMac);
+				synchronized (this)
+				{
+					mNumRequests++;
+				}
+				//skip estimates that have already been delivered
+				if (pos != null && pos.getTime() == mLastTime)
+					pos = null;
+			}
+			
+			if (pos != null && !mClosed)
+			{
+				mLastTime = pos.getTime();
+				synchronized (this)
+				{
+					mNumDelivered++;
+				}
+				listener.onPosition(pos);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the channel. A request being held by the backend is aborted, so run() returns right away. 
+	 */
+	public void close()
+	{
+		mClosed = true;
+		mTransport.close();
+	}
+	
+	//Returns null if no newer estimate was produced within the hold timeout
+	private InfrastructurePositionEstimate waitForPosition() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(mServiceUri);
+		sb.append("WaitForPosition");
+		sb.append("?");
+		sb.append("clientMac='").append(mClientMac).append("'");
+		sb.append("&since=").append(mLastTime);
+		sb.append("&timeout=").append(mHoldTimeout);
+		
+		HttpTransport.Response response = mTransport.get(sb.toString(), HttpTransport.ACCEPT_JSON);
+		try
+		{
+			int status = response.getStatusCode();
+			synchronized (this)
+			{
+				mNumRequests++;
+				if (status == 204)
+					mNumEmptyResponses++;
+			}
+			if (status == 204)
+				return null;
+			if (status == 404 || status == 501)
+			{
+				synchronized (this)
+				{
+					mPushSupported = false;
+				}
+				return null;
+			}
+			if (status != 200)
+				throw new IOException("WaitForPosition failed: " + status);
+			InfrastructurePositionEstimate pos = JsonInfrastructurePositioningClient.parsePosition(response.readString());
+			if (pos == null)
+				throw new IOException("Malformed position estimate");
+			return pos;
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+	
+	//Returns false if the channel was closed or the thread interrupted (whose interrupt status is restored)
+	private boolean sleep(int millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !mClosed;
+	}
+	
+	/**
+	 * @return false if the backend does not support WaitForPosition (and the channel polls instead)
+	 */
+	public synchronized boolean isPushSupported()
+	{
+		return mPushSupported;
+	}
+	
+	public synchronized int getNumRequests()
+	{
+		return mNumRequests;
+	}
+	
+	/**
+	 * @return The number of long-polls that expired without an estimate
+	 */
+	public synchronized int getNumEmptyResponses()
+	{
+		return mNumEmptyResponses;
+	}
+	
+	public synchronized int getNumFailures()
+	{
+		return mNumFailures;
+	}
+	
+	public synchronized int getNumDelivered()
+	{
+		return mNumDelivered;
+	}
+}
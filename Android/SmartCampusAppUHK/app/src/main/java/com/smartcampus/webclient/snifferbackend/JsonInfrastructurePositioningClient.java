@@ -33,13 +33,28 @@ import com.smartcampus.webclient.ConnectionInfo;
 import com.smartcampus.webclient.JsonWebClient;
 
 public class JsonInfrastructurePositioningClient implements IInfrastructurePositioningService {
+	
+	private final String mServiceUri;
+	
+	public JsonInfrastructurePositioningClient()
+	{
+		this(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+	}
+	
+	/**
+	 * @param serviceUri The uri of the sniffer service (ending with '/')
+	 */
+	public JsonInfrastructurePositioningClient(String serviceUri)
+	{
+		this.mServiceUri = serviceUri;
+	}
 		
 	@Override
 	public boolean startMeasuringAtBoundLocation(String clientMac, int buildingId, int vertexId)
     {		    	
     	//String url = ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI + "StartMeasuringAtBoundLocation?clientMac=" + clientMac;
     	StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("StartMeasuringAtBoundLocation");	    	
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -69,7 +84,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 		int latE6 = (int)(lat * E6);
 		int lonE6 = (int)(lon * E6);
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("StartMeasuringAtUnboundLocation");	    	
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -97,7 +112,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 	public boolean stopMeasuring(String clientMac) {
 		
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("StopMeasuring");
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -120,7 +135,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 	@Override
 	public boolean startWifiPositioning(String clientMac) {
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("StartWifiPositioning");
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -143,7 +158,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 	@Override
 	public boolean stopWifiPositioning(String clientMac) {
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("StopWifiPositioning");
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -166,7 +181,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 	@Override
 	public boolean saveMeasurement(String clientMac) {
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("SaveMeasurement");
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -192,11 +207,11 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 		if (clientMac == null)
 			throw new IllegalArgumentException("clientMac must not be null");
 		
-		InfrastructurePositionEstimate res = new InfrastructurePositionEstimate();
+		InfrastructurePositionEstimate res;
 		
 		//Build the url
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("GetPosition");
     	sb.append("?");
     	sb.append("clientMac='").append(clientMac).append("'");
@@ -214,30 +229,7 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
     	}  	
 		
     	//parse the response
-    	try
-    	{
-	    	JSONObject root = new JSONObject(jsonResponse);
-	    	JSONObject obj = root.getJSONObject("d");
-	    	res.setId(obj.getInt("ID"));
-	    	res.setBuildingId(obj.getInt("Building_ID"));
-	    	res.setVertexId(obj.getInt("VertexID"));
-	    	res.setLatitude(obj.getDouble("Latitude"));
-	    	res.setLongitude(obj.getDouble("Longitude"));
-	    	res.setAltitude(obj.getDouble("Altitude"));
-	    	res.setProvider(obj.getString("Provider"));
-	    	String strDate = obj.getString("Time").substring(6, 19);
-	    	res.setTime(Long.parseLong(strDate));
-	    	res.setAccuracy(obj.getDouble("Accuracy"));
-	    	res.setSpeed(obj.getDouble("Speed"));
-	    	res.setBearing(obj.getDouble("Bearing"));
-	    	res.setHasAccuracy(obj.getBoolean("HasAccuracy"));
-	    	res.setHasSpeed(obj.getBoolean("HasSpeed"));
-	    	res.setHasBearing(obj.getBoolean("HasBearing"));
-    	}
-    	catch (org.json.JSONException ex)
-    	{
-    		return null;
-    	}		
+    	res = parsePosition(jsonResponse);
 	        
 	    return res;  	
     	  	
@@ -248,10 +240,10 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
 		if (clientMac == null)
 			throw new IllegalArgumentException("clientMac must not be null");
 		
-		InfrastructurePositionEstimate res = new InfrastructurePositionEstimate();
+		InfrastructurePositionEstimate res;
 		    	
 		StringBuilder sb = new StringBuilder();
-    	sb.append(ConnectionInfo.SMARTCAMPUS_SNIFFER_SERVICE_URI);
+    	sb.append(mServiceUri);
     	sb.append("TestGetRandomPosition");
     	sb.append("?");
     	int randomBuildingId = 16;
@@ -266,9 +258,24 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
     	{
     		return null;
     	}
+    	res = parsePosition(jsonResponse);
+        
+        return res;  	
+    	  	
+	}
+
+	/**
+	 * Parses a position estimate in the (OData verbose) json format of the sniffer service, i.e., {"d": {"ID": .., "Building_ID": .., ..}}
+	 * @return The estimate - or null if the json is malformed
+	 */
+	public static InfrastructurePositionEstimate parsePosition(String json)
+	{
+		if (json == null)
+			return null;
+		InfrastructurePositionEstimate res = new InfrastructurePositionEstimate();
     	try
     	{
-	    	JSONObject root = new JSONObject(jsonResponse);
+	    	JSONObject root = new JSONObject(json);
 	    	JSONObject obj = root.getJSONObject("d");
 	    	res.setId(obj.getInt("ID"));
 	    	res.setBuildingId(obj.getInt("Building_ID"));
@@ -289,9 +296,11 @@ public class JsonInfrastructurePositioningClient implements IInfrastructurePosit
     	catch (org.json.JSONException ex)
     	{
     		return null;
-    	}		
-        
-        return res;  	
-    	  	
+    	}
+    	catch (RuntimeException ex)
+    	{
+    		return null; //e.g., a malformed time
+    	}
+    	return res;
 	}
 }
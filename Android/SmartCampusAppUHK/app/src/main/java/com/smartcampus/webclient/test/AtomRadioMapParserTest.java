@@ -0,0 +1,299 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.webclient.AtomRadioMapParser;
+import com.smartcampus.webclient.DomWebClient;
+import com.smartcampus.webclient.XmlPullWebClient;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AtomRadioMapParserTest extends TestCase {
+	
+	//Yields a feed of roughly 8 MB
+	private static final int NUM_VERTICES = 300;
+	private static final int NUM_MEASUREMENTS = 5;
+	private static final int NUM_HISTOGRAMS = 20;
+	
+	private static final String NAMESPACES = 
+		"xmlns=\"http://www.w3.org/2005/Atom\" " +
+		"xmlns:d=\"http://schemas.microsoft.com/ado/2007/08/dataservices\" " +
+		"xmlns:m=\"http://schemas.microsoft.com/ado/2007/08/dataservices/metadata\"";
+	
+	public void testParse() throws Exception
+	{
+		StringWriter w = new StringWriter();
+		w.write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>");
+		w.write("<feed " + NAMESPACES + "><title type=\"text\">RemoveNonCollectiveMeasurements</title><id>RemoveNonCollectiveMeasurements</id>");
+		w.write("<entry><id>Buildings(7)</id><title type=\"text\" />");
+		beginLink(w, "Edges");
+		writeEntry(w, property("ID", "1") + "<d:directional m:type=\"Edm.Boolean\" m:null=\"true\" />" + property("vertexOrigin", "10") + 
+				property("vertexDestination", "11") + property("is_stair", "false") + property("is_elevator", "true"));
+		endLink(w);
+		beginLink(w, "Vertices");
+		
+		w.write("<entry><id>Vertices(10)</id>");
+		beginLink(w, "AbsoluteLocations");
+		writeEntry(w, property("ID", "5") + property("latitude", "57.0123") + property("longitude", "9.9912") + property("altitude", "1"));
+		endLink(w);
+		beginLink(w, "SymbolicLocations");
+		writeEntry(w, property("ID", "3") + property("title", "Caf&#233; &quot;A&quot;") + "<d:description m:null=\"true\" />" + 
+				property("url", "http://a.b/c?x=1&amp;y=2") + property("info_type", "2"));
+		endLink(w);
+		beginLink(w, "WifiMeasurements");
+		w.write("<entry><id>WifiMeasurements(1)</id>");
+		beginLink(w, "Histograms");
+		writeEntry(w, property("Mac", "mac1") + property("value", "-40") + property("count", "2"));
+		writeEntry(w, property("Mac", "mac2") + property("value", "-71") + property("count", "1"));
+		endLink(w);
+		writeContent(w, property("meas_time_start", "2011-09-16T08:30:05") + "<d:meas_time_end m:null=\"true\" />");
+		w.write("</entry><entry><id>WifiMeasurements(2)</id>");
+		beginLink(w, "Histograms");
+		writeEntry(w, property("Mac", "mac1") + property("value", "-50") + property("count", "1"));
+		endLink(w);
+		writeContent(w, "<d:meas_time_start m:null=\"true\" /><d:meas_time_end m:null=\"true\" />");
+		w.write("</entry>");
+		endLink(w);
+		writeContent(w, property("ID", "10"));
+		w.write("</entry>");
+		
+		w.write("<entry><id>Vertices(11)</id>");
+		beginLink(w, "AbsoluteLocations");
+		writeEntry(w, property("latitude", "57.0124") + property("longitude", "9.9912") + property("altitude", "2.0"));
+		endLink(w);
+		w.write("<link title=\"SymbolicLocations\" href=\"Vertices(11)/SymbolicLocations\"><m:inline /></link>");
+		beginLink(w, "WifiMeasurements");
+		endLink(w);
+		writeContent(w, property("ID", "11"));
+		w.write("</entry>");
+		
+		endLink(w);
+		writeContent(w, property("ID", "7") + property("Building_Name", "Cassiopeia") + property("Lat", "57.01") + "<d:Lon m:null=\"true\" />");
+		w.write("</entry></feed>");
+		byte[] feed = w.toString().getBytes("UTF-8");
+		
+		Building b = new AtomRadioMapParser().parse(new ByteArrayInputStream(feed));
+		Assert.assertEquals(7, b.getBuildingID());
+		Assert.assertEquals("Cassiopeia", b.getName());
+		Assert.assertEquals(-1, b.getLongitude(), 1E-9);
+		IGraph g = b.getGraphModel();
+		Assert.assertEquals(2, g.numVertices());
+		Assert.assertEquals(2, g.numEdges());
+		
+		Vertex v = g.getVertexById(10);
+		Assert.assertEquals(57.0123, v.getLocation().getAbsoluteLocation().getLatitude(), 1E-9);
+		Assert.assertEquals("Caf\u00e9 \"A\"", v.getLocation().getSymbolicLocation().getTitle());
+		Assert.assertEquals("N/A", v.getLocation().getSymbolicLocation().getDescription());
+		Assert.assertEquals("http://a.b/c?x=1&y=2", v.getLocation().getSymbolicLocation().getUrl());
+		Assert.assertEquals(2, v.getNumFingerprints());
+		Assert.assertNull(v.getFingerPrints().get(0).getMeasTimeStart());
+		Assert.assertEquals(-71, v.getFingerPrints().get(1).getAvgDbM("mac2"));
+		Assert.assertTrue(v.isElevatorEndpoint());
+		Assert.assertNull(g.getVertexById(11).getLocation().getSymbolicLocation());
+		Assert.assertEquals(2, (int)g.getVertexById(11).getLocation().getAbsoluteLocation().getAltitude());
+		
+		//The DOM traversal yields the same radio map
+		assertSameRadioMap(new DomWebClient().parseRadioMap(new ByteArrayInputStream(feed)), b);
+	}
+	
+	public void testNoBuilding() throws Exception
+	{
+		byte[] feed = ("<feed " + NAMESPACES + "><title type=\"text\">RemoveNonCollectiveMeasurements</title></feed>").getBytes("UTF-8");
+		try
+		{
+			new AtomRadioMapParser().parse(new ByteArrayInputStream(feed));
+			Assert.fail();
+		}
+		catch (IOException ex) { }
+	}
+	
+	/**
+	 * Benchmark: Records a synthetic radio map feed to a file and parses it - once through a DOM (DomWebClient) 
+	 * and once in a single pass (XmlPullWebClient). Time and peak heap are printed for both. 
+	 */
+	public void testRecordedFeedBenchmark() throws Exception
+	{
+		File file = File.createTempFile("radiomap", ".xml");
+		try
+		{
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+			writeRadioMap(w);
+			w.close();
+			System.out.println("Feed: " + file.length() / (1024 * 1024) + " MB");
+			
+			HeapSampler sampler = new HeapSampler();
+			long start = System.nanoTime();
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			Building pulled = new XmlPullWebClient().parseRadioMap(in);
+			in.close();
+			report("Pull parser", start, sampler.finish());
+			Assert.assertEquals(NUM_VERTICES, pulled.getGraphModel().numVertices());
+			
+			sampler = new HeapSampler();
+			start = System.nanoTime();
+			in = new BufferedInputStream(new FileInputStream(file));
+			Building dom = new DomWebClient().parseRadioMap(in);
+			in.close();
+			report("DOM", start, sampler.finish());
+			
+			assertSameRadioMap(dom, pulled);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	private static void report(String name, long startNanos, long peakBytes)
+	{
+		System.out.println(name + ": " + (System.nanoTime() - startNanos) / 1000000 + " ms, peak heap " + peakBytes / (1024 * 1024) + " MB");
+	}
+	
+	private static void assertSameRadioMap(Building expected, Building actual)
+	{
+		Assert.assertEquals(expected.getBuildingID(), actual.getBuildingID());
+		Assert.assertEquals(expected.getName(), actual.getName());
+		Assert.assertEquals(expected.getLatitude(), actual.getLatitude(), 1E-9);
+		IGraph g = expected.getGraphModel();
+		IGraph h = actual.getGraphModel();
+		Assert.assertEquals(g.numVertices(), h.numVertices());
+		Assert.assertEquals(g.numEdges(), h.numEdges());
+		for (Vertex v : g.getVertices())
+		{
+			Vertex w = h.getVertexById(v.getId());
+			Assert.assertNotNull(w);
+			AbsoluteLocation a = v.getLocation().getAbsoluteLocation(), b = w.getLocation().getAbsoluteLocation();
+			Assert.assertEquals(a.getLatitude(), b.getLatitude(), 1E-9);
+			Assert.assertEquals(a.getLongitude(), b.getLongitude(), 1E-9);
+			Assert.assertEquals(a.getAltitude(), b.getAltitude(), 1E-9);
+			if (v.getLocation().getSymbolicLocation() == null)
+				Assert.assertNull(w.getLocation().getSymbolicLocation());
+			else
+				Assert.assertEquals(v.getLocation().getSymbolicLocation().getTitle(), w.getLocation().getSymbolicLocation().getTitle());
+			Assert.assertEquals(v.degree(), w.degree());
+			Assert.assertEquals(v.getNumFingerprints(), w.getNumFingerprints());
+			for (int i = 0; i < v.getNumFingerprints(); i++)
+			{
+				WifiMeasurement m = v.getFingerPrints().get(i), n = w.getFingerPrints().get(i);
+				Assert.assertEquals(m.getMACs(), n.getMACs());
+				for (String mac : m.getMACs())
+					Assert.assertEquals(m.getAvgDbM(mac), n.getAvgDbM(mac));
+				Assert.assertEquals(m.getMeasTimeStart(), n.getMeasTimeStart());
+			}
+		}
+	}
+	
+	private static void writeRadioMap(Writer w) throws IOException
+	{
+		w.write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>");
+		w.write("<feed " + NAMESPACES + "><title type=\"text\">RemoveNonCollectiveMeasurements</title><id>RemoveNonCollectiveMeasurements</id>");
+		w.write("<entry><id>Buildings(1)</id><title type=\"text\" />");
+		beginLink(w, "Edges");
+		for (int i = 1; i < NUM_VERTICES; i++)
+		{
+			writeEntry(w, property("ID", Integer.toString(i)) + property("directional", "false") + property("vertexOrigin", Integer.toString(i - 1)) + 
+					property("vertexDestination", Integer.toString(i)) + "<d:is_stair m:type=\"Edm.Boolean\" m:null=\"true\" /><d:is_elevator m:type=\"Edm.Boolean\" m:null=\"true\" />");
+		}
+		endLink(w);
+		beginLink(w, "Vertices");
+		for (int i = 0; i < NUM_VERTICES; i++)
+		{
+			w.write("<entry><id>Vertices(" + i + ")</id>");
+			beginLink(w, "AbsoluteLocations");
+			writeEntry(w, property("ID", Integer.toString(i)) + property("latitude", Double.toString(57.0 + i * 1E-5)) + property("longitude", "9.99") + property("altitude", Integer.toString(i % 4)));
+			endLink(w);
+			w.write("<link title=\"SymbolicLocations\" href=\"Vertices(" + i + ")/SymbolicLocations\"><m:inline /></link>");
+			beginLink(w, "WifiMeasurements");
+			for (int m = 0; m < NUM_MEASUREMENTS; m++)
+			{
+				w.write("<entry><id>WifiMeasurements(" + (i * NUM_MEASUREMENTS + m) + ")</id>");
+				beginLink(w, "Histograms");
+				for (int h = 0; h < NUM_HISTOGRAMS; h++)
+				{
+					writeEntry(w, property("Mac", "00:1a:2b:3c:" + (10 + (i / 50) % 90) + ":" + (10 + h)) + 
+							property("value", Integer.toString(-30 - (i + h) % 60)) + property("count", Integer.toString(1 + m % 3)));
+				}
+				endLink(w);
+				writeContent(w, property("meas_time_start", "2011-09-16T00:00:00") + property("meas_time_end", "2011-09-16T00:01:10"));
+				w.write("</entry>");
+			}
+			endLink(w);
+			writeContent(w, property("ID", Integer.toString(i)));
+			w.write("</entry>");
+		}
+		endLink(w);
+		writeContent(w, property("ID", "1") + property("Building_Name", "Synthetic"));
+		w.write("</entry></feed>");
+	}
+	
+	//<link title="..."><m:inline><feed>
+	private static void beginLink(Writer w, String title) throws IOException
+	{
+		w.write("<link rel=\"http://schemas.microsoft.com/ado/2007/08/dataservices/related/" + title + "\" type=\"application/atom+xml;type=feed\" title=\"" + title + "\" href=\"" + title + "\">");
+		w.write("<m:inline><feed><title type=\"text\">" + title + "</title><id>" + title + "</id><updated>2014-01-01T00:00:00Z</updated>");
+	}
+	
+	private static void endLink(Writer w) throws IOException
+	{
+		w.write("</feed></m:inline></link>");
+	}
+	
+	private static void writeEntry(Writer w, String properties) throws IOException
+	{
+		w.write("<entry><id>entry</id><title type=\"text\" /><updated>2014-01-01T00:00:00Z</updated><author><name /></author>");
+		writeContent(w, properties);
+		w.write("</entry>");
+	}
+	
+	private static void writeContent(Writer w, String properties) throws IOException
+	{
+		w.write("<content type=\"application/xml\"><m:properties>" + properties + "</m:properties></content>");
+	}
+	
+	private static String property(String name, String value)
+	{
+		return "<d:" + name + ">" + value + "</d:" + name + ">";
+	}
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.smartcampus.tracking.TrackedPosition;
+import com.smartcampus.tracking.TrackedPositionCodec;
+import com.smartcampus.webclient.CompactTrackingClient;
+import com.smartcampus.webclient.HttpTransport;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class CompactTrackingTest extends TestCase {
+	
+	private LocalTrackingService mService;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mService = new LocalTrackingService();
+		mService.start();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mService.close();
+	}
+	
+	//Two clients walking along a corridor (one fix per 2 seconds) and an outdoor (gps) fix
+	private static TrackedPosition[] createPositions(int n)
+	{
+		TrackedPosition[] res = new TrackedPosition[n];
+		for (int i = 0; i < n; i++)
+		{
+			TrackedPosition pos = new TrackedPosition();
+			boolean outdoor = i == n - 1;
+			pos.setClientId(i % 2 == 0 ? "3f2c7a2e-5d7b-4a4e-9c43-1b0f4f6c2a11" : "client-\u00e6\u00f8\u00e5");
+			pos.setProvider(outdoor ? "Android Location Manager (Gps)" : "Android Device Wifi");
+			pos.setBuildingId(outdoor ? -999 : 17);
+			pos.setVertexId(outdoor ? -999 : 1000 + i / 4);
+			pos.setLatitude(57.0123456 + i * 3.1E-6);
+			pos.setLongitude(9.9912345 - i * 1.7E-6);
+			pos.setAltitude(i < n / 2 ? 0 : 4.5);
+			pos.setTime(1400000000000L + i * 2000);
+			pos.setHasAccuracy(true);
+			pos.setAccuracy(2.75 + i % 3);
+			pos.setHasSpeed(outdoor);
+			pos.setSpeed(outdoor ? 1.25 : 0);
+			pos.setHasBearing(outdoor);
+			pos.setBearing(outdoor ? 271.5 : 0);
+			res[i] = pos;
+		}
+		return res;
+	}
+	
+	private static void assertSamePositions(TrackedPosition[] expected, List<TrackedPosition> actual)
+	{
+		Assert.assertEquals(expected.length, actual.size());
+		//Decoded positions are grouped by client
+		int k = 0;
+		for (int parity = 0; parity < 2; parity++)
+		{
+			for (int i = parity; i < expected.length; i += 2)
+			{
+				TrackedPosition e = expected[i], a = actual.get(k++);
+				Assert.assertEquals(e.getClientId(), a.getClientId());
+				Assert.assertEquals(e.getProvider(), a.getProvider());
+				Assert.assertEquals(e.getBuildingId(), a.getBuildingId());
+				Assert.assertEquals(e.getVertexId(), a.getVertexId());
+				Assert.assertEquals(e.getTime(), a.getTime());
+				Assert.assertEquals(e.getLatitude(), a.getLatitude(), 1E-7);
+				Assert.assertEquals(e.getLongitude(), a.getLongitude(), 1E-7);
+				Assert.assertEquals(e.getAltitude(), a.getAltitude(), 1E-2);
+				Assert.assertEquals(e.isHasAccuracy(), a.isHasAccuracy());
+				Assert.assertEquals(e.getAccuracy(), a.getAccuracy(), 1E-2);
+				Assert.assertEquals(e.isHasSpeed(), a.isHasSpeed());
+				Assert.assertEquals(e.getSpeed(), a.getSpeed(), 1E-2);
+				Assert.assertEquals(e.isHasBearing(), a.isHasBearing());
+				Assert.assertEquals(e.getBearing(), a.getBearing(), 1E-2);
+			}
+		}
+	}
+	
+	public void testRoundTrip() throws Exception
+	{
+		TrackedPosition[] positions = createPositions(101);
+		byte[] encoded = TrackedPositionCodec.encode(positions);
+		assertSamePositions(positions, Arrays.asList(TrackedPositionCodec.decode(new ByteArrayInputStream(encoded))));
+		
+		//An Atom entry (cf. BatchUpdater) takes about 1 KB per position
+		Assert.assertTrue("bytes per position: " + encoded.length / positions.length, encoded.length < positions.length * 30);
+	}
+	
+	public void testMalformed() throws Exception
+	{
+		byte[] encoded = TrackedPositionCodec.encode(createPositions(10));
+		byte[] truncated = new byte[encoded.length - 5];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		try
+		{
+			TrackedPositionCodec.decode(new ByteArrayInputStream(truncated));
+			Assert.fail();
+		}
+		catch (IOException ex)
+		{
+			//expected
+		}
+	}
+	
+	public void testUpload() throws Exception
+	{
+		TrackedPosition[] positions = createPositions(51);
+		HttpTransport transport = new HttpTransport(2, 5000, 5000);
+		CompactTrackingClient client = new CompactTrackingClient(mService.getUri(), transport);
+		client.upload(positions);
+		Assert.assertEquals(1, mService.getNumRequests());
+		assertSamePositions(positions, mService.getPositions());
+		Assert.assertEquals(mService.getBytesReceived(), transport.getStats("AddTrackedPositions").getBytesSent());
+		
+		try
+		{
+			new CompactTrackingClient(mService.getUri() + "Unknown", transport).upload(positions);
+			Assert.fail();
+		}
+		catch (IOException ex)
+		{
+			//rejected (404)
+		}
+	}
+}
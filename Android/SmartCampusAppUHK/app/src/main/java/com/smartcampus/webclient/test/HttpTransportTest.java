@@ -0,0 +1,211 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.webclient.HttpTransport;
+import com.smartcampus.webclient.JsonWebClient;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HttpTransportTest extends TestCase {
+	
+	private static final int BUILDING_ID = 1;
+	
+	private LocalRadioMapService mService;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mService = new LocalRadioMapService();
+		mService.start();
+		for (int id = 1; id <= 50; id++)
+			mService.putVertex(id, 57.0 + id * 1E-4, 9.99, id % 3, new String[] { "00:11:22:33:44:01", "00:11:22:33:44:02", "00:11:22:33:44:03" }, new int[] { -40 - id % 7, -70 + id % 5, -60 });
+		for (int id = 1; id < 50; id++)
+			mService.putEdge(id, id, id + 1, false);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mService.close();
+	}
+	
+	private String getRadioMapUrl()
+	{
+		return mService.getServiceRootUri() + "RemoveNonCollectiveMeasurements?building_id=" + BUILDING_ID;
+	}
+	
+	public void testCompressedDownload() throws Exception
+	{
+		HttpTransport transport = new HttpTransport(2, 5000, 5000);
+		Building b = new JsonWebClient(mService.getServiceRootUri(), transport).downloadRadioMap(BUILDING_ID);
+		Assert.assertEquals(50, b.getGraphModel().numVertices());
+		//Edges are stored in both directions
+		Assert.assertEquals(98, b.getGraphModel().numEdges());
+		
+		HttpTransport.EndpointStats stats = transport.getStats("RemoveNonCollectiveMeasurements");
+		Assert.assertEquals(1, stats.getNumResponses());
+		Assert.assertEquals(0, stats.getNumFailures());
+		Assert.assertEquals(mService.getBytesSent(), stats.getBytesReceived());
+		Assert.assertTrue(stats.getBytesReceived() < mService.getUncompressedBytesSent());
+	}
+	
+	public void testConnectionReuse() throws Exception
+	{
+		HttpTransport transport = new HttpTransport(2, 5000, 5000);
+		for (int i = 0; i < 5; i++)
+		{
+			HttpTransport.Response response = transport.get(getRadioMapUrl(), HttpTransport.ACCEPT_JSON);
+			InputStream content = null;
+			try
+			{
+				Assert.assertEquals(200, response.getStatusCode());
+				//Only read part of the response - close() drains the rest
+				if (i % 2 == 0)
+				{
+					content = response.getContent();
+					content.read(new byte[10]);
+				}
+			}
+			finally
+			{
+				response.close();
+			}
+			//The (gzip) decoder is closed along with the response
+			if (content != null)
+			{
+				try
+				{
+					content.read();
+					Assert.fail();
+				}
+				catch (IOException ex) { }
+			}
+		}
+		Assert.assertEquals(1, mService.getNumConnections());
+		Assert.assertEquals(5, transport.getStats("RemoveNonCollectiveMeasurements").getNumResponses());
+	}
+	
+	public void testConcurrencyBound() throws Exception
+	{
+		final HttpTransport transport = new HttpTransport(2, 5000, 5000);
+		HttpTransport.Response first = transport.get(getRadioMapUrl(), HttpTransport.ACCEPT_JSON);
+		HttpTransport.Response second = transport.get(getRadioMapUrl(), HttpTransport.ACCEPT_JSON);
+		
+		final AtomicBoolean completed = new AtomicBoolean();
+		Thread third = new Thread() {
+			@Override
+			public void run() {
+				try
+				{
+					transport.get(getRadioMapUrl(), HttpTransport.ACCEPT_JSON).close();
+					completed.set(true);
+				}
+				catch (Exception ex)
+				{
+					ex.printStackTrace();
+				}
+			}
+		};
+		third.start();
+		third.join(300);
+		Assert.assertFalse(completed.get());
+		
+		//Closing a response frees its slot
+		first.close();
+		third.join(5000);
+		Assert.assertTrue(completed.get());
+		second.close();
+		Assert.assertEquals(3, mService.getNumFullResponses());
+	}
+	
+	public void testStreamedPost() throws Exception
+	{
+		HttpTransport transport = new HttpTransport(2, 5000, 5000);
+		final int size = 1024 * 1024;
+		HttpTransport.Response response = transport.post(mService.getServiceRootUri() + "$batch", "multipart/mixed;boundary=batch_1", new HttpTransport.BodyWriter() {
+			public void writeTo(OutputStream out) throws IOException {
+				byte[] line = "0123456789abcdef".getBytes("US-ASCII");
+				for (int i = 0; i < size / line.length; i++)
+					out.write(line);
+			}
+		});
+		try
+		{
+			Assert.assertEquals(202, response.getStatusCode());
+		}
+		finally
+		{
+			response.close();
+		}
+		Assert.assertEquals(1, mService.getNumChunkedRequests());
+		Assert.assertEquals(size, mService.getBytesReceived());
+		Assert.assertEquals(size, transport.getStats("$batch").getBytesSent());
+		
+		//A body of known length is not chunked
+		transport.post(mService.getServiceRootUri() + "$batch", "text/plain", new byte[100]).close();
+		Assert.assertEquals(2, mService.getNumBatchRequests());
+		Assert.assertEquals(1, mService.getNumChunkedRequests());
+		Assert.assertEquals(size + 100, mService.getBytesReceived());
+	}
+	
+	public void testFailuresAndStatusCodes() throws Exception
+	{
+		HttpTransport transport = new HttpTransport(1, 5000, 5000);
+		HttpTransport.Response response = transport.get(mService.getServiceRootUri() + "Unknown", HttpTransport.ACCEPT_JSON);
+		try
+		{
+			Assert.assertEquals(404, response.getStatusCode());
+		}
+		finally
+		{
+			response.close();
+		}
+		
+		String unreachable = "http://127.0.0.1:1/Unreachable";
+		try
+		{
+			transport.get(unreachable, HttpTransport.ACCEPT_JSON);
+			Assert.fail();
+		}
+		catch (IOException ex)
+		{
+			//expected
+		}
+		Assert.assertEquals(1, transport.getStats("Unreachable").getNumFailures());
+		Assert.assertEquals("Unreachable", HttpTransport.getEndpoint(unreachable));
+		//The failed request must have released its slot
+		transport.get(getRadioMapUrl(), HttpTransport.ACCEPT_JSON).close();
+	}
+}
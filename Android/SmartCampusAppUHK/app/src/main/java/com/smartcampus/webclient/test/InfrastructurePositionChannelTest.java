@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartcampus.webclient.HttpTransport;
+import com.smartcampus.webclient.snifferbackend.InfrastructurePositionChannel;
+import com.smartcampus.webclient.snifferbackend.InfrastructurePositionEstimate;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class InfrastructurePositionChannelTest extends TestCase {
+	
+	private static final String MAC = "00:11:22:33:44:55";
+	
+	//Collects the delivered estimates along with the time they were delivered
+	private static class RecordingListener implements InfrastructurePositionChannel.Listener
+	{
+		final List<InfrastructurePositionEstimate> positions = new ArrayList<InfrastructurePositionEstimate>();
+		final List<Long> deliveryTimes = new ArrayList<Long>();
+		
+		public synchronized void onPosition(InfrastructurePositionEstimate pos)
+		{
+			positions.add(pos);
+			deliveryTimes.add(System.currentTimeMillis());
+			notifyAll();
+		}
+		
+		synchronized void awaitPositions(int n) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + 5000;
+			while (positions.size() < n && System.currentTimeMillis() < deadline)
+				wait(50);
+		}
+	}
+	
+	private LocalPositioningService mService;
+	private InfrastructurePositionChannel mChannel;
+	private RecordingListener mListener;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mService = new LocalPositioningService();
+		mService.start();
+		mListener = new RecordingListener();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		if (mChannel != null)
+			mChannel.close();
+		mService.close();
+	}
+	
+	private Thread startChannel(int holdTimeout, int pollInterval)
+	{
+		mChannel = new InfrastructurePositionChannel(mService.getServiceUri(), MAC, holdTimeout, pollInterval);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				mChannel.run(mListener);
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	public void testPushLatency() throws Exception
+	{
+		//With a 2 s poll interval, an estimate would on average be delivered 1 s after it was produced
+		startChannel(5, 2000);
+		Thread.sleep(200);
+		long[] published = new long[5];
+		for (int i = 0; i < published.length; i++)
+		{
+			published[i] = mService.publish(1, i, 57.0 + i * 1E-5, 9.99);
+			mListener.awaitPositions(i + 1);
+			Thread.sleep(100);
+		}
+		
+		Assert.assertEquals(5, mListener.positions.size());
+		for (int i = 0; i < published.length; i++)
+		{
+			InfrastructurePositionEstimate pos = mListener.positions.get(i);
+			Assert.assertEquals(i, pos.getVertexId());
+			Assert.assertEquals(published[i], pos.getTime());
+			Assert.assertTrue("latency: " + (mListener.deliveryTimes.get(i) - published[i]), mListener.deliveryTimes.get(i) - published[i] < 500);
+		}
+		Assert.assertTrue(mChannel.isPushSupported());
+		Assert.assertEquals(0, mService.getNumGetRequests());
+	}
+	
+	public void testIdle() throws Exception
+	{
+		startChannel(1, 100);
+		Thread.sleep(2500);
+		
+		//No estimates, so the held requests simply expire (polling every 100 ms would be 25 requests)
+		Assert.assertEquals(0, mListener.positions.size());
+		Assert.assertTrue(mService.getNumWaitRequests() <= 3);
+		Assert.assertTrue(mService.getNumEmptyResponses() >= 2);
+	}
+	
+	public void testContinuousEstimates() throws Exception
+	{
+		mService.startEmitting(50);
+		startChannel(5, 2000);
+		mListener.awaitPositions(20);
+		
+		//Every estimate is delivered once and in order (they are produced slower than they are fetched)
+		Assert.assertTrue(mListener.positions.size() >= 20);
+		for (int i = 1; i < mListener.positions.size(); i++)
+			Assert.assertTrue(mListener.positions.get(i).getTime() > mListener.positions.get(i - 1).getTime());
+	}
+	
+	public void testPollingFallback() throws Exception
+	{
+		mService.setPushSupported(false);
+		mService.publish(1, 7, 57.0, 9.99);
+		startChannel(5, 100);
+		mListener.awaitPositions(1);
+		Thread.sleep(500);
+		
+		Assert.assertFalse(mChannel.isPushSupported());
+		//The unchanged estimate is only delivered once
+		Assert.assertEquals(1, mListener.positions.size());
+		Assert.assertEquals(7, mListener.positions.get(0).getVertexId());
+		Assert.assertTrue(mService.getNumGetRequests() >= 3);
+		
+		mService.publish(1, 8, 57.0, 9.99);
+		mListener.awaitPositions(2);
+		Assert.assertEquals(8, mListener.positions.get(1).getVertexId());
+	}
+	
+	public void testCloseAbortsHeldRequest() throws Exception
+	{
+		Thread thread = startChannel(20, 2000);
+		Thread.sleep(500);
+		
+		//The request is held for 20 s, but closing the channel aborts it
+		long start = System.currentTimeMillis();
+		mChannel.close();
+		thread.join(5000);
+		Assert.assertFalse(thread.isAlive());
+		Assert.assertTrue("returned after: " + (System.currentTimeMillis() - start), System.currentTimeMillis() - start < 2000);
+		Assert.assertEquals(0, mChannel.getNumFailures());
+	}
+	
+	public void testClosedTransport() throws Exception
+	{
+		//A request that starts after close() (e.g., just after the channel checked that it is open) fails right away
+		HttpTransport transport = new HttpTransport(1, HttpTransport.DEFAULT_CONNECT_TIMEOUT, HttpTransport.DEFAULT_READ_TIMEOUT);
+		transport.close();
+		try
+		{
+			transport.get(mService.getServiceUri(), HttpTransport.ACCEPT_JSON);
+			Assert.fail("A closed transport sent a request");
+		}
+		catch (IOException ex)
+		{
+			//expected
+		}
+		Assert.assertEquals(0, mService.getNumGetRequests());
+	}
+	
+	public void testInterrupt() throws Exception
+	{
+		mService.setPushSupported(false);
+		Thread thread = startChannel(5, 1000);
+		Thread.sleep(1500);
+		
+		//The thread is interrupted while it waits for the next poll
+		thread.interrupt();
+		thread.join(2000);
+		Assert.assertFalse(thread.isAlive());
+	}
+}
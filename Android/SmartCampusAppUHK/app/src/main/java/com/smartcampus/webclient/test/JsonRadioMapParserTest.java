@@ -0,0 +1,198 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.json.JSONObject;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.webclient.JsonRadioMapParser;
+import com.smartcampus.webclient.JsonWebClient;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class JsonRadioMapParserTest extends TestCase {
+	
+	//Yields a payload of roughly 50 MB
+	private static final int NUM_VERTICES = 2000;
+	private static final int NUM_MEASUREMENTS = 10;
+	private static final int NUM_HISTOGRAMS = 50;
+	
+	public void testParse() throws Exception
+	{
+		String json = 
+			"{\"d\": [{\"ID\": 7, \"Building_Name\": \"Cassiopeia\", " +
+			"\"Edges\": [{\"ID\": 1, \"vertexOrigin\": 10, \"vertexDestination\": 11, \"directional\": null, \"is_stair\": false, \"is_elevator\": true}], " +
+			"\"Vertices\": [" +
+				"{\"ID\": 10, \"AbsoluteLocations\": [{\"latitude\": 57.0123, \"longitude\": 9.9912, \"altitude\": 1}], " +
+				"\"SymbolicLocations\": [{\"ID\": 3, \"title\": \"Caf\\u00e9 \\\"A\\\"\", \"description\": null, \"url\": \"http://a.b/c\", \"is_entrance\": null, \"info_type\": 2}], " +
+				"\"WifiMeasurements\": [{\"meas_time_start\": null, \"Histograms\": [{\"value\": -40, \"count\": 2, \"Mac\": \"mac1\"}, {\"value\": -71, \"count\": 1, \"Mac\": \"mac2\"}]}]}, " +
+				"{\"ID\": 11, \"AbsoluteLocations\": [{\"latitude\": 57.0124, \"longitude\": 9.9912, \"altitude\": 2.0}], \"SymbolicLocations\": [], \"WifiMeasurements\": []}" +
+			"]}, {\"ID\": 8, \"Edges\": [], \"Vertices\": []}]}";
+		
+		Building b = new JsonRadioMapParser().parse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+		IGraph g = b.getGraphModel();
+		Assert.assertEquals(2, g.numVertices());
+		Assert.assertEquals(2, g.numEdges());
+		
+		Vertex v = g.getVertexById(10);
+		Assert.assertEquals(57.0123, v.getLocation().getAbsoluteLocation().getLatitude(), 1E-9);
+		Assert.assertEquals("Caf\u00e9 \"A\"", v.getLocation().getSymbolicLocation().getTitle());
+		Assert.assertEquals(1, v.getNumFingerprints());
+		Assert.assertEquals(-71, v.getFingerPrints().get(0).getAvgDbM("mac2"), 0.001);
+		Assert.assertTrue(v.isElevatorEndpoint());
+		Assert.assertEquals(2, (int)g.getVertexById(11).getLocation().getAbsoluteLocation().getAltitude());
+	}
+	
+	/**
+	 * Benchmark: Downloads a synthetic radio map (~50 MB) from a local stub server - 
+	 * once streamed through JsonRadioMapParser and once read into a string and an org.json tree (the former approach). 
+	 * Time and peak heap are printed for both. 
+	 */
+	public void testSyntheticRadioMapBenchmark() throws Exception
+	{
+		StubServer server = new StubServer();
+		server.start();
+		String url = "http://127.0.0.1:" + server.getPort() + "/RemoveNonCollectiveMeasurements";
+		
+		HeapSampler sampler = new HeapSampler();
+		long start = System.nanoTime();
+		InputStream in = JsonWebClient.OpenHttpStream(url);
+		Building streamed = new JsonRadioMapParser().parse(in);
+		in.close();
+		report("Streaming", start, sampler.finish());
+		Assert.assertEquals(NUM_VERTICES, streamed.getGraphModel().numVertices());
+		streamed = null;
+		
+		sampler = new HeapSampler();
+		start = System.nanoTime();
+		JSONObject root = new JSONObject(JsonWebClient.OpenHttpConnection(url));
+		Assert.assertEquals(NUM_VERTICES, root.getJSONArray("d").getJSONObject(0).getJSONArray("Vertices").length());
+		report("String + org.json tree (excl. model objects)", start, sampler.finish());
+		
+		server.close();
+	}
+	
+	private static void report(String name, long startNanos, long peakBytes)
+	{
+		System.out.println(name + ": " + (System.nanoTime() - startNanos) / 1000000 + " ms, peak heap " + peakBytes / (1024 * 1024) + " MB");
+	}
+	
+	private static void writeRadioMap(Writer w) throws IOException
+	{
+		w.write("{\"d\": [{\"ID\": 1, \"Building_Name\": \"Synthetic\", \"Edges\": [");
+		for (int i = 1; i < NUM_VERTICES; i++)
+		{
+			if (i > 1)
+				w.write(", ");
+			w.write("{\"ID\": " + i + ", \"vertexOrigin\": " + (i - 1) + ", \"vertexDestination\": " + i + ", \"directional\": false, \"is_stair\": null, \"is_elevator\": null}");
+		}
+		w.write("], \"Vertices\": [");
+		for (int i = 0; i < NUM_VERTICES; i++)
+		{
+			if (i > 0)
+				w.write(", ");
+			w.write("{\"ID\": " + i + ", \"AbsoluteLocations\": [{\"latitude\": " + (57.0 + i * 1E-5) + ", \"longitude\": 9.99, \"altitude\": " + (i % 4) + "}], ");
+			w.write("\"SymbolicLocations\": [], \"WifiMeasurements\": [");
+			for (int m = 0; m < NUM_MEASUREMENTS; m++)
+			{
+				if (m > 0)
+					w.write(", ");
+				w.write("{\"meas_time_start\": null, \"meas_time_end\": null, \"Histograms\": [");
+				for (int h = 0; h < NUM_HISTOGRAMS; h++)
+				{
+					if (h > 0)
+						w.write(", ");
+					w.write("{\"value\": " + (-30 - (i + h) % 60) + ", \"count\": " + (1 + m % 3) + ", \"Mac\": \"00:1a:2b:3c:" + (10 + (i / 50) % 90) + ":" + (10 + h) + "\"}");
+				}
+				w.write("]}");
+			}
+			w.write("]}");
+		}
+		w.write("]}]}");
+	}
+	
+	//Serves the synthetic radio map to any GET request
+	private static class StubServer extends Thread
+	{
+		private final ServerSocket mSocket;
+		
+		StubServer() throws IOException
+		{
+			mSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+		
+		int getPort()
+		{
+			return mSocket.getLocalPort();
+		}
+		
+		void close() throws IOException
+		{
+			mSocket.close();
+		}
+		
+		@Override
+		public void run()
+		{
+			while (!mSocket.isClosed())
+			{
+				try
+				{
+					Socket client = mSocket.accept();
+					BufferedReader request = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+					String line;
+					while ((line = request.readLine()) != null && line.length() > 0) { } //skip the headers
+					
+					Writer w = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"), 64 * 1024);
+					w.write("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nConnection: close\r\n\r\n");
+					writeRadioMap(w);
+					w.close();
+					client.close();
+				}
+				catch (IOException ex)
+				{
+					//closed
+				}
+			}
+		}
+	}
+}
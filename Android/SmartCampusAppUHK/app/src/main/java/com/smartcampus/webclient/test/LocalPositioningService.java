@@ -0,0 +1,258 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A local stand-in for the sniffer (infrastructure positioning) service which produces synthetic position estimates: 
+ * - WaitForPosition?clientMac=..&since=[time]&timeout=[s] is held until an estimate newer than 'since' is published (200) 
+ *   or the timeout expires (204) - 404 if push is disabled
+ * - GetPosition?clientMac=.. returns the latest estimate
+ * Estimates are published by publish() or periodically by startEmitting() (walking along a corridor). 
+ * Requests are counted, so tests can verify the traffic. 
+ */
+public class LocalPositioningService extends Thread {
+	
+	private final ServerSocket mSocket;
+	private boolean mPushSupported = true;
+	private String mLatest; //json
+	private long mLatestTime;
+	private int mNumEstimates;
+	private int mNumWaitRequests, mNumGetRequests, mNumEmptyResponses;
+	private Thread mEmitter;
+	
+	public LocalPositioningService() throws IOException
+	{
+		mSocket = new ServerSocket(0);
+		setDaemon(true);
+	}
+	
+	//The uri to pass to InfrastructurePositionChannel (or JsonInfrastructurePositioningClient)
+	public String getServiceUri()
+	{
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + "/";
+	}
+	
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			if (mEmitter != null)
+				mEmitter.interrupt();
+		}
+		mSocket.close();
+	}
+	
+	public synchronized void setPushSupported(boolean value)
+	{
+		mPushSupported = value;
+	}
+	
+	/**
+	 * Publishes a new estimate at the given vertex (the estimate's time is the current time)
+	 * @return The time of the estimate
+	 */
+	public synchronized long publish(int buildingId, int vertexId, double lat, double lon)
+	{
+		//estimate times must be unique
+		long time = Math.max(System.currentTimeMillis(), mLatestTime + 1);
+		mLatestTime = time;
+		mNumEstimates++;
+		mLatest = "{\"d\":{\"ID\":" + mNumEstimates + ",\"Building_ID\":" + buildingId + ",\"VertexID\":" + vertexId
+				+ ",\"Latitude\":" + lat + ",\"Longitude\":" + lon + ",\"Altitude\":0.0,\"Provider\":\"SnifferService\""
+				+ ",\"Time\":\"/Date(" + time + ")/\",\"Accuracy\":3.5,\"Speed\":0.0,\"Bearing\":0.0"
+				+ ",\"HasAccuracy\":true,\"HasSpeed\":false,\"HasBearing\":false}}";
+		notifyAll();
+		return time;
+	}
+	
+	/**
+	 * Publishes an estimate every intervalMillis, moving one vertex along a corridor each time
+	 */
+	public synchronized void startEmitting(final int intervalMillis)
+	{
+		mEmitter = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; !isInterrupted(); i++)
+				{
+					publish(1, i, 57.0 + i * 1E-5, 9.99);
+					try { Thread.sleep(intervalMillis); }
+					catch (InterruptedException ex) { return; }
+				}
+			}
+		};
+		mEmitter.setDaemon(true);
+		mEmitter.start();
+	}
+	
+	public synchronized int getNumEstimates()
+	{
+		return mNumEstimates;
+	}
+	
+	public synchronized int getNumWaitRequests()
+	{
+		return mNumWaitRequests;
+	}
+	
+	public synchronized int getNumGetRequests()
+	{
+		return mNumGetRequests;
+	}
+	
+	//The number of WaitForPosition requests that timed out
+	public synchronized int getNumEmptyResponses()
+	{
+		return mNumEmptyResponses;
+	}
+	
+	@Override
+	public void run()
+	{
+		while (!mSocket.isClosed())
+		{
+			try
+			{
+				final Socket client = mSocket.accept();
+				Thread connection = new Thread() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			}
+			catch (IOException ex)
+			{
+				//closed
+			}
+		}
+	}
+	
+	private void serve(Socket client)
+	{
+		try
+		{
+			BufferedReader request = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+			while (handle(request, client.getOutputStream())) { }
+		}
+		catch (IOException ex)
+		{
+			//the client closed the connection
+		}
+		catch (InterruptedException ex)
+		{
+			//shutting down
+		}
+		finally
+		{
+			try { client.close(); } catch (IOException ex) { }
+		}
+	}
+	
+	//Handles the next request of a connection - returns false when the client has closed the connection
+	private boolean handle(BufferedReader request, OutputStream out) throws IOException, InterruptedException
+	{
+		String requestLine = request.readLine();
+		if (requestLine == null)
+			return false;
+		String line;
+		while ((line = request.readLine()) != null && line.length() > 0) { }
+		
+		//GET /[operation]?[query] HTTP/1.1
+		String target = requestLine.split(" ")[1];
+		int q = target.indexOf('?');
+		String operation = q < 0 ? target.substring(1) : target.substring(1, q);
+		String query = q < 0 ? "" : target.substring(q + 1);
+		
+		String status, body = null;
+		synchronized (this)
+		{
+			if (operation.equals("WaitForPosition") && mPushSupported)
+			{
+				mNumWaitRequests++;
+				long since = Long.parseLong(getParameter(query, "since"));
+				long deadline = System.currentTimeMillis() + Integer.parseInt(getParameter(query, "timeout")) * 1000L;
+				long now;
+				while (mLatestTime <= since && (now = System.currentTimeMillis()) < deadline)
+					wait(deadline - now);
+				if (mLatestTime > since)
+				{
+					status = "200 OK";
+					body = mLatest;
+				}
+				else
+				{
+					status = "204 No Content";
+					mNumEmptyResponses++;
+				}
+			}
+			else if (operation.equals("GetPosition"))
+			{
+				mNumGetRequests++;
+				status = mLatest != null ? "200 OK" : "204 No Content";
+				body = mLatest;
+			}
+			else
+			{
+				status = "404 Not Found";
+			}
+		}
+		
+		byte[] content = body == null ? new byte[0] : body.getBytes("UTF-8");
+		StringBuilder header = new StringBuilder();
+		header.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (!status.startsWith("204"))
+		{
+			header.append("Content-Type: application/json\r\n");
+			header.append("Content-Length: ").append(content.length).append("\r\n");
+		}
+		header.append("\r\n");
+		out.write(header.toString().getBytes("US-ASCII"));
+		out.write(content);
+		out.flush();
+		return true;
+	}
+	
+	private static String getParameter(String query, String name)
+	{
+		for (String param : query.split("&"))
+		{
+			if (param.startsWith(name + "="))
+				return param.substring(name.length() + 1);
+		}
+		return null;
+	}
+}
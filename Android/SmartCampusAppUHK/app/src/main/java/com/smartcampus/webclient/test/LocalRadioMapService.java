@@ -0,0 +1,484 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import com.smartcampus.indoormodel.graph.Edge;
+
+/**
+ * A local stand-in for the RadioMapService which supports conditional requests and delta sync: 
+ * - RemoveNonCollectiveMeasurements returns the full radio map with an ETag (the current revision) and honors If-None-Match
+ * - RadioMapChanges?since=[version] returns the vertices and edges changed (or removed) since the version, 
+ *   304 if nothing has changed, 410 if the version predates the retained history and 404 if delta sync is disabled
+ * - $batch accepts (and discards) batch posts, which are counted
+ * Every change (putVertex(), removeEdge(), ...) increments the revision. 
+ * Connections are kept alive and responses are gzip-compressed if the client accepts it. 
+ * Responses, connections and bytes sent are counted, so tests can verify what was transferred. 
+ */
+public class LocalRadioMapService extends Thread {
+	
+	private final ServerSocket mSocket;
+	
+	private int mRevision;
+	//Changes prior to this revision are no longer retained, i.e., deltas from older versions are not available
+	private int mOldestRevision;
+	private boolean mDeltaSupported = true;
+	//Each element is the json representation and the revision it was last changed (or removed) in
+	private Map<Integer, Change> mVertices = new TreeMap<Integer, Change>();
+	private Map<Long, Change> mEdges = new TreeMap<Long, Change>();
+	
+	private int mNumFullResponses, mNumDeltaResponses, mNumNotModifiedResponses;
+	private int mNumBatchRequests, mNumChunkedRequests;
+	private long mBytesReceived;
+	private int mNumConnections;
+	private long mBytesSent, mUncompressedBytesSent;
+	
+	public LocalRadioMapService() throws IOException
+	{
+		mSocket = new ServerSocket(0);
+		setDaemon(true);
+	}
+	
+	//The root uri to pass to JsonWebClient
+	public String getServiceRootUri()
+	{
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + "/";
+	}
+	
+	public void close() throws IOException
+	{
+		mSocket.close();
+	}
+	
+	public synchronized String getVersion()
+	{
+		return "\"" + mRevision + "\"";
+	}
+	
+	public synchronized void setDeltaSupported(boolean value)
+	{
+		mDeltaSupported = value;
+	}
+	
+	//Discards the change history, i.e., only clients with the current version can get deltas
+	public synchronized void discardHistory()
+	{
+		mOldestRevision = mRevision;
+	}
+	
+	public synchronized void putVertex(int id, double lat, double lon, int floor, String[] macs, int[] values)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"ID\": ").append(id);
+		sb.append(", \"AbsoluteLocations\": [{\"latitude\": ").append(lat).append(", \"longitude\": ").append(lon).append(", \"altitude\": ").append(floor).append("}]");
+		sb.append(", \"SymbolicLocations\": [], \"WifiMeasurements\": [{\"Histograms\": [");
+		for (int i = 0; i < macs.length; i++)
+		{
+			if (i > 0)
+				sb.append(", ");
+			sb.append("{\"value\": ").append(values[i]).append(", \"count\": 1, \"Mac\": \"").append(macs[i]).append("\"}");
+		}
+		sb.append("]}]}");
+		mVertices.put(id, new Change(sb.toString(), ++mRevision));
+	}
+	
+	public synchronized void removeVertex(int id)
+	{
+		mVertices.put(id, new Change(null, ++mRevision, true));
+	}
+	
+	public synchronized void putEdge(int id, int originId, int destinationId, boolean isElevator)
+	{
+		String json = "{\"ID\": " + id + ", \"vertexOrigin\": " + originId + ", \"vertexDestination\": " + destinationId + 
+			", \"directional\": false, \"is_stair\": false, \"is_elevator\": " + isElevator + "}";
+		mEdges.put(getEdgeKey(originId, destinationId), new Change(json, ++mRevision));
+	}
+	
+	public synchronized void removeEdge(int originId, int destinationId)
+	{
+		String json = "{\"vertexOrigin\": " + originId + ", \"vertexDestination\": " + destinationId + "}";
+		mEdges.put(getEdgeKey(originId, destinationId), new Change(json, ++mRevision, true));
+	}
+	
+	public synchronized int getNumFullResponses()
+	{
+		return mNumFullResponses;
+	}
+	
+	public synchronized int getNumDeltaResponses()
+	{
+		return mNumDeltaResponses;
+	}
+	
+	public synchronized int getNumNotModifiedResponses()
+	{
+		return mNumNotModifiedResponses;
+	}
+	
+	public synchronized int getNumBatchRequests()
+	{
+		return mNumBatchRequests;
+	}
+	
+	//The number of batch requests whose body was streamed (chunked)
+	public synchronized int getNumChunkedRequests()
+	{
+		return mNumChunkedRequests;
+	}
+	
+	//The number of bytes received as batch request bodies
+	public synchronized long getBytesReceived()
+	{
+		return mBytesReceived;
+	}
+	
+	//The number of bytes sent (as response bodies, compressed if the client accepts gzip)
+	public synchronized long getBytesSent()
+	{
+		return mBytesSent;
+	}
+	
+	public synchronized long getUncompressedBytesSent()
+	{
+		return mUncompressedBytesSent;
+	}
+	
+	//The number of connections accepted (connections are kept alive, i.e., reused by pooling clients)
+	public synchronized int getNumConnections()
+	{
+		return mNumConnections;
+	}
+	
+	@Override
+	public void run()
+	{
+		while (!mSocket.isClosed())
+		{
+			try
+			{
+				final Socket client = mSocket.accept();
+				synchronized (this)
+				{
+					mNumConnections++;
+				}
+				//Connections are kept alive, so each gets its own thread
+				Thread connection = new Thread() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			}
+			catch (IOException ex)
+			{
+				//closed
+			}
+		}
+	}
+	
+	private void serve(Socket client)
+	{
+		try
+		{
+			BufferedReader request = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+			while (handle(request, client.getOutputStream())) { }
+		}
+		catch (IOException ex)
+		{
+			//the client closed the connection
+		}
+		finally
+		{
+			try { client.close(); } catch (IOException ex) { }
+		}
+	}
+	
+	//Handles the next request of a connection - returns false when the client has closed the connection
+	private boolean handle(BufferedReader request, OutputStream out) throws IOException
+	{
+		String requestLine = request.readLine();
+		if (requestLine == null)
+			return false;
+		String ifNoneMatch = null;
+		boolean acceptsGzip = false, chunked = false;
+		int contentLength = 0;
+		String line;
+		while ((line = request.readLine()) != null && line.length() > 0)
+		{
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("If-None-Match"))
+				ifNoneMatch = value;
+			else if (name.equalsIgnoreCase("Accept-Encoding"))
+				acceptsGzip = value.contains("gzip");
+			else if (name.equalsIgnoreCase("Content-Length"))
+				contentLength = Integer.parseInt(value);
+			else if (name.equalsIgnoreCase("Transfer-Encoding"))
+				chunked = value.equalsIgnoreCase("chunked");
+		}
+		//NB: We only receive (ASCII) request bodies in order to count them
+		long received = chunked ? skipChunks(request) : skipFully(request, contentLength);
+		
+		//GET /[operation]?[query] HTTP/1.1
+		String target = requestLine.split(" ")[1];
+		int q = target.indexOf('?');
+		String operation = q < 0 ? target.substring(1) : target.substring(1, q);
+		String query = q < 0 ? "" : target.substring(q + 1);
+		
+		String status, body = null;
+		synchronized (this)
+		{
+			String version = getVersion();
+			if (operation.equals("RemoveNonCollectiveMeasurements"))
+			{
+				if (version.equals(ifNoneMatch))
+				{
+					status = "304 Not Modified";
+					mNumNotModifiedResponses++;
+				}
+				else
+				{
+					status = "200 OK";
+					body = createRadioMap();
+					mNumFullResponses++;
+				}
+			}
+			else if (operation.equals("$batch"))
+			{
+				status = "202 Accepted";
+				mNumBatchRequests++;
+				mBytesReceived += received;
+				if (chunked)
+					mNumChunkedRequests++;
+			}
+			else if (operation.equals("RadioMapChanges") && mDeltaSupported)
+			{
+				int since = parseRevision(getParameter(query, "since"));
+				if (since == mRevision)
+				{
+					status = "304 Not Modified";
+					mNumNotModifiedResponses++;
+				}
+				else if (since < mOldestRevision || since > mRevision)
+				{
+					status = "410 Gone";
+				}
+				else
+				{
+					status = "200 OK";
+					body = createChanges(since);
+					mNumDeltaResponses++;
+				}
+			}
+			else
+			{
+				status = "404 Not Found";
+			}
+		}
+		
+		byte[] content = body == null ? new byte[0] : body.getBytes("UTF-8");
+		int uncompressedLength = content.length;
+		StringBuilder header = new StringBuilder();
+		header.append("HTTP/1.1 ").append(status).append("\r\n");
+		header.append("ETag: ").append(getVersion()).append("\r\n");
+		header.append("Content-Type: application/json\r\n");
+		if (acceptsGzip && content.length > 0)
+		{
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(content);
+			gzip.close();
+			content = compressed.toByteArray();
+			header.append("Content-Encoding: gzip\r\n");
+		}
+		header.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+		//Counted before sending, so the counts are up to date once the client has the response
+		synchronized (this)
+		{
+			mBytesSent += content.length;
+			mUncompressedBytesSent += uncompressedLength;
+		}
+		out.write(header.toString().getBytes("US-ASCII"));
+		out.write(content);
+		out.flush();
+		return true;
+	}
+	
+	private String createRadioMap()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"d\": [{\"ID\": 1, \"Building_Name\": \"Local\", \"Edges\": [");
+		appendCurrent(sb, mEdges, 0);
+		sb.append("], \"Vertices\": [");
+		appendCurrent(sb, mVertices, 0);
+		sb.append("]}]}");
+		return sb.toString();
+	}
+	
+	private String createChanges(int since)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"d\": {\"Version\": \"").append(getVersion().replace("\"", "\\\"")).append("\", \"Vertices\": [");
+		appendCurrent(sb, mVertices, since);
+		sb.append("], \"RemovedVertices\": [");
+		boolean first = true;
+		for (Map.Entry<Integer, Change> e : mVertices.entrySet())
+		{
+			if (!e.getValue().removed || e.getValue().revision <= since)
+				continue;
+			if (!first)
+				sb.append(", ");
+			sb.append(e.getKey());
+			first = false;
+		}
+		sb.append("], \"Edges\": [");
+		appendCurrent(sb, mEdges, since);
+		sb.append("], \"RemovedEdges\": [");
+		first = true;
+		for (Change c : mEdges.values())
+		{
+			if (!c.removed || c.revision <= since)
+				continue;
+			if (!first)
+				sb.append(", ");
+			sb.append(c.json);
+			first = false;
+		}
+		sb.append("]}}");
+		return sb.toString();
+	}
+	
+	//Appends the (not removed) elements changed after the given revision
+	private static void appendCurrent(StringBuilder sb, Map<?, Change> elements, int since)
+	{
+		boolean first = true;
+		for (Change c : elements.values())
+		{
+			if (c.removed || c.revision <= since)
+				continue;
+			if (!first)
+				sb.append(", ");
+			sb.append(c.json);
+			first = false;
+		}
+	}
+	
+	private static String getParameter(String query, String name) throws IOException
+	{
+		for (String param : query.split("&"))
+		{
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).equals(name))
+				return URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+		}
+		return null;
+	}
+	
+	//Skips a chunked request body - returns its length
+	private static long skipChunks(BufferedReader request) throws IOException
+	{
+		long length = 0;
+		while (true)
+		{
+			String sizeLine = request.readLine();
+			int size = Integer.parseInt(sizeLine.split(";")[0].trim(), 16);
+			if (size == 0)
+				break;
+			length += skipFully(request, size);
+			request.readLine(); //CRLF after the chunk
+		}
+		//trailer
+		String line;
+		while ((line = request.readLine()) != null && line.length() > 0) { }
+		return length;
+	}
+	
+	private static long skipFully(BufferedReader request, long n) throws IOException
+	{
+		long skipped = 0;
+		while (skipped < n)
+		{
+			long k = request.skip(n - skipped);
+			if (k <= 0)
+				throw new IOException("Unexpected end of request");
+			skipped += k;
+		}
+		return skipped;
+	}
+	
+	private static int parseRevision(String version)
+	{
+		try
+		{
+			return Integer.parseInt(version.replace("\"", ""));
+		}
+		catch (RuntimeException ex) //null or not a number
+		{
+			return -1;
+		}
+	}
+	
+	private static long getEdgeKey(int v1, int v2)
+	{
+		return Edge.createKey(Math.min(v1, v2), Math.max(v1, v2));
+	}
+	
+	private static class Change
+	{
+		final String json;
+		final int revision;
+		final boolean removed;
+		
+		Change(String json, int revision)
+		{
+			this(json, revision, false);
+		}
+		
+		Change(String json, int revision, boolean removed)
+		{
+			this.json = json;
+			this.revision = revision;
+			this.removed = removed;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartcampus.tracking.TrackedPosition;
+import com.smartcampus.tracking.TrackedPositionCodec;
+
+/**
+ * A local stand-in for a tracking endpoint that accepts the compact binary format (cf. TrackedPositionCodec): 
+ * - POST /AddTrackedPositions decodes the body and stores the positions (201), malformed bodies are rejected (400)
+ * The received positions and bytes are kept, so tests can verify what was transferred. 
+ */
+public class LocalTrackingService extends Thread {
+	
+	private final ServerSocket mSocket;
+	private final List<TrackedPosition> mPositions = new ArrayList<TrackedPosition>();
+	private int mNumRequests;
+	private long mBytesReceived;
+	
+	public LocalTrackingService() throws IOException
+	{
+		mSocket = new ServerSocket(0);
+		setDaemon(true);
+	}
+	
+	//The uri to pass to CompactTrackingClient
+	public String getUri()
+	{
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + "/AddTrackedPositions";
+	}
+	
+	public void close() throws IOException
+	{
+		mSocket.close();
+	}
+	
+	public synchronized List<TrackedPosition> getPositions()
+	{
+		return new ArrayList<TrackedPosition>(mPositions);
+	}
+	
+	public synchronized int getNumRequests()
+	{
+		return mNumRequests;
+	}
+	
+	public synchronized long getBytesReceived()
+	{
+		return mBytesReceived;
+	}
+	
+	@Override
+	public void run()
+	{
+		while (!mSocket.isClosed())
+		{
+			try
+			{
+				final Socket client = mSocket.accept();
+				Thread connection = new Thread() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			}
+			catch (IOException ex)
+			{
+				//closed
+			}
+		}
+	}
+	
+	private void serve(Socket client)
+	{
+		try
+		{
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			while (handle(in, client.getOutputStream())) { }
+		}
+		catch (IOException ex)
+		{
+			//the client closed the connection
+		}
+		finally
+		{
+			try { client.close(); } catch (IOException ex) { }
+		}
+	}
+	
+	//Handles the next request of a connection - returns false when the client has closed the connection
+	private boolean handle(InputStream in, OutputStream out) throws IOException
+	{
+		String requestLine = readLine(in);
+		if (requestLine == null)
+			return false;
+		int contentLength = 0;
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0)
+		{
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length"))
+				contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+		}
+		byte[] body = new byte[contentLength];
+		int off = 0;
+		while (off < contentLength)
+		{
+			int n = in.read(body, off, contentLength - off);
+			if (n == -1)
+				return false;
+			off += n;
+		}
+		
+		//POST /AddTrackedPositions HTTP/1.1
+		String[] request = requestLine.split(" ");
+		String status;
+		if (!request[0].equals("POST") || !request[1].equals("/AddTrackedPositions"))
+		{
+			status = "404 Not Found";
+		}
+		else
+		{
+			try
+			{
+				TrackedPosition[] positions = TrackedPositionCodec.decode(new ByteArrayInputStream(body));
+				synchronized (this)
+				{
+					for (TrackedPosition pos : positions)
+						mPositions.add(pos);
+					mNumRequests++;
+					mBytesReceived += body.length;
+				}
+				status = "201 Created";
+			}
+			catch (IOException ex)
+			{
+				status = "400 Bad Request";
+			}
+		}
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+		out.flush();
+		return true;
+	}
+	
+	//Reads a CRLF terminated (ASCII) line - null at the end of the stream
+	private static String readLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n')
+		{
+			if (b != '\r')
+				line.write(b);
+		}
+		if (b == -1 && line.size() == 0)
+			return null;
+		return line.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,204 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.webclient.test;
+
+import java.io.File;
+
+import com.smartcampus.indoormodel.Building;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.graph.Edge;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.webclient.JsonWebClient;
+import com.smartcampus.webclient.RadioMapDelta;
+import com.smartcampus.webclient.RadioMapRevalidator;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class RadioMapSyncTest extends TestCase {
+	
+	private static final int BUILDING_ID = 1;
+	
+	private LocalRadioMapService mService;
+	private JsonWebClient mClient;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mService = new LocalRadioMapService();
+		mService.start();
+		mClient = new JsonWebClient(mService.getServiceRootUri());
+		
+		//A corridor of vertices 1 - 2 - 3 on the ground floor
+		for (int id = 1; id <= 3; id++)
+			mService.putVertex(id, 57.0 + id * 1E-4, 9.99, 0, new String[] { "mac1", "mac2" }, new int[] { -40 - id, -70 + id });
+		mService.putEdge(1, 1, 2, false);
+		mService.putEdge(2, 2, 3, false);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mService.close();
+	}
+	
+	public void testNotModified() throws Exception
+	{
+		Building b = mClient.downloadRadioMap(BUILDING_ID);
+		Assert.assertEquals(mService.getVersion(), b.getRadioMapVersion());
+		
+		RadioMapDelta delta = mClient.downloadRadioMapChanges(BUILDING_ID, b.getRadioMapVersion());
+		Assert.assertTrue(delta.isEmpty());
+		Assert.assertEquals(b.getRadioMapVersion(), delta.getVersion());
+		Assert.assertEquals(1, mService.getNumNotModifiedResponses());
+		Assert.assertEquals(1, mService.getNumFullResponses());
+	}
+	
+	public void testDeltaMatchesFullDownload() throws Exception
+	{
+		Building cached = mClient.downloadRadioMap(BUILDING_ID);
+		long fullBytes = mService.getUncompressedBytesSent();
+		
+		//Move vertex 2, add vertex 4 (connected to 3), remove vertex 1 and make 2 - 3 an elevator edge
+		mService.putVertex(2, 57.00025, 9.99, 0, new String[] { "mac1", "mac3" }, new int[] { -55, -60 });
+		mService.putVertex(4, 57.0004, 9.99, 1, new String[] { "mac3" }, new int[] { -45 });
+		mService.putEdge(3, 3, 4, false);
+		mService.removeVertex(1);
+		mService.removeEdge(1, 2);
+		mService.putEdge(2, 2, 3, true);
+		
+		RadioMapDelta delta = mClient.downloadRadioMapChanges(BUILDING_ID, cached.getRadioMapVersion());
+		Assert.assertEquals(mService.getVersion(), delta.getVersion());
+		Assert.assertEquals(2, delta.getVertices().size());
+		Assert.assertEquals(1, delta.getRemovedVertexIds().size());
+		Assert.assertTrue(mService.getUncompressedBytesSent() - fullBytes < fullBytes);
+		
+		IGraph graph = cached.getGraphModel();
+		delta.apply(graph);
+		assertSameGraph(mClient.downloadRadioMap(BUILDING_ID).getGraphModel(), graph);
+		
+		//The updated radio map can be cached along with its new version
+		File file = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(BUILDING_ID, delta.getVersion(), graph, 1000, file);
+			RadioMapFile.setTimestamp(file, 2000);
+			RadioMapFile radioMap = RadioMapFile.open(file);
+			Assert.assertEquals(delta.getVersion(), radioMap.getVersion());
+			Assert.assertEquals(2000, radioMap.getTimestamp());
+			IGraph restored = radioMap.loadGraph();
+			assertSameGraph(graph, restored);
+			
+			//The vertices are placed at their stored coordinates in the frame of the file (they are not projected again)
+			for (int i = 0; i < radioMap.getNumVertices(); i++)
+			{
+				Vertex v = restored.getVertexById(radioMap.getVertexId(i));
+				Assert.assertSame(restored.getProjection(), v.getProjection());
+				Assert.assertEquals(radioMap.getVertexX(i), v.getX(), 0);
+				Assert.assertEquals(radioMap.getVertexY(i), v.getY(), 0);
+				Assert.assertSame(v, restored.getClosestVertex(v.getLocation().getAbsoluteLocation()));
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	public void testUnavailableChanges() throws Exception
+	{
+		String version = mClient.downloadRadioMap(BUILDING_ID).getRadioMapVersion();
+		mService.putVertex(5, 57.0, 9.99, 0, new String[] { "mac1" }, new int[] { -50 });
+		
+		//The history no longer covers our version
+		mService.discardHistory();
+		Assert.assertNull(mClient.downloadRadioMapChanges(BUILDING_ID, version));
+		
+		//The server does not support delta sync at all
+		mService.setDeltaSupported(false);
+		Assert.assertNull(mClient.downloadRadioMapChanges(BUILDING_ID, mService.getVersion()));
+		Assert.assertEquals(0, mService.getNumDeltaResponses());
+	}
+	
+	public void testCachedWithoutDeltaSupport() throws Exception
+	{
+		final long maxAge = 60 * 1000;
+		Building b = mClient.downloadRadioMap(BUILDING_ID);
+		mService.setDeltaSupported(false);
+		
+		File file = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(BUILDING_ID, b.getRadioMapVersion(), b.getGraphModel(), System.currentTimeMillis(), file);
+			RadioMapRevalidator revalidator = new RadioMapRevalidator(maxAge, Long.MAX_VALUE, new RadioMapRevalidator.Writer() {
+				public void write(int buildingId, String version, IGraph graph, File target) {
+					Assert.fail("Nothing to write without changes");
+				}
+			});
+			
+			//A fresh cache is used as is
+			Building cached = revalidator.load(BUILDING_ID, file, mClient);
+			Assert.assertNotNull(cached);
+			Assert.assertEquals(b.getRadioMapVersion(), cached.getRadioMapVersion());
+			assertSameGraph(b.getGraphModel(), cached.getGraphModel());
+			Assert.assertEquals(1, mService.getNumFullResponses());
+			Assert.assertEquals(0, mService.getNumDeltaResponses());
+			
+			//A stale cache must be replaced by a full download
+			RadioMapFile.setTimestamp(file, System.currentTimeMillis() - 2 * maxAge);
+			Assert.assertNull(revalidator.load(BUILDING_ID, file, mClient));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	private static void assertSameGraph(IGraph expected, IGraph actual)
+	{
+		Assert.assertEquals(expected.numVertices(), actual.numVertices());
+		Assert.assertEquals(expected.numEdges(), actual.numEdges());
+		for (Vertex v : expected.getVertices())
+		{
+			Vertex w = actual.getVertexById(v.getId());
+			Assert.assertNotNull(w);
+			Assert.assertEquals(v.getLocation().getAbsoluteLocation().getLatitude(), w.getLocation().getAbsoluteLocation().getLatitude(), 1E-9);
+			Assert.assertEquals(v.getLocation().getAbsoluteLocation().getAltitude(), w.getLocation().getAbsoluteLocation().getAltitude(), 1E-9);
+			Assert.assertEquals(v.getNumFingerprints(), w.getNumFingerprints());
+			Assert.assertEquals(v.getFingerPrints().get(0).getMACs(), w.getFingerPrints().get(0).getMACs());
+			Assert.assertEquals(v.degree(), w.degree());
+		}
+		for (Edge e : expected.getEdges())
+		{
+			Vertex origin = actual.getVertexById(e.getOrigin().getId());
+			Vertex destination = actual.getVertexById(e.getDestination().getId());
+			Assert.assertTrue(actual.areAdjacent(origin, destination));
+			Assert.assertEquals(e.isElevator(), actual.getEdges().get(actual.getEdges().indexOf(new Edge(origin, destination, 0))).isElevator());
+		}
+	}
+}
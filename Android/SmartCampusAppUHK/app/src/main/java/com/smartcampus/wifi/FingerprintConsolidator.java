@@ -0,0 +1,230 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.wifi;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Consolidates the fingerprints of a vertex (a spot is often calibrated several times) into at most a given number of fingerprints, 
+ * so the positioning algorithms score a bounded number of fingerprints per vertex. 
+ * - At most one fingerprint: All fingerprints are pooled into one, i.e., their histograms are added up. 
+ * - Otherwise: The fingerprints are clustered around medoids (k-medoids), and the fingerprints of each cluster are pooled. 
+ * Consolidation is done when a radio map is compiled (cf. RadioMapFile.write()) - the fingerprints of the vertex itself are not changed, 
+ * so the original fingerprints remain available (in the downloaded graph and on the server) for re-training. 
+ */
+public class FingerprintConsolidator {
+	
+	//The signal strength (in dBm) of an AP that is not heard - used for the distance between fingerprints
+	private static final int MISSING_DBM = -100;
+	private static final int MAX_ITERATIONS = 10;
+	
+	/**
+	 * @param maxFingerprints The maximum number of fingerprints to return (at least one)
+	 * @return The given fingerprints if there are at most maxFingerprints of them - otherwise the consolidated fingerprints
+	 */
+	public static List<WifiMeasurement> consolidate(List<WifiMeasurement> fingerprints, int maxFingerprints)
+	{
+		if (maxFingerprints < 1)
+			throw new IllegalArgumentException("At least one fingerprint must be kept");
+		if (fingerprints.size() <= maxFingerprints)
+			return fingerprints;
+		
+		List<WifiMeasurement> result = new ArrayList<WifiMeasurement>();
+		if (maxFingerprints == 1)
+		{
+			result.add(pool(fingerprints));
+			return result;
+		}
+		for (List<WifiMeasurement> cluster : cluster(fingerprints, maxFingerprints))
+			result.add(pool(cluster));
+		return result;
+	}
+	
+	/**
+	 * Pools the fingerprints into one: The histograms (and the additional info) of each MAC are added up, 
+	 * and the measurement time spans all the fingerprints. 
+	 */
+	public static WifiMeasurement pool(List<WifiMeasurement> fingerprints)
+	{
+		WifiMeasurement result = new WifiMeasurement();
+		Date start = null, end = null;
+		for (WifiMeasurement fp : fingerprints)
+		{
+			for (Map.Entry<String, Hashtable<Integer, Integer>> hist : fp.getHistograms().entrySet())
+			{
+				Hashtable<Integer, Integer> pooled = result.getHistograms().get(hist.getKey());
+				if (pooled == null)
+				{
+					pooled = new Hashtable<Integer, Integer>();
+					result.getHistograms().put(hist.getKey(), pooled);
+				}
+				for (Map.Entry<Integer, Integer> entry : hist.getValue().entrySet())
+				{
+					Integer count = pooled.get(entry.getKey());
+					pooled.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+				}
+			}
+			result.getMacInfos().putAll(fp.getMacInfos());
+			
+			if (fp.getMeasTimeStart() != null && (start == null || fp.getMeasTimeStart().before(start)))
+				start = fp.getMeasTimeStart();
+			if (fp.getMeasTimeEnd() != null && (end == null || fp.getMeasTimeEnd().after(end)))
+				end = fp.getMeasTimeEnd();
+		}
+		if (start != null)
+			result.setMeasTimeStart(start);
+		if (end != null)
+			result.setMeasTimeEnd(end);
+		return result;
+	}
+	
+	/**
+	 * Clusters the fingerprints around k medoids (the fingerprints with the least total distance to the other fingerprints of their cluster). 
+	 * The medoids are initialized farthest first (starting with the overall medoid), so the result is deterministic. 
+	 * @return At most k non-empty clusters
+	 */
+	public static List<List<WifiMeasurement>> cluster(List<WifiMeasurement> fingerprints, int k)
+	{
+		int n = fingerprints.size();
+		k = Math.min(k, n);
+		double[][] dist = new double[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = i + 1; j < n; j++)
+				dist[i][j] = dist[j][i] = getDistance(fingerprints.get(i), fingerprints.get(j));
+		
+		//Initial medoids
+		int[] medoids = new int[k];
+		int[] all = new int[n];
+		for (int i = 0; i < n; i++)
+			all[i] = i;
+		medoids[0] = getMedoid(dist, all, n);
+		for (int m = 1; m < k; m++)
+		{
+			int farthest = -1;
+			double farthestDist = -1;
+			for (int i = 0; i < n; i++)
+			{
+				double d = Double.MAX_VALUE;
+				for (int j = 0; j < m; j++)
+					d = Math.min(d, dist[i][medoids[j]]);
+				if (d > farthestDist)
+				{
+					farthestDist = d;
+					farthest = i;
+				}
+			}
+			medoids[m] = farthest;
+		}
+		
+		//Assign each fingerprint to its nearest medoid and move the medoids until they settle
+		int[] assignment = new int[n];
+		int[] members = new int[n];
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				int nearest = 0;
+				for (int m = 1; m < k; m++)
+					if (dist[i][medoids[m]] < dist[i][medoids[nearest]])
+						nearest = m;
+				assignment[i] = nearest;
+			}
+			boolean changed = false;
+			for (int m = 0; m < k; m++)
+			{
+				int numMembers = 0;
+				for (int i = 0; i < n; i++)
+					if (assignment[i] == m)
+						members[numMembers++] = i;
+				if (numMembers == 0)
+					continue;
+				int medoid = getMedoid(dist, members, numMembers);
+				if (medoid != medoids[m] && dist[medoid][medoids[m]] > 0)
+				{
+					medoids[m] = medoid;
+					changed = true;
+				}
+			}
+			if (!changed)
+				break;
+		}
+		
+		List<List<WifiMeasurement>> result = new ArrayList<List<WifiMeasurement>>();
+		for (int m = 0; m < k; m++)
+		{
+			List<WifiMeasurement> cluster = new ArrayList<WifiMeasurement>();
+			for (int i = 0; i < n; i++)
+				if (assignment[i] == m)
+					cluster.add(fingerprints.get(i));
+			if (!cluster.isEmpty())
+				result.add(cluster);
+		}
+		return result;
+	}
+	
+	/**
+	 * The Euclidean distance between the average signal strengths of two fingerprints (a MAC missing from one of them counts as MISSING_DBM)
+	 */
+	public static double getDistance(WifiMeasurement a, WifiMeasurement b)
+	{
+		Set<String> macs = new HashSet<String>(a.getMACs());
+		macs.addAll(b.getMACs());
+		double sum = 0;
+		for (String mac : macs)
+		{
+			int dbmA = a.containsMac(mac) ? a.getAvgDbM(mac) : MISSING_DBM;
+			int dbmB = b.containsMac(mac) ? b.getAvgDbM(mac) : MISSING_DBM;
+			sum += (dbmA - dbmB) * (dbmA - dbmB);
+		}
+		return Math.sqrt(sum);
+	}
+	
+	//The member with the least total distance to the other members
+	private static int getMedoid(double[][] dist, int[] members, int numMembers)
+	{
+		int medoid = members[0];
+		double minTotal = Double.MAX_VALUE;
+		for (int i = 0; i < numMembers; i++)
+		{
+			double total = 0;
+			for (int j = 0; j < numMembers; j++)
+				total += dist[members[i]][members[j]];
+			if (total < minTotal)
+			{
+				minTotal = total;
+				medoid = members[i];
+			}
+		}
+		return medoid;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.wifi;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The MACs (access points) of a building, used to drop the scan results of other APs (phone hotspots, neighbouring buildings, etc.) 
+ * before they are added to a measurement. Such APs never match a fingerprint, so they only cost allocations (a histogram and a MacInfo) 
+ * and a missing-MAC penalty per fingerprint. 
+ * The MACs are kept in an open-addressing hash set of longs (the hex digits of a MAC), so a BSSID is looked up without allocating. 
+ * MACs are matched as WifiMeasurement.addValue() matches them, i.e., without the last character of a full MAC, 
+ * but regardless of case and separators (so a MAC that may match a fingerprint is never dropped). 
+ * The filter is immutable. 
+ */
+public final class ScanFilter {
+	
+	private static final long NO_KEY = -1;
+	//At most this many hex digits fit in a key (with the number of digits in the low 4 bits)
+	private static final int MAX_DIGITS = 14;
+	
+	private final long[] mTable; //0 denotes an empty slot
+	private final int mShift;
+	private final int mSize;
+	//MACs that are not hex digits and separators (matched as strings)
+	private final Set<String> mOtherMacs = new HashSet<String>();
+	
+	public ScanFilter(Collection<String> macs)
+	{
+		//A power of two of at least twice the number of MACs
+		int capacity = 2;
+		while (capacity < 2 * macs.size())
+			capacity <<= 1;
+		mTable = new long[capacity];
+		mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+		
+		int size = 0;
+		for (String mac : macs)
+		{
+			long key = toKey(mac);
+			if (key == NO_KEY)
+			{
+				mOtherMacs.add(WifiMeasurement.discardLastCharIfMacIsFull(mac));
+				continue;
+			}
+			int slot = indexOf(key);
+			if (mTable[slot] == 0)
+			{
+				mTable[slot] = key;
+				size++;
+			}
+		}
+		mSize = size + mOtherMacs.size();
+	}
+	
+	/**
+	 * @return True if the BSSID (of a scan result) is one of the building's MACs
+	 */
+	public boolean accept(String bssid)
+	{
+		if (bssid == null)
+			return false;
+		long key = toKey(bssid);
+		if (key == NO_KEY)
+			return !mOtherMacs.isEmpty() && mOtherMacs.contains(WifiMeasurement.discardLastCharIfMacIsFull(bssid));
+		return mTable[indexOf(key)] == key;
+	}
+	
+	/**
+	 * @return The number of distinct MACs of the building
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+	
+	//The slot of the key - or the empty slot where it would go (linear probing)
+	private int indexOf(long key)
+	{
+		int mask = mTable.length - 1;
+		int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> mShift);
+		while (mTable[slot] != 0 && mTable[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+	
+	/**
+	 * The hex digits of the MAC (without the last character of a full MAC, cf. WifiMeasurement.discardLastCharIfMacIsFull()) 
+	 * followed by the number of digits - or NO_KEY if the MAC has other characters than hex digits and ':' or '-' separators
+	 */
+	static long toKey(String mac)
+	{
+		int length = mac.length() == 17 ? 16 : mac.length();
+		long value = 0;
+		int numDigits = 0;
+		for (int i = 0; i < length; i++)
+		{
+			char c = mac.charAt(i);
+			int digit = Character.digit(c, 16);
+			if (digit >= 0)
+			{
+				if (++numDigits > MAX_DIGITS)
+					return NO_KEY;
+				value = (value << 4) | digit;
+			}
+			else if (c != ':' && c != '-')
+			{
+				return NO_KEY;
+			}
+		}
+		return numDigits == 0 ? NO_KEY : (value << 4) | numDigits;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "ScanFilter: " + mSize + " macs";
+	}
+}
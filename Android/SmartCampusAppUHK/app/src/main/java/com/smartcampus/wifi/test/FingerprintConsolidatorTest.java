@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.wifi.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartcampus.indoormodel.AbsoluteLocation;
+import com.smartcampus.indoormodel.RadioMapFile;
+import com.smartcampus.indoormodel.graph.GraphBuilder;
+import com.smartcampus.indoormodel.graph.IGraph;
+import com.smartcampus.indoormodel.graph.Vertex;
+import com.smartcampus.wifi.FingerprintConsolidator;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class FingerprintConsolidatorTest extends TestCase {
+	
+	public void testPool()
+	{
+		List<WifiMeasurement> fingerprints = new ArrayList<WifiMeasurement>();
+		fingerprints.add(createFingerprint(new String[] { "mac1", "mac2" }, new int[] { -40, -60 }));
+		fingerprints.add(createFingerprint(new String[] { "mac1", "mac3" }, new int[] { -40, -70 }));
+		fingerprints.add(createFingerprint(new String[] { "mac1" }, new int[] { -46 }));
+		
+		WifiMeasurement pooled = FingerprintConsolidator.pool(fingerprints);
+		Assert.assertEquals(3, pooled.getNumMACs());
+		Assert.assertEquals(2, (int)pooled.GetHistogram("mac1").get(-40));
+		Assert.assertEquals(1, (int)pooled.GetHistogram("mac1").get(-46));
+		Assert.assertEquals(-42, pooled.getAvgDbM("mac1"));
+		Assert.assertEquals(-70, pooled.getAvgDbM("mac3"));
+		//The originals are not changed
+		Assert.assertEquals(1, (int)fingerprints.get(0).GetHistogram("mac1").get(-40));
+	}
+	
+	public void testConsolidate()
+	{
+		//Two kinds of scans of the same spot, e.g., with the door open and closed
+		List<WifiMeasurement> fingerprints = new ArrayList<WifiMeasurement>();
+		for (int i = 0; i < 4; i++)
+		{
+			fingerprints.add(createFingerprint(new String[] { "mac1", "mac2" }, new int[] { -40 - i, -60 }));
+			fingerprints.add(createFingerprint(new String[] { "mac1", "mac3" }, new int[] { -80 + i, -50 }));
+		}
+		
+		Assert.assertSame(fingerprints, FingerprintConsolidator.consolidate(fingerprints, fingerprints.size()));
+		Assert.assertEquals(1, FingerprintConsolidator.consolidate(fingerprints, 1).size());
+		
+		List<WifiMeasurement> consolidated = FingerprintConsolidator.consolidate(fingerprints, 2);
+		Assert.assertEquals(2, consolidated.size());
+		for (WifiMeasurement meas : consolidated)
+		{
+			Assert.assertEquals(2, meas.getNumMACs());
+			Assert.assertTrue(meas.containsMac("mac2") ^ meas.containsMac("mac3"));
+			Assert.assertEquals(4, sum(meas.GetHistogram("mac1").values()));
+		}
+	}
+	
+	public void testWriteConsolidated() throws Exception
+	{
+		GraphBuilder builder = new GraphBuilder();
+		for (int id = 0; id < 3; id++)
+		{
+			Vertex v = new Vertex(id, new AbsoluteLocation(57.0 + id * 1E-4, 9.99, 0));
+			for (int i = 0; i <= id; i++)
+				v.addFingerprint(createFingerprint(new String[] { "mac1", "mac" + i }, new int[] { -40 - i, -60 }));
+			builder.addVertex(v);
+		}
+		IGraph graph = builder.build();
+		
+		File file = File.createTempFile("radiomap", ".bin");
+		try
+		{
+			RadioMapFile.write(1, "v1", graph, 1000, file, null, 1);
+			IGraph restored = RadioMapFile.open(file).loadGraph();
+			for (Vertex v : graph.getVertices())
+			{
+				Vertex w = restored.getVertexById(v.getId());
+				Assert.assertEquals(1, w.getNumFingerprints());
+				Assert.assertEquals(FingerprintConsolidator.pool(v.getFingerPrints()).getHistograms(), w.getFingerPrints().get(0).getHistograms());
+			}
+			//The graph keeps its original fingerprints
+			Assert.assertEquals(3, graph.getVertexById(2).getNumFingerprints());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	private static WifiMeasurement createFingerprint(String[] macs, int[] dbms)
+	{
+		WifiMeasurement meas = new WifiMeasurement();
+		for (int i = 0; i < macs.length; i++)
+			meas.addValue(macs[i], dbms[i]);
+		return meas;
+	}
+	
+	private static int sum(Iterable<Integer> values)
+	{
+		int result = 0;
+		for (int value : values)
+			result += value;
+		return result;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+Copyright (c) 2014, Aalborg University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+package com.smartcampus.wifi.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.smartcampus.wifi.ScanFilter;
+import com.smartcampus.wifi.WifiMeasurement;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class ScanFilterTest extends TestCase {
+	
+	public void testAccept() throws Exception
+	{
+		//Radio map MACs are stored without the last character (cf. WifiMeasurement.addValue())
+		ScanFilter filter = new ScanFilter(Arrays.asList("00:1a:2b:3c:4d:5", "00:11:22:33:44:55", "not a mac"));
+		Assert.assertEquals(3, filter.size());
+		
+		//Any sub mac of an AP
+		Assert.assertTrue(filter.accept("00:1a:2b:3c:4d:50"));
+		Assert.assertTrue(filter.accept("00:1a:2b:3c:4d:5f"));
+		Assert.assertTrue(filter.accept("00:1A:2B:3C:4D:5F"));
+		Assert.assertTrue(filter.accept("00:11:22:33:44:59"));
+		Assert.assertTrue(filter.accept("not a mac"));
+		
+		Assert.assertFalse(filter.accept("00:1a:2b:3c:4d:60"));
+		Assert.assertFalse(filter.accept("00:1a:2b:3c:4d"));
+		Assert.assertFalse(filter.accept("something else"));
+		Assert.assertFalse(filter.accept(""));
+		Assert.assertFalse(filter.accept(null));
+		
+		Assert.assertFalse(new ScanFilter(new ArrayList<String>()).accept("00:11:22:33:44:55"));
+	}
+	
+	public void testManyMacs() throws Exception
+	{
+		Random rnd = new Random(7);
+		List<String> known = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++)
+			known.add(WifiMeasurement.discardLastCharIfMacIsFull(randomMac(rnd)));
+		ScanFilter filter = new ScanFilter(known);
+		Set<String> expected = new HashSet<String>(known);
+		Assert.assertEquals(expected.size(), filter.size());
+		
+		for (String mac : known)
+			Assert.assertTrue(filter.accept(mac + "0"));
+		for (int i = 0; i < 10000; i++)
+		{
+			String mac = randomMac(rnd);
+			Assert.assertEquals(expected.contains(WifiMeasurement.discardLastCharIfMacIsFull(mac)), filter.accept(mac));
+		}
+	}
+	
+	private static String randomMac(Random rnd)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 6; i++)
+		{
+			if (i > 0)
+				sb.append(':');
+			sb.append(String.format("%02x", rnd.nextInt(256)));
+		}
+		return sb.toString();
+	}
+}